@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.Account;
+import service.AccountService;
+import service.AccountSession;
+
+/**
+ * @author viswa
+ *
+ * benchmarks of the account lookups and logins of AccountService, for different numbers of accounts
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Benchmark)
+public class AccountServiceBenchmark {
+
+  @Param({"1000", "100000"})
+  private int accountCount;
+
+  private AccountService accountService;
+  private String[] names;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    names = new String[accountCount];
+    for (int i = 0; i < accountCount; i++) {
+      names[i] = "user" + i;
+      accountService.addAccount(names[i], 1_000L);
+    }
+  }
+
+  private String nextName() {
+    String name = names[next];
+    next = next + 1 == names.length ? 0 : next + 1;
+    return name;
+  }
+
+  @Benchmark
+  public Optional<Account> getAccount() {
+    return accountService.getAccount(nextName());
+  }
+
+  @Benchmark
+  public AccountSession loginUser() {
+    return accountService.loginUser(nextName());
+  }
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.Account;
+import domain.AccountBalance;
+import service.AccountService;
+import service.AccountSession;
+import service.BalanceQuery;
+import util.AccountLocks;
+
+/**
+ * @author viswa
+ *
+ * balance and debt reads of 3 threads while one thread keeps transferring between the same few accounts,
+ * read under the account lock (locked) or by the optimistic BalanceQuery (optimistic).
+ * Both the read and the write throughput are reported, a locked read holds up the writer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Group)
+public class BalanceQueryBenchmark {
+
+  private static final int ACCOUNTS = 16;
+
+  @Param({"locked", "optimistic"})
+  private String read;
+
+  private AccountService accountService;
+  private BalanceQuery balanceQuery;
+  private Account[] accounts;
+  private AccountSession[] sessions;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    balanceQuery = accountService.getBalanceQuery();
+    accounts = new Account[ACCOUNTS];
+    sessions = new AccountSession[ACCOUNTS];
+    for (int i = 0; i < ACCOUNTS; i++) {
+      accountService.addAccount("user" + i, 1000L);
+      sessions[i] = accountService.openSession("user" + i);
+      accounts[i] = sessions[i].getAccount();
+    }
+  }
+
+  /**
+   * per thread random source
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private final SplittableRandom random = new SplittableRandom();
+  }
+
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(3)
+  public long query(Cursor cursor) {
+    Account account = accounts[cursor.random.nextInt(ACCOUNTS)];
+    if ("locked".equals(read)) {
+      AccountLocks.lock(account);
+      try {
+        return account.getBalance() + account.getOwesTo().size() + account.getOwesFrom().size();
+      } finally {
+        AccountLocks.unlock(account);
+      }
+    }
+    AccountBalance balance = balanceQuery.query(account);
+    return balance.getBalance() + balance.getOwesTo().size() + balance.getOwesFrom().size();
+  }
+
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(1)
+  public void transfer(Cursor cursor) {
+    int payer = cursor.random.nextInt(ACCOUNTS);
+    int payee = (payer + 1 + cursor.random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+    accountService.transferAmount(sessions[payer], accounts[payee].getId(), 1 + cursor.random.nextInt(100));
+  }
+}
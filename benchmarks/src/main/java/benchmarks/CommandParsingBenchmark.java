@@ -0,0 +1,112 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import app.CommandBatchRunner;
+import enums.CommandAction;
+import service.AccountService;
+import util.CommandBufferParser;
+
+/**
+ * @author viswa
+ *
+ * benchmarks of the command input path, reported per command.
+ * splitCommands parses the lines the way the interactive loop of CommandlineClientMain does,
+ * parseCommands parses them in place with CommandBufferParser, and replayCommands runs them
+ * end to end through CommandBatchRunner and AccountService
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Benchmark)
+public class CommandParsingBenchmark {
+
+  /*
+   * number of commands in the replayed script
+   */
+  private static final int COMMANDS = 3000;
+
+  @Param({"100", "10000"})
+  private int accountCount;
+
+  private AccountService accountService;
+  private byte[] script;
+  private String[] lines;
+  private final CommandBufferParser parser = new CommandBufferParser();
+
+  @Setup(Level.Trial)
+  public void setup() {
+    accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    for (int i = 0; i < accountCount; i++) {
+      accountService.addAccount("user" + i, 0L);
+    }
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < COMMANDS / 3; i++) {
+      builder.append("login user").append(i % accountCount).append('\n');
+      builder.append("topup 100\n");
+      builder.append("pay user").append((i + 1) % accountCount).append(" 30\n");
+    }
+    String text = builder.toString();
+    script = text.getBytes(StandardCharsets.UTF_8);
+    lines = text.split("\n");
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COMMANDS)
+  public void splitCommands(Blackhole blackhole) {
+    for (String line : lines) {
+      String[] commands = line.trim().split("\\s+");
+      blackhole.consume(CommandAction.fromCommand(commands[0]));
+      blackhole.consume(commands[commands.length - 1]);
+      if (commands.length > 1 && !"login".equals(commands[0])) {
+        blackhole.consume(Long.parseLong(commands[commands.length - 1]));
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COMMANDS)
+  public void parseCommands(Blackhole blackhole) {
+    parser.reset(ByteBuffer.wrap(script), true);
+    while (parser.next()) {
+      CommandAction action = parser.getAction();
+      blackhole.consume(action);
+      if (action == CommandAction.LOGIN || action == CommandAction.PAY) {
+        blackhole.consume(parser.getName(1));
+      }
+      if (parser.parseAmount(parser.getTokenCount() - 1)) {
+        blackhole.consume(parser.getAmount());
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COMMANDS)
+  public long replayCommands() throws IOException {
+    CommandBatchRunner runner = new CommandBatchRunner(accountService);
+    runner.replayStream(new ByteArrayInputStream(script));
+    return runner.getCommandCount();
+  }
+}
@@ -0,0 +1,115 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.CommandServer;
+import server.ServerConfig;
+import service.AccountService;
+
+/**
+ * @author viswa
+ *
+ * benchmark of topup/pay commands sent over a local socket to the CommandServer, reported per command.
+ * Every invocation sends the same commands in batches of pipelineDepth: with depth 1 the client waits for
+ * every response before sending the next command (lock step), with a larger depth it sends the whole batch
+ * with one write and then reads all of its responses
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Benchmark)
+public class CommandServerBenchmark {
+
+  /*
+   * number of commands sent per invocation, a multiple of every pipeline depth
+   */
+  private static final int COMMANDS = 256;
+  private static final long LARGE_AMOUNT = 1_000_000_000_000_000L;
+
+  @Param({"1", "16", "256"})
+  private int pipelineDepth;
+
+  private CommandServer server;
+  private Socket socket;
+  private OutputStream out;
+  private InputStream in;
+  private byte[] batch;
+  private final byte[] response = new byte[1 << 16];
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    AccountService accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    accountService.addAccount("payer", LARGE_AMOUNT);
+    accountService.addAccount("payee", 0L);
+    server = CommandServer.start(accountService, new ServerConfig().setPort(0));
+    socket = new Socket("localhost", server.getPort());
+    socket.setTcpNoDelay(true);
+    out = socket.getOutputStream();
+    in = socket.getInputStream();
+    out.write("login payer\n".getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    readResponses(1);
+    StringBuilder commands = new StringBuilder();
+    for (int i = 0; i < pipelineDepth; i++) {
+      commands.append(i % 2 == 0 ? "topup 1\n" : "pay payee 1\n");
+    }
+    batch = commands.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    socket.close();
+    server.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COMMANDS)
+  public void sendCommands() throws IOException {
+    for (int sent = 0; sent < COMMANDS; sent += pipelineDepth) {
+      out.write(batch);
+      out.flush();
+      readResponses(pipelineDepth);
+    }
+  }
+
+  /**
+   * reads till the given number of response lines arrived
+   */
+  private void readResponses(int count) throws IOException {
+    int lines = 0;
+    while (lines < count) {
+      int read = in.read(response);
+      if (read < 0) {
+        throw new IOException("Connection closed by server.");
+      }
+      for (int i = 0; i < read; i++) {
+        if (response[i] == '\n') {
+          lines++;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import service.AccountService;
+import service.AccountSession;
+import service.SequencerConfig;
+
+/**
+ * @author viswa
+ *
+ * benchmark of AccountService.transferAmount from 4 threads between random accounts, with the accounts
+ * changed under striped account locks (locking) or by the single writer thread of the sequencer.
+ * Throughput is reported together with the sampled latency percentiles of a single transfer
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@Threads(4)
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+
+  private static final int ACCOUNTS = 1024;
+  private static final long LARGE_AMOUNT = 1_000_000_000_000_000L;
+
+  @Param({"locking", "sequencer"})
+  private String engine;
+
+  private AccountService accountService;
+  private int[] ids;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    ids = new int[ACCOUNTS];
+    for (int i = 0; i < ACCOUNTS; i++) {
+      accountService.addAccount("user" + i, LARGE_AMOUNT);
+      ids[i] = accountService.getAccountId("user" + i);
+    }
+    if (SequencerConfig.SEQUENCER_ENGINE.equals(engine)) {
+      accountService.startSequencer(new SequencerConfig());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    accountService.stopSequencer();
+  }
+
+  /**
+   * per thread session of a random payer
+   */
+  @State(Scope.Thread)
+  public static class Payer {
+
+    private final SplittableRandom random = new SplittableRandom();
+    private AccountSession session;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup(EngineBenchmark benchmark) {
+      index = random.nextInt(ACCOUNTS);
+      session = benchmark.accountService.openSession("user" + index);
+    }
+  }
+
+  @Benchmark
+  public void transferAmount(Payer payer) {
+    int payee = (payer.index + 1 + payer.random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+    accountService.transferAmount(payer.session, ids[payee], 1L);
+  }
+}
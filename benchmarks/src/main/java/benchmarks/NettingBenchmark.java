@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.Account;
+import service.AccountService;
+import service.NettingConfig;
+
+/**
+ * @author viswa
+ *
+ * one full run of the netting job over a random debt graph of the given number of debts, between groups of
+ * 64 accounts with 16 debts per account, netted by one thread or by a fork-join pool of 4.
+ * The graph is built again before every run, which is not measured
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlogback.configurationFile=logback-benchmark.xml"})
+@State(Scope.Benchmark)
+public class NettingBenchmark {
+
+  private static final int GROUP_SIZE = 64;
+  private static final int DEBTS_PER_ACCOUNT = 16;
+
+  @Param({"100000", "1000000"})
+  private int debtCount;
+
+  @Param({"1", "4"})
+  private int parallelism;
+
+  private AccountService accountService;
+  private Account[] accounts;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    accountService = AccountService.getInstance();
+    accountService.startNetting(new NettingConfig().setIntervalMillis(0L).setParallelism(parallelism));
+  }
+
+  @Setup(Level.Invocation)
+  public void buildGraph() {
+    accountService.clearAccounts();
+    int accountCount = debtCount / DEBTS_PER_ACCOUNT;
+    accounts = new Account[accountCount];
+    for (int i = 0; i < accountCount; i++) {
+      accountService.addAccount("user" + i, 0L);
+      accounts[i] = accountService.getAccount("user" + i).get();
+    }
+    SplittableRandom random = new SplittableRandom(accountCount);
+    for (int i = 0; i < accountCount; i++) {
+      int group = i - i % GROUP_SIZE;
+      for (int debt = 0; debt < DEBTS_PER_ACCOUNT; debt++) {
+        int creditor = Math.min(accountCount - 1, group + random.nextInt(GROUP_SIZE));
+        if (creditor != i) {
+          accounts[i].addOwesTo(accounts[creditor].getName(), 1L + random.nextInt(1000));
+        }
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    accountService.stopNetting();
+  }
+
+  @Benchmark
+  public long netAllDebts() {
+    return accountService.netDebts(false);
+  }
+}
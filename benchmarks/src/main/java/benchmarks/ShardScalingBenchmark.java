@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import service.AccountService;
+import service.AccountSession;
+import service.ShardConfig;
+
+/**
+ * @author viswa
+ *
+ * throughput of AccountService.transferAmount in the sharded mode with a growing number of shards,
+ * from 8 threads between uniformly random accounts, so most transfers cross shards.
+ * The scaling with the shard count is bounded by the number of cores of the machine
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@Threads(8)
+@State(Scope.Benchmark)
+public class ShardScalingBenchmark {
+
+  private static final int ACCOUNTS = 4096;
+  private static final long LARGE_AMOUNT = 1_000_000_000_000_000L;
+
+  @Param({"1", "2", "4", "8"})
+  private int shards;
+
+  private AccountService accountService;
+  private int[] ids;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    ids = new int[ACCOUNTS];
+    for (int i = 0; i < ACCOUNTS; i++) {
+      accountService.addAccount("user" + i, LARGE_AMOUNT);
+      ids[i] = accountService.getAccountId("user" + i);
+    }
+    accountService.startShardedEngine(new ShardConfig().setShardCount(shards));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    accountService.stopShardedEngine();
+  }
+
+  /**
+   * per thread session of a random payer
+   */
+  @State(Scope.Thread)
+  public static class Payer {
+
+    private final SplittableRandom random = new SplittableRandom();
+    private AccountSession session;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup(ShardScalingBenchmark benchmark) {
+      index = random.nextInt(ACCOUNTS);
+      session = benchmark.accountService.openSession("user" + index);
+    }
+  }
+
+  @Benchmark
+  public void transferAmount(Payer payer) {
+    int payee = (payer.index + 1 + payer.random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+    accountService.transferAmount(payer.session, ids[payee], 1L);
+  }
+}
@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.Account;
+import enums.SettlementOrder;
+import service.AccountService;
+import service.AccountSession;
+import service.SettlementConfig;
+
+/**
+ * @author viswa
+ *
+ * benchmark of AccountService.topupBalance for a user with outstanding debts.
+ * Every debt is large enough never to be paid off, each topup of 1 settles 1 with the first creditor,
+ * so the number of outstanding debts stays the same for the whole run.
+ * The creditors are picked oldest first from all debts (none), or by the settlement engine from at most
+ * 64 of them per topup, oldest first (fifo) or smallest first (smallest)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Benchmark)
+public class TopupBenchmark {
+
+  private static final long LARGE_DEBT = 1_000_000_000_000_000L;
+
+  @Param({"0", "10", "1000"})
+  private int debtCount;
+
+  @Param({"none", "fifo", "smallest"})
+  private String settlement;
+
+  private AccountService accountService;
+  private AccountSession session;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    accountService.addAccount("debtor", 0L);
+    Account debtor = accountService.getAccount("debtor").get();
+    for (int i = 0; i < debtCount; i++) {
+      accountService.addAccount("creditor" + i, 0L);
+      debtor.addOwesTo("creditor" + i, LARGE_DEBT);
+    }
+    session = accountService.openSession("debtor");
+    SettlementOrder order = SettlementOrder.fromName(settlement);
+    if (order != null) {
+      accountService.startSettlement(new SettlementConfig().setOrder(order).setMaxPerCommand(64));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    accountService.stopSettlement();
+  }
+
+  @Benchmark
+  public long topupBalance() {
+    accountService.topupBalance(session, 1L);
+    return session.getAccount().getBalance();
+  }
+}
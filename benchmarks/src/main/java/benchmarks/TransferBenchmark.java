@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.Account;
+import service.AccountService;
+import util.TransactionUtil;
+
+/**
+ * @author viswa
+ *
+ * benchmark of TransactionUtil.transferAmount between two accounts.
+ * Without reverse debt every transfer moves balance, with reverse debt every transfer is netted
+ * against what the payee owes to the payer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+  private static final long LARGE_AMOUNT = 1_000_000_000_000_000L;
+
+  @Param({"false", "true"})
+  private boolean reverseDebt;
+
+  private Account payer;
+  private Account payee;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    AccountService accountService = AccountService.getInstance();
+    accountService.clearAccounts();
+    accountService.addAccount("payer", LARGE_AMOUNT);
+    accountService.addAccount("payee", 0L);
+    payer = accountService.getAccount("payer").get();
+    payee = accountService.getAccount("payee").get();
+    if (reverseDebt) {
+      payee.addOwesTo("payer", LARGE_AMOUNT);
+    }
+  }
+
+  @Benchmark
+  public long transferAmount() {
+    TransactionUtil.transferAmount(payer, payee, 1L);
+    return payer.getBalance();
+  }
+}
@@ -0,0 +1,122 @@
+package admission;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the admission control in front of the command dispatch.
+ * At most maxConcurrent commands are executed at once and at most maxQueued more wait for their turn, each for
+ * queueTimeoutMillis at most; a command beyond these limits is rejected at once. Every session may send
+ * ratePerSecond commands per second with bursts of up to burst commands, 0 does not limit the rate.
+ */
+public class AdmissionConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String MAX_CONCURRENT_PROPERTY = "bank.admission.maxConcurrent";
+  public static final String MAX_QUEUED_PROPERTY = "bank.admission.maxQueued";
+  public static final String QUEUE_TIMEOUT_PROPERTY = "bank.admission.queueTimeoutMillis";
+  public static final String RATE_PROPERTY = "bank.admission.ratePerSecond";
+  public static final String BURST_PROPERTY = "bank.admission.burst";
+
+  private int maxConcurrent = Runtime.getRuntime().availableProcessors() * 2;
+  private int maxQueued = 1024;
+  private long queueTimeoutMillis = 50L;
+  private long ratePerSecond;
+  private long burst;
+
+  /**
+   * builds the configuration from system properties, unset properties keep their defaults
+   * @return configuration, or null if none of the admission properties is set
+   */
+  public static AdmissionConfig fromSystemProperties() {
+    String maxConcurrent = System.getProperty(MAX_CONCURRENT_PROPERTY);
+    String maxQueued = System.getProperty(MAX_QUEUED_PROPERTY);
+    String queueTimeout = System.getProperty(QUEUE_TIMEOUT_PROPERTY);
+    String rate = System.getProperty(RATE_PROPERTY);
+    String burst = System.getProperty(BURST_PROPERTY);
+    if (StringUtils.isAllBlank(maxConcurrent, maxQueued, queueTimeout, rate, burst)) {
+      return null;
+    }
+    AdmissionConfig config = new AdmissionConfig();
+    if (StringUtils.isNotBlank(maxConcurrent)) {
+      config.setMaxConcurrent(Integer.parseInt(maxConcurrent.trim()));
+    }
+    if (StringUtils.isNotBlank(maxQueued)) {
+      config.setMaxQueued(Integer.parseInt(maxQueued.trim()));
+    }
+    if (StringUtils.isNotBlank(queueTimeout)) {
+      config.setQueueTimeoutMillis(Long.parseLong(queueTimeout.trim()));
+    }
+    if (StringUtils.isNotBlank(rate)) {
+      config.setRatePerSecond(Long.parseLong(rate.trim()));
+    }
+    if (StringUtils.isNotBlank(burst)) {
+      config.setBurst(Long.parseLong(burst.trim()));
+    }
+    return config;
+  }
+
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+  public AdmissionConfig setMaxConcurrent(int maxConcurrent) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("Maximum concurrent commands must be greater than 0.");
+    }
+    this.maxConcurrent = maxConcurrent;
+    return this;
+  }
+
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+  /**
+   * @param maxQueued 0 rejects a command as soon as maxConcurrent commands are executing
+   */
+  public AdmissionConfig setMaxQueued(int maxQueued) {
+    if (maxQueued < 0) {
+      throw new IllegalArgumentException("Maximum queued commands cannot be less than 0.");
+    }
+    this.maxQueued = maxQueued;
+    return this;
+  }
+
+  public long getQueueTimeoutMillis() {
+    return queueTimeoutMillis;
+  }
+  public AdmissionConfig setQueueTimeoutMillis(long queueTimeoutMillis) {
+    if (queueTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Queue timeout cannot be less than 0.");
+    }
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    return this;
+  }
+
+  public long getRatePerSecond() {
+    return ratePerSecond;
+  }
+  public AdmissionConfig setRatePerSecond(long ratePerSecond) {
+    if (ratePerSecond < 0) {
+      throw new IllegalArgumentException("Rate per second cannot be less than 0.");
+    }
+    this.ratePerSecond = ratePerSecond;
+    return this;
+  }
+
+  /**
+   * @return number of commands a session may send at once, the rate per second if no burst is set
+   */
+  public long getBurst() {
+    return burst > 0 ? burst : Math.max(1L, ratePerSecond);
+  }
+  public AdmissionConfig setBurst(long burst) {
+    if (burst < 0) {
+      throw new IllegalArgumentException("Burst cannot be less than 0.");
+    }
+    this.burst = burst;
+    return this;
+  }
+}
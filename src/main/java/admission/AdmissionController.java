@@ -0,0 +1,110 @@
+package admission;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import enums.AdmissionResult;
+
+/**
+ * @author viswa
+ *
+ * admission control in front of the command dispatch, so that input arriving faster than AccountService applies it
+ * is turned away instead of piling up as latency.
+ * A command first takes a token of the rate limit of its session, then one of maxConcurrent permits. When no permit
+ * is free it waits in a queue of at most maxQueued commands for at most queueTimeoutMillis; a command finding
+ * the queue full, or not getting a permit in time, is rejected. The time a command waits is thus bounded by the
+ * queue timeout, whatever the load, and a rejection costs no more than a failed tryAcquire.
+ * Usage:
+ * <pre>
+ *   AdmissionResult result = admission.acquire(bucket);
+ *   if (result == AdmissionResult.ADMITTED) {
+ *     try {
+ *       ... execute the command ...
+ *     } finally {
+ *       admission.release();
+ *     }
+ *   }
+ * </pre>
+ * This class is thread safe, the token buckets are not and belong to one session each.
+ */
+public final class AdmissionController {
+
+  private final AdmissionConfig config;
+  private final Semaphore permits;
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /**
+   * @throws IllegalArgumentException if config is null
+   */
+  public AdmissionController(AdmissionConfig config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Admission config cannot be null.");
+    }
+    this.config = config;
+    this.permits = new Semaphore(config.getMaxConcurrent());
+  }
+
+  /**
+   * @return a new token bucket for one session, null if the rate is not limited
+   */
+  public TokenBucket newTokenBucket() {
+    if (config.getRatePerSecond() == 0) {
+      return null;
+    }
+    return new TokenBucket(config.getRatePerSecond(), config.getBurst());
+  }
+
+  /**
+   * admits a command of the session of the given bucket or rejects it
+   * @param bucket token bucket of the session, null if its rate is not limited
+   * @return ADMITTED if the command is to be executed and release to be called after it, otherwise the reason
+   *         of its rejection
+   */
+  public AdmissionResult acquire(TokenBucket bucket) {
+    if (bucket != null && !bucket.tryAcquire()) {
+      return AdmissionResult.RATE_LIMITED;
+    }
+    if (permits.tryAcquire()) {
+      return AdmissionResult.ADMITTED;
+    }
+    if (queued.incrementAndGet() > config.getMaxQueued()) {
+      queued.decrementAndGet();
+      return AdmissionResult.OVERLOADED;
+    }
+    try {
+      return permits.tryAcquire(config.getQueueTimeoutMillis(), TimeUnit.MILLISECONDS) ? AdmissionResult.ADMITTED
+          : AdmissionResult.OVERLOADED;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return AdmissionResult.OVERLOADED;
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * releases the permit of an admitted command once it is executed
+   */
+  public void release() {
+    permits.release();
+  }
+
+  /**
+   * @return number of commands executing now
+   */
+  public int getExecuting() {
+    return config.getMaxConcurrent() - permits.availablePermits();
+  }
+
+  /**
+   * @return number of commands waiting for a permit now
+   */
+  public int getQueued() {
+    return queued.get();
+  }
+
+  public AdmissionConfig getConfig() {
+    return config;
+  }
+}
@@ -0,0 +1,62 @@
+package admission;
+
+import java.util.function.LongSupplier;
+
+/**
+ * @author viswa
+ *
+ * token bucket limiting the command rate of one session. The bucket holds up to burst tokens and is refilled
+ * with ratePerSecond tokens per second, every admitted command takes one token.
+ * The tokens are kept as the nanoTime at which the bucket would be full again, so a command costs one clock read
+ * and a few arithmetic operations. This class is not thread safe, every session should use its own bucket.
+ */
+public final class TokenBucket {
+
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  /*
+   * time in nanos to refill one token
+   */
+  private final long intervalNanos;
+  /*
+   * time in nanos to refill the whole bucket
+   */
+  private final long capacityNanos;
+  private final LongSupplier nanoClock;
+  /*
+   * time at which the bucket is full again
+   */
+  private long fullAtNanos;
+
+  TokenBucket(long ratePerSecond, long burst) {
+    this(ratePerSecond, burst, System::nanoTime);
+  }
+
+  /**
+   * constructor with the given clock in nanos, package private for tests
+   */
+  TokenBucket(long ratePerSecond, long burst, LongSupplier nanoClock) {
+    if (ratePerSecond < 1 || burst < 1) {
+      throw new IllegalArgumentException("Rate and burst must be greater than 0.");
+    }
+    this.intervalNanos = Math.max(1L, NANOS_PER_SECOND / ratePerSecond);
+    this.capacityNanos = intervalNanos * burst;
+    this.nanoClock = nanoClock;
+    this.fullAtNanos = nanoClock.getAsLong();
+  }
+
+  /**
+   * takes one token if there is one
+   * @return false if the bucket is empty
+   */
+  public boolean tryAcquire() {
+    long now = nanoClock.getAsLong();
+    long fullAt = fullAtNanos - now < 0 ? now : fullAtNanos;
+    long next = fullAt + intervalNanos;
+    if (next - now > capacityNanos) {
+      return false;
+    }
+    fullAtNanos = next;
+    return true;
+  }
+}
@@ -0,0 +1,272 @@
+package app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import domain.Transfer;
+import enums.CommandAction;
+import history.HistoryEntry;
+import service.AccountService;
+import service.AccountSession;
+import service.StatementConfig;
+import util.CommandBufferParser;
+
+/**
+ * @author viswa
+ *
+ * non interactive runner which replays a command file or a piped standard input.
+ * Files are memory mapped in large windows and streams are read through a direct buffer,
+ * commands are parsed in place by CommandBufferParser and dispatched to AccountService.
+ * Reports the number of processed commands and commands/sec at the end.
+ */
+public final class CommandBatchRunner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommandBatchRunner.class);
+
+  /*
+   * size of a single memory mapped window of the command file
+   */
+  private static final long MAP_WINDOW_SIZE = 1L << 30;
+  /*
+   * size of the read buffer used for streams
+   */
+  private static final int STREAM_BUFFER_SIZE = 1 << 20;
+
+  private final AccountService accountService;
+  private final CommandBufferParser parser = new CommandBufferParser();
+  private AccountSession session;
+  private long commandCount;
+  private long errorCount;
+  private boolean exitReceived;
+
+  public CommandBatchRunner(AccountService accountService) {
+    if (accountService == null) {
+      throw new IllegalArgumentException("AccountService cannot be null.");
+    }
+    this.accountService = accountService;
+  }
+
+  /**
+   * replays all commands in the given file, stops at the first exit command
+   * @throws IOException if file cannot be read
+   */
+  public void replayFile(Path file) throws IOException {
+    long startNanos = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long position = 0;
+      while (position < size && !exitReceived) {
+        long windowSize = Math.min(MAP_WINDOW_SIZE, size - position);
+        boolean lastWindow = position + windowSize == size;
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+        process(window, lastWindow);
+        if (window.position() == 0 && !lastWindow) {
+          throw new IOException("Command line longer than map window at offset=[" + position + "].");
+        }
+        position += window.position();
+      }
+    }
+    report(startNanos);
+  }
+
+  /**
+   * replays all commands read from the given stream, stops at the first exit command
+   * @throws IOException if stream cannot be read
+   */
+  public void replayStream(InputStream in) throws IOException {
+    long startNanos = System.nanoTime();
+    ReadableByteChannel channel = Channels.newChannel(in);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+    boolean endOfInput = false;
+    while (!endOfInput && !exitReceived) {
+      endOfInput = channel.read(buffer) < 0;
+      buffer.flip();
+      process(buffer, endOfInput);
+      if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+        throw new IOException("Command line longer than read buffer size=[" + STREAM_BUFFER_SIZE + "].");
+      }
+      buffer.compact();
+    }
+    report(startNanos);
+  }
+
+  /**
+   * @return number of commands processed so far
+   */
+  public long getCommandCount() {
+    return commandCount;
+  }
+
+  /**
+   * @return number of commands which were rejected or failed
+   */
+  public long getErrorCount() {
+    return errorCount;
+  }
+
+  private void process(ByteBuffer buffer, boolean endOfInput) {
+    parser.reset(buffer, endOfInput);
+    while (!exitReceived && parser.next()) {
+      commandCount++;
+      CommandAction action = parser.getAction();
+      if (action == null) {
+        errorCount++;
+        LOGGER.error("Not a correct command=[{}].", parser.getToken(0));
+        continue;
+      }
+      accountService.getMetrics().recordCommand(action);
+      try {
+        dispatch(action);
+      } catch (Exception e) {
+        errorCount++;
+        LOGGER.error("There is some exception in processing request. Exception=[{}].", e.getMessage());
+      }
+    }
+  }
+
+  private void dispatch(CommandAction action) {
+    switch (action)
+    {
+      case LOGIN:
+        if (hasArguments(2)) {
+          session = accountService.openSession(parser.getName(1));
+        }
+        break;
+      case TOPUP:
+        if (hasArguments(2) && hasAmount(1)) {
+          if (parser.getTokenCount() > 2) {
+            accountService.topupBalance(session, parser.getAmount(), parser.getKey(2));
+          } else {
+            accountService.topupBalance(session, parser.getAmount());
+          }
+        }
+        break;
+      case PAY:
+        if (hasArguments(3) && hasAmount(2)) {
+          int payeeId = accountService.getAccountId(parser.getName(1));
+          if (parser.getTokenCount() > 3) {
+            accountService.transferAmount(session, payeeId, parser.getAmount(), parser.getKey(3));
+          } else {
+            accountService.transferAmount(session, payeeId, parser.getAmount());
+          }
+        }
+        break;
+      case PAYBATCH:
+        if (hasArguments(3) && hasPairs()) {
+          payBatch();
+        }
+        break;
+      case STATS:
+        LOGGER.info("Stats: {}", accountService.getMetrics().summary());
+        break;
+      case HISTORY:
+        if (hasArguments(2) && hasAmount(1)) {
+          history(parser.getAmount());
+        }
+        break;
+      case STATEMENT:
+        if (hasArguments(2)) {
+          statement();
+        }
+        break;
+      case EXIT:
+        exitReceived = true;
+        break;
+      default:
+        errorCount++;
+        LOGGER.error("Not a valid command");
+        break;
+    }
+  }
+
+  private void payBatch() {
+    List<Transfer> transfers = new ArrayList<>();
+    for (int index = 1; index < parser.getTokenCount(); index += 2) {
+      if (!hasAmount(index + 1)) {
+        return;
+      }
+      transfers.add(new Transfer(parser.getName(index), parser.getAmount()));
+    }
+    accountService.transferBatch(session, transfers);
+  }
+
+  private void history(long count) {
+    long from = -1;
+    if (parser.getTokenCount() > 2) {
+      if (!hasAmount(2)) {
+        return;
+      }
+      from = parser.getAmount();
+      if (from < 0) {
+        errorCount++;
+        LOGGER.error("History entry number cannot be less than 0.");
+        return;
+      }
+    }
+    for (HistoryEntry entry : accountService.getHistory(session, from, count)) {
+      LOGGER.info("History: {}", entry);
+    }
+  }
+
+  private void statement() {
+    StatementConfig config = StatementConfig.fromSystemProperties().setFile(Paths.get(parser.getToken(1)));
+    if (parser.getTokenCount() > 2) {
+      config.setFormat(StatementConfig.parseFormat(parser.getToken(2)));
+    }
+    try {
+      accountService.exportStatements(config);
+    } catch (IOException e) {
+      errorCount++;
+      LOGGER.error("Unable to export statements to file=[{}]. Exception=[{}].", config.getFile(), e.getMessage());
+    }
+  }
+
+  private boolean hasPairs() {
+    int count = parser.getTokenCount();
+    if (count > CommandBufferParser.MAX_TOKENS || count % 2 == 0) {
+      errorCount++;
+      LOGGER.error("Every payee of a batch needs one amount, at most [{}] payees.",
+          (CommandBufferParser.MAX_TOKENS - 1) / 2);
+      return false;
+    }
+    return true;
+  }
+
+  private boolean hasArguments(int count) {
+    if (parser.getTokenCount() < count) {
+      errorCount++;
+      LOGGER.error("Not enough commands to execute an action.");
+      return false;
+    }
+    return true;
+  }
+
+  private boolean hasAmount(int index) {
+    if (!parser.parseAmount(index)) {
+      errorCount++;
+      LOGGER.error("Input is not a valid Number=[{}].", parser.getToken(index));
+      return false;
+    }
+    return true;
+  }
+
+  private void report(long startNanos) {
+    long elapsedNanos = Math.max(1L, System.nanoTime() - startNanos);
+    long perSecond = (long) (commandCount * 1_000_000_000d / elapsedNanos);
+    LOGGER.info("Processed commands=[{}] errors=[{}] in [{}] ms, throughput=[{}] commands/sec.",
+        commandCount, errorCount, elapsedNanos / 1_000_000, perSecond);
+  }
+}
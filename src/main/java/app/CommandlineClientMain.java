@@ -1,13 +1,42 @@
 package app;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import admission.AdmissionConfig;
+import admission.AdmissionController;
+import admission.TokenBucket;
+import audit.AuditConfig;
+import domain.Transfer;
+import enums.AdmissionResult;
 import enums.CommandAction;
+import history.HistoryConfig;
+import history.HistoryEntry;
+import journal.JournalConfig;
+import metrics.MetricsConfig;
+import metrics.MetricsServer;
+import replication.ReplicationConfig;
+import replication.ReplicationFollower;
+import replication.ReplicationLeader;
+import server.CommandServer;
+import server.ServerConfig;
 import service.AccountService;
+import service.SequencerConfig;
+import service.DedupeConfig;
+import service.NettingConfig;
+import service.SettlementConfig;
+import service.StatementConfig;
+import service.ShardConfig;
+import util.CommandBufferParser;
 
 /**
  * @author viswa
@@ -20,14 +49,121 @@ public class CommandlineClientMain {
   
   private static final AccountService ACCOUNT_SERVICE = AccountService.getInstance();
   
+  /*
+   * batch source name which stands for standard input
+   */
+  private static final String BATCH_STDIN = "-";
+  
+  /*
+   * first argument which starts the network command server instead of reading commands locally
+   */
+  private static final String SERVER_MODE = "--server";
+  
+  /*
+   * replication leader or follower started by main, null if replication is not configured
+   */
+  private static Closeable replication;
+  
+  /*
+   * metrics endpoint started by main, null if it is not configured
+   */
+  private static MetricsServer metricsServer;
+  
+  /*
+   * admission control of the console commands, null if it is not configured
+   */
+  private static AdmissionController consoleAdmission;
+  
+  /*
+   * rate limit of the console session, null if the rate is not limited
+   */
+  private static TokenBucket consoleTokenBucket;
+  
+  /*
+   * counted down when the application is shut down
+   */
+  private static final CountDownLatch SHUT_DOWN = new CountDownLatch(1);
+  
   /**
    * main method that reads input from CommandLine.
    * User can type in "exit" in commandLine to quit this application  
-   * @param args
+   * If a file name is given as first argument, then the commands in the file are replayed in batch mode,
+   * "-" replays the commands piped in through standard input and "--server" serves the commands of network clients,
+   * on the port given as second argument or the bank.server.* system properties.
+   * The journal, the execution engine and the other services are set up from the bank.* system properties,
+   * see the README for them.
    */
   public static void main(String[] args) {
+    ShardConfig shardConfig = ShardConfig.fromSystemProperties();
+    ReplicationConfig replicationConfig = ReplicationConfig.fromSystemProperties();
+    boolean follower = replicationConfig != null && replicationConfig.isFollower();
+    if (!follower && !checkAccountStore(shardConfig)) {
+      return;
+    }
+    if (shardConfig == null && !follower && !openJournal()) {
+      return;
+    }
+    ACCOUNT_SERVICE.configureDedupe(DedupeConfig.fromSystemProperties());
+    try {
+      if (!openAudit() || !openHistory() || !startMetrics()) {
+        return;
+      }
+      if (!follower && !startEngine(shardConfig)) {
+        return;
+      }
+      if (!follower) {
+        startSettlement();
+        startNetting();
+      }
+      if (!startReplication(replicationConfig)) {
+        return;
+      }
+      if (args != null && args.length > 0 && SERVER_MODE.equals(args[0])) {
+        runServer(args.length > 1 ? args[1] : null);
+      } else if (args != null && args.length > 0) {
+        runBatch(args[0]);
+      } else {
+        runInteractive();
+      }
+    } finally {
+      shutdown();
+    }
+  }
+  
+  /**
+   * stops everything main has started, in reverse order, and flushes the account store;
+   * only the first call does so, the shutdown hook of the server waits for it
+   */
+  private static synchronized void shutdown() {
+    if (SHUT_DOWN.getCount() == 0) {
+      return;
+    }
+    try {
+      stopReplication();
+      ACCOUNT_SERVICE.stopNetting();
+      ACCOUNT_SERVICE.stopSettlement();
+      stopEngine();
+      stopMetrics();
+      closeHistory();
+      closeAudit();
+      closeJournal();
+      flushAccountStore();
+    } finally {
+      SHUT_DOWN.countDown();
+    }
+  }
+  
+  /**
+   * reads and processes the commands typed in the command line till "exit" is entered
+   */
+  private static void runInteractive() {
     LOGGER.info("===>Welcome to Retail Bank<===");
     LOGGER.info("Login to do Banking.");
+    AdmissionConfig admissionConfig = AdmissionConfig.fromSystemProperties();
+    if (admissionConfig != null) {
+      consoleAdmission = new AdmissionController(admissionConfig);
+      consoleTokenBucket = consoleAdmission.newTokenBucket();
+    }
     try(Scanner in = new Scanner(System.in)) {
       String input = "";
       while (!CommandAction.EXIT.getCommand().equals(input)) {
@@ -51,6 +187,303 @@ public class CommandlineClientMain {
     LOGGER.info("Exiting, Thanks for using the application.");
   }
   
+  /**
+   * checks that a persistent account store is covered by the journal: the account file holds no debts and may hold
+   * half of a transfer after a crash, the journal keeps both and rebuilds the file at start up
+   * @return false if the account file is configured without the journal of bank.journal.dir
+   */
+  private static boolean checkAccountStore(ShardConfig shardConfig) {
+    if (!ACCOUNT_SERVICE.getAccountStore().isPersistent()) {
+      return true;
+    }
+    if (shardConfig != null || JournalConfig.fromSystemProperties() == null) {
+      LOGGER.error("The account file of bank.balance.store=file needs the journal of bank.journal.dir and no sharded engine.");
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * opens the journal configured by system properties and recovers the accounts from it
+   * @return false if journal is configured but cannot be opened
+   */
+  private static boolean openJournal() {
+    JournalConfig config = JournalConfig.fromSystemProperties();
+    if (config == null) {
+      return true;
+    }
+    try {
+      ACCOUNT_SERVICE.openJournal(config);
+      return true;
+    } catch (IOException | IllegalStateException e) {
+      LOGGER.error("Unable to open journal in dir=[{}]. Exception=[{}].", config.getDirectory(), e.getMessage());
+      return false;
+    }
+  }
+  
+  /**
+   * opens the audit channel configured by system properties
+   * @return false if audit file is configured but cannot be opened
+   */
+  private static boolean openAudit() {
+    AuditConfig config = AuditConfig.fromSystemProperties();
+    if (config == null) {
+      return true;
+    }
+    try {
+      ACCOUNT_SERVICE.openAudit(config);
+      return true;
+    } catch (IOException e) {
+      LOGGER.error("Unable to open audit file=[{}]. Exception=[{}].", config.getFile(), e.getMessage());
+      return false;
+    }
+  }
+  
+  /**
+   * starts the sharded engine if it is configured, otherwise the single writer sequencer if it is configured
+   * by system properties
+   * @param shardConfig configuration of the sharded engine, null if it is not selected
+   * @return false if the sharded engine cannot recover from its journals
+   */
+  private static boolean startEngine(ShardConfig shardConfig) {
+    if (shardConfig != null) {
+      try {
+        ACCOUNT_SERVICE.startShardedEngine(shardConfig);
+        return true;
+      } catch (IOException e) {
+        LOGGER.error("Unable to open shard journals in dir=[{}]. Exception=[{}].", shardConfig.getJournal().getDirectory(),
+            e.getMessage());
+        return false;
+      }
+    }
+    SequencerConfig config = SequencerConfig.fromSystemProperties();
+    if (config != null) {
+      ACCOUNT_SERVICE.startSequencer(config);
+    }
+    return true;
+  }
+  
+  /**
+   * starts the settlement engine configured by system properties, in the locking mode only
+   */
+  private static void startSettlement() {
+    SettlementConfig config = SettlementConfig.fromSystemProperties();
+    if (config == null) {
+      return;
+    }
+    if (ACCOUNT_SERVICE.isSequencerStarted() || ACCOUNT_SERVICE.isShardedEngineStarted()) {
+      LOGGER.warn("Settlement engine is not started, the execution engine settles the debts itself.");
+      return;
+    }
+    ACCOUNT_SERVICE.startSettlement(config);
+  }
+  
+  /**
+   * starts the netting job configured by system properties, in the locking mode only
+   */
+  private static void startNetting() {
+    NettingConfig config = NettingConfig.fromSystemProperties();
+    if (config == null) {
+      return;
+    }
+    if (ACCOUNT_SERVICE.isSequencerStarted() || ACCOUNT_SERVICE.isShardedEngineStarted()) {
+      LOGGER.warn("Netting job is not started, it works in the locking mode only.");
+      return;
+    }
+    ACCOUNT_SERVICE.startNetting(config);
+  }
+  
+  /**
+   * applies the commands given to the execution engine, if any, and stops it
+   */
+  private static void stopEngine() {
+    ACCOUNT_SERVICE.stopShardedEngine();
+    ACCOUNT_SERVICE.stopSequencer();
+  }
+  
+  /**
+   * starts the replication leader or follower configured by system properties
+   * @param config replication configuration, null if replication is not configured
+   * @return false if the leader cannot be started
+   */
+  private static boolean startReplication(ReplicationConfig config) {
+    if (config == null) {
+      return true;
+    }
+    if (config.isFollower()) {
+      replication = ReplicationFollower.start(ACCOUNT_SERVICE, config);
+      return true;
+    }
+    if (!ACCOUNT_SERVICE.isJournalOpen()) {
+      LOGGER.error("Replication needs the journal of bank.journal.dir, sharded journals are not replicated.");
+      return false;
+    }
+    try {
+      replication = ReplicationLeader.start(ACCOUNT_SERVICE, config);
+      return true;
+    } catch (IOException e) {
+      LOGGER.error("Unable to start replication on port=[{}]. Exception=[{}].", config.getPort(), e.getMessage());
+      return false;
+    }
+  }
+  
+  /**
+   * disconnects the replication leader from its followers, or the follower from its leader
+   */
+  private static void stopReplication() {
+    Closeable current = replication;
+    replication = null;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        LOGGER.error("Unable to stop replication. Exception=[{}].", e.getMessage());
+      }
+    }
+  }
+  
+  /**
+   * opens the transaction history configured by system properties
+   * @return false if history directory is configured but cannot be opened
+   */
+  private static boolean openHistory() {
+    HistoryConfig config = HistoryConfig.fromSystemProperties();
+    if (config == null) {
+      return true;
+    }
+    try {
+      ACCOUNT_SERVICE.openHistory(config);
+      return true;
+    } catch (IOException e) {
+      LOGGER.error("Unable to open history in dir=[{}]. Exception=[{}].", config.getDirectory(), e.getMessage());
+      return false;
+    }
+  }
+  
+  /**
+   * closes the transaction history if it is open
+   */
+  private static void closeHistory() {
+    try {
+      ACCOUNT_SERVICE.closeHistory();
+    } catch (IOException e) {
+      LOGGER.error("Unable to close history. Exception=[{}].", e.getMessage());
+    }
+  }
+  
+  /**
+   * starts the metrics endpoint configured by system properties
+   * @return false if the metrics port is configured but cannot be bound
+   */
+  private static boolean startMetrics() {
+    MetricsConfig config = MetricsConfig.fromSystemProperties();
+    if (config == null) {
+      return true;
+    }
+    try {
+      metricsServer = MetricsServer.start(ACCOUNT_SERVICE.getMetrics(), config);
+      return true;
+    } catch (IOException e) {
+      LOGGER.error("Unable to start metrics on port=[{}]. Exception=[{}].", config.getPort(), e.getMessage());
+      return false;
+    }
+  }
+  
+  /**
+   * stops the metrics endpoint if it is started
+   */
+  private static void stopMetrics() {
+    MetricsServer current = metricsServer;
+    metricsServer = null;
+    if (current != null) {
+      current.close();
+    }
+  }
+  
+  /**
+   * writes the pending audit records and closes the audit file if it is open
+   */
+  private static void closeAudit() {
+    try {
+      ACCOUNT_SERVICE.closeAudit();
+    } catch (IOException e) {
+      LOGGER.error("Unable to close audit file. Exception=[{}].", e.getMessage());
+    }
+  }
+  
+  /**
+   * flushes and closes the journal if it is open
+   */
+  private static void closeJournal() {
+    try {
+      ACCOUNT_SERVICE.closeJournal();
+    } catch (IOException e) {
+      LOGGER.error("Unable to close journal. Exception=[{}].", e.getMessage());
+    }
+  }
+  
+  /**
+   * writes the changed balances to the account file, if the balances are kept in one
+   */
+  private static void flushAccountStore() {
+    try {
+      ACCOUNT_SERVICE.flushAccountStore();
+    } catch (IOException e) {
+      LOGGER.error("Unable to flush account store. Exception=[{}].", e.getMessage());
+    }
+  }
+  
+  /**
+   * serves network clients till the server is closed by the shutdown of the application,
+   * which waits for main to shut down the rest
+   * @param port port to listen on, null for the configured port
+   */
+  private static void runServer(String port) {
+    ServerConfig config = ServerConfig.fromSystemProperties();
+    if (StringUtils.isNotBlank(port)) {
+      config.setPort(Integer.parseInt(port.trim()));
+    }
+    CommandServer server;
+    try {
+      server = CommandServer.start(ACCOUNT_SERVICE, config);
+    } catch (IOException e) {
+      LOGGER.error("Unable to start server on port=[{}]. Exception=[{}].", config.getPort(), e.getMessage());
+      return;
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.close();
+      try {
+        SHUT_DOWN.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "command-server-shutdown"));
+    try {
+      server.awaitClose();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      server.close();
+    }
+  }
+  
+  /**
+   * replays the commands from given file or from standard input without interaction
+   * @param source file name, or "-" for standard input
+   */
+  private static void runBatch(String source) {
+    LOGGER.info("Replaying commands from=[{}].", source);
+    CommandBatchRunner runner = new CommandBatchRunner(ACCOUNT_SERVICE);
+    try {
+      if (BATCH_STDIN.equals(source)) {
+        runner.replayStream(System.in);
+      } else {
+        runner.replayFile(Paths.get(source));
+      }
+    } catch (IOException e) {
+      LOGGER.error("Unable to replay commands from=[{}]. Exception=[{}].", source, e.getMessage());
+    }
+  }
+  
   /**
    * perform the correcponding action based on the first word in the command
    * @param action
@@ -58,6 +491,29 @@ public class CommandlineClientMain {
    */
   private static void doAction(CommandAction action, String[] commands) {
     LOGGER.info("Commands received. Processing.");
+    ACCOUNT_SERVICE.getMetrics().recordCommand(action);
+    AdmissionController admission = consoleAdmission;
+    if (admission == null || action == CommandAction.STATS || action == CommandAction.EXIT) {
+      dispatch(action, commands);
+      return;
+    }
+    AdmissionResult result = admission.acquire(consoleTokenBucket);
+    if (result != AdmissionResult.ADMITTED) {
+      ACCOUNT_SERVICE.getMetrics().recordRejection(result);
+      LOGGER.error("Command rejected. {}", result.getReason());
+      return;
+    }
+    try {
+      dispatch(action, commands);
+    } finally {
+      admission.release();
+    }
+  }
+  
+  /**
+   * dispatches the command to the action method
+   */
+  private static void dispatch(CommandAction action, String[] commands) {
     try {
       switch (action)
       {
@@ -70,6 +526,18 @@ public class CommandlineClientMain {
         case PAY:
           pay(commands);
           break;
+        case PAYBATCH:
+          payBatch(commands);
+          break;
+        case STATS:
+          LOGGER.info("Stats: {}", ACCOUNT_SERVICE.getMetrics().summary());
+          break;
+        case HISTORY:
+          history(commands);
+          break;
+        case STATEMENT:
+          statement(commands);
+          break;
         default:
           LOGGER.info("Not a valid command");
           break;
@@ -113,7 +581,11 @@ public class CommandlineClientMain {
       LOGGER.error("Exception=[{}].", e.getMessage());
       return;
     }
-    ACCOUNT_SERVICE.topupBalance(amount);
+    if (commands.length > 2) {
+      ACCOUNT_SERVICE.topupBalance(amount, CommandBufferParser.keyOf(commands[2]));
+    } else {
+      ACCOUNT_SERVICE.topupBalance(amount);
+    }
     LOGGER.info("Topup action completed.");
   }
   
@@ -137,7 +609,83 @@ public class CommandlineClientMain {
       LOGGER.error("Exception=[{}].", e.getMessage());
       return;
     }
-    ACCOUNT_SERVICE.transferAmount(name, amount);
+    if (commands.length > 3) {
+      ACCOUNT_SERVICE.transferAmount(name, amount, CommandBufferParser.keyOf(commands[3]));
+    } else {
+      ACCOUNT_SERVICE.transferAmount(name, amount);
+    }
     LOGGER.info("Payment action completed.");
   }
+  
+  /**
+   * performs the history action, shows the latest entries or the entries from the given entry number on
+   */
+  private static void history(String[] commands) {
+    if (commands.length < 2) {
+      LOGGER.error("Not enough commands to execute an action.");
+      return;
+    }
+    long count;
+    long from = -1;
+    try {
+      count = Long.parseLong(commands[1]);
+      if (commands.length > 2) {
+        from = Long.parseLong(commands[2]);
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.error("Input is not a valid Number. Exception=[{}].", e.getMessage());
+      return;
+    }
+    if (commands.length > 2 && from < 0) {
+      LOGGER.error("History entry number cannot be less than 0.");
+      return;
+    }
+    List<HistoryEntry> entries = ACCOUNT_SERVICE.getHistory(from, count);
+    LOGGER.info("History entries=[{}] of [{}].", entries.size(), ACCOUNT_SERVICE.getHistorySize());
+    for (HistoryEntry entry : entries) {
+      LOGGER.info("{}", entry);
+    }
+  }
+  
+  /**
+   * performs the statement action, exports the statements of all accounts to the given file
+   * in the given format or the one of the bank.statement.format system property
+   * @throws IOException if the statement file cannot be written
+   */
+  private static void statement(String[] commands) throws IOException {
+    if (commands.length < 2) {
+      LOGGER.error("Not enough commands to execute an action.");
+      return;
+    }
+    StatementConfig config = StatementConfig.fromSystemProperties().setFile(Paths.get(commands[1]));
+    if (commands.length > 2) {
+      config.setFormat(StatementConfig.parseFormat(commands[2]));
+    }
+    long accounts = ACCOUNT_SERVICE.exportStatements(config);
+    LOGGER.info("Statements of accounts=[{}] exported to file=[{}].", accounts, config.getFile());
+  }
+  
+  /**
+   * performs the batch payment action, the payees and amounts are given in pairs
+   */
+  private static void payBatch(String[] commands) {
+    LOGGER.info("Paying batch.");
+    if (commands.length < 3 || commands.length % 2 == 0) {
+      LOGGER.error("Every payee of a batch needs one amount.");
+      return;
+    }
+    List<Transfer> transfers = new ArrayList<>();
+    for (int i = 1; i < commands.length; i += 2) {
+      String value = commands[i + 1];
+      try {
+        transfers.add(new Transfer(commands[i], Long.parseLong(value)));
+      } catch (NumberFormatException e) {
+        LOGGER.error("Input is not a valid Number=[{}].", value);
+        LOGGER.error("Exception=[{}].", e.getMessage());
+        return;
+      }
+    }
+    ACCOUNT_SERVICE.transferBatch(transfers);
+    LOGGER.info("Batch payment action completed.");
+  }
 }
\ No newline at end of file
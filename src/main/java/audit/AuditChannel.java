@@ -0,0 +1,268 @@
+package audit;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import domain.AccountDirectory;
+import enums.JournalRecordType;
+
+/**
+ * @author viswa
+ *
+ * asynchronous audit stream of the account changes, kept apart from the operational log.
+ * A caller claims a slot of a ring buffer with one atomic increment, stores the primitive fields of the record
+ * (type, time, account ids and amounts) into it and publishes it. Nothing is formatted and no lock is taken
+ * on the calling thread. A single writer thread takes the published records in order, resolves the account
+ * ids to names and appends one compact line per record to the audit file:
+ * time,TYPE,names and amounts of the record type, separated by commas.
+ * When the ring is full callers wait for the writer, so no record is dropped.
+ */
+public final class AuditChannel implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AuditChannel.class);
+
+  private static final long IDLE_PARK_NANOS = 100_000L;
+  private static final int NO_ACCOUNT = -1;
+
+  private final AccountDirectory directory;
+  private final AuditConfig config;
+  private final Writer writer;
+  private final int mask;
+
+  /*
+   * next sequence to be claimed by a caller, and per slot the sequence + 1 of the record published in it
+   */
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLongArray published;
+  /*
+   * next sequence to be written, slots of earlier sequences can be reused
+   */
+  private volatile long consumed;
+
+  private final JournalRecordType[] types;
+  private final long[] times;
+  private final int[] firstIds;
+  private final int[] secondIds;
+  private final long[] firstAmounts;
+  private final long[] secondAmounts;
+  private final long[] thirdAmounts;
+
+  private final LongAdder fullWaits = new LongAdder();
+  private final StringBuilder line = new StringBuilder(128);
+  private final Thread writerThread;
+  private volatile boolean closed;
+  private boolean failed;
+
+  private AuditChannel(AuditConfig config, AccountDirectory directory, Writer writer) {
+    this.config = config;
+    this.directory = directory;
+    this.writer = writer;
+    int size = config.getRingSize();
+    this.mask = size - 1;
+    this.published = new AtomicLongArray(size);
+    this.types = new JournalRecordType[size];
+    this.times = new long[size];
+    this.firstIds = new int[size];
+    this.secondIds = new int[size];
+    this.firstAmounts = new long[size];
+    this.secondAmounts = new long[size];
+    this.thirdAmounts = new long[size];
+    this.writerThread = new Thread(this::writeLoop, "audit-writer");
+    this.writerThread.setDaemon(true);
+  }
+
+  /**
+   * opens the audit file for appending and starts the writer thread
+   * @throws IllegalArgumentException if config has no file or directory is null
+   * @throws IOException if audit file cannot be opened
+   * @param directory directory used to resolve the account ids of the records to names
+   * @return audit channel
+   */
+  public static AuditChannel open(AuditConfig config, AccountDirectory directory) throws IOException {
+    if (config == null || config.getFile() == null) {
+      throw new IllegalArgumentException("Audit file is not configured.");
+    }
+    if (directory == null) {
+      throw new IllegalArgumentException("Account directory cannot be null.");
+    }
+    Writer writer = new BufferedWriter(Files.newBufferedWriter(config.getFile(), StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), 1 << 16);
+    AuditChannel channel = new AuditChannel(config, directory, writer);
+    channel.writerThread.start();
+    LOGGER.info("Audit channel opened file=[{}] ring size=[{}].", config.getFile(), config.getRingSize());
+    return channel;
+  }
+
+  public void recordAccount(int id, long balance) {
+    publish(JournalRecordType.ACCOUNT, id, NO_ACCOUNT, balance, 0L, 0L);
+  }
+
+  public void recordTopup(int id, long amount) {
+    publish(JournalRecordType.TOPUP, id, NO_ACCOUNT, amount, 0L, 0L);
+  }
+
+  public void recordTransfer(int payer, int payee, long netted, long moved, long deficit) {
+    publish(JournalRecordType.TRANSFER, payer, payee, netted, moved, deficit);
+  }
+
+  public void recordSettlement(int debtor, int creditor, long amount) {
+    publish(JournalRecordType.SETTLEMENT, debtor, creditor, amount, 0L, 0L);
+  }
+
+  public void recordNetting(int debtor, int creditor, long change) {
+    publish(JournalRecordType.NETTING, debtor, creditor, change, 0L, 0L);
+  }
+
+  public void recordReset() {
+    publish(JournalRecordType.RESET, NO_ACCOUNT, NO_ACCOUNT, 0L, 0L, 0L);
+  }
+
+  /**
+   * @return number of records published so far
+   */
+  public long getPublishedCount() {
+    return claimed.get();
+  }
+
+  /**
+   * @return number of records handed to the audit file so far
+   */
+  public long getWrittenCount() {
+    return consumed;
+  }
+
+  /**
+   * @return number of times a caller found the ring full and had to wait for the writer
+   */
+  public long getFullWaits() {
+    return fullWaits.sum();
+  }
+
+  private void publish(JournalRecordType type, int first, int second, long firstAmount, long secondAmount, long thirdAmount) {
+    if (closed) {
+      throw new IllegalStateException("Audit channel is closed.");
+    }
+    long sequence = claimed.getAndIncrement();
+    long wrapPoint = sequence - types.length;
+    if (wrapPoint >= consumed) {
+      fullWaits.increment();
+      while (wrapPoint >= consumed) {
+        LockSupport.unpark(writerThread);
+        Thread.yield();
+      }
+    }
+    int slot = (int) sequence & mask;
+    types[slot] = type;
+    times[slot] = System.currentTimeMillis();
+    firstIds[slot] = first;
+    secondIds[slot] = second;
+    firstAmounts[slot] = firstAmount;
+    secondAmounts[slot] = secondAmount;
+    thirdAmounts[slot] = thirdAmount;
+    published.lazySet(slot, sequence + 1);
+  }
+
+  private void writeLoop() {
+    long next = consumed;
+    boolean pending = false;
+    while (true) {
+      int slot = (int) next & mask;
+      if (published.get(slot) == next + 1) {
+        write(slot);
+        next++;
+        consumed = next;
+        pending = true;
+        continue;
+      }
+      if (pending) {
+        flush();
+        pending = false;
+      }
+      if (closed && next == claimed.get()) {
+        return;
+      }
+      LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+    }
+  }
+
+  private void write(int slot) {
+    if (failed) {
+      return;
+    }
+    JournalRecordType type = types[slot];
+    line.setLength(0);
+    line.append(times[slot]).append(',').append(type.name());
+    switch (type)
+    {
+      case ACCOUNT:
+      case TOPUP:
+        line.append(',').append(directory.nameOf(firstIds[slot])).append(',').append(firstAmounts[slot]);
+        break;
+      case TRANSFER:
+        line.append(',').append(directory.nameOf(firstIds[slot])).append(',').append(directory.nameOf(secondIds[slot]))
+          .append(',').append(firstAmounts[slot]).append(',').append(secondAmounts[slot]).append(',').append(thirdAmounts[slot]);
+        break;
+      case SETTLEMENT:
+      case NETTING:
+        line.append(',').append(directory.nameOf(firstIds[slot])).append(',').append(directory.nameOf(secondIds[slot]))
+          .append(',').append(firstAmounts[slot]);
+        break;
+      default:
+        break;
+    }
+    line.append('\n');
+    try {
+      writer.append(line);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void flush() {
+    if (failed) {
+      return;
+    }
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void fail(IOException e) {
+    failed = true;
+    LOGGER.error("Unable to write audit file=[{}], audit records are discarded from now on. Exception=[{}].",
+        config.getFile(), e.getMessage());
+  }
+
+  /**
+   * writes the remaining records and closes the audit file, records must not be published afterwards
+   * @throws IOException if audit file cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer.close();
+  }
+}
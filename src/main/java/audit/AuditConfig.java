@@ -0,0 +1,60 @@
+package audit;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the transaction audit channel.
+ * Audit records are queued in a ring buffer of ringSize slots and written to the audit file by a background thread.
+ */
+public class AuditConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String FILE_PROPERTY = "bank.audit.file";
+  public static final String RING_SIZE_PROPERTY = "bank.audit.ringSize";
+
+  private Path file;
+  private int ringSize = 1 << 16;
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if no audit file is configured
+   */
+  public static AuditConfig fromSystemProperties() {
+    String file = System.getProperty(FILE_PROPERTY);
+    if (StringUtils.isBlank(file)) {
+      return null;
+    }
+    AuditConfig config = new AuditConfig().setFile(Paths.get(file.trim()));
+    String ringSize = System.getProperty(RING_SIZE_PROPERTY);
+    if (StringUtils.isNotBlank(ringSize)) {
+      config.setRingSize(Integer.parseInt(ringSize.trim()));
+    }
+    return config;
+  }
+
+  public Path getFile() {
+    return file;
+  }
+  public AuditConfig setFile(Path file) {
+    this.file = file;
+    return this;
+  }
+
+  public int getRingSize() {
+    return ringSize;
+  }
+  public AuditConfig setRingSize(int ringSize) {
+    if (ringSize < 2 || Integer.bitCount(ringSize) != 1) {
+      throw new IllegalArgumentException("Audit ring size must be a power of two greater than 1.");
+    }
+    this.ringSize = ringSize;
+    return this;
+  }
+}
@@ -1,6 +1,5 @@
 package domain;
 
-import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
@@ -9,56 +8,76 @@ import org.apache.commons.lang3.StringUtils;
  * @author viswa
  * 
  * doamin class for Account information
+ * the debts of the account are not kept in the account itself but in the DebtLedger it belongs to,
+ * owesTo and owesFrom are derived from the ledger
+ * the balance is kept by id in the BalanceStore of the account directory, so Account objects of the same name
+ * share their balance
  */
 public class Account {
   
-  private String name;
-  private long balance;
-  private Map<String, Long> owesTo;
-  private Map<String, Long> owesFrom;
+  private final String name;
+  private final int id;
+  private final DebtLedger ledger;
+  private final BalanceStore balances;
   
   /**
-   * constructor for Account. Sets name from input param
-   * @throws IllegalArgumentException if input command is null/empty
-   * @param name
+   * constructor for Account. Sets name from input param and takes the id of the name from the directory of the ledger
+   * @throws IllegalArgumentException if input name is null/empty or ledger is null
+   * @param ledger ledger holding the debts of the account
    */
-  public Account(String name) {
+  public Account(String name, DebtLedger ledger) {
     if (StringUtils.isBlank(name)) {
       throw new IllegalArgumentException("Account.Name cannot be null/empty");
     }
+    if (ledger == null) {
+      throw new IllegalArgumentException("Account.Ledger cannot be null");
+    }
+    this.name = name;
+    this.ledger = ledger;
+    this.id = ledger.getDirectory().intern(name);
+    this.balances = ledger.getDirectory().getBalances();
+  }
+  
+  /**
+   * constructor for the Account of a name which has the given id already, used by the AccountFile loading it
+   * @param ledger ledger holding the debts of the account
+   */
+  Account(String name, int id, DebtLedger ledger) {
     this.name = name;
-    this.owesTo = new HashMap<>();
-    this.owesFrom = new HashMap<>();
+    this.id = id;
+    this.ledger = ledger;
+    this.balances = ledger.getDirectory().getBalances();
   }
   
   public String getName() {
     return name;
   }
-  public Account setName(String name) {
-    this.name = name;
-    return this;
+  
+  public int getId() {
+    return id;
+  }
+  
+  public DebtLedger getLedger() {
+    return ledger;
   }
   
   public long getBalance() {
-    return balance;
+    return balances.get(id);
   }
   public Account setBalance(long balance) {
-    this.balance = balance;
+    balances.set(id, balance);
     return this;
   }
   
+  /**
+   * @return copy of the debts owed by this account, by creditor name
+   */
   public Map<String, Long> getOwesTo() {
-    return owesTo;
-  }
-  public Account setOwesTo(Map<String, Long> owes) {
-    this.owesTo = owes;
-    return this;
+    return ledger.owesTo(id);
   }
   
   /**
-   * adds given name and amount value to the OwesTo map of this account
-   * @param name
-   * @param amount
+   * adds given name and amount value to what this account owes to the name
    * @return account object
    */
   public Account addOwesTo(String name, Long amount) {
@@ -68,40 +87,32 @@ public class Account {
     if (amount == null) {
       throw new IllegalArgumentException("Owning amount cannot be null.");
     }
-    if (this.getOwesTo().containsKey(name)) {
-      Long currentOwes = this.getOwesTo().get(name);
-      this.getOwesTo().put(name, (currentOwes + amount));
-    } else {
-      this.getOwesTo().put(name, amount);
-    }
+    ledger.add(id, ledger.getDirectory().intern(name), amount);
     return this;
   }
   
   /**
-   * checks if given name is present in the OwesTo map
-   * @param name
+   * checks if this account owes to the given name
    * @return true if present else false
    */
   public boolean doesOwesTo(String name) {
     if (StringUtils.isBlank(name)) {
       throw new IllegalArgumentException("Input Name cannot be null/empty");
     }
-    return this.getOwesTo().containsKey(name);
+    int creditor = ledger.getDirectory().idOf(name);
+    return creditor >= 0 && ledger.contains(id, creditor);
   }
   
+  /**
+   * @return copy of the debts owed to this account, by debtor name
+   */
   public Map<String, Long> getOwesFrom() {
-    return owesFrom;
-  }
-
-  public Account setOwesFrom(Map<String, Long> owesFrom) {
-    this.owesFrom = owesFrom;
-    return this;
+    return ledger.owesFrom(id);
   }
   
   /**
-   * adds given name and amount value to the OwesFrom map of this account
-   * @param name
-   * @param amount
+   * adds given name and amount value to what the name owes to this account
+   * this is the same debt as addOwesTo on the account of the name, so only one of them should be called
    * @return account object
    */
   public Account addOwesFrom(String name, Long amount) {
@@ -111,25 +122,20 @@ public class Account {
     if (amount == null) {
       throw new IllegalArgumentException("Owning amount cannot be null.");
     }
-    if (this.getOwesFrom().containsKey(name)) {
-      Long currentOwes = this.getOwesFrom().get(name);
-      this.getOwesFrom().put(name, (currentOwes + amount));
-    } else {
-      this.getOwesFrom().put(name, amount);
-    }
+    ledger.add(ledger.getDirectory().intern(name), id, amount);
     return this;
   }
   
   /**
-   * checks if given name is present in the OwesFrom map
-   * @param name
+   * checks if the given name owes to this account
    * @return true if present else false
    */
   public boolean doesOwesFrom(String name) {
     if (StringUtils.isBlank(name)) {
       throw new IllegalArgumentException("Input Name cannot be null/empty");
     }
-    return this.getOwesFrom().containsKey(name);
+    int debtor = ledger.getDirectory().idOf(name);
+    return debtor >= 0 && ledger.contains(debtor, id);
   }
 
   /**
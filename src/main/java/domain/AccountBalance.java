@@ -0,0 +1,65 @@
+package domain;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @author viswa
+ *
+ * immutable view of the balance and the debts of one account at one point in time, as read by BalanceQuery
+ */
+public final class AccountBalance {
+
+  private final String name;
+  private final int id;
+  private final long balance;
+  private final Map<String, Long> owesTo;
+  private final Map<String, Long> owesFrom;
+
+  /**
+   * constructor for AccountBalance
+   * @param owesTo debts owed by the account by creditor name, not copied
+   * @param owesFrom debts owed to the account by debtor name, not copied
+   */
+  public AccountBalance(String name, int id, long balance, Map<String, Long> owesTo, Map<String, Long> owesFrom) {
+    this.name = name;
+    this.id = id;
+    this.balance = balance;
+    this.owesTo = owesTo == null ? Collections.emptyMap() : owesTo;
+    this.owesFrom = owesFrom == null ? Collections.emptyMap() : owesFrom;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public long getBalance() {
+    return balance;
+  }
+
+  /**
+   * @return unmodifiable debts owed by the account, by creditor name
+   */
+  public Map<String, Long> getOwesTo() {
+    return owesTo;
+  }
+
+  /**
+   * @return unmodifiable debts owed to the account, by debtor name
+   */
+  public Map<String, Long> getOwesFrom() {
+    return owesFrom;
+  }
+
+  /**
+   * prints readable form of AccountBalance object
+   */
+  @Override
+  public String toString() {
+    return String.format("[Name=[%s] Balance=[%s] OwesTo=%s OwesFrom=%s]", name, balance, owesTo, owesFrom);
+  }
+}
@@ -0,0 +1,265 @@
+package domain;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * directory of the accounts by dense int id.
+ * A name gets its id the first time it is seen and keeps it for the lifetime of the directory,
+ * even when its account is removed. Accounts are kept in an array indexed by id, so once a name has
+ * been turned into an id at the command boundary every other lookup is an array access.
+ * Reads take no lock; changes are made under the monitor of the directory.
+ * Iterating the directory visits the present accounts in id order.
+ * The balances of the accounts are kept by id in the BalanceStore of the directory. With an AccountFile as balance
+ * store the directory keeps nothing of its own: the ids are the record numbers of the file, and names, ids and
+ * accounts are resolved through the file, which keeps the accounts in use in its cache, so the heap holds no more
+ * accounts than the cache whatever the number of accounts in the file. Iterating such a directory visits the accounts
+ * in the cache.
+ */
+public final class AccountDirectory implements Iterable<Account> {
+
+  private static final int NONE = -1;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] names = new String[INITIAL_CAPACITY];
+  private volatile AtomicReferenceArray<Account> accounts = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+  private volatile int nameCount;
+  private int accountCount;
+  private final BalanceStore balances;
+  private final AccountFile records;
+
+  /**
+   * constructor for AccountDirectory keeping the balances on the heap
+   */
+  public AccountDirectory() {
+    this(new HeapBalanceStore());
+  }
+
+  /**
+   * constructor for AccountDirectory
+   * @throws IllegalArgumentException if balance store is null
+   * @param balances store of the account balances
+   */
+  public AccountDirectory(BalanceStore balances) {
+    if (balances == null) {
+      throw new IllegalArgumentException("Balance store cannot be null.");
+    }
+    this.balances = balances;
+    this.records = balances instanceof AccountFile ? (AccountFile) balances : null;
+  }
+
+  public BalanceStore getBalances() {
+    return balances;
+  }
+
+  /**
+   * method to get the id of the given name, a new id is assigned if the name is not known yet
+   * @throws IllegalArgumentException if name is null or empty
+   * @return account id
+   */
+  public int intern(String name) {
+    if (StringUtils.isBlank(name)) {
+      throw new IllegalArgumentException("Name cannot be null/empty");
+    }
+    if (records != null) {
+      return records.intern(name);
+    }
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(name);
+      if (id != null) {
+        return id;
+      }
+      int newId = nameCount;
+      if (newId == names.length) {
+        int capacity = names.length * 2;
+        String[] largerNames = Arrays.copyOf(names, capacity);
+        AtomicReferenceArray<Account> largerAccounts = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < newId; i++) {
+          largerAccounts.set(i, accounts.get(i));
+        }
+        names = largerNames;
+        accounts = largerAccounts;
+      }
+      names[newId] = name;
+      nameCount = newId + 1;
+      ids.put(name, newId);
+      return newId;
+    }
+  }
+
+  /**
+   * @return id of the given name, -1 if the name is not known
+   */
+  public int idOf(String name) {
+    if (name == null) {
+      return NONE;
+    }
+    if (records != null) {
+      return records.idOf(name);
+    }
+    Integer id = ids.get(name);
+    return id == null ? NONE : id;
+  }
+
+  /**
+   * @throws IllegalArgumentException if id is unknown
+   * @return name of the given id
+   */
+  public String nameOf(int id) {
+    if (records != null) {
+      return records.nameOf(id);
+    }
+    checkId(id);
+    return names[id];
+  }
+
+  /**
+   * @return account of the given id, null if id is unknown or has no account
+   */
+  public Account get(int id) {
+    if (records != null) {
+      return records.account(id);
+    }
+    AtomicReferenceArray<Account> current = accounts;
+    if (id < 0 || id >= current.length()) {
+      return null;
+    }
+    return current.get(id);
+  }
+
+  /**
+   * @return account of the given name, null if there is none
+   */
+  public Account get(String name) {
+    return get(idOf(name));
+  }
+
+  /**
+   * stores the account under its id, replacing any account with the same name
+   */
+  public synchronized void put(Account account) {
+    int id = checkAccount(account);
+    if (records != null) {
+      records.put(account, true);
+      return;
+    }
+    if (accounts.getAndSet(id, account) == null) {
+      accountCount++;
+    }
+  }
+
+  /**
+   * stores the account under its id unless an account with the same name is already present
+   * @return present account, null if the given account was stored
+   */
+  public synchronized Account putIfAbsent(Account account) {
+    int id = checkAccount(account);
+    if (records != null) {
+      return records.put(account, false);
+    }
+    Account present = accounts.get(id);
+    if (present == null) {
+      accounts.set(id, account);
+      accountCount++;
+    }
+    return present;
+  }
+
+  /**
+   * removes all accounts and sets their balances to 0, the ids of the known names are kept
+   */
+  public synchronized void clear() {
+    if (records != null) {
+      records.clear();
+      return;
+    }
+    AtomicReferenceArray<Account> current = accounts;
+    for (int i = 0; i < nameCount; i++) {
+      current.set(i, null);
+    }
+    accountCount = 0;
+    balances.clear();
+  }
+
+  /**
+   * @return number of present accounts
+   */
+  public synchronized int size() {
+    return records != null ? records.getAccountCount() : accountCount;
+  }
+
+  /**
+   * @return number of ids given out so far, the ids are 0 to idCount - 1
+   */
+  public int idCount() {
+    return records != null ? (int) records.getRecordCount() : nameCount;
+  }
+
+  @Override
+  public Iterator<Account> iterator() {
+    if (records != null) {
+      return records.loadedAccounts().iterator();
+    }
+    final AtomicReferenceArray<Account> current = accounts;
+    final int limit = nameCount;
+    return new Iterator<Account>() {
+
+      private int index;
+      private Account nextAccount = advance();
+
+      private Account advance() {
+        while (index < limit) {
+          Account account = current.get(index++);
+          if (account != null) {
+            return account;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return nextAccount != null;
+      }
+
+      @Override
+      public Account next() {
+        if (nextAccount == null) {
+          throw new NoSuchElementException();
+        }
+        Account account = nextAccount;
+        nextAccount = advance();
+        return account;
+      }
+    };
+  }
+
+  private int checkAccount(Account account) {
+    if (account == null) {
+      throw new IllegalArgumentException("Account cannot be null.");
+    }
+    if (account.getLedger().getDirectory() != this) {
+      throw new IllegalArgumentException("Account does not belong to this directory.");
+    }
+    return account.getId();
+  }
+
+  private void checkId(int id) {
+    if (id < 0 || id >= nameCount) {
+      throw new IllegalArgumentException("Unknown account id=[" + id + "].");
+    }
+  }
+}
@@ -0,0 +1,1137 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author viswa
+ *
+ * store keeping all accounts in a file of fixed size records, so that the accounts not in use need no heap.
+ * The id of an account is the number of its record: records are only appended and never move, so the AccountDirectory
+ * of an account file keeps no ids, names or accounts of its own but resolves them through the file, and an id stays
+ * valid while its account is dropped from the heap and loaded again. A record holds the hash of the name, the balance,
+ * the generation it was written in, the account flag and the name. Clearing the file starts a new generation, the
+ * records of older ones read as names without account and balance 0, so the names keep their ids.
+ * Names are found through a hash index in a file of its own next to the account file, of slots holding the hash and
+ * the id of a name with linear probing, rehashed into a file of twice the slots once it is half full. The index is
+ * rebuilt from the records when it does not match them, after a crash.
+ * The accounts in use are kept in a size bounded cache, split by id into segments which are each an LRU list under
+ * their own monitor. An entry holds the name, the balance, the account flag and the Account object of one id: a lookup
+ * missing the cache reads the record, a balance change only marks its entry dirty, and a dirty balance is written back
+ * when its entry is evicted or the file is flushed. An evicted Account object still held elsewhere stays valid, its id
+ * names the same record. The names of the cached accounts are mapped to their ids, so looking up an account in use
+ * reads no file.
+ * The files are guarded by a read write lock: records are read and written under the read lock, so the misses of
+ * different segments go to the file in parallel, while appending a record, growing the index and clearing take the
+ * write lock.
+ * A Bloom filter of all names in the file, built by one sequential read when the file is opened, answers most
+ * lookups of unknown names without reading the index.
+ * The file is kept when it is opened again, but it holds no debts and the balances are written back whenever they
+ * are evicted, so after a crash it may hold half of a transfer. AccountService therefore uses it only with the journal,
+ * which rebuilds the file from the latest snapshot at start up.
+ */
+public final class AccountFile implements BalanceStore {
+
+  static final int MAGIC = 0x42414346;
+  static final int INDEX_MAGIC = 0x42414349;
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 64;
+  static final int RECORD_SIZE = 128;
+  static final int INDEX_SLOT_SIZE = 12;
+  /*
+   * offsets in a record; the balance, generation and flags are written together whenever an entry is written back
+   */
+  private static final int BALANCE = 8;
+  private static final int GENERATION = 16;
+  private static final int FLAGS = 20;
+  private static final int LENGTH = 21;
+  private static final int NAME = 22;
+  private static final int STATE_SIZE = LENGTH - BALANCE;
+  private static final byte ACCOUNT = 1;
+  /*
+   * longest name in bytes fitting a record
+   */
+  public static final int MAX_NAME_BYTES = RECORD_SIZE - NAME;
+  public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+  /*
+   * most segments of the cache, there are never more segments than cached accounts
+   */
+  static final int MAX_SEGMENTS = 64;
+  static final long INITIAL_SLOTS = 1024L;
+  /*
+   * Bloom filter bits per index slot, 8 to 16 bits per name as the index is a quarter to half full
+   */
+  private static final int BLOOM_BITS_PER_SLOT = 4;
+  /*
+   * records or index slots read at a time when a whole file is scanned
+   */
+  private static final int SCAN_BLOCK = 8192;
+  private static final int NONE = -1;
+
+  private final Path file;
+  private final Path indexFile;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final FileChannel channel;
+  private FileChannel index;
+  private long slotCount;
+  private volatile int recordCount;
+  private int generation;
+  private BloomFilter filter;
+  private final AtomicInteger accountCount = new AtomicInteger();
+  private final LongAdder filteredCount = new LongAdder();
+  private final Map<String, Integer> loadedIds = new ConcurrentHashMap<>();
+  private volatile DebtLedger ledger;
+
+  private final Segment[] segments;
+  private final int segmentBits;
+
+  /**
+   * opens or creates the account file with a cache of DEFAULT_CACHE_SIZE accounts
+   * @throws IOException if file cannot be opened or is not an account file
+   */
+  public AccountFile(Path file) throws IOException {
+    this(file, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * opens or creates the account file and its index
+   * @param cacheSize number of accounts kept in the cache, split evenly over its segments
+   * @throws IOException if file cannot be opened or is not an account file
+   */
+  public AccountFile(Path file, int cacheSize) throws IOException {
+    if (file == null) {
+      throw new IllegalArgumentException("Account file cannot be null.");
+    }
+    if (cacheSize < 1) {
+      throw new IllegalArgumentException("Account cache size must be greater than 0.");
+    }
+    this.file = file;
+    this.indexFile = file.resolveSibling(file.getFileName() + ".index");
+    int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(cacheSize));
+    this.segmentBits = Integer.numberOfTrailingZeros(segmentCount);
+    this.segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment(cacheSize / segmentCount);
+    }
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      open();
+    } catch (IOException | RuntimeException e) {
+      if (index != null) {
+        index.close();
+      }
+      channel.close();
+      throw e;
+    }
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * sets the ledger of the Account objects created for the records
+   */
+  void setLedger(DebtLedger ledger) {
+    this.ledger = ledger;
+  }
+
+  @Override
+  public long get(int id) {
+    return id < 0 ? 0L : segmentOf(id).get(id);
+  }
+
+  @Override
+  public void set(int id, long balance) {
+    if (id < 0) {
+      throw new IllegalArgumentException("Invalid account id=[" + id + "].");
+    }
+    segmentOf(id).set(id, balance);
+  }
+
+  /**
+   * removes all accounts from the file and the cache, the names keep their records and ids
+   */
+  @Override
+  public void clear() {
+    clearFrom(0);
+  }
+
+  /**
+   * writes the dirty balances of the cache to the file and syncs it and its index
+   * @throws IOException if file cannot be written
+   */
+  public void flush() throws IOException {
+    try {
+      for (Segment segment : segments) {
+        segment.flush();
+      }
+    } catch (IllegalStateException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+    lock.readLock().lock();
+    try {
+      writeIndexHeader(index, slotCount, recordCount);
+      index.force(false);
+      channel.force(false);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * flushes and closes the file, the store must not be used afterwards
+   */
+  @Override
+  public void close() throws IOException {
+    lock.readLock().lock();
+    try {
+      if (!channel.isOpen()) {
+        return;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    try {
+      flush();
+    } finally {
+      lock.writeLock().lock();
+      try {
+        index.close();
+        channel.close();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * @return number of records of the file, one for every name ever given an id, with or without account
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * @return number of accounts in the file, loaded or not
+   */
+  public int getAccountCount() {
+    return accountCount.get();
+  }
+
+  /**
+   * @return number of accounts and names without account in the cache
+   */
+  public int getLoadedCount() {
+    int count = 0;
+    for (Segment segment : segments) {
+      count += segment.getEntryCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return number of lookups served by the cache
+   */
+  public long getHitCount() {
+    long count = 0L;
+    for (Segment segment : segments) {
+      count += segment.getHitCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return number of lookups which read the record of the account
+   */
+  public long getMissCount() {
+    long count = 0L;
+    for (Segment segment : segments) {
+      count += segment.getMissCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return number of accounts dropped from the cache
+   */
+  public long getEvictionCount() {
+    long count = 0L;
+    for (Segment segment : segments) {
+      count += segment.getEvictionCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return number of name lookups answered by the Bloom filter without reading the index
+   */
+  public long getFilteredCount() {
+    return filteredCount.sum();
+  }
+
+  /**
+   * @return number of slots of the index
+   */
+  long getSlotCount() {
+    lock.readLock().lock();
+    try {
+      return slotCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return number of segments of the cache
+   */
+  int getSegmentCount() {
+    return segments.length;
+  }
+
+  /**
+   * method to get the id of the given name, a record without account is appended if the name is not known yet
+   * @throws IllegalArgumentException if the name is too long for a record
+   * @return account id
+   */
+  int intern(String name) {
+    Integer loaded = loadedIds.get(name);
+    if (loaded != null) {
+      return loaded;
+    }
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    checkName(bytes);
+    long hash = hashOf(bytes);
+    lock.readLock().lock();
+    try {
+      int id = find(bytes, hash);
+      if (id != NONE) {
+        return id;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    lock.writeLock().lock();
+    try {
+      int id = find(bytes, hash);
+      return id == NONE ? append(bytes, hash) : id;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write account file=[" + file + "].", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return id of the given name, -1 if the name is not known
+   */
+  int idOf(String name) {
+    Integer loaded = loadedIds.get(name);
+    if (loaded != null) {
+      return loaded;
+    }
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_NAME_BYTES) {
+      return NONE;
+    }
+    lock.readLock().lock();
+    try {
+      return find(bytes, hashOf(bytes));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException if id is unknown
+   * @return name of the given id, read from its record unless it is cached
+   */
+  String nameOf(int id) {
+    checkId(id);
+    String name = segmentOf(id).cachedName(id);
+    if (name != null) {
+      return name;
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    lock.readLock().lock();
+    try {
+      readRecord(record, id);
+    } finally {
+      lock.readLock().unlock();
+    }
+    return nameOf(record, 0);
+  }
+
+  /**
+   * @return account of the given id, loaded into the cache if it is not in it, null if id is unknown or has no account
+   */
+  Account account(int id) {
+    return id < 0 ? null : segmentOf(id).account(id);
+  }
+
+  /**
+   * stores the account under its id, replacing the Account object of a cached account with the same name
+   * @param replace false to keep a present account
+   * @return present account if it was kept, otherwise null
+   */
+  Account put(Account account, boolean replace) {
+    return segmentOf(account.getId()).put(account, replace);
+  }
+
+  /**
+   * stores a debt free account, adding its record if its name is not in the file yet; the account is not loaded into
+   * the cache, a cached one gets the balance
+   */
+  void store(String name, long balance) {
+    int id = intern(name);
+    segmentOf(id).store(id, balance);
+  }
+
+  /**
+   * @return accounts in the cache
+   */
+  List<Account> loadedAccounts() {
+    List<Account> accounts = new ArrayList<>();
+    for (Segment segment : segments) {
+      segment.collect(accounts);
+    }
+    return accounts;
+  }
+
+  /**
+   * flushes the cache and calls the visitor with the id, name and balance of every account in the file, in id order.
+   * The records are read in blocks under the read lock and visited without it, so the visitor may use this store.
+   * Accounts added meanwhile may or may not be visited
+   * @throws IOException if file cannot be read
+   */
+  void forEachRecord(AccountStore.RecordVisitor visitor) throws IOException {
+    flush();
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK * RECORD_SIZE);
+    for (long first = 0;; first += SCAN_BLOCK) {
+      int count;
+      int scanned;
+      lock.readLock().lock();
+      try {
+        if (first >= recordCount) {
+          return;
+        }
+        count = (int) Math.min(SCAN_BLOCK, recordCount - first);
+        scanned = generation;
+        buffer.clear().limit(count * RECORD_SIZE);
+        readFully(channel, buffer, positionOf(first));
+      } finally {
+        lock.readLock().unlock();
+      }
+      for (int i = 0; i < count; i++) {
+        int offset = i * RECORD_SIZE;
+        if (isAccount(buffer, offset, scanned)) {
+          visitor.visit((int) first + i, nameOf(buffer, offset), buffer.getLong(offset + BALANCE));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return hash of the name bytes, never 0 which marks a free index slot
+   */
+  static long hashOf(byte[] bytes) {
+    long hash = 0x9E3779B97F4A7C15L;
+    for (byte b : bytes) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+    hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash == 0 ? 1L : hash;
+  }
+
+  private Segment segmentOf(int id) {
+    return segments[id & (segments.length - 1)];
+  }
+
+  /**
+   * clears the cache segments from the given one on, each under its monitor, and then starts a new generation under
+   * the write lock, so no balance is cached or written back while the file is cleared
+   */
+  private void clearFrom(int segment) {
+    if (segment < segments.length) {
+      synchronized (segments[segment]) {
+        segments[segment].clearCache();
+        clearFrom(segment + 1);
+      }
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      generation = generation == Integer.MAX_VALUE ? 1 : generation + 1;
+      writeHeader();
+      loadedIds.clear();
+      accountCount.set(0);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to clear account file=[" + file + "].", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * reads the header, drops a record left half written by a crash and opens the index, then reads all records once
+   * to count the accounts, build the Bloom filter and fill the index if it had to be rebuilt
+   */
+  private void open() throws IOException {
+    if (channel.size() == 0) {
+      generation = 1;
+      writeHeader();
+    } else {
+      readHeader();
+    }
+    long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+    if (records > Integer.MAX_VALUE) {
+      throw new IOException("Corrupt account file=[" + file + "] records=[" + records + "].");
+    }
+    recordCount = (int) records;
+    if (channel.size() > positionOf(records)) {
+      channel.truncate(positionOf(records));
+    }
+    boolean indexed = openIndex();
+    filter = newFilter(slotCount);
+    int accounts = 0;
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK * RECORD_SIZE);
+    for (long first = 0; first < records; first += SCAN_BLOCK) {
+      int count = (int) Math.min(SCAN_BLOCK, records - first);
+      buffer.clear().limit(count * RECORD_SIZE);
+      readFully(channel, buffer, positionOf(first));
+      for (int i = 0; i < count; i++) {
+        int offset = i * RECORD_SIZE;
+        long hash = buffer.getLong(offset);
+        filter.add(hash);
+        if (!indexed) {
+          addToIndex(hash, (int) first + i);
+        }
+        if (isAccount(buffer, offset, generation)) {
+          accounts++;
+        }
+      }
+    }
+    accountCount.set(accounts);
+    if (!indexed) {
+      writeIndexHeader(index, slotCount, recordCount);
+    }
+  }
+
+  /**
+   * opens the index, or creates an empty one of enough slots if it does not match the records
+   * @return true if the index matches the records
+   */
+  private boolean openIndex() throws IOException {
+    index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (index.size() >= HEADER_SIZE) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(index, header, 0L);
+      long slots = header.getLong(8);
+      if (header.getInt(0) == INDEX_MAGIC && header.getInt(4) == VERSION && slots >= INITIAL_SLOTS
+          && Long.bitCount(slots) == 1 && index.size() >= indexPositionOf(slots) && header.getLong(16) == recordCount) {
+        slotCount = slots;
+        return true;
+      }
+    }
+    long slots = INITIAL_SLOTS;
+    while ((recordCount + 1L) * 2 > slots) {
+      slots *= 2;
+    }
+    index.truncate(0L);
+    initializeIndex(index, slots);
+    slotCount = slots;
+    return false;
+  }
+
+  /**
+   * @return id of the name, NONE if it is not in the file; the caller holds the lock
+   */
+  private int find(byte[] name, long hash) {
+    if (!filter.mightContain(hash)) {
+      filteredCount.increment();
+      return NONE;
+    }
+    long mask = slotCount - 1;
+    ByteBuffer slot = ByteBuffer.allocate(INDEX_SLOT_SIZE);
+    ByteBuffer record = null;
+    for (long i = hash & mask;; i = (i + 1) & mask) {
+      slot.clear();
+      try {
+        readFully(index, slot, indexPositionOf(i));
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read account index=[" + indexFile + "].", e);
+      }
+      long slotHash = slot.getLong(0);
+      if (slotHash == 0) {
+        return NONE;
+      }
+      int id = slot.getInt(8) - 1;
+      if (slotHash == hash && id >= 0 && id < recordCount) {
+        if (record == null) {
+          record = ByteBuffer.allocate(RECORD_SIZE);
+        }
+        readRecord(record, id);
+        if (nameEquals(record, name)) {
+          return id;
+        }
+      }
+    }
+  }
+
+  /**
+   * appends the record of a new name without account, growing the index first if it is half full; the caller holds
+   * the write lock
+   * @return id of the record
+   */
+  private int append(byte[] name, long hash) throws IOException {
+    int id = recordCount;
+    if (id == Integer.MAX_VALUE) {
+      throw new IllegalStateException("Account file=[" + file + "] is full.");
+    }
+    if ((id + 1L) * 2 > slotCount) {
+      growIndex();
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    record.putLong(hash).putLong(0L).putInt(generation).put((byte) 0).put((byte) name.length).put(name);
+    record.clear();
+    writeFully(channel, record, positionOf(id));
+    addToIndex(hash, id);
+    filter.add(hash);
+    recordCount = id + 1;
+    return id;
+  }
+
+  /**
+   * puts the id into the first free index slot of its hash; the caller holds the write lock
+   */
+  private void addToIndex(long hash, int id) throws IOException {
+    long mask = slotCount - 1;
+    ByteBuffer slot = ByteBuffer.allocate(INDEX_SLOT_SIZE);
+    long i = hash & mask;
+    while (readSlot(slot, i).getLong(0) != 0) {
+      i = (i + 1) & mask;
+    }
+    slot.clear();
+    slot.putLong(0, hash).putInt(8, id + 1);
+    writeFully(index, slot, indexPositionOf(i));
+  }
+
+  private ByteBuffer readSlot(ByteBuffer slot, long i) throws IOException {
+    slot.clear();
+    readFully(index, slot, indexPositionOf(i));
+    return slot;
+  }
+
+  /**
+   * rehashes all slots into a new index of twice the slots, which then replaces the index; the caller holds the write
+   * lock. The records do not move, so neither do the ids
+   */
+  private void growIndex() throws IOException {
+    long newSlotCount = slotCount * 2;
+    long newMask = newSlotCount - 1;
+    long[] used = new long[(int) ((newSlotCount + 63) >>> 6)];
+    BloomFilter newFilter = newFilter(newSlotCount);
+    Path resized = indexFile.resolveSibling(indexFile.getFileName() + ".resize");
+    try (FileChannel target = FileChannel.open(resized, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      initializeIndex(target, newSlotCount);
+      ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK * INDEX_SLOT_SIZE);
+      for (long first = 0; first < slotCount; first += SCAN_BLOCK) {
+        int count = (int) Math.min(SCAN_BLOCK, slotCount - first);
+        buffer.clear().limit(count * INDEX_SLOT_SIZE);
+        readFully(index, buffer, indexPositionOf(first));
+        for (int i = 0; i < count; i++) {
+          long hash = buffer.getLong(i * INDEX_SLOT_SIZE);
+          if (hash == 0) {
+            continue;
+          }
+          long slot = hash & newMask;
+          while ((used[(int) (slot >>> 6)] & (1L << slot)) != 0) {
+            slot = (slot + 1) & newMask;
+          }
+          used[(int) (slot >>> 6)] |= 1L << slot;
+          newFilter.add(hash);
+          ByteBuffer entry = buffer.duplicate();
+          entry.limit((i + 1) * INDEX_SLOT_SIZE).position(i * INDEX_SLOT_SIZE);
+          writeFully(target, entry, indexPositionOf(slot));
+        }
+      }
+      writeIndexHeader(target, newSlotCount, recordCount);
+    }
+    index.close();
+    Files.move(resized, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    index = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    slotCount = newSlotCount;
+    filter = newFilter;
+  }
+
+  private void readHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    readFully(channel, header, 0L);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      throw new IOException("Not an account file=[" + file + "] of version=[" + VERSION + "].");
+    }
+    generation = header.getInt(8);
+    if (generation < 1) {
+      throw new IOException("Corrupt account file=[" + file + "] generation=[" + generation + "].");
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, generation);
+    writeFully(channel, header, 0L);
+  }
+
+  /**
+   * writes the header of an empty index and extends the file to its size, the slots read as zeros
+   */
+  private static void initializeIndex(FileChannel target, long slots) throws IOException {
+    writeIndexHeader(target, slots, NONE);
+    writeFully(target, ByteBuffer.allocate(1), indexPositionOf(slots) - 1);
+  }
+
+  /**
+   * writes the header of the index, holding the number of records it covers
+   */
+  private static void writeIndexHeader(FileChannel target, long slots, long records) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(0, INDEX_MAGIC).putInt(4, VERSION).putLong(8, slots).putLong(16, records);
+    writeFully(target, header, 0L);
+  }
+
+  /**
+   * reads the record of the id; the caller holds the lock
+   */
+  private void readRecord(ByteBuffer record, int id) {
+    record.clear();
+    try {
+      readFully(channel, record, positionOf(id));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read account file=[" + file + "].", e);
+    }
+  }
+
+  /**
+   * writes balance, generation and account flag of the id; the caller holds the lock
+   */
+  private void writeState(int id, long balance, boolean account) {
+    ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+    state.putLong(0, balance).putInt(GENERATION - BALANCE, generation).put(FLAGS - BALANCE, account ? ACCOUNT : 0);
+    try {
+      writeFully(channel, state, positionOf(id) + BALANCE);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write account file=[" + file + "].", e);
+    }
+  }
+
+  private void checkId(int id) {
+    if (id < 0 || id >= recordCount) {
+      throw new IllegalArgumentException("Unknown account id=[" + id + "].");
+    }
+  }
+
+  private static boolean isAccount(ByteBuffer buffer, int offset, int generation) {
+    return buffer.getInt(offset + GENERATION) == generation && (buffer.get(offset + FLAGS) & ACCOUNT) != 0;
+  }
+
+  /**
+   * @return balance of the record, 0 if it was written in an older generation
+   */
+  private static long balanceOf(ByteBuffer buffer, int offset, int generation) {
+    return buffer.getInt(offset + GENERATION) == generation ? buffer.getLong(offset + BALANCE) : 0L;
+  }
+
+  private static String nameOf(ByteBuffer buffer, int offset) {
+    int length = buffer.get(offset + LENGTH) & 0xFF;
+    return new String(buffer.array(), buffer.arrayOffset() + offset + NAME, length, StandardCharsets.UTF_8);
+  }
+
+  private static void checkName(byte[] name) {
+    if (name.length > MAX_NAME_BYTES) {
+      throw new IllegalArgumentException("Account name longer than " + MAX_NAME_BYTES + " bytes cannot be stored.");
+    }
+  }
+
+  private static boolean nameEquals(ByteBuffer buffer, byte[] name) {
+    if ((buffer.get(LENGTH) & 0xFF) != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      if (buffer.get(NAME + i) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long positionOf(long id) {
+    return HEADER_SIZE + id * RECORD_SIZE;
+  }
+
+  private static long indexPositionOf(long slot) {
+    return HEADER_SIZE + slot * INDEX_SLOT_SIZE;
+  }
+
+  private static BloomFilter newFilter(long slots) {
+    return new BloomFilter(slots * BLOOM_BITS_PER_SLOT);
+  }
+
+  private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+    long offset = position;
+    while (buffer.hasRemaining()) {
+      int read = source.read(buffer, offset);
+      if (read < 0) {
+        throw new IOException("Unexpected end of account file at position=[" + offset + "].");
+      }
+      offset += read;
+    }
+  }
+
+  private static void writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+    long offset = position;
+    while (buffer.hasRemaining()) {
+      offset += target.write(buffer, offset);
+    }
+  }
+
+  /**
+   * one segment of the cache, an LRU list of the accounts of the ids of the segment, changed under its monitor.
+   * The entries are found by id through an open addressing table of twice the entries
+   */
+  private final class Segment {
+
+    private final int size;
+    private final int[] entryId;
+    private final String[] entryName;
+    private final long[] entryBalance;
+    private final boolean[] entryDirty;
+    private final boolean[] entryAccount;
+    private final Account[] entryObject;
+    private final int[] entryPrevious;
+    private final int[] entryNext;
+    /*
+     * entry + 1 by hash of the id, 0 for a free slot
+     */
+    private final int[] slots;
+    private int head = NONE;
+    private int tail = NONE;
+    private int entryCount;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private Segment(int size) {
+      this.size = size;
+      this.entryId = new int[size];
+      this.entryName = new String[size];
+      this.entryBalance = new long[size];
+      this.entryDirty = new boolean[size];
+      this.entryAccount = new boolean[size];
+      this.entryObject = new Account[size];
+      this.entryPrevious = new int[size];
+      this.entryNext = new int[size];
+      int capacity = 2;
+      while (capacity < size * 2) {
+        capacity *= 2;
+      }
+      this.slots = new int[capacity];
+    }
+
+    private synchronized long get(int id) {
+      int entry = load(id);
+      return entry == NONE ? 0L : entryBalance[entry];
+    }
+
+    private synchronized void set(int id, long balance) {
+      int entry = load(id);
+      if (entry == NONE) {
+        throw new IllegalArgumentException("Unknown account id=[" + id + "].");
+      }
+      entryBalance[entry] = balance;
+      entryDirty[entry] = true;
+    }
+
+    private synchronized Account account(int id) {
+      int entry = load(id);
+      return entry == NONE || !entryAccount[entry] ? null : accountOf(entry);
+    }
+
+    private synchronized Account put(Account account, boolean replace) {
+      int entry = load(account.getId());
+      if (entry == NONE) {
+        throw new IllegalArgumentException("Unknown account id=[" + account.getId() + "].");
+      }
+      if (entryAccount[entry]) {
+        if (!replace) {
+          return accountOf(entry);
+        }
+        entryObject[entry] = account;
+        return null;
+      }
+      entryAccount[entry] = true;
+      entryObject[entry] = account;
+      accountCount.incrementAndGet();
+      writeBack(entry);
+      return null;
+    }
+
+    /**
+     * gives the id the balance and an account, in its entry if it is cached, otherwise in its record
+     */
+    private synchronized void store(int id, long balance) {
+      int entry = entryOf(id);
+      if (entry != NONE) {
+        entryBalance[entry] = balance;
+        entryDirty[entry] = true;
+        if (!entryAccount[entry]) {
+          entryAccount[entry] = true;
+          accountCount.incrementAndGet();
+          writeBack(entry);
+        }
+        return;
+      }
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      lock.readLock().lock();
+      try {
+        readRecord(record, id);
+        if (!isAccount(record, 0, generation)) {
+          accountCount.incrementAndGet();
+        }
+        writeState(id, balance, true);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /**
+     * @return name of the id if it is cached, otherwise null
+     */
+    private synchronized String cachedName(int id) {
+      int entry = entryOf(id);
+      return entry == NONE ? null : entryName[entry];
+    }
+
+    private synchronized void collect(List<Account> accounts) {
+      for (int entry = head; entry != NONE; entry = entryNext[entry]) {
+        if (entryAccount[entry]) {
+          accounts.add(accountOf(entry));
+        }
+      }
+    }
+
+    private synchronized void flush() {
+      for (int entry = head; entry != NONE; entry = entryNext[entry]) {
+        if (entryDirty[entry]) {
+          writeBack(entry);
+        }
+      }
+    }
+
+    private synchronized int getEntryCount() {
+      return entryCount;
+    }
+
+    private synchronized long getHitCount() {
+      return hitCount;
+    }
+
+    private synchronized long getMissCount() {
+      return missCount;
+    }
+
+    private synchronized long getEvictionCount() {
+      return evictionCount;
+    }
+
+    /**
+     * @return entry of the id, read from its record and added to the cache if it is not cached, NONE if the id has
+     * no record
+     */
+    private int load(int id) {
+      int entry = entryOf(id);
+      if (entry != NONE) {
+        hitCount++;
+        moveToHead(entry);
+        return entry;
+      }
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      boolean account;
+      long balance;
+      lock.readLock().lock();
+      try {
+        if (id >= recordCount) {
+          return NONE;
+        }
+        readRecord(record, id);
+        account = isAccount(record, 0, generation);
+        balance = balanceOf(record, 0, generation);
+      } finally {
+        lock.readLock().unlock();
+      }
+      missCount++;
+      return insert(id, nameOf(record, 0), balance, account);
+    }
+
+    private Account accountOf(int entry) {
+      Account account = entryObject[entry];
+      if (account == null) {
+        DebtLedger current = ledger;
+        if (current == null) {
+          throw new IllegalStateException("No ledger for the accounts of file=[" + file + "].");
+        }
+        account = new Account(entryName[entry], entryId[entry], current);
+        entryObject[entry] = account;
+      }
+      return account;
+    }
+
+    /**
+     * adds the account of the id to the head of the list, evicting the least recently used one when it is full
+     */
+    private int insert(int id, String name, long balance, boolean account) {
+      int entry;
+      if (entryCount < size) {
+        entry = entryCount++;
+      } else {
+        entry = tail;
+        if (entryDirty[entry]) {
+          writeBack(entry);
+        }
+        unlink(entry);
+        removeSlot(entry);
+        loadedIds.remove(entryName[entry], entryId[entry]);
+        evictionCount++;
+      }
+      entryId[entry] = id;
+      entryName[entry] = name;
+      entryBalance[entry] = balance;
+      entryDirty[entry] = false;
+      entryAccount[entry] = account;
+      entryObject[entry] = null;
+      linkAtHead(entry);
+      addSlot(entry);
+      loadedIds.put(name, id);
+      return entry;
+    }
+
+    /**
+     * writes balance and account flag of the entry to its record under the read lock
+     */
+    private void writeBack(int entry) {
+      lock.readLock().lock();
+      try {
+        writeState(entryId[entry], entryBalance[entry], entryAccount[entry]);
+        entryDirty[entry] = false;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    private int slotOf(int id) {
+      int hash = (id >>> segmentBits) * 0x9E3779B9;
+      return (hash ^ (hash >>> 16)) & (slots.length - 1);
+    }
+
+    private int entryOf(int id) {
+      int mask = slots.length - 1;
+      for (int slot = slotOf(id);; slot = (slot + 1) & mask) {
+        int entry = slots[slot] - 1;
+        if (entry == NONE || entryId[entry] == id) {
+          return entry;
+        }
+      }
+    }
+
+    private void addSlot(int entry) {
+      int mask = slots.length - 1;
+      int slot = slotOf(entryId[entry]);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = entry + 1;
+    }
+
+    /**
+     * removes the slot of the entry, moving back the later slots of the probe sequence which may take its place
+     */
+    private void removeSlot(int entry) {
+      int mask = slots.length - 1;
+      int free = slotOf(entryId[entry]);
+      while (slots[free] != entry + 1) {
+        free = (free + 1) & mask;
+      }
+      for (int slot = (free + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int home = slotOf(entryId[slots[slot] - 1]);
+        if (((slot - home) & mask) >= ((slot - free) & mask)) {
+          slots[free] = slots[slot];
+          free = slot;
+        }
+      }
+      slots[free] = 0;
+    }
+
+    private void moveToHead(int entry) {
+      if (entry != head) {
+        unlink(entry);
+        linkAtHead(entry);
+      }
+    }
+
+    private void unlink(int entry) {
+      int previous = entryPrevious[entry];
+      int next = entryNext[entry];
+      if (previous == NONE) {
+        head = next;
+      } else {
+        entryNext[previous] = next;
+      }
+      if (next == NONE) {
+        tail = previous;
+      } else {
+        entryPrevious[next] = previous;
+      }
+    }
+
+    private void linkAtHead(int entry) {
+      entryPrevious[entry] = NONE;
+      entryNext[entry] = head;
+      if (head != NONE) {
+        entryPrevious[head] = entry;
+      }
+      head = entry;
+      if (tail == NONE) {
+        tail = entry;
+      }
+    }
+
+    private void clearCache() {
+      head = NONE;
+      tail = NONE;
+      entryCount = 0;
+      Arrays.fill(slots, 0);
+      Arrays.fill(entryName, null);
+      Arrays.fill(entryObject, null);
+    }
+  }
+}
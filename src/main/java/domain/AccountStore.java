@@ -0,0 +1,108 @@
+package domain;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * @author viswa
+ *
+ * store of the accounts behind AccountService.getAccount and addAccount.
+ * The accounts are kept in the AccountDirectory of the ledger. With the default balance stores that is all there is,
+ * with an AccountFile as balance store the directory resolves the accounts through the file, which holds all of them
+ * and keeps only the accounts in use in its cache: looking up an account not in the cache loads it from the file,
+ * and the least recently used account is written back and dropped. The debts stay in the ledger, by id.
+ * The counters are those of the cache of the AccountFile and count accounts, 0 for the stores keeping everything
+ * in memory.
+ */
+public interface AccountStore extends Closeable {
+
+  /**
+   * visitor of the accounts kept in a store
+   */
+  interface RecordVisitor {
+
+    /**
+     * @param balance balance as stored
+     * @throws IOException if the visitor fails to write the account
+     */
+    void visit(int id, String name, long balance) throws IOException;
+  }
+
+  /**
+   * @return account of the name, loaded if it is only stored, null if there is none
+   */
+  Account get(String name);
+
+  /**
+   * @return account of the id, loaded if it is only stored, null if there is none
+   */
+  Account get(int id);
+
+  /**
+   * stores the account, replacing any account with the same name
+   */
+  void put(Account account);
+
+  /**
+   * stores the account unless an account with the same name is already present
+   * @return present account, null if the given account was stored
+   */
+  Account putIfAbsent(Account account);
+
+  /**
+   * stores a debt free account without loading it, when the store keeps accounts outside of the heap; the other
+   * stores put it into the directory
+   */
+  void putStored(String name, long balance);
+
+  /**
+   * writes back the loaded accounts and calls the visitor with every account kept outside the heap, loaded or not;
+   * nothing for the stores keeping everything in memory
+   * @throws IOException if the store cannot be read or the visitor fails
+   */
+  void forEachStored(RecordVisitor visitor) throws IOException;
+
+  /**
+   * @return true if the store keeps the accounts in a file of its own, which then has to be rebuilt from the journal
+   */
+  boolean isPersistent();
+
+  /**
+   * @return number of account lookups served from memory
+   */
+  long getHitCount();
+
+  /**
+   * @return number of account lookups which read the store
+   */
+  long getMissCount();
+
+  /**
+   * @return number of accounts written back and dropped from memory
+   */
+  long getEvictionCount();
+
+  /**
+   * @return number of lookups of unknown names answered by the Bloom filter without reading the store
+   */
+  long getFilteredCount();
+
+  /**
+   * writes the changed balances to the store, if it keeps them anywhere but in memory
+   * @throws IOException if store cannot be written
+   */
+  void flush() throws IOException;
+
+  /**
+   * method to create the account store of the directory of the given ledger, a file account store when the balances
+   * are kept in an AccountFile, otherwise the directory itself
+   * @return account store
+   */
+  static AccountStore of(DebtLedger ledger) {
+    BalanceStore balances = ledger.getDirectory().getBalances();
+    if (balances instanceof AccountFile) {
+      return new FileAccountStore((AccountFile) balances, ledger);
+    }
+    return new DirectoryAccountStore(ledger);
+  }
+}
@@ -0,0 +1,74 @@
+package domain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * @author viswa
+ *
+ * store of the account balances by account id.
+ * The store does no locking of its own, a balance is read and written under the account lock of its id.
+ * The implementation is selected at start up with -Dbank.balance.store=heap|mapped|file, the mapped store
+ * and the AccountFile need -Dbank.balance.file=&lt;file&gt;, the AccountFile caches -Dbank.balance.cacheSize accounts
+ */
+public interface BalanceStore extends Closeable {
+
+  String STORE_PROPERTY = "bank.balance.store";
+  String FILE_PROPERTY = "bank.balance.file";
+  String CACHE_SIZE_PROPERTY = "bank.balance.cacheSize";
+
+  /**
+   * @return balance of the given account id, 0 if it was never set
+   */
+  long get(int id);
+
+  /**
+   * sets the balance of the given account id
+   */
+  void set(int id, long balance);
+
+  /**
+   * sets all balances to 0
+   */
+  void clear();
+
+  /**
+   * releases the resources of the store, the store must not be used afterwards
+   * @throws IOException if store cannot be closed
+   */
+  @Override
+  void close() throws IOException;
+
+  /**
+   * method to create the balance store selected by the system properties, the heap store by default
+   * @throws IllegalArgumentException if store type is unknown or the mapped store has no file
+   * @throws IllegalStateException if the balance file cannot be opened
+   * @return balance store
+   */
+  static BalanceStore fromSystemProperties() {
+    String type = System.getProperty(STORE_PROPERTY, "heap");
+    if ("heap".equalsIgnoreCase(type)) {
+      return new HeapBalanceStore();
+    }
+    if (!"mapped".equalsIgnoreCase(type) && !"file".equalsIgnoreCase(type)) {
+      throw new IllegalArgumentException("Unknown balance store=[" + type + "].");
+    }
+    String file = System.getProperty(FILE_PROPERTY);
+    if (file == null || file.trim().isEmpty()) {
+      throw new IllegalArgumentException("Balance file is not configured, set " + FILE_PROPERTY + ".");
+    }
+    Path path = Paths.get(file.trim());
+    try {
+      if ("file".equalsIgnoreCase(type)) {
+        String cacheSize = System.getProperty(CACHE_SIZE_PROPERTY);
+        return cacheSize == null || cacheSize.trim().isEmpty() ? new AccountFile(path)
+            : new AccountFile(path, Integer.parseInt(cacheSize.trim()));
+      }
+      return new MappedBalanceStore(path);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to open balance file=[" + path + "].", e);
+    }
+  }
+}
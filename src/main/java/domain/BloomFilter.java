@@ -0,0 +1,47 @@
+package domain;
+
+/**
+ * @author viswa
+ *
+ * Bloom filter of 64 bit hashes, used to tell that a name is not in the account file without reading the file.
+ * The bit count is a power of two and every hash sets HASHES bits derived from its two halves,
+ * so a lookup costs HASHES array reads. The filter is not thread safe.
+ */
+final class BloomFilter {
+
+  static final int HASHES = 4;
+
+  private final long[] bits;
+  private final long mask;
+
+  /**
+   * @param bitCount number of bits, rounded up to a power of two of at least 64
+   */
+  BloomFilter(long bitCount) {
+    long count = Math.max(64L, Long.highestOneBit(Math.max(1L, bitCount - 1)) << 1);
+    this.bits = new long[(int) (count >>> 6)];
+    this.mask = count - 1;
+  }
+
+  void add(long hash) {
+    long step = (hash >>> 32) | 1L;
+    for (int i = 0; i < HASHES; i++) {
+      long bit = (hash + i * step) & mask;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @return false if the hash was never added, true if it may have been
+   */
+  boolean mightContain(long hash) {
+    long step = (hash >>> 32) | 1L;
+    for (int i = 0; i < HASHES; i++) {
+      long bit = (hash + i * step) & mask;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,1284 @@
+package domain;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * @author viswa
+ *
+ * central store of the debts between accounts, each debt is kept once as an edge from debtor to creditor.
+ * Accounts are identified by the dense int ids of their AccountDirectory.
+ * The edges are split into partitions by their debtor, every partition has its own StampedLock, its own open
+ * addressing hash index keyed by the (debtor id, creditor id) pair and its own parallel primitive arrays, so no amount
+ * is boxed, no map is kept per account and changes of debts of debtors in different partitions do not contend.
+ * By default the partition of a debtor is given by its id, repartition moves the debts into other partitions.
+ * Every edge is also linked into the out list of its debtor and the in list of its creditor in its partition,
+ * in the order the debts were created. The out list of a debtor is in one partition; the in list of a creditor is
+ * spread over the partitions and merged back into creation order by the sequence number every edge gets when it is
+ * created, the only counter shared by the partitions.
+ * A partition is write locked only for a single call; callers that read and then update a debt must hold the account
+ * locks of both accounts.
+ * Reads are optimistic: they run without the lock and are retried if a change ran meanwhile, and only take
+ * the read lock after OPTIMISTIC_ATTEMPTS failed tries, so readers do not hold up the changes of the ledger.
+ * A reduce of a debt that does not exist, the common case of a transfer, is answered by such a read alone.
+ * Both accounts of every debt that is created or grows are marked as changed until drainChanged is called,
+ * which lets the netting of the debt graph look only at the parts that changed since its last run.
+ */
+public final class DebtLedger {
+
+  /*
+   * default number of partitions, power of two so that the partition of a debtor can be found by masking its id
+   */
+  public static final int DEFAULT_PARTITIONS = 64;
+
+  private static final int NONE = -1;
+  private static final long EMPTY_KEY = -1L;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int OPTIMISTIC_ATTEMPTS = 8;
+  /*
+   * retries of a read of a retired partition made at once before backing off, and the longest pause between two
+   */
+  private static final int SPIN_ATTEMPTS = 16;
+  private static final long MAX_BACKOFF_NANOS = 1_000_000L;
+  private static final int[] NO_IDS = new int[0];
+  private static final long[] NO_AMOUNTS = new long[0];
+
+  private final AccountDirectory directory;
+
+  /*
+   * creation order of the edges and of the changed marks over all partitions
+   */
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile Layout layout;
+
+  /**
+   * callback for the debts of the ledger, called while the partition of the debts may be read locked so it must not
+   * change the ledger
+   */
+  @FunctionalInterface
+  public interface DebtVisitor {
+
+    void visit(int debtor, int creditor, long amount);
+  }
+
+  /**
+   * constructor for DebtLedger with the default number of partitions
+   * @throws IllegalArgumentException if directory is null
+   * @param directory directory giving the ids and names of the accounts
+   */
+  public DebtLedger(AccountDirectory directory) {
+    this(directory, DEFAULT_PARTITIONS);
+  }
+
+  /**
+   * constructor for DebtLedger
+   * @throws IllegalArgumentException if directory is null or partitions is not a power of two
+   * @param directory directory giving the ids and names of the accounts
+   * @param partitions number of partitions, the partition of a debtor is its id modulo partitions
+   */
+  public DebtLedger(AccountDirectory directory, int partitions) {
+    if (directory == null) {
+      throw new IllegalArgumentException("Account directory cannot be null.");
+    }
+    checkPartitions(partitions);
+    this.directory = directory;
+    this.layout = new Layout(partitions, null);
+  }
+
+  public AccountDirectory getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @return number of partitions
+   */
+  public int getPartitionCount() {
+    return layout.partitions.length;
+  }
+
+  /**
+   * moves the debts into the given number of partitions by debtor id, like a new ledger has them
+   * @throws IllegalArgumentException if partitions is not a power of two
+   */
+  public void repartition(int partitions) {
+    checkPartitions(partitions);
+    repartition(new Layout(partitions, null));
+  }
+
+  /**
+   * moves the debts into the given number of partitions, the partition of every debtor given by partitioner.
+   * Calls running meanwhile wait for the move and then continue on the new partitions
+   * @throws IllegalArgumentException if partitions is less than 1 or partitioner is null
+   * @param partitioner partition index from 0 to partitions - 1 of a debtor id, the same for an id every time
+   */
+  public void repartition(int partitions, IntUnaryOperator partitioner) {
+    if (partitions < 1 || partitioner == null) {
+      throw new IllegalArgumentException("Partition count must be positive and partitioner cannot be null.");
+    }
+    repartition(new Layout(partitions, partitioner));
+  }
+
+  /**
+   * @return amount owed by debtor to creditor, 0 if nothing is owed
+   */
+  public long get(int debtor, int creditor) {
+    long key = key(debtor, creditor);
+    for (int attempt = 0;; attempt++) {
+      long amount = partitionOf(debtor).get(key);
+      if (amount >= 0) {
+        return amount;
+      }
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * @return true if debtor owes anything to creditor
+   */
+  public boolean contains(int debtor, int creditor) {
+    return get(debtor, creditor) > 0;
+  }
+
+  /**
+   * adds the given amount to what debtor owes to creditor. A negative amount reduces the debt,
+   * the debt is removed once nothing is owed anymore and is never negative
+   * @throws IllegalArgumentException if an id is unknown or both ids are the same
+   * @return amount owed after the change
+   */
+  public long add(int debtor, int creditor, long amount) {
+    checkId(debtor);
+    checkId(creditor);
+    if (debtor == creditor) {
+      throw new IllegalArgumentException("Account cannot owe to itself.");
+    }
+    while (true) {
+      Partition partition = partitionOf(debtor);
+      long stamp = partition.lock.writeLock();
+      try {
+        if (!partition.retired) {
+          return partition.add(debtor, creditor, amount);
+        }
+      } finally {
+        partition.lock.unlockWrite(stamp);
+      }
+    }
+  }
+
+  /**
+   * reduces what debtor owes to creditor by at most the given amount. Whether anything is owed is read optimistically
+   * first, so no lock is taken when nothing is owed
+   * @return amount actually taken off the debt, 0 if nothing was owed
+   */
+  public long reduce(int debtor, int creditor, long amount) {
+    if (amount <= 0 || get(debtor, creditor) == 0) {
+      return 0L;
+    }
+    while (true) {
+      Partition partition = partitionOf(debtor);
+      long stamp = partition.lock.writeLock();
+      try {
+        if (!partition.retired) {
+          return partition.reduce(debtor, creditor, amount);
+        }
+      } finally {
+        partition.lock.unlockWrite(stamp);
+      }
+    }
+  }
+
+  /**
+   * @return ids of the accounts the debtor owes to, in the order the debts were created
+   */
+  public int[] creditorsOf(int debtor) {
+    return creditorsOf(debtor, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return ids of the oldest limit accounts the debtor owes to, in the order the debts were created
+   */
+  public int[] creditorsOf(int debtor, int limit) {
+    checkId(debtor);
+    Edges edges = readOut(debtor, limit);
+    return Arrays.copyOf(edges.ids, edges.count);
+  }
+
+  /**
+   * selects the smallest debts of the debtor with a bounded max heap, so the whole list of the debtor is read once
+   * but only limit of its debts are ordered
+   * @return ids of the limit accounts the debtor owes the smallest amounts to, smallest first,
+   * debts of the same amount in the order they were created
+   */
+  public int[] smallestCreditorsOf(int debtor, int limit) {
+    checkId(debtor);
+    Edges edges = readOut(debtor, Integer.MAX_VALUE);
+    int size = Math.min(limit, edges.count);
+    int[] heap = new int[size];
+    int heapSize = 0;
+    for (int i = 0; i < edges.count; i++) {
+      if (heapSize < size) {
+        heap[heapSize] = i;
+        siftUp(heap, heapSize++, edges.amounts);
+      } else if (size > 0 && before(i, heap[0], edges.amounts)) {
+        heap[0] = i;
+        siftDown(heap, heapSize, edges.amounts);
+      }
+    }
+    int[] result = new int[heapSize];
+    while (heapSize > 0) {
+      result[heapSize - 1] = edges.ids[heap[0]];
+      heap[0] = heap[--heapSize];
+      siftDown(heap, heapSize, edges.amounts);
+    }
+    return result;
+  }
+
+  /**
+   * @return true if the debt at the first list position is paid off before the one at the second
+   */
+  private static boolean before(int first, int second, long[] amounts) {
+    return amounts[first] < amounts[second] || (amounts[first] == amounts[second] && first < second);
+  }
+
+  /**
+   * moves up the entry at the index of a heap which has the debt paid off last on top
+   */
+  private static void siftUp(int[] heap, int index, long[] amounts) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (!before(heap[parent], heap[index], amounts)) {
+        return;
+      }
+      int swap = heap[parent];
+      heap[parent] = heap[index];
+      heap[index] = swap;
+      index = parent;
+    }
+  }
+
+  /**
+   * moves down the top entry of a heap which has the debt paid off last on top
+   */
+  private static void siftDown(int[] heap, int size, long[] amounts) {
+    int index = 0;
+    while (true) {
+      int largest = index;
+      int left = 2 * index + 1;
+      int right = left + 1;
+      if (left < size && before(heap[largest], heap[left], amounts)) {
+        largest = left;
+      }
+      if (right < size && before(heap[largest], heap[right], amounts)) {
+        largest = right;
+      }
+      if (largest == index) {
+        return;
+      }
+      int swap = heap[largest];
+      heap[largest] = heap[index];
+      heap[index] = swap;
+      index = largest;
+    }
+  }
+
+  /**
+   * @return copy of the debts owed by the debtor, by creditor name
+   */
+  public Map<String, Long> owesTo(int debtor) {
+    checkId(debtor);
+    return toNames(readOut(debtor, Integer.MAX_VALUE));
+  }
+
+  /**
+   * @return copy of the debts owed to the creditor, by debtor name
+   */
+  public Map<String, Long> owesFrom(int creditor) {
+    checkId(creditor);
+    return toNames(readIn(creditor));
+  }
+
+  /**
+   * calls the visitor with every debt owed by the debtor, in the order the debts were created,
+   * while the partition of the debtor is read locked
+   */
+  public void forEachOwedBy(int debtor, DebtVisitor visitor) {
+    checkId(debtor);
+    for (int attempt = 0;; attempt++) {
+      Partition partition = partitionOf(debtor);
+      long stamp = partition.lock.readLock();
+      try {
+        if (!partition.retired) {
+          int list = partition.outLists.find(debtor);
+          if (list != NONE) {
+            for (int edge = partition.outLists.heads[list]; edge != NONE; edge = partition.nextOut[edge]) {
+              visitor.visit(debtor, partition.creditors[edge], partition.amounts[edge]);
+            }
+          }
+          return;
+        }
+      } finally {
+        partition.lock.unlockRead(stamp);
+      }
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * calls the visitor with every debt owed to the creditor, in the order the debts were created. The debts are read
+   * from every partition first, so the visitor runs without any lock
+   */
+  public void forEachOwedTo(int creditor, DebtVisitor visitor) {
+    checkId(creditor);
+    Edges edges = readIn(creditor);
+    for (int i = 0; i < edges.count; i++) {
+      visitor.visit(edges.ids[i], creditor, edges.amounts[i]);
+    }
+  }
+
+  /**
+   * @return ids of the accounts with a debt created or grown since the previous call, in the order they were marked;
+   * the marks are cleared
+   */
+  public synchronized int[] drainChanged() {
+    Partition[] partitions = layout.partitions;
+    Edges[] marks = new Edges[partitions.length];
+    for (int i = 0; i < partitions.length; i++) {
+      Partition partition = partitions[i];
+      long stamp = partition.lock.writeLock();
+      try {
+        marks[i] = partition.marks.drain();
+      } finally {
+        partition.lock.unlockWrite(stamp);
+      }
+    }
+    Edges merged = merge(marks);
+    BitSet seen = new BitSet();
+    int[] changed = new int[merged.count];
+    int count = 0;
+    for (int i = 0; i < merged.count; i++) {
+      int id = merged.ids[i];
+      if (!seen.get(id)) {
+        seen.set(id);
+        changed[count++] = id;
+      }
+    }
+    return Arrays.copyOf(changed, count);
+  }
+
+  /**
+   * @return number of debts in the ledger
+   */
+  public int size() {
+    for (int attempt = 0;; attempt++) {
+      int total = 0;
+      boolean retired = false;
+      for (Partition partition : layout.partitions) {
+        long current = partition.read(false);
+        if (current < 0) {
+          retired = true;
+          break;
+        }
+        total += (int) current;
+      }
+      if (!retired) {
+        return total;
+      }
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * @return sum of all debts in the ledger
+   */
+  public long totalAmount() {
+    for (int attempt = 0;; attempt++) {
+      long total = 0L;
+      boolean retired = false;
+      for (Partition partition : layout.partitions) {
+        long current = partition.read(true);
+        if (current < 0) {
+          retired = true;
+          break;
+        }
+        total += current;
+      }
+      if (!retired) {
+        return total;
+      }
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * removes all debts
+   */
+  public synchronized void clear() {
+    Partition[] partitions = layout.partitions;
+    long[] stamps = lockAll(partitions);
+    try {
+      for (Partition partition : partitions) {
+        partition.clear();
+      }
+    } finally {
+      unlockAll(partitions, stamps);
+    }
+  }
+
+  /**
+   * moves all debts and marks into the partitions of the new layout in creation order, so every list keeps its order,
+   * and retires the old partitions
+   */
+  private synchronized void repartition(Layout next) {
+    Partition[] partitions = layout.partitions;
+    long[] stamps = lockAll(partitions);
+    try {
+      Edges[] edges = new Edges[partitions.length];
+      Edges[] marks = new Edges[partitions.length];
+      for (int i = 0; i < partitions.length; i++) {
+        edges[i] = partitions[i].allEdges();
+        marks[i] = partitions[i].marks.drain();
+      }
+      Edges merged = merge(edges);
+      for (int i = 0; i < merged.count; i++) {
+        int debtor = merged.debtors[i];
+        Partition partition = next.partitions[next.indexOf(debtor)];
+        partition.insert(debtor, merged.ids[i], merged.amounts[i], merged.sequences[i]);
+      }
+      Edges mergedMarks = merge(marks);
+      for (int i = 0; i < mergedMarks.count; i++) {
+        int id = mergedMarks.ids[i];
+        next.partitions[next.indexOf(id)].marks.add(id, mergedMarks.sequences[i]);
+      }
+      for (Partition partition : partitions) {
+        partition.retired = true;
+      }
+      layout = next;
+    } finally {
+      unlockAll(partitions, stamps);
+    }
+  }
+
+  /**
+   * reads at most limit edges of the out list of the debtor, which is in the partition of the debtor
+   */
+  private Edges readOut(int debtor, int limit) {
+    for (int attempt = 0;; attempt++) {
+      Edges edges = partitionOf(debtor).readEdges(debtor, true, limit);
+      if (edges != null) {
+        return edges;
+      }
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * reads the in list of the creditor from every partition and merges the parts into creation order
+   */
+  private Edges readIn(int creditor) {
+    for (int attempt = 0;; attempt++) {
+      Partition[] partitions = layout.partitions;
+      Edges[] parts = new Edges[partitions.length];
+      boolean retired = false;
+      for (int i = 0; i < partitions.length && !retired; i++) {
+        parts[i] = partitions[i].readEdges(creditor, false, Integer.MAX_VALUE);
+        retired = parts[i] == null;
+      }
+      if (!retired) {
+        return merge(parts);
+      }
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * merges lists of edges into one list in ascending sequence order
+   */
+  private static Edges merge(Edges[] parts) {
+    Edges single = null;
+    int nonEmpty = 0;
+    for (Edges part : parts) {
+      if (part != null && part.count > 0) {
+        single = part;
+        nonEmpty++;
+      }
+    }
+    if (nonEmpty <= 1) {
+      return single == null ? new Edges() : single.sorted();
+    }
+    Edges merged = new Edges();
+    for (Edges part : parts) {
+      if (part != null) {
+        merged.addAll(part);
+      }
+    }
+    return merged.sorted();
+  }
+
+  private Map<String, Long> toNames(Edges edges) {
+    if (edges.count == 0) {
+      return Collections.emptyMap();
+    }
+    Map<String, Long> debts = new LinkedHashMap<>();
+    for (int i = 0; i < edges.count; i++) {
+      debts.put(directory.nameOf(edges.ids[i]), edges.amounts[i]);
+    }
+    return Collections.unmodifiableMap(debts);
+  }
+
+  /**
+   * waits before the next read of a partition seen retired, yielding for the first attempts and then parking for
+   * pauses that double up to MAX_BACKOFF_NANOS, like AccountLocks.readOptimistic
+   */
+  private static void backoff(int attempt) {
+    if (attempt < SPIN_ATTEMPTS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(Math.min(1_000L << Math.min(attempt - SPIN_ATTEMPTS, 10), MAX_BACKOFF_NANOS));
+    }
+  }
+
+  private Partition partitionOf(int debtor) {
+    Layout current = layout;
+    return current.partitions[current.indexOf(debtor)];
+  }
+
+  private void checkId(int id) {
+    if (id < 0 || id >= directory.idCount()) {
+      throw new IllegalArgumentException("Unknown account id=[" + id + "].");
+    }
+  }
+
+  private static void checkPartitions(int partitions) {
+    if (partitions < 1 || Integer.bitCount(partitions) != 1) {
+      throw new IllegalArgumentException("Partition count must be a power of two.");
+    }
+  }
+
+  private static long[] lockAll(Partition[] partitions) {
+    long[] stamps = new long[partitions.length];
+    for (int i = 0; i < partitions.length; i++) {
+      stamps[i] = partitions[i].lock.writeLock();
+    }
+    return stamps;
+  }
+
+  private static void unlockAll(Partition[] partitions, long[] stamps) {
+    for (int i = partitions.length - 1; i >= 0; i--) {
+      partitions[i].lock.unlockWrite(stamps[i]);
+    }
+  }
+
+  private static long key(int debtor, int creditor) {
+    return ((long) debtor << 32) | (creditor & 0xFFFFFFFFL);
+  }
+
+  private static int hash(long key) {
+    long mixed = key * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ (mixed >>> 32));
+  }
+
+  private static int hash(int id) {
+    int mixed = id * 0x9E3779B9;
+    return mixed ^ (mixed >>> 16);
+  }
+
+  private static int[] filled(int capacity) {
+    int[] array = new int[capacity];
+    Arrays.fill(array, NONE);
+    return array;
+  }
+
+  private static long[] filledKeys(int capacity) {
+    long[] array = new long[capacity];
+    Arrays.fill(array, EMPTY_KEY);
+    return array;
+  }
+
+  /**
+   * partitions of the ledger and how debtors map to them, replaced as a whole by repartition
+   */
+  private final class Layout {
+
+    private final Partition[] partitions;
+    private final IntUnaryOperator partitioner;
+
+    private Layout(int count, IntUnaryOperator partitioner) {
+      this.partitions = new Partition[count];
+      for (int i = 0; i < count; i++) {
+        partitions[i] = new Partition();
+      }
+      this.partitioner = partitioner;
+    }
+
+    private int indexOf(int debtor) {
+      return partitioner == null ? debtor & (partitions.length - 1) : partitioner.applyAsInt(debtor);
+    }
+  }
+
+  /**
+   * debts of the debtors of one partition with the lock guarding them. Once retired by repartition a partition
+   * is never changed again, callers seeing it retired go to the current layout
+   */
+  private final class Partition {
+
+    private final StampedLock lock = new StampedLock();
+    private boolean retired;
+
+    /*
+     * out lists of the debtors and in lists of the creditors of the edges of this partition
+     */
+    private final Lists outLists = new Lists();
+    private final Lists inLists = new Lists();
+
+    /*
+     * hash index from packed (debtor, creditor) key to edge, linear probing
+     */
+    private long[] keys = filledKeys(INITIAL_CAPACITY * 2);
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int size;
+    /*
+     * sum of all debts in the partition
+     */
+    private long totalAmount;
+
+    /*
+     * edge arrays, removed edges are chained through nextOut into the free list
+     */
+    private int[] debtors = new int[INITIAL_CAPACITY];
+    private int[] creditors = new int[INITIAL_CAPACITY];
+    private long[] amounts = new long[INITIAL_CAPACITY];
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private int[] nextOut = new int[INITIAL_CAPACITY];
+    private int[] prevOut = new int[INITIAL_CAPACITY];
+    private int[] nextIn = new int[INITIAL_CAPACITY];
+    private int[] prevIn = new int[INITIAL_CAPACITY];
+    private int edgeCount;
+    private int freeEdge = NONE;
+
+    /*
+     * accounts with a created or grown debt in this partition since the last drainChanged
+     */
+    private final Marks marks = new Marks();
+
+    /**
+     * @return amount of the debt with the given key, -1 if the partition is retired
+     */
+    private long get(long key) {
+      for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+        long stamp = lock.tryOptimisticRead();
+        boolean gone = retired;
+        long amount = find(key);
+        if (amount >= 0 && lock.validate(stamp)) {
+          return gone ? -1L : amount;
+        }
+      }
+      long stamp = lock.readLock();
+      try {
+        return retired ? -1L : find(key);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    /**
+     * @param total true for the sum of the debts, false for their number
+     * @return the value, -1 if the partition is retired
+     */
+    private long read(boolean total) {
+      long stamp = lock.tryOptimisticRead();
+      boolean gone = retired;
+      long current = total ? totalAmount : size;
+      if (lock.validate(stamp)) {
+        return gone ? -1L : current;
+      }
+      stamp = lock.readLock();
+      try {
+        return retired ? -1L : total ? totalAmount : size;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    /**
+     * reads at most limit edges of the out (owed by) or in (owed to) list of the account, optimistically first
+     * @return edges, null if the partition is retired
+     */
+    private Edges readEdges(int id, boolean out, int limit) {
+      for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+        long stamp = lock.tryOptimisticRead();
+        boolean gone = retired;
+        Edges edges = collect(id, out, limit);
+        if (edges != null && lock.validate(stamp)) {
+          return gone ? null : edges;
+        }
+      }
+      long stamp = lock.readLock();
+      try {
+        return retired ? null : collect(id, out, limit);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    /**
+     * collects the edges of the out or in list of the account. Without the lock the arrays may be changed or replaced
+     * meanwhile, so every index is checked and the walk is bounded
+     * @return edges, null if the arrays were seen in an inconsistent state
+     */
+    private Edges collect(int id, boolean out, int limit) {
+      Lists lists = out ? outLists : inLists;
+      int[] next = out ? nextOut : nextIn;
+      int[] others = out ? creditors : debtors;
+      long[] edgeAmounts = amounts;
+      long[] edgeSequences = sequences;
+      Edges edges = new Edges();
+      int head = lists.headOf(id);
+      if (head == NONE) {
+        return edges;
+      }
+      if (head < NONE) {
+        return null;
+      }
+      int capacity = Math.min(Math.min(next.length, others.length), Math.min(edgeAmounts.length, edgeSequences.length));
+      for (int edge = head; edge != NONE && edges.count < limit; edge = next[edge]) {
+        if (edge < 0 || edge >= capacity || edges.count >= capacity) {
+          return null;
+        }
+        edges.add(out ? id : others[edge], others[edge], edgeAmounts[edge], edgeSequences[edge]);
+      }
+      return edges;
+    }
+
+    /**
+     * @return every edge of the partition, the caller holds the lock
+     */
+    private Edges allEdges() {
+      Edges edges = new Edges();
+      for (int list = 0; list < outLists.ids.length; list++) {
+        if (outLists.ids[list] == NONE) {
+          continue;
+        }
+        for (int edge = outLists.heads[list]; edge != NONE; edge = nextOut[edge]) {
+          edges.add(debtors[edge], creditors[edge], amounts[edge], sequences[edge]);
+        }
+      }
+      return edges;
+    }
+
+    private long add(int debtor, int creditor, long amount) {
+      long key = key(debtor, creditor);
+      int position = probe(key);
+      if (keys[position] != EMPTY_KEY) {
+        int edge = slots[position];
+        long total = amounts[edge] + amount;
+        if (total <= 0) {
+          removeAt(position);
+          return 0L;
+        }
+        amounts[edge] = total;
+        totalAmount += amount;
+        if (amount > 0) {
+          mark(debtor);
+          mark(creditor);
+        }
+        return total;
+      }
+      if (amount <= 0) {
+        return 0L;
+      }
+      mark(debtor);
+      mark(creditor);
+      insertAt(position, key, debtor, creditor, amount, sequence.getAndIncrement());
+      return amount;
+    }
+
+    /**
+     * marks the account as changed, the sequence of the mark is taken only for the first mark since the last drain
+     */
+    private void mark(int id) {
+      if (!marks.contains(id)) {
+        marks.add(id, sequence.getAndIncrement());
+      }
+    }
+
+    /**
+     * inserts an edge moved from another partition with its sequence, the caller holds the lock
+     */
+    private void insert(int debtor, int creditor, long amount, long edgeSequence) {
+      long key = key(debtor, creditor);
+      insertAt(probe(key), key, debtor, creditor, amount, edgeSequence);
+    }
+
+    private void insertAt(int position, long key, int debtor, int creditor, long amount, long edgeSequence) {
+      keys[position] = key;
+      slots[position] = newEdge(debtor, creditor, amount, edgeSequence);
+      size++;
+      if (size * 4 > keys.length * 3) {
+        rehash(keys.length * 2);
+      }
+    }
+
+    private long reduce(int debtor, int creditor, long amount) {
+      int position = probe(key(debtor, creditor));
+      if (keys[position] == EMPTY_KEY) {
+        return 0L;
+      }
+      int edge = slots[position];
+      long owed = amounts[edge];
+      if (owed <= amount) {
+        removeAt(position);
+        return owed;
+      }
+      amounts[edge] = owed - amount;
+      totalAmount -= amount;
+      return amount;
+    }
+
+    private void clear() {
+      Arrays.fill(keys, EMPTY_KEY);
+      outLists.clear();
+      inLists.clear();
+      marks.clear();
+      size = 0;
+      totalAmount = 0L;
+      edgeCount = 0;
+      freeEdge = NONE;
+    }
+
+    /**
+     * @return amount of the debt with the given key, 0 if there is none, -1 if the index was seen in an inconsistent
+     * state
+     */
+    private long find(long key) {
+      long[] currentKeys = keys;
+      int[] currentSlots = slots;
+      long[] edgeAmounts = amounts;
+      int mask = currentKeys.length - 1;
+      if (currentSlots.length != currentKeys.length) {
+        return -1L;
+      }
+      int position = hash(key) & mask;
+      for (int probes = 0; probes < currentKeys.length; probes++) {
+        long found = currentKeys[position];
+        if (found == EMPTY_KEY) {
+          return 0L;
+        }
+        if (found == key) {
+          int edge = currentSlots[position];
+          return edge >= 0 && edge < edgeAmounts.length ? edgeAmounts[edge] : -1L;
+        }
+        position = (position + 1) & mask;
+      }
+      return -1L;
+    }
+
+    /**
+     * @return position of the key in the hash index, or of the empty slot where it would be inserted
+     */
+    private int probe(long key) {
+      int mask = keys.length - 1;
+      int position = hash(key) & mask;
+      while (keys[position] != EMPTY_KEY && keys[position] != key) {
+        position = (position + 1) & mask;
+      }
+      return position;
+    }
+
+    private int newEdge(int debtor, int creditor, long amount, long edgeSequence) {
+      int edge;
+      if (freeEdge != NONE) {
+        edge = freeEdge;
+        freeEdge = nextOut[edge];
+      } else {
+        if (edgeCount == amounts.length) {
+          growEdges();
+        }
+        edge = edgeCount++;
+      }
+      debtors[edge] = debtor;
+      creditors[edge] = creditor;
+      amounts[edge] = amount;
+      sequences[edge] = edgeSequence;
+      totalAmount += amount;
+      int out = outLists.listOf(debtor);
+      nextOut[edge] = NONE;
+      prevOut[edge] = outLists.tails[out];
+      if (outLists.tails[out] == NONE) {
+        outLists.heads[out] = edge;
+      } else {
+        nextOut[outLists.tails[out]] = edge;
+      }
+      outLists.tails[out] = edge;
+      int in = inLists.listOf(creditor);
+      nextIn[edge] = NONE;
+      prevIn[edge] = inLists.tails[in];
+      if (inLists.tails[in] == NONE) {
+        inLists.heads[in] = edge;
+      } else {
+        nextIn[inLists.tails[in]] = edge;
+      }
+      inLists.tails[in] = edge;
+      return edge;
+    }
+
+    /**
+     * unlinks the edge at the given index position and closes the gap by shifting back later entries of the probe run
+     */
+    private void removeAt(int position) {
+      int edge = slots[position];
+      int out = outLists.find(debtors[edge]);
+      int in = inLists.find(creditors[edge]);
+      totalAmount -= amounts[edge];
+      if (prevOut[edge] == NONE) {
+        outLists.heads[out] = nextOut[edge];
+      } else {
+        nextOut[prevOut[edge]] = nextOut[edge];
+      }
+      if (nextOut[edge] == NONE) {
+        outLists.tails[out] = prevOut[edge];
+      } else {
+        prevOut[nextOut[edge]] = prevOut[edge];
+      }
+      if (prevIn[edge] == NONE) {
+        inLists.heads[in] = nextIn[edge];
+      } else {
+        nextIn[prevIn[edge]] = nextIn[edge];
+      }
+      if (nextIn[edge] == NONE) {
+        inLists.tails[in] = prevIn[edge];
+      } else {
+        prevIn[nextIn[edge]] = prevIn[edge];
+      }
+      if (outLists.heads[out] == NONE) {
+        outLists.remove(out);
+      }
+      if (inLists.heads[in] == NONE) {
+        inLists.remove(in);
+      }
+      nextOut[edge] = freeEdge;
+      freeEdge = edge;
+
+      int mask = keys.length - 1;
+      int hole = position;
+      int next = (hole + 1) & mask;
+      while (keys[next] != EMPTY_KEY) {
+        int home = hash(keys[next]) & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          keys[hole] = keys[next];
+          slots[hole] = slots[next];
+          hole = next;
+        }
+        next = (next + 1) & mask;
+      }
+      keys[hole] = EMPTY_KEY;
+      size--;
+    }
+
+    private void rehash(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldSlots = slots;
+      long[] newKeys = filledKeys(capacity);
+      int[] newSlots = new int[capacity];
+      int mask = capacity - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY_KEY) {
+          int position = hash(oldKeys[i]) & mask;
+          while (newKeys[position] != EMPTY_KEY) {
+            position = (position + 1) & mask;
+          }
+          newKeys[position] = oldKeys[i];
+          newSlots[position] = oldSlots[i];
+        }
+      }
+      slots = newSlots;
+      keys = newKeys;
+    }
+
+    private void growEdges() {
+      int capacity = amounts.length * 2;
+      debtors = Arrays.copyOf(debtors, capacity);
+      creditors = Arrays.copyOf(creditors, capacity);
+      amounts = Arrays.copyOf(amounts, capacity);
+      sequences = Arrays.copyOf(sequences, capacity);
+      nextOut = Arrays.copyOf(nextOut, capacity);
+      prevOut = Arrays.copyOf(prevOut, capacity);
+      nextIn = Arrays.copyOf(nextIn, capacity);
+      prevIn = Arrays.copyOf(prevIn, capacity);
+    }
+  }
+
+  /**
+   * first and last edge of the lists of the accounts of one partition, found through an open addressing index by
+   * account id, so a partition holds entries only for the accounts it has debts of. The entry of an account is
+   * removed once its last edge is, so accounts whose debts are settled take no room
+   */
+  private static final class Lists {
+
+    private int[] ids = filled(INITIAL_CAPACITY);
+    private int[] heads = new int[INITIAL_CAPACITY];
+    private int[] tails = new int[INITIAL_CAPACITY];
+    private int count;
+
+    /**
+     * @return first edge of the list of the account, NONE if it has none, less than NONE if the index was seen
+     * in an inconsistent state while read without the lock
+     */
+    private int headOf(int id) {
+      int[] currentIds = ids;
+      int[] currentHeads = heads;
+      if (currentHeads.length != currentIds.length) {
+        return NONE - 1;
+      }
+      int mask = currentIds.length - 1;
+      int position = hash(id) & mask;
+      for (int probes = 0; probes < currentIds.length; probes++) {
+        int found = currentIds[position];
+        if (found == NONE) {
+          return NONE;
+        }
+        if (found == id) {
+          return currentHeads[position];
+        }
+        position = (position + 1) & mask;
+      }
+      return NONE - 1;
+    }
+
+    /**
+     * @return position of the list of the account, NONE if it has none
+     */
+    private int find(int id) {
+      int mask = ids.length - 1;
+      int position = hash(id) & mask;
+      while (ids[position] != NONE) {
+        if (ids[position] == id) {
+          return position;
+        }
+        position = (position + 1) & mask;
+      }
+      return NONE;
+    }
+
+    /**
+     * @return position of the list of the account, added empty if it has none
+     */
+    private int listOf(int id) {
+      int position = find(id);
+      if (position != NONE) {
+        return position;
+      }
+      if ((count + 1) * 4 > ids.length * 3) {
+        grow();
+      }
+      int mask = ids.length - 1;
+      position = hash(id) & mask;
+      while (ids[position] != NONE) {
+        position = (position + 1) & mask;
+      }
+      ids[position] = id;
+      heads[position] = NONE;
+      tails[position] = NONE;
+      count++;
+      return position;
+    }
+
+    /**
+     * removes the empty list at the given position and closes the gap by shifting back later entries of the probe run
+     */
+    private void remove(int position) {
+      int mask = ids.length - 1;
+      int hole = position;
+      int next = (hole + 1) & mask;
+      while (ids[next] != NONE) {
+        int home = hash(ids[next]) & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          ids[hole] = ids[next];
+          heads[hole] = heads[next];
+          tails[hole] = tails[next];
+          hole = next;
+        }
+        next = (next + 1) & mask;
+      }
+      ids[hole] = NONE;
+      count--;
+    }
+
+    private void grow() {
+      int capacity = ids.length * 2;
+      int[] newIds = filled(capacity);
+      int[] newHeads = new int[capacity];
+      int[] newTails = new int[capacity];
+      int mask = capacity - 1;
+      for (int i = 0; i < ids.length; i++) {
+        if (ids[i] != NONE) {
+          int position = hash(ids[i]) & mask;
+          while (newIds[position] != NONE) {
+            position = (position + 1) & mask;
+          }
+          newIds[position] = ids[i];
+          newHeads[position] = heads[i];
+          newTails[position] = tails[i];
+        }
+      }
+      heads = newHeads;
+      tails = newTails;
+      ids = newIds;
+    }
+
+    private void clear() {
+      Arrays.fill(ids, NONE);
+      count = 0;
+    }
+  }
+
+  /**
+   * accounts marked as changed in one partition, each once, in the order they were first marked
+   */
+  private static final class Marks {
+
+    private int[] index = filled(INITIAL_CAPACITY);
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private int count;
+
+    private boolean contains(int id) {
+      int mask = index.length - 1;
+      int position = hash(id) & mask;
+      while (index[position] != NONE) {
+        if (index[position] == id) {
+          return true;
+        }
+        position = (position + 1) & mask;
+      }
+      return false;
+    }
+
+    private void add(int id, long markSequence) {
+      int mask = index.length - 1;
+      int position = hash(id) & mask;
+      while (index[position] != NONE) {
+        if (index[position] == id) {
+          return;
+        }
+        position = (position + 1) & mask;
+      }
+      index[position] = id;
+      if (count == ids.length) {
+        ids = Arrays.copyOf(ids, count * 2);
+        sequences = Arrays.copyOf(sequences, count * 2);
+      }
+      ids[count] = id;
+      sequences[count] = markSequence;
+      count++;
+      if (count * 4 > index.length * 3) {
+        index = filled(index.length * 2);
+        mask = index.length - 1;
+        for (int i = 0; i < count; i++) {
+          position = hash(ids[i]) & mask;
+          while (index[position] != NONE) {
+            position = (position + 1) & mask;
+          }
+          index[position] = ids[i];
+        }
+      }
+    }
+
+    /**
+     * @return the marks in the order they were made, the marks are cleared
+     */
+    private Edges drain() {
+      Edges drained = new Edges();
+      for (int i = 0; i < count; i++) {
+        drained.add(NONE, ids[i], 0L, sequences[i]);
+      }
+      clear();
+      return drained;
+    }
+
+    private void clear() {
+      Arrays.fill(index, NONE);
+      count = 0;
+    }
+  }
+
+  /**
+   * debtors, ids of the other accounts, amounts and sequences of a list of edges
+   */
+  private static final class Edges {
+
+    private int[] debtors = NO_IDS;
+    private int[] ids = NO_IDS;
+    private long[] amounts = NO_AMOUNTS;
+    private long[] sequences = NO_AMOUNTS;
+    private int count;
+
+    private void add(int debtor, int id, long amount, long edgeSequence) {
+      if (count == ids.length) {
+        int capacity = Math.max(4, count * 2);
+        debtors = Arrays.copyOf(debtors, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+      }
+      debtors[count] = debtor;
+      ids[count] = id;
+      amounts[count] = amount;
+      sequences[count] = edgeSequence;
+      count++;
+    }
+
+    private void addAll(Edges other) {
+      for (int i = 0; i < other.count; i++) {
+        add(other.debtors[i], other.ids[i], other.amounts[i], other.sequences[i]);
+      }
+    }
+
+    /**
+     * @return the edges in ascending sequence order, this list if it is in that order already,
+     * otherwise a new list sorted by a bottom up merge sort of the positions
+     */
+    private Edges sorted() {
+      boolean ascending = true;
+      for (int i = 1; i < count && ascending; i++) {
+        ascending = sequences[i - 1] < sequences[i];
+      }
+      if (ascending) {
+        return this;
+      }
+      int[] order = new int[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+      int[] buffer = new int[count];
+      for (int width = 1; width < count; width *= 2) {
+        for (int low = 0; low < count; low += 2 * width) {
+          int middle = Math.min(low + width, count);
+          int high = Math.min(low + 2 * width, count);
+          int left = low;
+          int right = middle;
+          for (int i = low; i < high; i++) {
+            if (left < middle && (right >= high || sequences[order[left]] < sequences[order[right]])) {
+              buffer[i] = order[left++];
+            } else {
+              buffer[i] = order[right++];
+            }
+          }
+        }
+        int[] swap = order;
+        order = buffer;
+        buffer = swap;
+      }
+      Edges sorted = new Edges();
+      for (int position : order) {
+        sorted.add(debtors[position], ids[position], amounts[position], sequences[position]);
+      }
+      return sorted;
+    }
+  }
+}
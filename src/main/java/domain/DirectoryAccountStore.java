@@ -0,0 +1,84 @@
+package domain;
+
+import java.io.IOException;
+
+/**
+ * @author viswa
+ *
+ * account store keeping all accounts in the AccountDirectory, there is nothing to load, write back or filter
+ */
+final class DirectoryAccountStore implements AccountStore {
+
+  private final AccountDirectory directory;
+  private final DebtLedger ledger;
+
+  DirectoryAccountStore(DebtLedger ledger) {
+    this.directory = ledger.getDirectory();
+    this.ledger = ledger;
+  }
+
+  @Override
+  public Account get(String name) {
+    return directory.get(name);
+  }
+
+  @Override
+  public Account get(int id) {
+    return directory.get(id);
+  }
+
+  @Override
+  public void put(Account account) {
+    directory.put(account);
+  }
+
+  @Override
+  public Account putIfAbsent(Account account) {
+    return directory.putIfAbsent(account);
+  }
+
+  @Override
+  public void putStored(String name, long balance) {
+    directory.put(new Account(name, ledger).setBalance(balance));
+  }
+
+  @Override
+  public void forEachStored(RecordVisitor visitor) {
+    // every account is in the directory
+  }
+
+  @Override
+  public boolean isPersistent() {
+    return false;
+  }
+
+  @Override
+  public long getHitCount() {
+    return 0L;
+  }
+
+  @Override
+  public long getMissCount() {
+    return 0L;
+  }
+
+  @Override
+  public long getEvictionCount() {
+    return 0L;
+  }
+
+  @Override
+  public long getFilteredCount() {
+    return 0L;
+  }
+
+  @Override
+  public void flush() {
+    // balances are only kept in memory
+  }
+
+  @Override
+  public void close() throws IOException {
+    directory.getBalances().close();
+  }
+}
@@ -0,0 +1,89 @@
+package domain;
+
+import java.io.IOException;
+
+/**
+ * @author viswa
+ *
+ * account store keeping the accounts in an AccountFile. The directory of the ledger resolves names, ids and accounts
+ * through the file, which loads an account into its cache when it is used and drops the least recently used one, so
+ * the lookups are those of the directory. The store adds what the directory does not do: the debt free accounts of a
+ * snapshot are written to the file without loading them, so recovering does not go through the cache, and the
+ * accounts of the file are scanned for snapshots.
+ */
+final class FileAccountStore implements AccountStore {
+
+  private final AccountFile file;
+  private final AccountDirectory directory;
+
+  FileAccountStore(AccountFile file, DebtLedger ledger) {
+    this.file = file;
+    this.directory = ledger.getDirectory();
+    file.setLedger(ledger);
+  }
+
+  @Override
+  public Account get(String name) {
+    return directory.get(name);
+  }
+
+  @Override
+  public Account get(int id) {
+    return directory.get(id);
+  }
+
+  @Override
+  public void put(Account account) {
+    directory.put(account);
+  }
+
+  @Override
+  public Account putIfAbsent(Account account) {
+    return directory.putIfAbsent(account);
+  }
+
+  @Override
+  public void putStored(String name, long balance) {
+    file.store(name, balance);
+  }
+
+  @Override
+  public void forEachStored(RecordVisitor visitor) throws IOException {
+    file.forEachRecord(visitor);
+  }
+
+  @Override
+  public boolean isPersistent() {
+    return true;
+  }
+
+  @Override
+  public long getHitCount() {
+    return file.getHitCount();
+  }
+
+  @Override
+  public long getMissCount() {
+    return file.getMissCount();
+  }
+
+  @Override
+  public long getEvictionCount() {
+    return file.getEvictionCount();
+  }
+
+  @Override
+  public long getFilteredCount() {
+    return file.getFilteredCount();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    file.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
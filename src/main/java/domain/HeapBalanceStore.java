@@ -0,0 +1,66 @@
+package domain;
+
+import java.util.Arrays;
+
+/**
+ * @author viswa
+ *
+ * balance store keeping the balances in long arrays on the heap.
+ * Balances are kept in fixed size chunks which are never copied, so growing the store
+ * does not move the balances that other threads are updating.
+ */
+public final class HeapBalanceStore implements BalanceStore {
+
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+  private volatile long[][] chunks = new long[1][CHUNK_SIZE];
+
+  @Override
+  public long get(int id) {
+    long[][] current = chunks;
+    int chunk = id >>> CHUNK_SHIFT;
+    if (chunk >= current.length) {
+      return 0L;
+    }
+    return current[chunk][id & (CHUNK_SIZE - 1)];
+  }
+
+  @Override
+  public void set(int id, long balance) {
+    if (id < 0) {
+      throw new IllegalArgumentException("Invalid account id=[" + id + "].");
+    }
+    int chunk = id >>> CHUNK_SHIFT;
+    long[][] current = chunks;
+    if (chunk >= current.length) {
+      current = grow(chunk);
+    }
+    current[chunk][id & (CHUNK_SIZE - 1)] = balance;
+  }
+
+  @Override
+  public void clear() {
+    for (long[] chunk : chunks) {
+      Arrays.fill(chunk, 0L);
+    }
+  }
+
+  @Override
+  public void close() {
+    chunks = new long[1][CHUNK_SIZE];
+  }
+
+  private synchronized long[][] grow(int chunk) {
+    long[][] current = chunks;
+    if (chunk < current.length) {
+      return current;
+    }
+    long[][] larger = Arrays.copyOf(current, Math.max(chunk + 1, current.length * 2));
+    for (int i = current.length; i < larger.length; i++) {
+      larger[i] = new long[CHUNK_SIZE];
+    }
+    chunks = larger;
+    return larger;
+  }
+}
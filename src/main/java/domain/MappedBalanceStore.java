@@ -0,0 +1,135 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * @author viswa
+ *
+ * balance store keeping the balances off the heap, in a memory mapped file of fixed width records.
+ * The balance of account id n is the long at offset 8 * n. The file is mapped in chunks as the ids grow,
+ * so the heap used by the store does not depend on the number of accounts, and a balance written to the
+ * mapping is in the file even if the process dies right after.
+ * The file is kept when the store is opened again and the chunks already in it are mapped at once. It holds
+ * balances by id only, while names, debts and the Account handles stay on the heap, and the ids are given to the
+ * names again at start up, so the file is no source of recovery: the snapshot and journal restore the accounts and
+ * overwrite the balances of the ids they load.
+ */
+public final class MappedBalanceStore implements BalanceStore {
+
+  private static final int RECORD_SIZE = 8;
+  private static final int DEFAULT_CHUNK_SHIFT = 20;
+
+  private final Path file;
+  private final FileChannel channel;
+  private final int chunkShift;
+  private final int chunkMask;
+  private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+  /**
+   * constructor for MappedBalanceStore, mapping 8MB of balances at a time
+   * @throws IOException if file cannot be opened
+   */
+  public MappedBalanceStore(Path file) throws IOException {
+    this(file, DEFAULT_CHUNK_SHIFT);
+  }
+
+  /**
+   * constructor for MappedBalanceStore
+   * @param chunkShift each mapped chunk holds 2^chunkShift balances
+   * @throws IOException if file cannot be opened
+   */
+  MappedBalanceStore(Path file, int chunkShift) throws IOException {
+    if (file == null) {
+      throw new IllegalArgumentException("Balance file cannot be null.");
+    }
+    if (chunkShift < 1 || chunkShift > 27) {
+      throw new IllegalArgumentException("Invalid chunk shift=[" + chunkShift + "].");
+    }
+    this.file = file;
+    this.chunkShift = chunkShift;
+    this.chunkMask = (1 << chunkShift) - 1;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long chunkBytes = (long) RECORD_SIZE << chunkShift;
+    long size = channel.size();
+    if (size > 0) {
+      map((int) ((size - 1) / chunkBytes));
+    }
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  @Override
+  public long get(int id) {
+    MappedByteBuffer[] current = chunks;
+    int chunk = id >>> chunkShift;
+    if (chunk >= current.length) {
+      return 0L;
+    }
+    return current[chunk].getLong((id & chunkMask) * RECORD_SIZE);
+  }
+
+  @Override
+  public void set(int id, long balance) {
+    if (id < 0) {
+      throw new IllegalArgumentException("Invalid account id=[" + id + "].");
+    }
+    int chunk = id >>> chunkShift;
+    MappedByteBuffer[] current = chunks;
+    if (chunk >= current.length) {
+      current = map(chunk);
+    }
+    current[chunk].putLong((id & chunkMask) * RECORD_SIZE, balance);
+  }
+
+  @Override
+  public void clear() {
+    for (MappedByteBuffer chunk : chunks) {
+      for (int offset = 0; offset < chunk.capacity(); offset += RECORD_SIZE) {
+        chunk.putLong(offset, 0L);
+      }
+    }
+  }
+
+  /**
+   * writes the changed balances of the mapping to the storage device
+   */
+  public void force() {
+    for (MappedByteBuffer chunk : chunks) {
+      chunk.force();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    force();
+    chunks = new MappedByteBuffer[0];
+    channel.close();
+  }
+
+  private synchronized MappedByteBuffer[] map(int chunk) {
+    MappedByteBuffer[] current = chunks;
+    if (chunk < current.length) {
+      return current;
+    }
+    MappedByteBuffer[] larger = Arrays.copyOf(current, chunk + 1);
+    long chunkBytes = (long) RECORD_SIZE << chunkShift;
+    try {
+      for (int i = current.length; i < larger.length; i++) {
+        larger[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * chunkBytes, chunkBytes);
+        larger[i].order(ByteOrder.nativeOrder());
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to map balance file=[" + file + "].", e);
+    }
+    chunks = larger;
+    return larger;
+  }
+}
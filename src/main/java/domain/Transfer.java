@@ -0,0 +1,38 @@
+package domain;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * immutable transfer of an amount to the payee of the given name, one entry of a transfer batch
+ */
+public final class Transfer {
+
+  private final String payee;
+  private final long amount;
+
+  /**
+   * constructor for Transfer
+   * @throws IllegalArgumentException if payee is null/empty or amount is negative value
+   * @param payee name of the payee
+   */
+  public Transfer(String payee, long amount) {
+    if (StringUtils.isBlank(payee)) {
+      throw new IllegalArgumentException("Payee name cannot be null/empty.");
+    }
+    if (amount < 0) {
+      throw new IllegalArgumentException("Paying amount cannot be less than 0.");
+    }
+    this.payee = payee;
+    this.amount = amount;
+  }
+
+  public String getPayee() {
+    return payee;
+  }
+
+  public long getAmount() {
+    return amount;
+  }
+}
@@ -0,0 +1,41 @@
+package enums;
+
+/**
+ * @author viswa
+ *
+ * enum constants for the outcome of the admission control of a command
+ */
+public enum AdmissionResult {
+
+  /*
+   * the command may be executed, its permit is to be released afterwards
+   */
+  ADMITTED("admitted", null),
+  /*
+   * too many commands are executing and waiting, or no permit was free within the queue timeout
+   */
+  OVERLOADED("overloaded", "Server overloaded, try again later."),
+  /*
+   * the session sent more commands than its rate limit allows
+   */
+  RATE_LIMITED("rateLimited", "Rate limit exceeded, try again later.");
+
+  private String name;
+  private String reason;
+
+  private AdmissionResult(String name, String reason) {
+    this.name = name;
+    this.reason = reason;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return reason reported to the client of a rejected command, null for an admitted one
+   */
+  public String getReason() {
+    return reason;
+  }
+}
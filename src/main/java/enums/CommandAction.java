@@ -12,6 +12,10 @@ public enum CommandAction {
   LOGIN("login"),
   TOPUP("topup"),
   PAY("pay"),
+  PAYBATCH("paybatch"),
+  STATS("stats"),
+  HISTORY("history"),
+  STATEMENT("statement"),
   EXIT("exit");
   
   private String command;
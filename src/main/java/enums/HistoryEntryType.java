@@ -0,0 +1,40 @@
+package enums;
+
+/**
+ * @author viswa
+ * 
+ * enum constants for the entry types of the transaction history of an account, with the code written to the file
+ */
+public enum HistoryEntryType {
+  
+  TOPUP(1),
+  TRANSFER_OUT(2),
+  TRANSFER_IN(3),
+  SETTLEMENT_OUT(4),
+  SETTLEMENT_IN(5);
+  
+  private int code;
+  
+  private HistoryEntryType(int code) {
+    this.code = code;
+  }
+  
+  public int getCode() {
+    return code;
+  }
+  
+  /**
+   * get HistoryEntryType from the code value
+   * @return entry type, if no matching found for the code then null
+   */
+  public static HistoryEntryType fromCode(int code) {
+    HistoryEntryType entryType = null;
+    for(HistoryEntryType type: HistoryEntryType.values()) {
+      if(type.getCode() == code) {
+        entryType = type;
+        break;
+      }
+    }
+    return entryType;
+  }
+}
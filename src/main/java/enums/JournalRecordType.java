@@ -0,0 +1,41 @@
+package enums;
+
+/**
+ * @author viswa
+ * 
+ * enum constants for the record types of the transaction journal, with the code written to the file
+ */
+public enum JournalRecordType {
+  
+  ACCOUNT((byte) 1),
+  TOPUP((byte) 2),
+  TRANSFER((byte) 3),
+  SETTLEMENT((byte) 4),
+  RESET((byte) 5),
+  NETTING((byte) 6);
+  
+  private byte code;
+  
+  private JournalRecordType(byte code) {
+    this.code = code;
+  }
+  
+  public byte getCode() {
+    return code;
+  }
+  
+  /**
+   * get JournalRecordType from the code value
+   * @return record type, if no matching found for the code then null
+   */
+  public static JournalRecordType fromCode(byte code) {
+    JournalRecordType recordType = null;
+    for(JournalRecordType type: JournalRecordType.values()) {
+      if(type.getCode() == code) {
+        recordType = type;
+        break;
+      }
+    }
+    return recordType;
+  }
+}
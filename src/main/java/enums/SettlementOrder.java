@@ -0,0 +1,43 @@
+package enums;
+
+/**
+ * @author viswa
+ *
+ * enum constants for the order in which the creditors of a debtor are paid off after a topup
+ */
+public enum SettlementOrder {
+
+  /*
+   * oldest debt first, in the order the debts were created
+   */
+  FIFO("fifo"),
+  /*
+   * smallest debt first, debts of the same amount oldest first
+   */
+  SMALLEST_FIRST("smallest");
+
+  private String name;
+
+  private SettlementOrder(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * get SettlementOrder from the name value
+   * @return settlement order, if no matching found for the name then null
+   */
+  public static SettlementOrder fromName(String name) {
+    SettlementOrder settlementOrder = null;
+    for(SettlementOrder order: SettlementOrder.values()) {
+      if(order.getName().equals(name)) {
+        settlementOrder = order;
+        break;
+      }
+    }
+    return settlementOrder;
+  }
+}
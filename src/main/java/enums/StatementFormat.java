@@ -0,0 +1,43 @@
+package enums;
+
+/**
+ * @author viswa
+ *
+ * enum constants for the file formats of the exported account statements
+ */
+public enum StatementFormat {
+
+  /*
+   * one comma separated line per account, debt and transaction
+   */
+  CSV("csv"),
+  /*
+   * one binary record per account, its debts and transactions prefixed by their counts
+   */
+  BINARY("binary");
+
+  private String name;
+
+  private StatementFormat(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * get StatementFormat from the name value
+   * @return statement format, if no matching found for the name then null
+   */
+  public static StatementFormat fromName(String name) {
+    StatementFormat statementFormat = null;
+    for(StatementFormat format: StatementFormat.values()) {
+      if(format.getName().equals(name)) {
+        statementFormat = format;
+        break;
+      }
+    }
+    return statementFormat;
+  }
+}
@@ -0,0 +1,62 @@
+package history;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the transaction history.
+ * The history is kept in segment files of segmentBytes each in the history directory, every segment is memory mapped
+ * as a whole, so a segment must hold at least the largest block of entries of one account.
+ */
+public class HistoryConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String DIRECTORY_PROPERTY = "bank.history.dir";
+  public static final String SEGMENT_BYTES_PROPERTY = "bank.history.segmentBytes";
+
+  private Path directory;
+  private int segmentBytes = 64 * 1024 * 1024;
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if no history directory is configured
+   */
+  public static HistoryConfig fromSystemProperties() {
+    String directory = System.getProperty(DIRECTORY_PROPERTY);
+    if (StringUtils.isBlank(directory)) {
+      return null;
+    }
+    HistoryConfig config = new HistoryConfig().setDirectory(Paths.get(directory.trim()));
+    String segmentBytes = System.getProperty(SEGMENT_BYTES_PROPERTY);
+    if (StringUtils.isNotBlank(segmentBytes)) {
+      config.setSegmentBytes(Integer.parseInt(segmentBytes.trim()));
+    }
+    return config;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+  public HistoryConfig setDirectory(Path directory) {
+    this.directory = directory;
+    return this;
+  }
+
+  public int getSegmentBytes() {
+    return segmentBytes;
+  }
+  public HistoryConfig setSegmentBytes(int segmentBytes) {
+    if (segmentBytes < TransactionHistory.MAX_BLOCK_BYTES) {
+      throw new IllegalArgumentException("History segment must hold at least [" + TransactionHistory.MAX_BLOCK_BYTES
+          + "] bytes.");
+    }
+    this.segmentBytes = segmentBytes;
+    return this;
+  }
+}
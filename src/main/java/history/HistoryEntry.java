@@ -0,0 +1,71 @@
+package history;
+
+import enums.HistoryEntryType;
+
+/**
+ * @author viswa
+ *
+ * immutable entry of the transaction history of an account, as returned by TransactionHistory
+ */
+public final class HistoryEntry {
+
+  private final long number;
+  private final long time;
+  private final HistoryEntryType type;
+  private final String counterparty;
+  private final long amount;
+  private final long moved;
+
+  /**
+   * @param number number of the entry within the history of its account, starting at 0
+   * @param time epoch millis the entry was recorded at
+   * @param counterparty name of the other account, null for a topup
+   * @param amount whole amount of the entry
+   * @param moved part of the amount that moved between balances, the rest changed a debt
+   */
+  HistoryEntry(long number, long time, HistoryEntryType type, String counterparty, long amount, long moved) {
+    this.number = number;
+    this.time = time;
+    this.type = type;
+    this.counterparty = counterparty;
+    this.amount = amount;
+    this.moved = moved;
+  }
+
+  public long getNumber() {
+    return number;
+  }
+
+  public long getTime() {
+    return time;
+  }
+
+  public HistoryEntryType getType() {
+    return type;
+  }
+
+  public String getCounterparty() {
+    return counterparty;
+  }
+
+  public long getAmount() {
+    return amount;
+  }
+
+  public long getMoved() {
+    return moved;
+  }
+
+  /**
+   * @return number, time, type, counterparty (if any) and amount separated by spaces
+   */
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder(64);
+    text.append(number).append(' ').append(time).append(' ').append(type);
+    if (counterparty != null) {
+      text.append(' ').append(counterparty);
+    }
+    return text.append(' ').append(amount).toString();
+  }
+}
@@ -0,0 +1,579 @@
+package history;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import domain.AccountDirectory;
+import enums.HistoryEntryType;
+
+/**
+ * @author viswa
+ *
+ * per account transaction history, kept off the heap in append-only, memory mapped segment files.
+ * The entries of an account are stored in blocks holding only that account's entries: the first block of an
+ * account holds 4 entries, every further block twice as many up to 256 entries. A block is allocated at the end
+ * of the current segment when the previous block of the account is full, and every slot of it is written once.
+ * The heap keeps per account only the entry count and the positions of its blocks, a sparse index of one position
+ * per up to 256 entries, so entry n of an account is found in constant time and a page of entries is read from one
+ * or two contiguous blocks without touching the rest of the history. Entry times never decrease, so the entry of a
+ * given time is found by a binary search over the entries.
+ * Account names get a dense history id in the order they are first seen, kept in the names file, so the history
+ * survives restarts in which the accounts get other ids. On open only the block headers are read to rebuild the index.
+ * Entries are written through the page cache without fsync; the journal stays the durable record of the accounts.
+ * Segment layout: blocks of a 16 byte header (history id + 1, block index, capacity, unused) followed by
+ * capacity entries of 32 bytes (time, type code, counterparty history id, amount, moved), a time of 0 marks a free slot.
+ * All methods are synchronized, recording an entry is a few stores into the mapped segment.
+ */
+public final class TransactionHistory implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TransactionHistory.class);
+
+  private static final String SEGMENT_PREFIX = "history-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String NAMES_FILE = "accounts.names";
+
+  private static final int HEADER_BYTES = 16;
+  private static final int ENTRY_BYTES = 32;
+  private static final int MIN_BLOCK_SHIFT = 2;
+  private static final int MAX_BLOCK_SHIFT = 8;
+  private static final int MAX_BLOCK_ENTRIES = 1 << MAX_BLOCK_SHIFT;
+  /*
+   * index of the first block of the largest size, and the number of entries of the blocks before it
+   */
+  private static final int LAST_GROWING_BLOCK = MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT;
+  private static final long GROWING_ENTRIES = (1L << MIN_BLOCK_SHIFT) * ((1L << LAST_GROWING_BLOCK) - 1);
+  /*
+   * size of the largest block, the smallest allowed segment size
+   */
+  static final int MAX_BLOCK_BYTES = HEADER_BYTES + MAX_BLOCK_ENTRIES * ENTRY_BYTES;
+  /*
+   * largest number of entries returned by one query
+   */
+  public static final int MAX_PAGE_SIZE = 1000;
+  private static final int NO_COUNTERPARTY = -1;
+
+  private final HistoryConfig config;
+  private final AccountDirectory directory;
+  private final FileChannel namesChannel;
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+  private final List<FileChannel> segmentChannels = new ArrayList<>();
+
+  /*
+   * history ids of the names, and the names by history id
+   */
+  private final Map<String, Integer> historyIds = new HashMap<>();
+  private final List<String> names = new ArrayList<>();
+  /*
+   * history id + 1 of the account ids, 0 if not resolved yet
+   */
+  private int[] accountHistoryIds = new int[1024];
+  /*
+   * per history id: number of entries, number of allocated blocks and their positions (segment << 32 | offset)
+   */
+  private long[] counts = new long[1024];
+  private int[] blockCounts = new int[1024];
+  private long[][] blocks = new long[1024][];
+
+  private int appendSegment = -1;
+  private int appendOffset;
+  private long lastTime;
+  private boolean closed;
+
+  private TransactionHistory(HistoryConfig config, AccountDirectory directory, FileChannel namesChannel) {
+    this.config = config;
+    this.directory = directory;
+    this.namesChannel = namesChannel;
+  }
+
+  /**
+   * opens the history in the configured directory, creating it if needed, and rebuilds its index from the block headers
+   * @throws IllegalArgumentException if config has no directory or directory is null
+   * @throws IOException if the history files cannot be read or opened
+   * @param directory directory used to resolve the account ids of the recorded changes to names
+   * @return transaction history
+   */
+  public static TransactionHistory open(HistoryConfig config, AccountDirectory directory) throws IOException {
+    if (config == null || config.getDirectory() == null) {
+      throw new IllegalArgumentException("History directory is not configured.");
+    }
+    if (directory == null) {
+      throw new IllegalArgumentException("Account directory cannot be null.");
+    }
+    long startNanos = System.nanoTime();
+    Files.createDirectories(config.getDirectory());
+    FileChannel namesChannel = FileChannel.open(config.getDirectory().resolve(NAMES_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    TransactionHistory history = new TransactionHistory(config, directory, namesChannel);
+    try {
+      history.loadNames();
+      history.loadSegments();
+    } catch (IOException | RuntimeException e) {
+      history.closeFiles();
+      throw e;
+    }
+    LOGGER.info("History opened in dir=[{}] with accounts=[{}] segments=[{}] in [{}] ms.", config.getDirectory(),
+        history.names.size(), history.segments.size(), (System.nanoTime() - startNanos) / 1_000_000);
+    return history;
+  }
+
+  public synchronized void recordTopup(int id, long amount) {
+    append(historyId(id), HistoryEntryType.TOPUP, NO_COUNTERPARTY, amount, amount);
+  }
+
+  public synchronized void recordTransfer(int payer, int payee, long netted, long moved, long deficit) {
+    int payerHistoryId = historyId(payer);
+    int payeeHistoryId = historyId(payee);
+    long amount = netted + moved + deficit;
+    append(payerHistoryId, HistoryEntryType.TRANSFER_OUT, payeeHistoryId, amount, moved);
+    append(payeeHistoryId, HistoryEntryType.TRANSFER_IN, payerHistoryId, amount, moved);
+  }
+
+  public synchronized void recordSettlement(int debtor, int creditor, long amount) {
+    int debtorHistoryId = historyId(debtor);
+    int creditorHistoryId = historyId(creditor);
+    append(debtorHistoryId, HistoryEntryType.SETTLEMENT_OUT, creditorHistoryId, amount, amount);
+    append(creditorHistoryId, HistoryEntryType.SETTLEMENT_IN, debtorHistoryId, amount, amount);
+  }
+
+  /**
+   * removes the whole history, like the reset of all accounts removes them
+   * @throws IOException if the history files cannot be truncated
+   */
+  public synchronized void reset() throws IOException {
+    checkOpen();
+    for (FileChannel channel : segmentChannels) {
+      channel.close();
+    }
+    segments.clear();
+    segmentChannels.clear();
+    for (Path segment : listSegments(config.getDirectory()).values()) {
+      Files.deleteIfExists(segment);
+    }
+    namesChannel.truncate(0L);
+    historyIds.clear();
+    names.clear();
+    Arrays.fill(accountHistoryIds, 0);
+    Arrays.fill(counts, 0L);
+    Arrays.fill(blockCounts, 0);
+    Arrays.fill(blocks, null);
+    appendSegment = -1;
+    appendOffset = 0;
+  }
+
+  /**
+   * @param id account id
+   * @return number of entries in the history of the account
+   */
+  public synchronized long getEntryCount(int id) {
+    int historyId = knownHistoryId(id);
+    return historyId < 0 ? 0L : counts[historyId];
+  }
+
+  /**
+   * @param id account id
+   * @param count number of entries, at most MAX_PAGE_SIZE
+   * @return latest entries of the account, oldest first
+   */
+  public synchronized List<HistoryEntry> lastEntries(int id, int count) {
+    checkPageSize(count);
+    int historyId = knownHistoryId(id);
+    if (historyId < 0) {
+      return Collections.emptyList();
+    }
+    return read(historyId, Math.max(0L, counts[historyId] - count), count);
+  }
+
+  /**
+   * @param id account id
+   * @param from number of the first entry, starting at 0
+   * @param count number of entries, at most MAX_PAGE_SIZE
+   * @return entries of the account from the given number on, oldest first, fewer if the history ends before
+   */
+  public synchronized List<HistoryEntry> entries(int id, long from, int count) {
+    checkPageSize(count);
+    if (from < 0) {
+      throw new IllegalArgumentException("History entry number cannot be less than 0.");
+    }
+    int historyId = knownHistoryId(id);
+    if (historyId < 0) {
+      return Collections.emptyList();
+    }
+    return read(historyId, from, count);
+  }
+
+  /**
+   * @param id account id
+   * @param time epoch millis
+   * @return number of the first entry of the account recorded at or after the given time, the entry count if none
+   */
+  public synchronized long entryAt(int id, long time) {
+    int historyId = knownHistoryId(id);
+    if (historyId < 0) {
+      return 0L;
+    }
+    long low = 0;
+    long high = counts[historyId];
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      if (timeAt(historyId, middle) < time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * writes the mapped segments and closes the history files
+   * @throws IOException if a file cannot be closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+    closeFiles();
+    LOGGER.info("History closed in dir=[{}].", config.getDirectory());
+  }
+
+  private void closeFiles() throws IOException {
+    IOException failure = null;
+    for (FileChannel channel : segmentChannels) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    namesChannel.close();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void append(int historyId, HistoryEntryType type, int counterparty, long amount, long moved) {
+    long number = counts[historyId];
+    int block = blockOf(number);
+    if (block == blockCounts[historyId]) {
+      allocateBlock(historyId, block);
+    }
+    long position = blocks[historyId][block];
+    MappedByteBuffer segment = segments.get((int) (position >>> 32));
+    int offset = (int) position + HEADER_BYTES + (int) (number - firstEntryOf(block)) * ENTRY_BYTES;
+    long time = Math.max(lastTime, System.currentTimeMillis());
+    lastTime = time;
+    segment.putInt(offset + 8, type.getCode());
+    segment.putInt(offset + 12, counterparty);
+    segment.putLong(offset + 16, amount);
+    segment.putLong(offset + 24, moved);
+    segment.putLong(offset, time);
+    counts[historyId] = number + 1;
+  }
+
+  private void allocateBlock(int historyId, int block) {
+    int capacity = capacityOf(block);
+    int bytes = HEADER_BYTES + capacity * ENTRY_BYTES;
+    if (appendSegment < 0 || appendOffset + bytes > segments.get(appendSegment).capacity()) {
+      try {
+        addSegment();
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to add history segment. Exception=[" + e.getMessage() + "].", e);
+      }
+    }
+    MappedByteBuffer segment = segments.get(appendSegment);
+    segment.putInt(appendOffset + 4, block);
+    segment.putInt(appendOffset + 8, capacity);
+    segment.putInt(appendOffset, historyId + 1);
+    addBlock(historyId, ((long) appendSegment << 32) | appendOffset);
+    appendOffset += bytes;
+  }
+
+  private void addBlock(int historyId, long position) {
+    long[] positions = blocks[historyId];
+    int blockCount = blockCounts[historyId];
+    if (positions == null) {
+      positions = new long[1];
+    } else if (blockCount == positions.length) {
+      positions = Arrays.copyOf(positions, blockCount * 2);
+    }
+    positions[blockCount] = position;
+    blocks[historyId] = positions;
+    blockCounts[historyId] = blockCount + 1;
+  }
+
+  private void addSegment() throws IOException {
+    int index = segments.size();
+    Path file = segmentPath(config.getDirectory(), index);
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0L, config.getSegmentBytes()));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    segmentChannels.add(channel);
+    appendSegment = index;
+    appendOffset = 0;
+  }
+
+  private List<HistoryEntry> read(int historyId, long from, int count) {
+    long end = Math.min(counts[historyId], from + count);
+    List<HistoryEntry> page = new ArrayList<>((int) Math.max(0L, end - from));
+    for (long number = from; number < end; number++) {
+      ByteBuffer segment = segmentOf(historyId, number);
+      int offset = offsetOf(historyId, number);
+      int counterparty = segment.getInt(offset + 12);
+      page.add(new HistoryEntry(number, segment.getLong(offset), HistoryEntryType.fromCode(segment.getInt(offset + 8)),
+          counterparty == NO_COUNTERPARTY ? null : names.get(counterparty), segment.getLong(offset + 16),
+          segment.getLong(offset + 24)));
+    }
+    return page;
+  }
+
+  private long timeAt(int historyId, long number) {
+    return segmentOf(historyId, number).getLong(offsetOf(historyId, number));
+  }
+
+  private ByteBuffer segmentOf(int historyId, long number) {
+    return segments.get((int) (blocks[historyId][blockOf(number)] >>> 32));
+  }
+
+  private int offsetOf(int historyId, long number) {
+    int block = blockOf(number);
+    return (int) blocks[historyId][block] + HEADER_BYTES + (int) (number - firstEntryOf(block)) * ENTRY_BYTES;
+  }
+
+  /**
+   * @param id account id
+   * @return history id of the account, assigned and written to the names file if the account has none yet
+   */
+  private int historyId(int id) {
+    checkOpen();
+    int historyId = knownHistoryId(id);
+    if (historyId >= 0) {
+      return historyId;
+    }
+    String name = directory.nameOf(id);
+    historyId = names.size();
+    try {
+      writeName(name);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write history name=[" + name + "]. Exception=[" + e.getMessage()
+          + "].", e);
+    }
+    addName(name);
+    accountHistoryIds[id] = historyId + 1;
+    return historyId;
+  }
+
+  /**
+   * @param id account id
+   * @return history id of the account, -1 if the account has no history
+   */
+  private int knownHistoryId(int id) {
+    if (id < 0) {
+      return -1;
+    }
+    if (id >= accountHistoryIds.length) {
+      accountHistoryIds = Arrays.copyOf(accountHistoryIds, Math.max(accountHistoryIds.length * 2, id + 1));
+    }
+    int known = accountHistoryIds[id];
+    if (known > 0) {
+      return known - 1;
+    }
+    if (id >= directory.idCount()) {
+      return -1;
+    }
+    Integer historyId = historyIds.get(directory.nameOf(id));
+    if (historyId == null) {
+      return -1;
+    }
+    accountHistoryIds[id] = historyId + 1;
+    return historyId;
+  }
+
+  private void addName(String name) {
+    int historyId = names.size();
+    names.add(name);
+    historyIds.put(name, historyId);
+    if (historyId == counts.length) {
+      int capacity = counts.length * 2;
+      counts = Arrays.copyOf(counts, capacity);
+      blockCounts = Arrays.copyOf(blockCounts, capacity);
+      blocks = Arrays.copyOf(blocks, capacity);
+    }
+  }
+
+  private void writeName(String name) throws IOException {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes);
+    buffer.flip();
+    long position = namesChannel.size();
+    while (buffer.hasRemaining()) {
+      position += namesChannel.write(buffer, position);
+    }
+  }
+
+  /**
+   * reads the names file of length prefixed UTF-8 names, a torn name at its end is cut off
+   */
+  private void loadNames() throws IOException {
+    long size = namesChannel.size();
+    long valid = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(namesChannel.position(0L)),
+        1 << 16));
+    while (valid + 4 <= size) {
+      int length = in.readInt();
+      if (length < 0 || valid + 4 + length > size) {
+        break;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      addName(new String(bytes, StandardCharsets.UTF_8));
+      valid += 4 + length;
+    }
+    if (valid < size) {
+      LOGGER.warn("Cutting torn history name at offset=[{}].", valid);
+      namesChannel.truncate(valid);
+    }
+  }
+
+  /**
+   * maps the segments and reads their block headers, the blocks after an invalid header are ignored
+   */
+  private void loadSegments() throws IOException {
+    TreeMap<Integer, Path> files = listSegments(config.getDirectory());
+    int expected = 0;
+    for (Map.Entry<Integer, Path> file : files.entrySet()) {
+      if (file.getKey() != expected) {
+        throw new IOException("History segment missing before file=[" + file.getValue() + "].");
+      }
+      FileChannel channel = FileChannel.open(file.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      segmentChannels.add(channel);
+      segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0L, channel.size()));
+      appendSegment = expected;
+      appendOffset = scanBlocks(expected);
+      expected++;
+    }
+    for (int historyId = 0; historyId < names.size(); historyId++) {
+      int blockCount = blockCounts[historyId];
+      if (blockCount == 0) {
+        continue;
+      }
+      int last = blockCount - 1;
+      long position = blocks[historyId][last];
+      ByteBuffer segment = segments.get((int) (position >>> 32));
+      int capacity = capacityOf(last);
+      int filled = 0;
+      while (filled < capacity && segment.getLong((int) position + HEADER_BYTES + filled * ENTRY_BYTES) != 0L) {
+        filled++;
+      }
+      counts[historyId] = firstEntryOf(last) + filled;
+      if (filled > 0) {
+        lastTime = Math.max(lastTime, timeAt(historyId, counts[historyId] - 1));
+      }
+    }
+  }
+
+  /**
+   * @param index segment index
+   * @return offset after the last valid block of the segment
+   */
+  private int scanBlocks(int index) {
+    ByteBuffer segment = segments.get(index);
+    int offset = 0;
+    while (offset + HEADER_BYTES <= segment.capacity()) {
+      int historyId = segment.getInt(offset) - 1;
+      if (historyId < 0) {
+        break;
+      }
+      int block = segment.getInt(offset + 4);
+      int capacity = segment.getInt(offset + 8);
+      if (historyId >= names.size() || block != blockCounts[historyId] || capacity != capacityOf(block)
+          || offset + HEADER_BYTES + capacity * ENTRY_BYTES > segment.capacity()) {
+        LOGGER.warn("Ignoring history blocks from offset=[{}] of segment=[{}].", offset, index);
+        break;
+      }
+      addBlock(historyId, ((long) index << 32) | offset);
+      offset += HEADER_BYTES + capacity * ENTRY_BYTES;
+    }
+    return offset;
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("History is closed.");
+    }
+  }
+
+  private static void checkPageSize(int count) {
+    if (count <= 0 || count > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException("History page size must be between 1 and " + MAX_PAGE_SIZE + ".");
+    }
+  }
+
+  static int capacityOf(int block) {
+    return 1 << Math.min(MIN_BLOCK_SHIFT + block, MAX_BLOCK_SHIFT);
+  }
+
+  static long firstEntryOf(int block) {
+    if (block < LAST_GROWING_BLOCK) {
+      return (1L << MIN_BLOCK_SHIFT) * ((1L << block) - 1);
+    }
+    return GROWING_ENTRIES + (long) (block - LAST_GROWING_BLOCK) * MAX_BLOCK_ENTRIES;
+  }
+
+  static int blockOf(long number) {
+    if (number < GROWING_ENTRIES) {
+      return 63 - Long.numberOfLeadingZeros((number >>> MIN_BLOCK_SHIFT) + 1);
+    }
+    return LAST_GROWING_BLOCK + (int) ((number - GROWING_ENTRIES) >>> MAX_BLOCK_SHIFT);
+  }
+
+  private static Path segmentPath(Path directory, int index) {
+    return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+  }
+
+  private static TreeMap<Integer, Path> listSegments(Path directory) throws IOException {
+    TreeMap<Integer, Path> segments = new TreeMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          segments.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+              file);
+        } catch (NumberFormatException e) {
+          LOGGER.warn("Ignoring file=[{}] in history directory.", file);
+        }
+      }
+    }
+    return segments;
+  }
+}
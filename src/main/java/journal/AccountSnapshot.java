@@ -0,0 +1,232 @@
+package journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import domain.Account;
+import domain.AccountStore;
+import domain.DebtLedger;
+
+/**
+ * @author viswa
+ *
+ * compact binary snapshot of all accounts, taken at a journal sequence.
+ *
+ * File layout: [int magic][int version][long sequence][int account count], then per account
+ * [name][long balance][int owesTo count][(name, long amount)...], followed by an int crc32 of everything before it. Names are written as [short length][UTF-8 bytes].
+ * Every debt is written once, with its debtor; owesFrom of the creditors is rebuilt from it by the DebtLedger.
+ * The accounts of a persistent AccountStore are encoded from a scan of the store, with their debts taken from the
+ * ledger by id, so taking a snapshot loads no account; the debt free ones are put back into the store without loading
+ * them.
+ * The snapshot is encoded in memory while the accounts are locked and written to disk later,
+ * through a temporary file which is synced and renamed, so a crash never leaves a partial snapshot behind.
+ */
+public final class AccountSnapshot {
+
+  private static final int MAGIC = 0x42534E50;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 20;
+  private static final int INITIAL_BUFFER_SIZE = 1 << 20;
+
+  private AccountSnapshot() {
+  }
+
+  /**
+   * encodes the accounts of the directory of the ledger, or of the store if it is persistent, the caller must make
+   * sure that the accounts do not change meanwhile
+   * @param sequence journal sequence the snapshot corresponds to
+   * @param ledger ledger of the accounts
+   * @param store store of the accounts
+   * @return buffer ready to be written
+   * @throws IOException if the store cannot be read
+   */
+  public static ByteBuffer encode(long sequence, DebtLedger ledger, AccountStore store) throws IOException {
+    Encoder encoder = new Encoder(sequence);
+    if (store.isPersistent()) {
+      store.forEachStored((id, name, balance) -> encoder.put(name, balance, ledger.owesTo(id)));
+    } else {
+      for (Account account : ledger.getDirectory()) {
+        encoder.put(account.getName(), account.getBalance(), account.getOwesTo());
+      }
+    }
+    return encoder.finish();
+  }
+
+  /**
+   * @param content buffer returned by encode
+   * @return journal sequence the encoded snapshot corresponds to
+   */
+  public static long sequenceOf(ByteBuffer content) {
+    return content.getLong(8);
+  }
+
+  /**
+   * writes the encoded snapshot to the directory, named after its sequence
+   * @param content buffer returned by encode
+   * @return path of the written snapshot
+   * @throws IOException if snapshot cannot be written
+   */
+  public static Path write(Path directory, long sequence, ByteBuffer content) throws IOException {
+    Path target = JournalFiles.snapshotPath(directory, sequence);
+    Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer source = content.duplicate();
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+      channel.force(true);
+    }
+    return Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * reads a snapshot file and puts every account into the store, the debts are added to the given ledger
+   * @param ledger ledger of the created accounts
+   * @return journal sequence of the snapshot
+   * @throws IOException if file cannot be read or fails the checksum
+   */
+  public static long load(Path file, DebtLedger ledger, AccountStore store) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+        throw new IOException("Invalid snapshot size=[" + size + "] file=[" + file + "].");
+      }
+      buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new IOException("Unexpected end of snapshot file=[" + file + "].");
+        }
+      }
+    }
+    buffer.flip();
+    try {
+      return decode(buffer, ledger, store);
+    } catch (IOException e) {
+      throw new IOException(e.getMessage() + " file=[" + file + "].", e);
+    }
+  }
+
+  /**
+   * decodes snapshot content, as returned by encode, and puts every account into the store, the debts are added to
+   * the given ledger. Debt free accounts are put with AccountStore.putStored. The buffer must be backed by an array
+   * @param content buffer positioned at the start of the snapshot, read up to its limit
+   * @param ledger ledger of the created accounts
+   * @return journal sequence of the snapshot
+   * @throws IOException if content is not a snapshot or fails the checksum
+   */
+  public static long decode(ByteBuffer content, DebtLedger ledger, AccountStore store) throws IOException {
+    ByteBuffer buffer = content.slice();
+    if (buffer.limit() < HEADER_SIZE + 4) {
+      throw new IOException("Invalid snapshot size=[" + buffer.limit() + "].");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), buffer.arrayOffset(), buffer.limit() - 4);
+    if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+      throw new IOException("Snapshot checksum mismatch.");
+    }
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException("Not a snapshot.");
+    }
+    long sequence = buffer.getLong();
+    int count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      String name = getName(buffer);
+      long balance = buffer.getLong();
+      int owesTo = buffer.getInt();
+      if (owesTo == 0) {
+        store.putStored(name, balance);
+        continue;
+      }
+      Account account = new Account(name, ledger).setBalance(balance);
+      for (int j = 0; j < owesTo; j++) {
+        String creditor = getName(buffer);
+        account.addOwesTo(creditor, buffer.getLong());
+      }
+      store.put(account);
+    }
+    return sequence;
+  }
+
+  private static ByteBuffer putDebts(ByteBuffer buffer, Map<String, Long> debts) {
+    buffer = ensure(buffer, 4);
+    buffer.putInt(debts.size());
+    for (Map.Entry<String, Long> debt : debts.entrySet()) {
+      buffer = putName(buffer, debt.getKey());
+      buffer = ensure(buffer, 8);
+      buffer.putLong(debt.getValue());
+    }
+    return buffer;
+  }
+
+  private static ByteBuffer putName(ByteBuffer buffer, String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > TransactionJournal.MAX_NAME_BYTES) {
+      throw new IllegalArgumentException("Snapshot name too long=[" + bytes.length + "] bytes.");
+    }
+    buffer = ensure(buffer, 2 + bytes.length);
+    buffer.putShort((short) bytes.length).put(bytes);
+    return buffer;
+  }
+
+  private static String getName(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xFFFF;
+    String name = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return name;
+  }
+
+  private static ByteBuffer ensure(ByteBuffer buffer, int required) {
+    if (buffer.remaining() >= required) {
+      return buffer;
+    }
+    long capacity = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + required);
+    if (capacity > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("Snapshot larger than 2GB is not supported.");
+    }
+    ByteBuffer larger = ByteBuffer.allocate((int) capacity);
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+
+  /**
+   * growing buffer of the snapshot being encoded, with the number of accounts put into it
+   */
+  private static final class Encoder {
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private int count;
+
+    private Encoder(long sequence) {
+      buffer.putInt(MAGIC).putInt(VERSION).putLong(sequence).putInt(0);
+    }
+
+    private void put(String name, long balance, Map<String, Long> debts) {
+      buffer = putName(buffer, name);
+      buffer = ensure(buffer, 8);
+      buffer.putLong(balance);
+      buffer = putDebts(buffer, debts);
+      count++;
+    }
+
+    private ByteBuffer finish() {
+      buffer.putInt(16, count);
+      buffer = ensure(buffer, 4);
+      CRC32 crc = new CRC32();
+      crc.update(buffer.array(), buffer.arrayOffset(), buffer.position());
+      buffer.putInt((int) crc.getValue());
+      buffer.flip();
+      return buffer;
+    }
+  }
+}
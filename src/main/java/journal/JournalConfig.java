@@ -0,0 +1,124 @@
+package journal;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the transaction journal.
+ * Records are collected in memory and written with one fsync per group, a group is flushed
+ * when flushBytes are pending, when flushIntervalMillis passed, or as soon as a caller waits for durability.
+ * A snapshot of all accounts is taken every snapshotIntervalSeconds, 0 disables periodic snapshots.
+ */
+public class JournalConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String DIRECTORY_PROPERTY = "bank.journal.dir";
+  public static final String FLUSH_INTERVAL_PROPERTY = "bank.journal.flushIntervalMillis";
+  public static final String FLUSH_BYTES_PROPERTY = "bank.journal.flushBytes";
+  public static final String SYNC_COMMIT_PROPERTY = "bank.journal.syncCommit";
+  public static final String SNAPSHOT_INTERVAL_PROPERTY = "bank.snapshot.intervalSeconds";
+
+  private Path directory;
+  private long flushIntervalMillis = 10L;
+  private int flushBytes = 256 * 1024;
+  private boolean syncCommit = true;
+  private long snapshotIntervalSeconds = 300L;
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if no journal directory is configured
+   */
+  public static JournalConfig fromSystemProperties() {
+    String directory = System.getProperty(DIRECTORY_PROPERTY);
+    if (StringUtils.isBlank(directory)) {
+      return null;
+    }
+    JournalConfig config = new JournalConfig().setDirectory(Paths.get(directory));
+    String interval = System.getProperty(FLUSH_INTERVAL_PROPERTY);
+    if (StringUtils.isNotBlank(interval)) {
+      config.setFlushIntervalMillis(Long.parseLong(interval.trim()));
+    }
+    String bytes = System.getProperty(FLUSH_BYTES_PROPERTY);
+    if (StringUtils.isNotBlank(bytes)) {
+      config.setFlushBytes(Integer.parseInt(bytes.trim()));
+    }
+    String syncCommit = System.getProperty(SYNC_COMMIT_PROPERTY);
+    if (StringUtils.isNotBlank(syncCommit)) {
+      config.setSyncCommit(Boolean.parseBoolean(syncCommit.trim()));
+    }
+    String snapshotInterval = System.getProperty(SNAPSHOT_INTERVAL_PROPERTY);
+    if (StringUtils.isNotBlank(snapshotInterval)) {
+      config.setSnapshotIntervalSeconds(Long.parseLong(snapshotInterval.trim()));
+    }
+    return config;
+  }
+
+  /**
+   * @return configuration of the journal of the given shard, a copy of this one in the shard subdirectory
+   * without periodic snapshots
+   */
+  public JournalConfig forShard(int shard) {
+    return new JournalConfig().setDirectory(JournalFiles.shardDirectory(directory, shard))
+        .setFlushIntervalMillis(flushIntervalMillis).setFlushBytes(flushBytes).setSyncCommit(syncCommit)
+        .setSnapshotIntervalSeconds(0L);
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+  public JournalConfig setDirectory(Path directory) {
+    this.directory = directory;
+    return this;
+  }
+
+  public long getFlushIntervalMillis() {
+    return flushIntervalMillis;
+  }
+  public JournalConfig setFlushIntervalMillis(long flushIntervalMillis) {
+    if (flushIntervalMillis <= 0) {
+      throw new IllegalArgumentException("Flush interval must be greater than 0.");
+    }
+    this.flushIntervalMillis = flushIntervalMillis;
+    return this;
+  }
+
+  public int getFlushBytes() {
+    return flushBytes;
+  }
+  public JournalConfig setFlushBytes(int flushBytes) {
+    if (flushBytes <= 0) {
+      throw new IllegalArgumentException("Flush bytes must be greater than 0.");
+    }
+    this.flushBytes = flushBytes;
+    return this;
+  }
+
+  /**
+   * @return true if every command waits until its records are synced to disk,
+   * false if records are synced in the background within the flush interval
+   */
+  public boolean isSyncCommit() {
+    return syncCommit;
+  }
+  public JournalConfig setSyncCommit(boolean syncCommit) {
+    this.syncCommit = syncCommit;
+    return this;
+  }
+
+  public long getSnapshotIntervalSeconds() {
+    return snapshotIntervalSeconds;
+  }
+  public JournalConfig setSnapshotIntervalSeconds(long snapshotIntervalSeconds) {
+    if (snapshotIntervalSeconds < 0) {
+      throw new IllegalArgumentException("Snapshot interval cannot be less than 0.");
+    }
+    this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    return this;
+  }
+}
@@ -0,0 +1,114 @@
+package journal;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author viswa
+ *
+ * utility class for the file names of the journal directory.
+ * Journal segments are named journal-&lt;first sequence&gt;.log and snapshots snapshot-&lt;last sequence&gt;.bin,
+ * with zero padded sequences so that the names sort in sequence order.
+ * The journals of the sharded execution mode are kept in the subdirectories shard-&lt;n&gt;, with the number of shards
+ * they were written with in the file shards.
+ */
+public final class JournalFiles {
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+  private static final String SHARD_DIRECTORY_PREFIX = "shard-";
+  private static final String SHARD_COUNT_FILE = "shards";
+
+  private JournalFiles() {
+  }
+
+  /**
+   * @return path of the journal segment starting with given sequence
+   */
+  public static Path segmentPath(Path directory, long firstSequence) {
+    return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * @return path of the snapshot covering all records up to given sequence
+   */
+  public static Path snapshotPath(Path directory, long sequence) {
+    return directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+  }
+
+  /**
+   * @param directory journal directory
+   * @return journal subdirectory of the shard
+   */
+  public static Path shardDirectory(Path directory, int shard) {
+    return directory.resolve(SHARD_DIRECTORY_PREFIX + shard);
+  }
+
+  /**
+   * @param directory journal directory
+   * @return path of the file keeping the number of shards the journals of the directory were written with
+   */
+  public static Path shardCountPath(Path directory) {
+    return directory.resolve(SHARD_COUNT_FILE);
+  }
+
+  /**
+   * @return journal segments by first sequence, in ascending order
+   * @throws IOException if directory cannot be listed
+   */
+  public static TreeMap<Long, Path> listSegments(Path directory) throws IOException {
+    return list(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+  }
+
+  /**
+   * @return snapshots by sequence, in ascending order
+   * @throws IOException if directory cannot be listed
+   */
+  public static TreeMap<Long, Path> listSnapshots(Path directory) throws IOException {
+    return list(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+  }
+
+  /**
+   * deletes the snapshots older than given sequence and the journal segments holding only records
+   * up to given sequence, so that recovery can still start from the snapshot of that sequence
+   * @throws IOException if a file cannot be deleted
+   */
+  public static void deleteBefore(Path directory, long sequence) throws IOException {
+    for (Map.Entry<Long, Path> snapshot : listSnapshots(directory).headMap(sequence, false).entrySet()) {
+      Files.deleteIfExists(snapshot.getValue());
+    }
+    TreeMap<Long, Path> segments = listSegments(directory);
+    for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+      Long nextStart = segments.higherKey(segment.getKey());
+      if (nextStart == null || nextStart > sequence + 1) {
+        break;
+      }
+      Files.deleteIfExists(segment.getValue());
+    }
+  }
+
+  private static TreeMap<Long, Path> list(Path directory, String prefix, String suffix) throws IOException {
+    TreeMap<Long, Path> files = new TreeMap<>();
+    if (!Files.isDirectory(directory)) {
+      return files;
+    }
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+      for (Path file : stream) {
+        String name = file.getFileName().toString();
+        String number = name.substring(prefix.length(), name.length() - suffix.length());
+        try {
+          files.put(Long.parseLong(number), file);
+        } catch (NumberFormatException e) {
+          // not a file written by the journal, leave it alone
+        }
+      }
+    }
+    return files;
+  }
+}
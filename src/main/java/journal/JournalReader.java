@@ -0,0 +1,310 @@
+package journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import enums.JournalRecordType;
+
+/**
+ * @author viswa
+ *
+ * reads the records of a journal file written by TransactionJournal and hands them to a JournalRecordHandler.
+ * Reading a segment stops at the first incomplete or corrupt record, which is what a crash in the middle of
+ * a write leaves behind; the writer never appends to an old segment, it starts a new one after the last valid record.
+ */
+public final class JournalReader {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JournalReader.class);
+
+  private static final int READ_BUFFER_SIZE = 1 << 20;
+
+  private JournalReader() {
+  }
+
+  /**
+   * result of a replay, the last valid sequence and file offset after the last valid record
+   */
+  public static final class ReplayResult {
+
+    private final long lastSequence;
+    private final long validLength;
+    private final long recordCount;
+
+    public ReplayResult(long lastSequence, long validLength, long recordCount) {
+      this.lastSequence = lastSequence;
+      this.validLength = validLength;
+      this.recordCount = recordCount;
+    }
+
+    public long getLastSequence() {
+      return lastSequence;
+    }
+
+    public long getValidLength() {
+      return validLength;
+    }
+
+    public long getRecordCount() {
+      return recordCount;
+    }
+  }
+
+  /**
+   * replays the records after the given sequence from all segments of the journal directory
+   * @param afterSequence records up to this sequence are skipped, usually the sequence of the loaded snapshot
+   * @return replay result, last sequence is afterSequence if no later record exists
+   * @throws IOException if a segment cannot be read
+   */
+  public static ReplayResult replayDirectory(Path directory, long afterSequence, JournalRecordHandler handler) throws IOException {
+    if (handler == null) {
+      throw new IllegalArgumentException("Journal record handler cannot be null.");
+    }
+    TreeMap<Long, Path> segments = JournalFiles.listSegments(directory);
+    JournalRecordHandler tailHandler = new SequenceFilter(afterSequence, handler);
+    long lastSequence = afterSequence;
+    long recordCount = 0L;
+    long length = 0L;
+    for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+      Long nextStart = segments.higherKey(segment.getKey());
+      if (nextStart != null && nextStart <= afterSequence + 1) {
+        continue;
+      }
+      if (segment.getKey() > lastSequence + 1) {
+        throw new IOException("Journal records missing before segment=[" + segment.getValue()
+          + "], last sequence=[" + lastSequence + "].");
+      }
+      ReplayResult result = replay(segment.getValue(), tailHandler);
+      lastSequence = Math.max(lastSequence, result.getLastSequence());
+      recordCount += result.getRecordCount();
+      length += result.getValidLength();
+    }
+    return new ReplayResult(lastSequence, length, recordCount);
+  }
+
+  /**
+   * handler which passes on only the records after a given sequence
+   */
+  private static final class SequenceFilter implements JournalRecordHandler {
+
+    private final long afterSequence;
+    private final JournalRecordHandler handler;
+
+    SequenceFilter(long afterSequence, JournalRecordHandler handler) {
+      this.afterSequence = afterSequence;
+      this.handler = handler;
+    }
+
+    @Override
+    public void onAccount(long sequence, String name, long balance) {
+      if (sequence > afterSequence) {
+        handler.onAccount(sequence, name, balance);
+      }
+    }
+
+    @Override
+    public void onTopup(long sequence, String name, long amount) {
+      if (sequence > afterSequence) {
+        handler.onTopup(sequence, name, amount);
+      }
+    }
+
+    @Override
+    public void onTransfer(long sequence, String payer, String payee, long netted, long moved, long deficit) {
+      if (sequence > afterSequence) {
+        handler.onTransfer(sequence, payer, payee, netted, moved, deficit);
+      }
+    }
+
+    @Override
+    public void onSettlement(long sequence, String debtor, String creditor, long amount) {
+      if (sequence > afterSequence) {
+        handler.onSettlement(sequence, debtor, creditor, amount);
+      }
+    }
+
+    @Override
+    public void onReset(long sequence) {
+      if (sequence > afterSequence) {
+        handler.onReset(sequence);
+      }
+    }
+
+    @Override
+    public void onNetting(long sequence, String debtor, String creditor, long change) {
+      if (sequence > afterSequence) {
+        handler.onNetting(sequence, debtor, creditor, change);
+      }
+    }
+  }
+
+  /**
+   * replays all valid records of the given journal segment file
+   * @return replay result, with zero length if file does not exist
+   * @throws IOException if file cannot be read or is not a journal file
+   */
+  public static ReplayResult replay(Path file, JournalRecordHandler handler) throws IOException {
+    if (handler == null) {
+      throw new IllegalArgumentException("Journal record handler cannot be null.");
+    }
+    if (!Files.exists(file)) {
+      return new ReplayResult(0L, 0L, 0L);
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < TransactionJournal.FILE_HEADER_SIZE) {
+        return new ReplayResult(0L, 0L, 0L);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      buffer.limit(0);
+      fill(channel, buffer, TransactionJournal.FILE_HEADER_SIZE);
+      if (buffer.getInt() != TransactionJournal.MAGIC) {
+        throw new IOException("Not a journal file=[" + file + "].");
+      }
+      int version = buffer.getInt();
+      if (version != TransactionJournal.VERSION) {
+        throw new IOException("Unsupported journal version=[" + version + "] file=[" + file + "].");
+      }
+      CRC32 crc = new CRC32();
+      long offset = TransactionJournal.FILE_HEADER_SIZE;
+      long lastSequence = 0L;
+      long recordCount = 0L;
+      while (fill(channel, buffer, TransactionJournal.RECORD_HEADER_SIZE)) {
+        int bodySize = buffer.getInt(buffer.position());
+        int expectedCrc = buffer.getInt(buffer.position() + 4);
+        if (bodySize < 9 || bodySize > TransactionJournal.MAX_BODY_SIZE) {
+          LOGGER.warn("Invalid journal record size=[{}] at offset=[{}], ignoring the rest of the file.", bodySize, offset);
+          break;
+        }
+        if (!fill(channel, buffer, TransactionJournal.RECORD_HEADER_SIZE + bodySize)) {
+          LOGGER.warn("Incomplete journal record at offset=[{}], ignoring the rest of the file.", offset);
+          break;
+        }
+        int bodyStart = buffer.position() + TransactionJournal.RECORD_HEADER_SIZE;
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + bodyStart, bodySize);
+        if ((int) crc.getValue() != expectedCrc) {
+          LOGGER.warn("Corrupt journal record at offset=[{}], ignoring the rest of the file.", offset);
+          break;
+        }
+        buffer.position(bodyStart);
+        lastSequence = dispatch(buffer, handler);
+        buffer.position(bodyStart + bodySize);
+        offset += TransactionJournal.RECORD_HEADER_SIZE + bodySize;
+        recordCount++;
+      }
+      return new ReplayResult(lastSequence, offset, recordCount);
+    }
+  }
+
+  /**
+   * replays the records after the given sequence from a buffer holding records in journal file layout, without
+   * the file header, like the groups a JournalSink receives. The buffer must be backed by an array.
+   * Unlike a file, the buffer has no torn tail: every record must be complete and valid
+   * @param records buffer positioned at the first record, read up to its limit
+   * @param afterSequence records up to this sequence are skipped
+   * @return replay result, last sequence is afterSequence if no later record exists
+   * @throws IOException if a record is incomplete or corrupt
+   */
+  public static ReplayResult replayBuffer(ByteBuffer records, long afterSequence, JournalRecordHandler handler) throws IOException {
+    if (handler == null) {
+      throw new IllegalArgumentException("Journal record handler cannot be null.");
+    }
+    JournalRecordHandler tailHandler = new SequenceFilter(afterSequence, handler);
+    CRC32 crc = new CRC32();
+    long lastSequence = afterSequence;
+    long recordCount = 0L;
+    int start = records.position();
+    while (records.hasRemaining()) {
+      if (records.remaining() < TransactionJournal.RECORD_HEADER_SIZE) {
+        throw new IOException("Incomplete journal record header at offset=[" + (records.position() - start) + "].");
+      }
+      int bodySize = records.getInt(records.position());
+      int expectedCrc = records.getInt(records.position() + 4);
+      int bodyStart = records.position() + TransactionJournal.RECORD_HEADER_SIZE;
+      if (bodySize < 9 || bodySize > TransactionJournal.MAX_BODY_SIZE || records.limit() - bodyStart < bodySize) {
+        throw new IOException("Invalid journal record size=[" + bodySize + "] at offset=[" + (records.position() - start) + "].");
+      }
+      crc.reset();
+      crc.update(records.array(), records.arrayOffset() + bodyStart, bodySize);
+      if ((int) crc.getValue() != expectedCrc) {
+        throw new IOException("Corrupt journal record at offset=[" + (records.position() - start) + "].");
+      }
+      records.position(bodyStart);
+      lastSequence = Math.max(lastSequence, dispatch(records, tailHandler));
+      records.position(bodyStart + bodySize);
+      recordCount++;
+    }
+    return new ReplayResult(lastSequence, records.position() - start, recordCount);
+  }
+
+  /**
+   * makes sure that the buffer holds at least the given number of bytes after its position,
+   * compacting and reading more from the channel as needed
+   * @return false if end of file is reached before
+   */
+  private static boolean fill(FileChannel channel, ByteBuffer buffer, int required) throws IOException {
+    if (buffer.remaining() >= required) {
+      return true;
+    }
+    buffer.compact();
+    while (buffer.position() < required) {
+      if (channel.read(buffer) < 0) {
+        buffer.flip();
+        return false;
+      }
+    }
+    buffer.flip();
+    return true;
+  }
+
+  private static long dispatch(ByteBuffer buffer, JournalRecordHandler handler) throws IOException {
+    byte code = buffer.get();
+    long sequence = buffer.getLong();
+    JournalRecordType type = JournalRecordType.fromCode(code);
+    if (type == null) {
+      throw new IOException("Unknown journal record type=[" + code + "] sequence=[" + sequence + "].");
+    }
+    switch (type)
+    {
+      case ACCOUNT:
+        handler.onAccount(sequence, getName(buffer), buffer.getLong());
+        break;
+      case TOPUP:
+        handler.onTopup(sequence, getName(buffer), buffer.getLong());
+        break;
+      case TRANSFER:
+        handler.onTransfer(sequence, getName(buffer), getName(buffer), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        break;
+      case SETTLEMENT:
+        handler.onSettlement(sequence, getName(buffer), getName(buffer), buffer.getLong());
+        break;
+      case RESET:
+        handler.onReset(sequence);
+        break;
+      case NETTING:
+        handler.onNetting(sequence, getName(buffer), getName(buffer), buffer.getLong());
+        break;
+      default:
+        throw new IOException("Unhandled journal record type=[" + type + "].");
+    }
+    return sequence;
+  }
+
+  private static String getName(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xFFFF;
+    String name = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return name;
+  }
+}
@@ -0,0 +1,21 @@
+package journal;
+
+/**
+ * @author viswa
+ *
+ * callback for the records read back from the transaction journal, see JournalRecordType for the record types
+ */
+public interface JournalRecordHandler {
+
+  void onAccount(long sequence, String name, long balance);
+
+  void onTopup(long sequence, String name, long amount);
+
+  void onTransfer(long sequence, String payer, String payee, long netted, long moved, long deficit);
+
+  void onSettlement(long sequence, String debtor, String creditor, long amount);
+
+  void onReset(long sequence);
+
+  void onNetting(long sequence, String debtor, String creditor, long change);
+}
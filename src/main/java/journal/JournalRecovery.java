@@ -0,0 +1,211 @@
+package journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import domain.AccountDirectory;
+import domain.AccountStore;
+import domain.DebtLedger;
+import util.AccountLocks;
+
+/**
+ * @author viswa
+ *
+ * recovers the accounts of a DebtLedger from journals at start up.
+ * From a journal directory the latest valid snapshot is loaded first, then only the journal records after it are
+ * replayed; the journals of the shards of the sharded execution mode have no snapshots and are replayed from their
+ * last reset. Journal records replicated from a leader are applied the same way.
+ */
+public final class JournalRecovery {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JournalRecovery.class);
+
+  private final DebtLedger ledger;
+  private final AccountDirectory accounts;
+  private final AccountStore store;
+  private final Runnable initialAccounts;
+
+  /**
+   * @param ledger ledger of the accounts to recover
+   * @param store store of the accounts, the snapshots are loaded into it
+   * @param initialAccounts adds the initial accounts again when a snapshot fails to load
+   */
+  public JournalRecovery(DebtLedger ledger, AccountStore store, Runnable initialAccounts) {
+    this.ledger = ledger;
+    this.accounts = ledger.getDirectory();
+    this.store = store;
+    this.initialAccounts = initialAccounts;
+  }
+
+  /**
+   * recovers the accounts from the journal directory of the configuration and opens the journal for appending.
+   * A persistent account store is rebuilt like this as well, so it is consistent again after a crash
+   * @return opened journal
+   * @throws IllegalStateException if the directory holds journal segments but no snapshot to rebuild the persistent
+   * account store from
+   * @throws IOException if the journal cannot be read or opened
+   */
+  public TransactionJournal openJournal(JournalConfig config) throws IOException {
+    long startNanos = System.nanoTime();
+    coverAccountStore(config.getDirectory());
+    long snapshotSequence = loadLatestSnapshot(config.getDirectory());
+    long snapshotNanos = System.nanoTime();
+    JournalReader.ReplayResult result = JournalReader.replayDirectory(config.getDirectory(), snapshotSequence,
+        new JournalReplayHandler(ledger));
+    TransactionJournal journal = TransactionJournal.open(config, result.getLastSequence());
+    long endNanos = System.nanoTime();
+    LOGGER.info("Recovered accounts=[{}] in [{}] ms: snapshot sequence=[{}] loaded in [{}] ms, journal records=[{}] replayed in [{}] ms.",
+        accounts.size(), (endNanos - startNanos) / 1_000_000, snapshotSequence, (snapshotNanos - startNanos) / 1_000_000,
+        result.getRecordCount(), (endNanos - snapshotNanos) / 1_000_000);
+    return journal;
+  }
+
+  /**
+   * applies the journal records received from a leader, the caller must make sure that the accounts do not
+   * change otherwise meanwhile
+   * @param records records in journal file layout
+   * @param afterSequence records up to this sequence are already applied and skipped
+   * @return sequence of the last applied record, afterSequence if none was applied
+   * @throws IOException if a record is incomplete or corrupt
+   */
+  public long replay(ByteBuffer records, long afterSequence) throws IOException {
+    return JournalReader.replayBuffer(records, afterSequence, new JournalReplayHandler(ledger)).getLastSequence();
+  }
+
+  /**
+   * recovers the accounts from the journals of all shards and opens them for appending.
+   * Records up to the last reset of every journal are skipped. The account creations of all journals are replayed
+   * before their other records, because a credit journaled by one shard may come before the creation of the account
+   * in the journal of another one; the other records then add up to the same state in any order of the journals
+   * @param config journal configuration, every shard journals to a subdirectory of its directory
+   * @return opened journal of every shard
+   * @throws IllegalStateException if the journals were written with another number of shards
+   * @throws IOException if a journal cannot be read or opened
+   */
+  public TransactionJournal[] openShardJournals(JournalConfig config, int shardCount) throws IOException {
+    long startNanos = System.nanoTime();
+    Path directory = config.getDirectory();
+    checkShardCount(directory, shardCount);
+    long[] resetSequences = new long[shardCount];
+    long[] lastSequences = new long[shardCount];
+    long recordCount = 0L;
+    boolean reset = false;
+    for (int i = 0; i < shardCount; i++) {
+      ResetFinder finder = new ResetFinder();
+      JournalReader.ReplayResult result = JournalReader.replayDirectory(JournalFiles.shardDirectory(directory, i), 0L,
+          finder);
+      resetSequences[i] = finder.getLastReset();
+      lastSequences[i] = result.getLastSequence();
+      recordCount += result.getRecordCount();
+      reset |= finder.getLastReset() > 0;
+    }
+    if (reset) {
+      accounts.clear();
+      ledger.clear();
+    }
+    JournalReplayHandler handler = new JournalReplayHandler(ledger);
+    for (int i = 0; i < shardCount; i++) {
+      JournalReader.replayDirectory(JournalFiles.shardDirectory(directory, i), resetSequences[i],
+          new ShardRecordFilter(handler, true));
+    }
+    for (int i = 0; i < shardCount; i++) {
+      JournalReader.replayDirectory(JournalFiles.shardDirectory(directory, i), resetSequences[i],
+          new ShardRecordFilter(handler, false));
+    }
+    TransactionJournal[] journals = new TransactionJournal[shardCount];
+    try {
+      for (int i = 0; i < shardCount; i++) {
+        journals[i] = TransactionJournal.open(config.forShard(i), lastSequences[i]);
+      }
+    } catch (IOException | RuntimeException e) {
+      for (TransactionJournal opened : journals) {
+        if (opened != null) {
+          try {
+            opened.close();
+          } catch (IOException closeFailure) {
+            e.addSuppressed(closeFailure);
+          }
+        }
+      }
+      throw e;
+    }
+    LOGGER.info("Recovered accounts=[{}] from journal records=[{}] of shards=[{}] in [{}] ms.", accounts.size(),
+        recordCount, shardCount, (System.nanoTime() - startNanos) / 1_000_000);
+    return journals;
+  }
+
+  /**
+   * makes the journal cover the accounts of a persistent account store when the journal directory holds no snapshot:
+   * if it has no journal segment either, the accounts of the store are written as the snapshot of sequence 0 the
+   * journal starts from. Otherwise the journal was started without the store and cannot rebuild it, so it is not
+   * opened, the store is left as it is
+   * @throws IllegalStateException if the directory holds journal segments but no snapshot
+   * @throws IOException if directory cannot be listed or the snapshot cannot be written
+   */
+  private void coverAccountStore(Path directory) throws IOException {
+    if (!store.isPersistent() || !JournalFiles.listSnapshots(directory).isEmpty()) {
+      return;
+    }
+    if (!JournalFiles.listSegments(directory).isEmpty()) {
+      throw new IllegalStateException("Journal directory=[" + directory + "] holds journal records but no snapshot "
+          + "to rebuild the account store from. Open it once without the account store and take a snapshot, "
+          + "or use an empty journal directory.");
+    }
+    ByteBuffer content;
+    AccountLocks.lockAll();
+    try {
+      content = AccountSnapshot.encode(0L, ledger, store);
+    } finally {
+      AccountLocks.unlockAll();
+    }
+    Files.createDirectories(directory);
+    AccountSnapshot.write(directory, 0L, content);
+  }
+
+  /**
+   * loads the latest valid snapshot of the directory into the account store, falling back to older ones
+   * @return journal sequence of the loaded snapshot, 0 if there is none
+   * @throws IOException if directory cannot be listed
+   */
+  private long loadLatestSnapshot(Path directory) throws IOException {
+    for (Path file : JournalFiles.listSnapshots(directory).descendingMap().values()) {
+      accounts.clear();
+      ledger.clear();
+      try {
+        return AccountSnapshot.load(file, ledger, store);
+      } catch (IOException | RuntimeException e) {
+        accounts.clear();
+        ledger.clear();
+        initialAccounts.run();
+        LOGGER.error("Unable to load snapshot=[{}], trying older one. Exception=[{}].", file, e.getMessage());
+      }
+    }
+    return 0L;
+  }
+
+  /**
+   * makes sure that the journals of the directory are always written with the same number of shards, as the shard
+   * of an account, and so the journal holding its debts, depends on it. The number is kept in a file of the directory
+   * @throws IllegalStateException if the directory holds the journals of another number of shards
+   * @throws IOException if the file cannot be read or written
+   */
+  private static void checkShardCount(Path directory, int shardCount) throws IOException {
+    Path file = JournalFiles.shardCountPath(directory);
+    if (Files.exists(file)) {
+      String journaled = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+      if (!Integer.toString(shardCount).equals(journaled)) {
+        throw new IllegalStateException("Journal directory=[" + directory + "] holds shards=[" + journaled
+            + "], configured shards=[" + shardCount + "].");
+      }
+      return;
+    }
+    Files.createDirectories(directory);
+    Files.write(file, Integer.toString(shardCount).getBytes(StandardCharsets.US_ASCII));
+  }
+}
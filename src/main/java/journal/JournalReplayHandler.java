@@ -0,0 +1,64 @@
+package journal;
+
+import domain.Account;
+import domain.AccountDirectory;
+import domain.DebtLedger;
+import util.TransactionUtil;
+
+/**
+ * @author viswa
+ *
+ * applies the journal records to the accounts of a DebtLedger while a journal is replayed,
+ * an account is created with balance 0 when a record refers to one which is not there yet
+ */
+class JournalReplayHandler implements JournalRecordHandler {
+
+  private final DebtLedger ledger;
+  private final AccountDirectory accounts;
+
+  JournalReplayHandler(DebtLedger ledger) {
+    this.ledger = ledger;
+    this.accounts = ledger.getDirectory();
+  }
+
+  private Account account(String name) {
+    Account account = accounts.get(name);
+    if (account == null) {
+      account = new Account(name, ledger).setBalance(0L);
+      accounts.put(account);
+    }
+    return account;
+  }
+
+  @Override
+  public void onAccount(long sequence, String name, long balance) {
+    accounts.put(new Account(name, ledger).setBalance(balance));
+  }
+
+  @Override
+  public void onTopup(long sequence, String name, long amount) {
+    Account account = account(name);
+    account.setBalance(account.getBalance() + amount);
+  }
+
+  @Override
+  public void onTransfer(long sequence, String payer, String payee, long netted, long moved, long deficit) {
+    TransactionUtil.applyTransfer(account(payer), account(payee), netted, moved, deficit);
+  }
+
+  @Override
+  public void onSettlement(long sequence, String debtor, String creditor, long amount) {
+    TransactionUtil.applySettlement(account(debtor), account(creditor), amount);
+  }
+
+  @Override
+  public void onReset(long sequence) {
+    accounts.clear();
+    ledger.clear();
+  }
+
+  @Override
+  public void onNetting(long sequence, String debtor, String creditor, long change) {
+    TransactionUtil.applyNetting(account(debtor), account(creditor), change);
+  }
+}
@@ -0,0 +1,28 @@
+package journal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author viswa
+ *
+ * receiver of the records of a TransactionJournal once they are synced to disk, like a replication link.
+ * onFlushed is called by the flusher thread of the journal for every group it synced, so it must not block for long;
+ * awaitCommitted lets a sink hold back the callers of TransactionJournal.commit till it has handled their records.
+ */
+public interface JournalSink {
+
+  /**
+   * called after a group of records is synced
+   * @param records the synced records in journal file layout, only valid during the call
+   * @param lastSequence sequence of the last record in the group
+   */
+  void onFlushed(ByteBuffer records, long lastSequence);
+
+  /**
+   * called by TransactionJournal.commit, returns once the records up to the sequence are handled by the sink
+   * @param journal journal the sink is added to
+   * @param sequence sequence of the last record of the committing caller
+   */
+  default void awaitCommitted(TransactionJournal journal, long sequence) {
+  }
+}
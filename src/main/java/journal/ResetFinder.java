@@ -0,0 +1,43 @@
+package journal;
+
+/**
+ * @author viswa
+ *
+ * finds the sequence of the last reset record of a shard journal
+ */
+class ResetFinder implements JournalRecordHandler {
+
+  private long lastReset;
+
+  /**
+   * @return sequence of the last reset record, 0 if there is none
+   */
+  long getLastReset() {
+    return lastReset;
+  }
+
+  @Override
+  public void onAccount(long sequence, String name, long balance) {
+  }
+
+  @Override
+  public void onTopup(long sequence, String name, long amount) {
+  }
+
+  @Override
+  public void onTransfer(long sequence, String payer, String payee, long netted, long moved, long deficit) {
+  }
+
+  @Override
+  public void onSettlement(long sequence, String debtor, String creditor, long amount) {
+  }
+
+  @Override
+  public void onReset(long sequence) {
+    lastReset = sequence;
+  }
+
+  @Override
+  public void onNetting(long sequence, String debtor, String creditor, long change) {
+  }
+}
@@ -0,0 +1,57 @@
+package journal;
+
+/**
+ * @author viswa
+ *
+ * passes on either only the account creations or only the other records of a shard journal,
+ * resets are skipped since the journal is replayed from its last reset
+ */
+class ShardRecordFilter implements JournalRecordHandler {
+
+  private final JournalRecordHandler handler;
+  private final boolean accounts;
+
+  ShardRecordFilter(JournalRecordHandler handler, boolean accounts) {
+    this.handler = handler;
+    this.accounts = accounts;
+  }
+
+  @Override
+  public void onAccount(long sequence, String name, long balance) {
+    if (accounts) {
+      handler.onAccount(sequence, name, balance);
+    }
+  }
+
+  @Override
+  public void onTopup(long sequence, String name, long amount) {
+    if (!accounts) {
+      handler.onTopup(sequence, name, amount);
+    }
+  }
+
+  @Override
+  public void onTransfer(long sequence, String payer, String payee, long netted, long moved, long deficit) {
+    if (!accounts) {
+      handler.onTransfer(sequence, payer, payee, netted, moved, deficit);
+    }
+  }
+
+  @Override
+  public void onSettlement(long sequence, String debtor, String creditor, long amount) {
+    if (!accounts) {
+      handler.onSettlement(sequence, debtor, creditor, amount);
+    }
+  }
+
+  @Override
+  public void onReset(long sequence) {
+  }
+
+  @Override
+  public void onNetting(long sequence, String debtor, String creditor, long change) {
+    if (!accounts) {
+      handler.onNetting(sequence, debtor, creditor, change);
+    }
+  }
+}
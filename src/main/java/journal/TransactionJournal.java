@@ -0,0 +1,471 @@
+package journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import enums.JournalRecordType;
+import metrics.LatencyHistogram;
+
+/**
+ * @author viswa
+ *
+ * append only write-ahead journal of account changes.
+ *
+ * The journal is split into segments, see JournalFiles. Every open starts a new segment and roll()
+ * starts one at a snapshot point, so a snapshot and the segments after it are enough for recovery.
+ * Segment layout: an 8 byte header (magic, version) followed by records of
+ * [int bodyLength][int crc32 of body][body], where body is [byte type][long sequence][fields].
+ * Names are written as [short length][UTF-8 bytes].
+ *
+ * Appends only copy the record into an in-memory buffer. A background flusher thread swaps the buffer,
+ * writes it with a single write and a single fsync (group commit) and then publishes the durable sequence.
+ * A group is flushed when JournalConfig.flushBytes are pending, when the flush interval passed
+ * since the first pending record, or right away when a caller is waiting in awaitDurable/commit.
+ * Every synced group is also handed to the added JournalSinks, which replicate it.
+ */
+public final class TransactionJournal implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TransactionJournal.class);
+
+  static final int MAGIC = 0x424A4E4C;
+  static final int VERSION = 1;
+  static final int FILE_HEADER_SIZE = 8;
+  static final int RECORD_HEADER_SIZE = 8;
+  static final int MAX_NAME_BYTES = Short.MAX_VALUE;
+  static final int MAX_BODY_SIZE = 1 + 8 + 2 * (2 + MAX_NAME_BYTES) + 3 * 8;
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  private final JournalConfig config;
+  private final CRC32 crc = new CRC32();
+  private final long flushIntervalNanos;
+  private final Object appendLock = new Object();
+  private final Object durableLock = new Object();
+  private final Thread flusher;
+  private final List<JournalSink> sinks = new CopyOnWriteArrayList<>();
+
+  /*
+   * fields guarded by appendLock
+   */
+  private ByteBuffer active;
+  private long appendedSequence;
+  private long firstPendingNanos;
+  private FileChannel channel;
+  private int waiters;
+  private boolean closed;
+
+  /*
+   * buffer owned by the flusher thread
+   */
+  private ByteBuffer flushing;
+
+  private volatile long durableSequence;
+  private volatile IOException failure;
+  private volatile LatencyHistogram writeLatency;
+
+  private TransactionJournal(JournalConfig config, FileChannel channel, long lastSequence) {
+    this.config = config;
+    this.channel = channel;
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMillis());
+    int bufferSize = Math.max(INITIAL_BUFFER_SIZE, config.getFlushBytes() + MAX_BODY_SIZE);
+    this.active = ByteBuffer.allocate(bufferSize);
+    this.flushing = ByteBuffer.allocate(bufferSize);
+    this.appendedSequence = lastSequence;
+    this.durableSequence = lastSequence;
+    this.flusher = new Thread(this::flushLoop, "journal-flusher");
+    this.flusher.setDaemon(true);
+  }
+
+  /**
+   * opens the journal for appending, in a new segment starting after the given sequence
+   * @param lastSequence last sequence already in the journal, usually the result of replaying it
+   * @return opened journal
+   * @throws IOException if segment cannot be created
+   */
+  public static TransactionJournal open(JournalConfig config, long lastSequence) throws IOException {
+    if (config == null || config.getDirectory() == null) {
+      throw new IllegalArgumentException("Journal directory is not configured.");
+    }
+    Files.createDirectories(config.getDirectory());
+    TransactionJournal journal = new TransactionJournal(config, openSegment(config.getDirectory(), lastSequence + 1), lastSequence);
+    journal.flusher.start();
+    return journal;
+  }
+
+  /**
+   * creates a new segment file and writes its header, an existing segment with the same first
+   * sequence holds no valid record and is overwritten
+   */
+  private static FileChannel openSegment(Path directory, long firstSequence) throws IOException {
+    Path file = JournalFiles.segmentPath(directory, firstSequence);
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      channel.force(true);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * syncs all appended records and continues in a new segment.
+   * The caller must make sure that nothing is appended while rolling, AccountService holds all account locks
+   * @return sequence of the last record in the previous segment
+   * @throws IOException if new segment cannot be created
+   */
+  public long roll() throws IOException {
+    long lastSequence = getAppendedSequence();
+    awaitDurable(lastSequence);
+    synchronized (appendLock) {
+      if (appendedSequence != lastSequence || active.position() > 0) {
+        throw new IllegalStateException("Journal appended while rolling.");
+      }
+      FileChannel previous = channel;
+      channel = openSegment(config.getDirectory(), lastSequence + 1);
+      previous.close();
+    }
+    return lastSequence;
+  }
+
+  /**
+   * appends a record for a created account
+   * @return sequence of the record
+   */
+  public long appendAccount(String name, long balance) {
+    byte[] nameBytes = encodeName(name);
+    synchronized (appendLock) {
+      int start = beginRecord(JournalRecordType.ACCOUNT, 2 + nameBytes.length + 8);
+      putName(nameBytes);
+      active.putLong(balance);
+      return endRecord(start);
+    }
+  }
+
+  /**
+   * appends a record for a balance top up
+   * @return sequence of the record
+   */
+  public long appendTopup(String name, long amount) {
+    byte[] nameBytes = encodeName(name);
+    synchronized (appendLock) {
+      int start = beginRecord(JournalRecordType.TOPUP, 2 + nameBytes.length + 8);
+      putName(nameBytes);
+      active.putLong(amount);
+      return endRecord(start);
+    }
+  }
+
+  /**
+   * appends a record for an applied transfer, see TransactionListener.onTransfer
+   * @return sequence of the record
+   */
+  public long appendTransfer(String payer, String payee, long netted, long moved, long deficit) {
+    byte[] payerBytes = encodeName(payer);
+    byte[] payeeBytes = encodeName(payee);
+    synchronized (appendLock) {
+      int start = beginRecord(JournalRecordType.TRANSFER, 4 + payerBytes.length + payeeBytes.length + 24);
+      putName(payerBytes);
+      putName(payeeBytes);
+      active.putLong(netted).putLong(moved).putLong(deficit);
+      return endRecord(start);
+    }
+  }
+
+  /**
+   * appends a record for a settled debt, see TransactionListener.onSettlement
+   * @return sequence of the record
+   */
+  public long appendSettlement(String debtor, String creditor, long amount) {
+    byte[] debtorBytes = encodeName(debtor);
+    byte[] creditorBytes = encodeName(creditor);
+    synchronized (appendLock) {
+      int start = beginRecord(JournalRecordType.SETTLEMENT, 4 + debtorBytes.length + creditorBytes.length + 8);
+      putName(debtorBytes);
+      putName(creditorBytes);
+      active.putLong(amount);
+      return endRecord(start);
+    }
+  }
+
+  /**
+   * appends a record for a debt changed by netting, see TransactionListener.onNetting
+   * @return sequence of the record
+   */
+  public long appendNetting(String debtor, String creditor, long change) {
+    byte[] debtorBytes = encodeName(debtor);
+    byte[] creditorBytes = encodeName(creditor);
+    synchronized (appendLock) {
+      int start = beginRecord(JournalRecordType.NETTING, 4 + debtorBytes.length + creditorBytes.length + 8);
+      putName(debtorBytes);
+      putName(creditorBytes);
+      active.putLong(change);
+      return endRecord(start);
+    }
+  }
+
+  /**
+   * appends a record for clearing all accounts
+   * @return sequence of the record
+   */
+  public long appendReset() {
+    synchronized (appendLock) {
+      return endRecord(beginRecord(JournalRecordType.RESET, 0));
+    }
+  }
+
+  /**
+   * @return directory of the journal segments
+   */
+  public Path getDirectory() {
+    return config.getDirectory();
+  }
+
+  /**
+   * @return sequence of the last appended record
+   */
+  public long getAppendedSequence() {
+    synchronized (appendLock) {
+      return appendedSequence;
+    }
+  }
+
+  /**
+   * @return sequence of the last record synced to disk
+   */
+  public long getDurableSequence() {
+    return durableSequence;
+  }
+
+  /**
+   * waits for the records appended so far when the journal is configured with sync commit,
+   * returns right away otherwise; then waits till every sink has handled them, see JournalSink.awaitCommitted
+   */
+  public void commit() {
+    long sequence = getAppendedSequence();
+    if (config.isSyncCommit()) {
+      awaitDurable(sequence);
+    }
+    for (JournalSink sink : sinks) {
+      sink.awaitCommitted(this, sequence);
+    }
+  }
+
+  /**
+   * @param writeLatency histogram recording the time of writing and syncing every group of records, null for none
+   */
+  public void setWriteLatency(LatencyHistogram writeLatency) {
+    this.writeLatency = writeLatency;
+  }
+
+  /**
+   * adds a sink receiving every group of records synced from now on
+   */
+  public void addSink(JournalSink sink) {
+    if (sink == null) {
+      throw new IllegalArgumentException("Journal sink cannot be null.");
+    }
+    sinks.add(sink);
+  }
+
+  /**
+   * removes a sink added before
+   */
+  public void removeSink(JournalSink sink) {
+    sinks.remove(sink);
+  }
+
+  /**
+   * blocks until the record with given sequence is synced to disk
+   * @throws IllegalStateException if the journal failed or got closed before the record was synced
+   */
+  public void awaitDurable(long sequence) {
+    if (durableSequence >= sequence) {
+      return;
+    }
+    synchronized (appendLock) {
+      waiters++;
+      appendLock.notifyAll();
+    }
+    try {
+      synchronized (durableLock) {
+        while (durableSequence < sequence && failure == null && flusher.isAlive()) {
+          durableLock.wait(config.getFlushIntervalMillis());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for journal sync.", e);
+    } finally {
+      synchronized (appendLock) {
+        waiters--;
+      }
+    }
+    if (durableSequence < sequence) {
+      throw new IllegalStateException("Journal record not synced. sequence=[" + sequence + "].", failure);
+    }
+  }
+
+  /**
+   * flushes pending records, stops the flusher and closes the file
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (appendLock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      appendLock.notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (appendLock) {
+      channel.close();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static byte[] encodeName(String name) {
+    if (name == null) {
+      throw new IllegalArgumentException("Journal name cannot be null.");
+    }
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_NAME_BYTES) {
+      throw new IllegalArgumentException("Journal name too long=[" + bytes.length + "] bytes.");
+    }
+    return bytes;
+  }
+
+  private int beginRecord(JournalRecordType type, int payloadSize) {
+    if (closed || failure != null) {
+      throw new IllegalStateException("Journal is not writable.", failure);
+    }
+    int bodySize = 1 + 8 + payloadSize;
+    if (active.remaining() < RECORD_HEADER_SIZE + bodySize) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + RECORD_HEADER_SIZE + bodySize));
+      active.flip();
+      larger.put(active);
+      active = larger;
+    }
+    if (active.position() == 0) {
+      firstPendingNanos = System.nanoTime();
+    }
+    int start = active.position();
+    active.putInt(bodySize).putInt(0).put(type.getCode()).putLong(appendedSequence + 1);
+    return start;
+  }
+
+  private void putName(byte[] nameBytes) {
+    active.putShort((short) nameBytes.length).put(nameBytes);
+  }
+
+  private long endRecord(int start) {
+    int bodyStart = start + RECORD_HEADER_SIZE;
+    crc.reset();
+    crc.update(active.array(), active.arrayOffset() + bodyStart, active.position() - bodyStart);
+    active.putInt(start + 4, (int) crc.getValue());
+    appendedSequence++;
+    if (active.position() >= config.getFlushBytes()) {
+      appendLock.notifyAll();
+    }
+    return appendedSequence;
+  }
+
+  private void flushLoop() {
+    try {
+      while (true) {
+        long sequence;
+        FileChannel target;
+        synchronized (appendLock) {
+          while (!isFlushDue()) {
+            if (closed && active.position() == 0) {
+              return;
+            }
+            long waitNanos = active.position() == 0 ? flushIntervalNanos
+                : firstPendingNanos + flushIntervalNanos - System.nanoTime();
+            appendLock.wait(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+          }
+          ByteBuffer full = active;
+          active = flushing;
+          flushing = full;
+          sequence = appendedSequence;
+          target = channel;
+        }
+        long writeNanos = System.nanoTime();
+        flushing.flip();
+        while (flushing.hasRemaining()) {
+          target.write(flushing);
+        }
+        target.force(false);
+        LatencyHistogram histogram = writeLatency;
+        if (histogram != null) {
+          histogram.recordSince(writeNanos);
+        }
+        notifySinks(sequence);
+        flushing.clear();
+        durableSequence = sequence;
+        synchronized (durableLock) {
+          durableLock.notifyAll();
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.error("Journal write failed, journal is not writable anymore. Exception=[{}].", e.getMessage());
+      failure = e;
+    } catch (InterruptedException e) {
+      LOGGER.error("Journal flusher interrupted, journal is not writable anymore.");
+      failure = new IOException("Journal flusher interrupted.", e);
+    } finally {
+      synchronized (durableLock) {
+        durableLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * hands the synced group in the flushing buffer to the sinks, a failing sink does not stop the journal
+   */
+  private void notifySinks(long sequence) {
+    for (JournalSink sink : sinks) {
+      ByteBuffer records = flushing.duplicate();
+      records.flip();
+      try {
+        sink.onFlushed(records, sequence);
+      } catch (RuntimeException e) {
+        LOGGER.error("Journal sink failed at sequence=[{}]. Exception=[{}].", sequence, e.getMessage());
+      }
+    }
+  }
+
+  private boolean isFlushDue() {
+    if (active.position() == 0) {
+      return false;
+    }
+    return closed || waiters > 0 || active.position() >= config.getFlushBytes()
+        || System.nanoTime() - firstPendingNanos >= flushIntervalNanos;
+  }
+}
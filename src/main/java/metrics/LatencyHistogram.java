@@ -0,0 +1,131 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author viswa
+ *
+ * lock free histogram of latencies in nanoseconds with log-linear buckets, in the manner of HdrHistogram.
+ * Values below 128 get a bucket each, above that every power of two is split into 64 buckets, so a recorded value
+ * is reported within 1/64 (about 1.6%) of its exact value. The buckets are a fixed array of counters up to about
+ * 73 minutes, recording is a few atomic increments without allocation and can be left on in production.
+ * Reads are not a consistent snapshot while values are recorded, which is fine for monitoring.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  /*
+   * highest value counted in its own bucket, larger values are counted in the last bucket
+   */
+  static final long MAX_VALUE = (1L << 42) - 1;
+  private static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+  /**
+   * records one latency
+   * @param nanos latency in nanoseconds, negative values count as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(0L, nanos);
+    counts.incrementAndGet(indexOf(Math.min(value, MAX_VALUE)));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * records the latency from the given start till now
+   * @param startNanos start as given by System.nanoTime
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return number of recorded values
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return sum of the recorded values in nanoseconds
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * @return largest recorded value in nanoseconds
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return highest value of the bucket the given percentile of the recorded values falls into, 0 if none recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+    }
+    long[] snapshot = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(percentile / 100d * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * appends count, mean, p50, p99, p99.9 and max in microseconds
+   */
+  void appendSummary(StringBuilder target) {
+    long recorded = getCount();
+    target.append("[count=").append(recorded)
+        .append(" meanUs=").append(recorded == 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(getSum() / recorded))
+        .append(" p50Us=").append(TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(50d)))
+        .append(" p99Us=").append(TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99d)))
+        .append(" p999Us=").append(TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99.9d)))
+        .append(" maxUs=").append(TimeUnit.NANOSECONDS.toMicros(getMax())).append(']');
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+    return shift * HALF_COUNT + (int) (value >>> shift);
+  }
+
+  static long highestValueOf(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / HALF_COUNT - 1;
+    long subBucket = index - shift * HALF_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
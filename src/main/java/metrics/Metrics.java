@@ -0,0 +1,213 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import enums.AdmissionResult;
+import enums.CommandAction;
+
+/**
+ * @author viswa
+ *
+ * metrics of one AccountService: a counter per CommandAction and per reason of rejection by the admission control,
+ * latency histograms of login, topup, transfer and journal writes, the settlement iterations and gauges
+ * of the number of accounts and the outstanding debt.
+ * Counters are LongAdders and the histograms lock free, so recording costs a few nanoseconds per command;
+ * the gauges are only read when the metrics are reported.
+ * The metrics are reported as one line by the stats command and in the Prometheus text format by MetricsServer.
+ */
+public final class Metrics {
+
+  private static final CommandAction[] ACTIONS = CommandAction.values();
+  private static final AdmissionResult[] REJECTIONS = {AdmissionResult.OVERLOADED, AdmissionResult.RATE_LIMITED};
+  private static final double[] QUANTILES = {0.5d, 0.9d, 0.99d, 0.999d};
+
+  private final LongAdder[] commands = new LongAdder[ACTIONS.length];
+  private final LongAdder[] rejections = new LongAdder[AdmissionResult.values().length];
+  private final LatencyHistogram login = new LatencyHistogram();
+  private final LatencyHistogram topup = new LatencyHistogram();
+  private final LatencyHistogram transfer = new LatencyHistogram();
+  private final LatencyHistogram journalWrite = new LatencyHistogram();
+  private final LongAdder settlementRounds = new LongAdder();
+  private final LongAdder settlementIterations = new LongAdder();
+  private final LongSupplier accounts;
+  private final LongSupplier outstandingDebt;
+
+  /**
+   * @param accounts gauge of the number of accounts
+   * @param outstandingDebt gauge of the sum of all debts
+   */
+  public Metrics(LongSupplier accounts, LongSupplier outstandingDebt) {
+    if (accounts == null || outstandingDebt == null) {
+      throw new IllegalArgumentException("Metrics gauges cannot be null.");
+    }
+    this.accounts = accounts;
+    this.outstandingDebt = outstandingDebt;
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = new LongAdder();
+    }
+    for (int i = 0; i < rejections.length; i++) {
+      rejections[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * counts one received command
+   */
+  public void recordCommand(CommandAction action) {
+    commands[action.ordinal()].increment();
+  }
+
+  /**
+   * @return number of received commands of the given action
+   */
+  public long getCommandCount(CommandAction action) {
+    return commands[action.ordinal()].sum();
+  }
+
+  /**
+   * counts one command rejected by the admission control
+   * @param result reason of the rejection
+   */
+  public void recordRejection(AdmissionResult result) {
+    rejections[result.ordinal()].increment();
+  }
+
+  /**
+   * @return number of commands rejected for the given reason
+   */
+  public long getRejectionCount(AdmissionResult result) {
+    return rejections[result.ordinal()].sum();
+  }
+
+  public LatencyHistogram getLogin() {
+    return login;
+  }
+
+  public LatencyHistogram getTopup() {
+    return topup;
+  }
+
+  public LatencyHistogram getTransfer() {
+    return transfer;
+  }
+
+  /**
+   * @return latency of writing and syncing one group of journal records
+   */
+  public LatencyHistogram getJournalWrite() {
+    return journalWrite;
+  }
+
+  /**
+   * counts one settlement round of a debtor with a balance
+   */
+  public void recordSettlementRound() {
+    settlementRounds.increment();
+  }
+
+  /**
+   * counts one creditor settled within a round
+   */
+  public void recordSettlementIteration() {
+    settlementIterations.increment();
+  }
+
+  public long getSettlementRounds() {
+    return settlementRounds.sum();
+  }
+
+  public long getSettlementIterations() {
+    return settlementIterations.sum();
+  }
+
+  public long getAccounts() {
+    return accounts.getAsLong();
+  }
+
+  public long getOutstandingDebt() {
+    return outstandingDebt.getAsLong();
+  }
+
+  /**
+   * @return all metrics in one line, latencies in microseconds
+   */
+  public String summary() {
+    StringBuilder line = new StringBuilder(512);
+    line.append("accounts=").append(getAccounts()).append(" debt=").append(getOutstandingDebt()).append(" commands=[");
+    for (int i = 0; i < ACTIONS.length; i++) {
+      if (i > 0) {
+        line.append(' ');
+      }
+      line.append(ACTIONS[i].getCommand()).append('=').append(commands[i].sum());
+    }
+    line.append("] rejected=[");
+    for (int i = 0; i < REJECTIONS.length; i++) {
+      if (i > 0) {
+        line.append(' ');
+      }
+      line.append(REJECTIONS[i].getName()).append('=').append(getRejectionCount(REJECTIONS[i]));
+    }
+    line.append("] login=");
+    login.appendSummary(line);
+    line.append(" topup=");
+    topup.appendSummary(line);
+    line.append(" transfer=");
+    transfer.appendSummary(line);
+    line.append(" journalWrite=");
+    journalWrite.appendSummary(line);
+    line.append(" settlementRounds=").append(getSettlementRounds())
+        .append(" settlementIterations=").append(getSettlementIterations());
+    return line.toString();
+  }
+
+  /**
+   * @return all metrics in the Prometheus text exposition format, latencies in seconds
+   */
+  public String toPrometheus() {
+    StringBuilder text = new StringBuilder(4096);
+    header(text, "bank_commands_total", "counter", "Commands received by action.");
+    for (int i = 0; i < ACTIONS.length; i++) {
+      text.append("bank_commands_total{action=\"").append(ACTIONS[i].getCommand()).append("\"} ")
+          .append(commands[i].sum()).append('\n');
+    }
+    header(text, "bank_commands_rejected_total", "counter", "Commands rejected by the admission control by reason.");
+    for (AdmissionResult result : REJECTIONS) {
+      text.append("bank_commands_rejected_total{reason=\"").append(result.getName()).append("\"} ")
+          .append(getRejectionCount(result)).append('\n');
+    }
+    summary(text, "bank_login_latency_seconds", "Latency of logins.", login);
+    summary(text, "bank_topup_latency_seconds", "Latency of topups.", topup);
+    summary(text, "bank_transfer_latency_seconds", "Latency of transfers.", transfer);
+    summary(text, "bank_journal_write_latency_seconds", "Latency of writing and syncing a group of journal records.",
+        journalWrite);
+    header(text, "bank_settlement_rounds_total", "counter", "Settlement rounds of debtors with a balance.");
+    text.append("bank_settlement_rounds_total ").append(getSettlementRounds()).append('\n');
+    header(text, "bank_settlement_iterations_total", "counter", "Creditors settled in settlement rounds.");
+    text.append("bank_settlement_iterations_total ").append(getSettlementIterations()).append('\n');
+    header(text, "bank_accounts", "gauge", "Number of accounts.");
+    text.append("bank_accounts ").append(getAccounts()).append('\n');
+    header(text, "bank_debt_outstanding", "gauge", "Sum of all debts between the accounts.");
+    text.append("bank_debt_outstanding ").append(getOutstandingDebt()).append('\n');
+    return text.toString();
+  }
+
+  private static void header(StringBuilder text, String name, String type, String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+    header(text, name, "summary", help);
+    for (double quantile : QUANTILES) {
+      text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+          .append(seconds(histogram.getValueAtPercentile(quantile * 100d))).append('\n');
+    }
+    text.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+    text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9d;
+  }
+}
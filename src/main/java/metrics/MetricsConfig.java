@@ -0,0 +1,63 @@
+package metrics;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the metrics endpoint. The metrics are served in the Prometheus text format on
+ * http://&lt;host&gt;:&lt;port&gt;/metrics, the host is the loopback address unless configured otherwise.
+ */
+public class MetricsConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String PORT_PROPERTY = "bank.metrics.port";
+  public static final String HOST_PROPERTY = "bank.metrics.host";
+
+  private int port = 9100;
+  private String host = "127.0.0.1";
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if no metrics port is configured
+   */
+  public static MetricsConfig fromSystemProperties() {
+    String port = System.getProperty(PORT_PROPERTY);
+    if (StringUtils.isBlank(port)) {
+      return null;
+    }
+    MetricsConfig config = new MetricsConfig().setPort(Integer.parseInt(port.trim()));
+    String host = System.getProperty(HOST_PROPERTY);
+    if (StringUtils.isNotBlank(host)) {
+      config.setHost(host.trim());
+    }
+    return config;
+  }
+
+  public int getPort() {
+    return port;
+  }
+  /**
+   * @param port 0 picks a free port
+   */
+  public MetricsConfig setPort(int port) {
+    if (port < 0 || port > 0xFFFF) {
+      throw new IllegalArgumentException("Metrics port must be between 0 and 65535.");
+    }
+    this.port = port;
+    return this;
+  }
+
+  public String getHost() {
+    return host;
+  }
+  public MetricsConfig setHost(String host) {
+    if (StringUtils.isBlank(host)) {
+      throw new IllegalArgumentException("Metrics host cannot be null/empty.");
+    }
+    this.host = host;
+    return this;
+  }
+}
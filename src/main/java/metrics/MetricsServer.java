@@ -0,0 +1,85 @@
+package metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author viswa
+ *
+ * HTTP endpoint serving the metrics in the Prometheus text format on /metrics, by the single thread of the
+ * JDK HTTP server. The metrics are only formatted when scraped.
+ */
+public final class MetricsServer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServer.class);
+
+  static final String PATH = "/metrics";
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Metrics metrics;
+  private final HttpServer server;
+
+  private MetricsServer(Metrics metrics, HttpServer server) {
+    this.metrics = metrics;
+    this.server = server;
+  }
+
+  /**
+   * binds the endpoint and starts serving
+   * @return started server
+   * @throws IOException if the port cannot be bound
+   */
+  public static MetricsServer start(Metrics metrics, MetricsConfig config) throws IOException {
+    if (metrics == null || config == null) {
+      throw new IllegalArgumentException("Metrics and metrics config cannot be null.");
+    }
+    HttpServer server = HttpServer.create(new InetSocketAddress(config.getHost(), config.getPort()), 16);
+    MetricsServer metricsServer = new MetricsServer(metrics, server);
+    server.createContext(PATH, metricsServer::handle);
+    server.start();
+    LOGGER.info("Metrics served on http://[{}]:[{}]{}.", config.getHost(), metricsServer.getPort(), PATH);
+    return metricsServer;
+  }
+
+  /**
+   * @return bound port
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * stops serving
+   */
+  @Override
+  public void close() {
+    server.stop(0);
+    LOGGER.info("Metrics server stopped.");
+  }
+}
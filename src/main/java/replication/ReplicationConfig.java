@@ -0,0 +1,135 @@
+package replication;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the journal replication. A leader listens on port for followers and ships them its journal,
+ * a follower connects to the leader at leaderHost:leaderPort. With sync acknowledgement a commit on the leader
+ * waits till every connected follower has applied its records, at most ackTimeoutMillis, after which the follower
+ * is disconnected; with async acknowledgement the records are shipped after the commit.
+ */
+public class ReplicationConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String PORT_PROPERTY = "bank.replication.port";
+  public static final String LEADER_PROPERTY = "bank.replication.leader";
+  public static final String ACK_PROPERTY = "bank.replication.ack";
+  public static final String ACK_TIMEOUT_PROPERTY = "bank.replication.ackTimeoutMillis";
+
+  /*
+   * value of the ack property selecting sync acknowledgement, any other value keeps async
+   */
+  public static final String SYNC_ACK = "sync";
+
+  private static final int NO_PORT = -1;
+
+  private int port = NO_PORT;
+  private String leaderHost;
+  private int leaderPort = NO_PORT;
+  private boolean syncAck;
+  private long ackTimeoutMillis = 5000L;
+  private long reconnectMillis = 1000L;
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if neither a leader port nor a leader address is configured
+   */
+  public static ReplicationConfig fromSystemProperties() {
+    String port = System.getProperty(PORT_PROPERTY);
+    String leader = System.getProperty(LEADER_PROPERTY);
+    if (StringUtils.isBlank(port) && StringUtils.isBlank(leader)) {
+      return null;
+    }
+    ReplicationConfig config = new ReplicationConfig();
+    if (StringUtils.isNotBlank(leader)) {
+      config.setLeader(leader.trim());
+    } else {
+      config.setPort(Integer.parseInt(port.trim()));
+    }
+    String ack = System.getProperty(ACK_PROPERTY);
+    if (StringUtils.isNotBlank(ack)) {
+      config.setSyncAck(SYNC_ACK.equals(ack.trim()));
+    }
+    String ackTimeout = System.getProperty(ACK_TIMEOUT_PROPERTY);
+    if (StringUtils.isNotBlank(ackTimeout)) {
+      config.setAckTimeoutMillis(Long.parseLong(ackTimeout.trim()));
+    }
+    return config;
+  }
+
+  /**
+   * @return true if a leader address is configured, so this process follows it
+   */
+  public boolean isFollower() {
+    return leaderHost != null;
+  }
+
+  public int getPort() {
+    return port;
+  }
+  public ReplicationConfig setPort(int port) {
+    if (port < 0 || port > 65535) {
+      throw new IllegalArgumentException("Replication port must be between 0 and 65535.");
+    }
+    this.port = port;
+    return this;
+  }
+
+  public String getLeaderHost() {
+    return leaderHost;
+  }
+  public int getLeaderPort() {
+    return leaderPort;
+  }
+  /**
+   * @param leader address of the leader as host:port
+   * @return this configuration
+   */
+  public ReplicationConfig setLeader(String leader) {
+    int separator = leader == null ? -1 : leader.lastIndexOf(':');
+    if (separator <= 0 || separator == leader.length() - 1) {
+      throw new IllegalArgumentException("Replication leader must be given as host:port.");
+    }
+    int parsedPort = Integer.parseInt(leader.substring(separator + 1));
+    if (parsedPort < 1 || parsedPort > 65535) {
+      throw new IllegalArgumentException("Replication leader port must be between 1 and 65535.");
+    }
+    this.leaderHost = leader.substring(0, separator);
+    this.leaderPort = parsedPort;
+    return this;
+  }
+
+  public boolean isSyncAck() {
+    return syncAck;
+  }
+  public ReplicationConfig setSyncAck(boolean syncAck) {
+    this.syncAck = syncAck;
+    return this;
+  }
+
+  public long getAckTimeoutMillis() {
+    return ackTimeoutMillis;
+  }
+  public ReplicationConfig setAckTimeoutMillis(long ackTimeoutMillis) {
+    if (ackTimeoutMillis < 1) {
+      throw new IllegalArgumentException("Replication ack timeout must be at least 1 ms.");
+    }
+    this.ackTimeoutMillis = ackTimeoutMillis;
+    return this;
+  }
+
+  public long getReconnectMillis() {
+    return reconnectMillis;
+  }
+  public ReplicationConfig setReconnectMillis(long reconnectMillis) {
+    if (reconnectMillis < 1) {
+      throw new IllegalArgumentException("Replication reconnect interval must be at least 1 ms.");
+    }
+    this.reconnectMillis = reconnectMillis;
+    return this;
+  }
+}
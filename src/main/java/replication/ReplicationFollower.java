@@ -0,0 +1,182 @@
+package replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import service.AccountService;
+
+/**
+ * @author viswa
+ *
+ * follower side of the journal replication. Turns the account service into a read only replica, connects to the
+ * leader and applies the snapshot and the journal records it receives, acknowledging the sequence applied after
+ * every frame. A lost connection is retried every reconnectMillis and starts again from a fresh snapshot.
+ */
+public final class ReplicationFollower implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationFollower.class);
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int MAX_FRAME_SIZE = Integer.MAX_VALUE - 8;
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  private final AccountService accountService;
+  private final ReplicationConfig config;
+  private final Thread receiveThread;
+  private final Object appliedLock = new Object();
+  private volatile long appliedSequence = -1L;
+  private volatile Socket socket;
+  private volatile boolean closed;
+
+  private ReplicationFollower(AccountService accountService, ReplicationConfig config) {
+    this.accountService = accountService;
+    this.config = config;
+    this.receiveThread = new Thread(this::receiveLoop, "replication-follower");
+    this.receiveThread.setDaemon(true);
+  }
+
+  /**
+   * makes the account service a replica and starts following the configured leader
+   * @return started follower
+   * @throws IllegalStateException if the service has an open journal or a started execution engine
+   */
+  public static ReplicationFollower start(AccountService accountService, ReplicationConfig config) {
+    if (accountService == null || config == null) {
+      throw new IllegalArgumentException("Account service and replication config cannot be null.");
+    }
+    if (!config.isFollower()) {
+      throw new IllegalArgumentException("Replication leader is not configured.");
+    }
+    accountService.startReplica();
+    ReplicationFollower follower = new ReplicationFollower(accountService, config);
+    follower.receiveThread.start();
+    LOGGER.info("Following replication leader=[{}:{}].", config.getLeaderHost(), config.getLeaderPort());
+    return follower;
+  }
+
+  /**
+   * @return journal sequence of the leader applied so far, -1 before the first snapshot
+   */
+  public long getAppliedSequence() {
+    return appliedSequence;
+  }
+
+  /**
+   * waits till the records of the leader up to the sequence are applied
+   * @return true if applied, false on timeout
+   * @throws InterruptedException
+   */
+  public boolean awaitSequence(long sequence, long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    synchronized (appliedLock) {
+      while (appliedSequence < sequence) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        appliedLock.wait(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remaining)));
+      }
+      return true;
+    }
+  }
+
+  private void receiveLoop() {
+    while (!closed) {
+      try (Socket connection = new Socket()) {
+        socket = connection;
+        if (closed) {
+          return;
+        }
+        connection.connect(new InetSocketAddress(config.getLeaderHost(), config.getLeaderPort()), CONNECT_TIMEOUT_MILLIS);
+        connection.setTcpNoDelay(true);
+        LOGGER.info("Connected to replication leader=[{}].", connection.getRemoteSocketAddress());
+        follow(connection);
+      } catch (IOException | RuntimeException e) {
+        if (!closed) {
+          LOGGER.warn("Replication from leader=[{}:{}] interrupted, retrying in [{}] ms. Exception=[{}].",
+              config.getLeaderHost(), config.getLeaderPort(), config.getReconnectMillis(), e.getMessage());
+        }
+      }
+      if (closed) {
+        return;
+      }
+      try {
+        Thread.sleep(config.getReconnectMillis());
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * applies the frames of one connection till it is closed
+   */
+  private void follow(Socket connection) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), STREAM_BUFFER_SIZE));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+    boolean snapshotLoaded = false;
+    while (!closed) {
+      byte type = in.readByte();
+      int length = in.readInt();
+      if (length < 0 || length > MAX_FRAME_SIZE) {
+        throw new IOException("Invalid replication frame length=[" + length + "].");
+      }
+      if (buffer.length < length) {
+        buffer = new byte[Math.max(length, (int) Math.min(MAX_FRAME_SIZE, 2L * buffer.length))];
+      }
+      in.readFully(buffer, 0, length);
+      ByteBuffer content = ByteBuffer.wrap(buffer, 0, length);
+      long applied;
+      if (type == ReplicationLeader.SNAPSHOT_FRAME) {
+        applied = accountService.loadReplicaSnapshot(content);
+        snapshotLoaded = true;
+        LOGGER.info("Loaded replica snapshot at sequence=[{}].", applied);
+      } else if (type == ReplicationLeader.RECORDS_FRAME && snapshotLoaded) {
+        applied = accountService.applyReplicatedRecords(content, appliedSequence);
+      } else {
+        throw new IOException("Unexpected replication frame type=[" + type + "].");
+      }
+      synchronized (appliedLock) {
+        appliedSequence = applied;
+        appliedLock.notifyAll();
+      }
+      out.writeLong(applied);
+      out.flush();
+    }
+  }
+
+  /**
+   * stops following the leader, the service stays a read only replica with the accounts applied so far
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Socket current = socket;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        LOGGER.debug("Unable to close replication socket. Exception=[{}].", e.getMessage());
+      }
+    }
+    receiveThread.interrupt();
+    try {
+      receiveThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LOGGER.info("Replication follower stopped.");
+  }
+}
@@ -0,0 +1,319 @@
+package replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import journal.JournalSink;
+import journal.TransactionJournal;
+import service.AccountService;
+
+/**
+ * @author viswa
+ *
+ * leader side of the journal replication. Every follower connecting to the port gets a snapshot of all accounts,
+ * encoded while no account changes, followed by every group of journal records synced after it, in the layout
+ * of the journal file. The follower answers every frame with the sequence it has applied.
+ *
+ * Frames sent to the follower are [byte type][int length][payload], see SNAPSHOT_FRAME and RECORDS_FRAME.
+ * Every follower has a queue of frames written by its own sender thread, so a slow follower never blocks
+ * the journal flusher; a follower falling more than MAX_QUEUED_BYTES behind is disconnected.
+ * With sync acknowledgement TransactionJournal.commit waits for the acknowledgement of every connected follower.
+ */
+public final class ReplicationLeader implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationLeader.class);
+
+  static final byte SNAPSHOT_FRAME = 1;
+  static final byte RECORDS_FRAME = 2;
+  static final int FRAME_HEADER_SIZE = 5;
+
+  private static final long MAX_QUEUED_BYTES = 64L << 20;
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  private final AccountService accountService;
+  private final ReplicationConfig config;
+  private final ServerSocket serverSocket;
+  private final Thread acceptThread;
+  private final Set<FollowerLink> links = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed;
+
+  private ReplicationLeader(AccountService accountService, ReplicationConfig config, ServerSocket serverSocket) {
+    this.accountService = accountService;
+    this.config = config;
+    this.serverSocket = serverSocket;
+    this.acceptThread = new Thread(this::acceptLoop, "replication-accept");
+    this.acceptThread.setDaemon(true);
+  }
+
+  /**
+   * binds the replication port and starts accepting followers, the journal of the service must be open
+   * @return started leader
+   * @throws IOException if port cannot be bound
+   */
+  public static ReplicationLeader start(AccountService accountService, ReplicationConfig config) throws IOException {
+    if (accountService == null || config == null) {
+      throw new IllegalArgumentException("Account service and replication config cannot be null.");
+    }
+    if (config.getPort() < 0) {
+      throw new IllegalArgumentException("Replication port is not configured.");
+    }
+    if (!accountService.isJournalOpen()) {
+      throw new IllegalStateException("Journal must be opened before it is replicated.");
+    }
+    ServerSocket serverSocket = new ServerSocket();
+    try {
+      serverSocket.setReuseAddress(true);
+      serverSocket.bind(new InetSocketAddress(config.getPort()));
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+    ReplicationLeader leader = new ReplicationLeader(accountService, config, serverSocket);
+    leader.acceptThread.start();
+    LOGGER.info("Replication leader listening on port=[{}] with ack=[{}].", leader.getPort(), config.isSyncAck() ? "sync" : "async");
+    return leader;
+  }
+
+  /**
+   * @return port the leader listens on
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return number of connected followers
+   */
+  public int getFollowerCount() {
+    return links.size();
+  }
+
+  /**
+   * @return lowest sequence acknowledged by the connected followers, -1 without followers
+   */
+  public long getAcknowledgedSequence() {
+    long lowest = -1L;
+    for (FollowerLink link : links) {
+      lowest = lowest < 0 ? link.acknowledged : Math.min(lowest, link.acknowledged);
+    }
+    return lowest;
+  }
+
+  private void acceptLoop() {
+    while (!closed) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (!closed) {
+          LOGGER.error("Unable to accept follower. Exception=[{}].", e.getMessage());
+        }
+        continue;
+      }
+      FollowerLink link = new FollowerLink(socket);
+      links.add(link);
+      if (closed) {
+        link.close();
+        return;
+      }
+      link.sender.start();
+    }
+  }
+
+  /**
+   * stops accepting followers and disconnects the connected ones
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to close replication socket. Exception=[{}].", e.getMessage());
+    }
+    try {
+      acceptThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (FollowerLink link : links) {
+      link.close();
+    }
+    LOGGER.info("Replication leader stopped.");
+  }
+
+  /**
+   * connection to one follower, added to the journal as a sink
+   */
+  private final class FollowerLink implements JournalSink {
+
+    private final Socket socket;
+    private final Thread sender;
+    private final Thread receiver;
+    private final LinkedBlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Object ackLock = new Object();
+    private volatile long acknowledged;
+    private volatile boolean linkClosed;
+
+    private FollowerLink(Socket socket) {
+      this.socket = socket;
+      String address = String.valueOf(socket.getRemoteSocketAddress());
+      this.sender = new Thread(this::send, "replication-send-" + address);
+      this.sender.setDaemon(true);
+      this.receiver = new Thread(this::receive, "replication-ack-" + address);
+      this.receiver.setDaemon(true);
+    }
+
+    /**
+     * opens the replication stream, sends the snapshot and then the queued record groups till the link is closed
+     */
+    private void send() {
+      try {
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+        ByteBuffer snapshot = accountService.openReplicationStream(this);
+        receiver.start();
+        LOGGER.info("Follower=[{}] connected, sending snapshot of size=[{}] bytes.", socket.getRemoteSocketAddress(),
+            snapshot.remaining());
+        out.writeByte(SNAPSHOT_FRAME);
+        out.writeInt(snapshot.remaining());
+        out.write(snapshot.array(), snapshot.arrayOffset() + snapshot.position(), snapshot.remaining());
+        out.flush();
+        List<byte[]> batch = new ArrayList<>();
+        while (!linkClosed) {
+          byte[] frame = frames.poll(1, TimeUnit.SECONDS);
+          if (frame == null) {
+            continue;
+          }
+          batch.add(frame);
+          frames.drainTo(batch);
+          for (byte[] next : batch) {
+            out.write(next);
+            queuedBytes.addAndGet(-next.length);
+          }
+          batch.clear();
+          out.flush();
+        }
+      } catch (IOException | RuntimeException e) {
+        if (!linkClosed) {
+          LOGGER.warn("Replication to follower=[{}] failed. Exception=[{}].", socket.getRemoteSocketAddress(), e.getMessage());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        close();
+      }
+    }
+
+    /**
+     * reads the acknowledged sequences of the follower
+     */
+    private void receive() {
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        while (!linkClosed) {
+          long sequence = in.readLong();
+          synchronized (ackLock) {
+            acknowledged = sequence;
+            ackLock.notifyAll();
+          }
+        }
+      } catch (EOFException e) {
+        LOGGER.info("Follower=[{}] disconnected.", socket.getRemoteSocketAddress());
+      } catch (IOException e) {
+        if (!linkClosed) {
+          LOGGER.warn("Follower=[{}] disconnected. Exception=[{}].", socket.getRemoteSocketAddress(), e.getMessage());
+        }
+      } finally {
+        close();
+      }
+    }
+
+    @Override
+    public void onFlushed(ByteBuffer records, long lastSequence) {
+      if (linkClosed) {
+        return;
+      }
+      int length = records.remaining();
+      if (queuedBytes.addAndGet(FRAME_HEADER_SIZE + length) > MAX_QUEUED_BYTES) {
+        LOGGER.warn("Follower=[{}] fell more than [{}] bytes behind, disconnecting it.", socket.getRemoteSocketAddress(),
+            MAX_QUEUED_BYTES);
+        close();
+        return;
+      }
+      byte[] frame = new byte[FRAME_HEADER_SIZE + length];
+      ByteBuffer.wrap(frame).put(RECORDS_FRAME).putInt(length).put(records);
+      frames.offer(frame);
+    }
+
+    /**
+     * with sync acknowledgement, waits till the follower applied the records up to the sequence;
+     * a follower not acknowledging within the timeout is disconnected, so that the leader stays available
+     */
+    @Override
+    public void awaitCommitted(TransactionJournal journal, long sequence) {
+      if (!config.isSyncAck() || linkClosed || acknowledged >= sequence) {
+        return;
+      }
+      journal.awaitDurable(sequence);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getAckTimeoutMillis());
+      synchronized (ackLock) {
+        while (acknowledged < sequence && !linkClosed) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          try {
+            ackLock.wait(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remaining)));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+      if (acknowledged < sequence && !linkClosed) {
+        LOGGER.warn("Follower=[{}] did not acknowledge sequence=[{}] in [{}] ms, disconnecting it.",
+            socket.getRemoteSocketAddress(), sequence, config.getAckTimeoutMillis());
+        close();
+      }
+    }
+
+    private void close() {
+      synchronized (ackLock) {
+        if (linkClosed) {
+          return;
+        }
+        linkClosed = true;
+        ackLock.notifyAll();
+      }
+      accountService.closeReplicationStream(this);
+      links.remove(this);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOGGER.debug("Unable to close follower socket. Exception=[{}].", e.getMessage());
+      }
+      frames.clear();
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import admission.AdmissionController;
+import service.AccountService;
+
+/**
+ * @author viswa
+ *
+ * TCP server speaking the login/topup/pay/exit line protocol of the command line.
+ * Every connection is served by its own thread with its own AccountSession, the thread blocks in the socket read
+ * while the client is idle. Virtual threads are used when the JVM provides them, otherwise platform threads with
+ * a small stack, so that thousands of mostly idle connections stay cheap.
+ * Clients may pipeline their commands, the responses are then written back in batches.
+ * The number of connections is bounded by a semaphore: a client accepted beyond maxConnections gets a single
+ * error line and is disconnected, instead of queueing up work the server cannot keep up with.
+ * Likewise the commands of the connections pass an AdmissionController when the configuration has one,
+ * which rejects the commands beyond its concurrency, queue and rate limits.
+ */
+public final class CommandServer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommandServer.class);
+
+  static final String BUSY_RESPONSE = "ERROR Server busy, try again later.\n";
+
+  /*
+   * stack size of the platform connection threads, the handlers need only a few frames
+   */
+  private static final long PLATFORM_THREAD_STACK_SIZE = 256 * 1024L;
+  private static final int REJECT_TIMEOUT_MILLIS = 1000;
+  private static final long CLOSE_TIMEOUT_SECONDS = 5L;
+
+  private final AccountService accountService;
+  private final ServerConfig config;
+  private final ServerSocket serverSocket;
+  private final Semaphore permits;
+  private final AdmissionController admission;
+  private final ExecutorService connectionThreads;
+  private final boolean virtualThreads;
+  private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+  private final LongAdder acceptedCount = new LongAdder();
+  private final LongAdder rejectedCount = new LongAdder();
+  private final LongAdder commandCount = new LongAdder();
+  private final LongAdder writeCount = new LongAdder();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private final Thread acceptThread;
+  private volatile boolean closed;
+
+  private CommandServer(AccountService accountService, ServerConfig config, ServerSocket serverSocket) {
+    this.accountService = accountService;
+    this.config = config;
+    this.serverSocket = serverSocket;
+    this.permits = new Semaphore(config.getMaxConnections());
+    this.admission = config.getAdmission() == null ? null : new AdmissionController(config.getAdmission());
+    ExecutorService virtual = newVirtualThreadExecutor();
+    this.virtualThreads = virtual != null;
+    this.connectionThreads = virtual != null ? virtual : Executors.newCachedThreadPool(new ConnectionThreadFactory());
+    this.acceptThread = new Thread(this::acceptLoop, "command-server-accept");
+  }
+
+  /**
+   * binds the server socket and starts accepting connections
+   * @throws IllegalArgumentException if accountService or config is null
+   * @throws IOException if server socket cannot be bound
+   * @return running server
+   */
+  public static CommandServer start(AccountService accountService, ServerConfig config) throws IOException {
+    if (accountService == null) {
+      throw new IllegalArgumentException("AccountService cannot be null.");
+    }
+    if (config == null) {
+      throw new IllegalArgumentException("Server config cannot be null.");
+    }
+    ServerSocket serverSocket = new ServerSocket();
+    try {
+      serverSocket.setReuseAddress(true);
+      serverSocket.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+    CommandServer server = new CommandServer(accountService, config, serverSocket);
+    server.acceptThread.start();
+    LOGGER.info("Command server listening on port=[{}] max connections=[{}] virtual threads=[{}] admission=[{}].",
+        server.getPort(), config.getMaxConnections(), server.virtualThreads, server.admission != null);
+    return server;
+  }
+
+  /**
+   * @return port the server is listening on
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return true if connections are served by virtual threads
+   */
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * @return number of connections currently open
+   */
+  public int getOpenConnections() {
+    return config.getMaxConnections() - permits.availablePermits();
+  }
+
+  /**
+   * @return number of connections accepted and served so far
+   */
+  public long getAcceptedCount() {
+    return acceptedCount.sum();
+  }
+
+  /**
+   * @return number of connections turned away because maxConnections were open
+   */
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  /**
+   * @return number of command lines received so far
+   */
+  public long getCommandCount() {
+    return commandCount.sum();
+  }
+
+  /**
+   * @return number of socket writes of responses so far, pipelined commands share one write
+   */
+  public long getWriteCount() {
+    return writeCount.sum();
+  }
+
+  /**
+   * waits till the server is closed
+   * @throws InterruptedException
+   */
+  public void awaitClose() throws InterruptedException {
+    stopped.await();
+  }
+
+  private void acceptLoop() {
+    while (!closed) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (!closed) {
+          LOGGER.error("Unable to accept connection. Exception=[{}].", e.getMessage());
+        }
+        continue;
+      }
+      if (!permits.tryAcquire()) {
+        reject(socket);
+        continue;
+      }
+      sockets.add(socket);
+      try {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(config.getIdleTimeoutMillis());
+        connectionThreads.execute(new ConnectionHandler(this, socket, accountService, admission,
+            config.getMaxLineLength()));
+        acceptedCount.increment();
+      } catch (SocketException | RejectedExecutionException e) {
+        connectionClosed(socket);
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  private void reject(Socket socket) {
+    rejectedCount.increment();
+    try {
+      socket.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+      OutputStream out = socket.getOutputStream();
+      out.write(BUSY_RESPONSE.getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to reject connection. Exception=[{}].", e.getMessage());
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * releases the connection slot of the given socket, called once by its handler
+   */
+  void connectionClosed(Socket socket) {
+    if (sockets.remove(socket)) {
+      permits.release();
+    }
+  }
+
+  void commandExecuted() {
+    commandCount.increment();
+  }
+
+  void responsesWritten() {
+    writeCount.increment();
+  }
+
+  /**
+   * stops accepting connections, closes the open ones and waits a while for their running commands to complete
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    closeQuietly(serverSocket);
+    try {
+      acceptThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Socket socket : sockets) {
+      closeQuietly(socket);
+    }
+    connectionThreads.shutdown();
+    try {
+      connectionThreads.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LOGGER.info("Command server stopped, accepted connections=[{}] rejected=[{}] commands=[{}] response writes=[{}].",
+        getAcceptedCount(), getRejectedCount(), getCommandCount(), getWriteCount());
+    stopped.countDown();
+  }
+
+  static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to close=[{}]. Exception=[{}].", closeable, e.getMessage());
+    }
+  }
+
+  /**
+   * looks up Executors.newVirtualThreadPerTaskExecutor, which only exists on JVMs with virtual threads
+   * @return executor starting one virtual thread per task, null if virtual threads are not available
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * daemon platform threads with a small stack, used when virtual threads are not available
+   */
+  private static final class ConnectionThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable task) {
+      Thread thread = new Thread(null, task, "command-connection-" + count.incrementAndGet(), PLATFORM_THREAD_STACK_SIZE);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,426 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import admission.AdmissionController;
+import admission.TokenBucket;
+import domain.AccountBalance;
+import domain.Transfer;
+import enums.AdmissionResult;
+import enums.CommandAction;
+import history.HistoryEntry;
+import service.AccountService;
+import service.AccountSession;
+import service.RequestOutcome;
+import util.CommandBufferParser;
+
+/**
+ * @author viswa
+ *
+ * serves the commands of one client connection with its own AccountSession.
+ * Every command line is answered with one response line: "OK" followed by the balance and debts of the
+ * logged in user, "ERROR" followed by the reason, or "BYE" for exit, after which the connection is closed.
+ * Blank lines are ignored and get no response. The stats command is answered with "OK" followed by the metrics
+ * of the AccountService in one line, the history command with "OK", the user, its number of history entries and the
+ * requested entries separated by commas.
+ * A topup or pay command given with an idempotency key after its amount is applied once per key, a retry with the same
+ * key is answered with "OK", the balance the first command left and the current debts without being applied again.
+ * With admission control every command but stats and exit is admitted by the AdmissionController of the server
+ * and the token bucket of the connection, a rejected command is answered with "REJECTED" followed by the reason
+ * and is not executed, so the client can tell it apart from a failed command and try again later.
+ * Commands are pipelined: a client may send any number of commands without waiting for their responses.
+ * Whatever one socket read returns is parsed in place by CommandBufferParser and executed in order, and the
+ * responses are collected and written with a single socket write once no more input is waiting.
+ */
+final class ConnectionHandler implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionHandler.class);
+
+  private static final int MIN_INPUT_BUFFER_SIZE = 4096;
+  private static final int INITIAL_OUTPUT_BUFFER_SIZE = 1024;
+  /*
+   * pending responses are written once they reach this size, even if more commands are waiting
+   */
+  private static final int FLUSH_THRESHOLD = 32 * 1024;
+  /*
+   * a connection sees few names, its login and its payees
+   */
+  private static final int NAME_CACHE_SIZE = 16;
+  static final String REJECTED = "REJECTED ";
+
+  private final CommandServer server;
+  private final Socket socket;
+  private final AccountService accountService;
+  private final AdmissionController admission;
+  private final TokenBucket tokenBucket;
+  private final int maxLineLength;
+  private final ByteBuffer input;
+  private final CommandBufferParser parser = new CommandBufferParser(NAME_CACHE_SIZE);
+  private final StringBuilder response = new StringBuilder(64);
+  private byte[] output = new byte[INITIAL_OUTPUT_BUFFER_SIZE];
+  private int outputLength;
+  private AccountSession session;
+
+  ConnectionHandler(CommandServer server, Socket socket, AccountService accountService, AdmissionController admission,
+      int maxLineLength) {
+    this.server = server;
+    this.socket = socket;
+    this.accountService = accountService;
+    this.admission = admission;
+    this.tokenBucket = admission == null ? null : admission.newTokenBucket();
+    this.maxLineLength = maxLineLength;
+    this.input = ByteBuffer.allocate(Math.max(MIN_INPUT_BUFFER_SIZE, maxLineLength * 2));
+  }
+
+  @Override
+  public void run() {
+    try (InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+      byte[] buffer = input.array();
+      boolean open = true;
+      while (open) {
+        int read = in.read(buffer, input.position(), input.remaining());
+        boolean endOfInput = read < 0;
+        if (!endOfInput) {
+          input.position(input.position() + read);
+        }
+        input.flip();
+        open = process(out, endOfInput) && !endOfInput;
+        if (open && input.remaining() > maxLineLength) {
+          appendLineTooLong();
+          open = false;
+        }
+        input.compact();
+        if (!open || in.available() == 0) {
+          flush(out);
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      LOGGER.debug("Closing idle connection=[{}].", socket.getRemoteSocketAddress());
+    } catch (IOException e) {
+      LOGGER.debug("Connection=[{}] failed. Exception=[{}].", socket.getRemoteSocketAddress(), e.getMessage());
+    } finally {
+      CommandServer.closeQuietly(socket);
+      server.connectionClosed(socket);
+    }
+  }
+
+  /**
+   * executes the complete command lines of the input buffer in order and collects their responses
+   * @return false if the connection is to be closed
+   */
+  private boolean process(OutputStream out, boolean endOfInput) throws IOException {
+    parser.reset(input, endOfInput);
+    while (parser.next()) {
+      server.commandExecuted();
+      if (parser.getLineLength() > maxLineLength) {
+        appendLineTooLong();
+        return false;
+      }
+      response.setLength(0);
+      boolean open = execute();
+      appendResponse();
+      if (!open) {
+        return false;
+      }
+      if (outputLength >= FLUSH_THRESHOLD) {
+        flush(out);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * executes the current command line of the parser and builds its response
+   * @return false if the connection is to be closed
+   */
+  private boolean execute() {
+    CommandAction action = parser.getAction();
+    if (action == null) {
+      response.append("ERROR Not a correct command=[").append(parser.getToken(0)).append("].");
+      return true;
+    }
+    accountService.getMetrics().recordCommand(action);
+    if (admission == null || action == CommandAction.STATS || action == CommandAction.EXIT) {
+      return dispatch(action);
+    }
+    AdmissionResult result = admission.acquire(tokenBucket);
+    if (result != AdmissionResult.ADMITTED) {
+      accountService.getMetrics().recordRejection(result);
+      response.append(REJECTED).append(result.getReason());
+      return true;
+    }
+    try {
+      return dispatch(action);
+    } finally {
+      admission.release();
+    }
+  }
+
+  /**
+   * executes the given action of the current command line
+   * @return false if the connection is to be closed
+   */
+  private boolean dispatch(CommandAction action) {
+    try {
+      switch (action)
+      {
+        case LOGIN:
+          login();
+          break;
+        case TOPUP:
+          topup();
+          break;
+        case PAY:
+          pay();
+          break;
+        case PAYBATCH:
+          payBatch();
+          break;
+        case STATS:
+          response.append("OK ").append(accountService.getMetrics().summary());
+          break;
+        case HISTORY:
+          history();
+          break;
+        case STATEMENT:
+          response.append("ERROR Statements are exported from the console only.");
+          break;
+        case EXIT:
+          response.append("BYE");
+          return false;
+        default:
+          response.append("ERROR Not a valid command");
+          break;
+      }
+    } catch (RuntimeException e) {
+      response.setLength(0);
+      response.append("ERROR ").append(e.getMessage());
+    }
+    return true;
+  }
+
+  private void login() {
+    if (hasArguments(2)) {
+      session = accountService.openSession(parser.getName(1));
+      appendDetails();
+    }
+  }
+
+  private void topup() {
+    if (hasArguments(2) && isLoggedIn() && hasAmount(1)) {
+      if (parser.getTokenCount() > 2) {
+        appendOutcome(accountService.topupBalance(session, parser.getAmount(), parser.getKey(2)));
+      } else {
+        accountService.topupBalance(session, parser.getAmount());
+        appendDetails();
+      }
+    }
+  }
+
+  private void pay() {
+    if (!hasArguments(3) || !isLoggedIn()) {
+      return;
+    }
+    int payeeId = accountService.getAccountId(parser.getName(1));
+    if (!accountService.getAccount(payeeId).isPresent()) {
+      response.append("ERROR Not a valid payee.");
+      return;
+    }
+    if (payeeId == session.getAccount().getId()) {
+      response.append("ERROR Cannot transfer to own account.");
+      return;
+    }
+    if (hasAmount(2)) {
+      if (parser.getTokenCount() > 3) {
+        appendOutcome(accountService.transferAmount(session, payeeId, parser.getAmount(), parser.getKey(3)));
+      } else {
+        accountService.transferAmount(session, payeeId, parser.getAmount());
+        appendDetails();
+      }
+    }
+  }
+
+  private void payBatch() {
+    if (!hasArguments(3) || !isLoggedIn() || !hasPairs()) {
+      return;
+    }
+    List<Transfer> transfers = new ArrayList<>();
+    for (int index = 1; index < parser.getTokenCount(); index += 2) {
+      if (!hasAmount(index + 1)) {
+        return;
+      }
+      transfers.add(new Transfer(parser.getName(index), parser.getAmount()));
+    }
+    accountService.transferBatch(session, transfers);
+    appendDetails();
+  }
+
+  private void history() {
+    if (!hasArguments(2) || !isLoggedIn() || !hasAmount(1)) {
+      return;
+    }
+    long count = parser.getAmount();
+    long from = -1;
+    if (parser.getTokenCount() > 2) {
+      if (!hasAmount(2)) {
+        return;
+      }
+      from = parser.getAmount();
+      if (from < 0) {
+        response.append("ERROR History entry number cannot be less than 0.");
+        return;
+      }
+    }
+    List<HistoryEntry> entries = accountService.getHistory(session, from, count);
+    response.append("OK ").append(session.getAccount().getName()).append(" entries=")
+        .append(accountService.getHistorySize(session)).append(" history=[");
+    for (int i = 0; i < entries.size(); i++) {
+      if (i > 0) {
+        response.append(',');
+      }
+      response.append(entries.get(i));
+    }
+    response.append(']');
+  }
+
+  private boolean hasPairs() {
+    int count = parser.getTokenCount();
+    if (count > CommandBufferParser.MAX_TOKENS || count % 2 == 0) {
+      response.append("ERROR Every payee of a batch needs one amount, at most ")
+          .append((CommandBufferParser.MAX_TOKENS - 1) / 2).append(" payees.");
+      return false;
+    }
+    return true;
+  }
+
+  private boolean hasArguments(int count) {
+    if (parser.getTokenCount() < count) {
+      response.append("ERROR Not enough commands to execute an action.");
+      return false;
+    }
+    return true;
+  }
+
+  private boolean isLoggedIn() {
+    if (session == null) {
+      response.append("ERROR User not logged in. Please login first");
+      return false;
+    }
+    return true;
+  }
+
+  private boolean hasAmount(int index) {
+    if (!parser.parseAmount(index)) {
+      response.append("ERROR Input is not a valid Number=[").append(parser.getToken(index)).append("].");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * appends balance and debts of the session user, read by the balance query without taking its account lock
+   */
+  private void appendDetails() {
+    AccountBalance account = accountService.getBalanceQuery().query(session.getAccount());
+    appendDetails(account, account.getBalance());
+  }
+
+  private void appendDetails(AccountBalance account, long balance) {
+    response.append("OK ").append(account.getName()).append(" balance=").append(balance);
+    appendDebts(" owesTo=[", account.getOwesTo());
+    appendDebts(" owesFrom=[", account.getOwesFrom());
+  }
+
+  /**
+   * answers a command given with an idempotency key with the balance it left, a duplicate with the balance
+   * its first command left
+   */
+  private void appendOutcome(RequestOutcome outcome) {
+    switch (outcome.getStatus())
+    {
+      case NO_PAYEE:
+        response.append("ERROR Not a valid payee.");
+        return;
+      case SAME_ACCOUNT:
+        response.append("ERROR Cannot transfer to own account.");
+        return;
+      default:
+        break;
+    }
+    appendDetails(accountService.getBalanceQuery().query(session.getAccount()), outcome.getBalance());
+  }
+
+  private void appendDebts(String label, Map<String, Long> debts) {
+    response.append(label);
+    boolean first = true;
+    for (Map.Entry<String, Long> debt : debts.entrySet()) {
+      if (!first) {
+        response.append(',');
+      }
+      response.append(debt.getKey()).append('=').append(debt.getValue());
+      first = false;
+    }
+    response.append(']');
+  }
+
+  private void appendLineTooLong() {
+    response.setLength(0);
+    response.append("ERROR Command line longer than [").append(maxLineLength).append("] bytes.");
+    appendResponse();
+  }
+
+  /**
+   * copies the response and a new line to the output buffer, ASCII responses are copied without encoding
+   */
+  private void appendResponse() {
+    response.append('\n');
+    int length = response.length();
+    for (int i = 0; i < length; i++) {
+      if (response.charAt(i) >= 0x80) {
+        appendOutput(response.toString().getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+    }
+    ensureOutput(length);
+    for (int i = 0; i < length; i++) {
+      output[outputLength++] = (byte) response.charAt(i);
+    }
+  }
+
+  private void appendOutput(byte[] bytes) {
+    ensureOutput(bytes.length);
+    System.arraycopy(bytes, 0, output, outputLength, bytes.length);
+    outputLength += bytes.length;
+  }
+
+  private void ensureOutput(int length) {
+    if (outputLength + length > output.length) {
+      output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + length));
+    }
+  }
+
+  /**
+   * writes all pending responses with one socket write
+   */
+  private void flush(OutputStream out) throws IOException {
+    if (outputLength == 0) {
+      return;
+    }
+    out.write(output, 0, outputLength);
+    outputLength = 0;
+    server.responsesWritten();
+  }
+}
@@ -0,0 +1,300 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author viswa
+ *
+ * load generating client of the CommandServer.
+ * Opens a number of idle connections which only stay connected, then runs a number of active clients in parallel,
+ * each logging in as its own user and alternating topup and pay commands to the next client.
+ * With a pipeline depth of 1 the clients work in lock step, waiting for the response of every command;
+ * a larger depth sends that many commands with one write before reading their responses.
+ * Reports the throughput and latency percentiles of the commands, a pipelined command takes the round trip
+ * time of its whole batch, and how many of the idle connections were still served at the end.
+ *
+ * Usage: java server.LoadGenerator host port idleConnections activeClients commandsPerClient [pipelineDepth]
+ */
+public final class LoadGenerator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final long STARTING_BALANCE = 1_000_000L;
+
+  private final String host;
+  private final int port;
+
+  public LoadGenerator(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 5) {
+      LOGGER.error("Usage: java server.LoadGenerator host port idleConnections activeClients commandsPerClient [pipelineDepth]");
+      return;
+    }
+    LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]));
+    int pipelineDepth = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+    Report report = generator.run(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+        pipelineDepth);
+    LOGGER.info("{}", report);
+  }
+
+  /**
+   * runs the load in lock step and closes all connections afterwards
+   * @param idleConnections number of connections kept open without sending anything
+   * @param activeClients number of clients sending commands in parallel
+   * @param commandsPerClient number of topup/pay commands sent by every active client after its login
+   * @return report of the run
+   * @throws IOException if the idle connections cannot be opened
+   * @throws InterruptedException
+   */
+  public Report run(int idleConnections, int activeClients, int commandsPerClient) throws IOException, InterruptedException {
+    return run(idleConnections, activeClients, commandsPerClient, 1);
+  }
+
+  /**
+   * runs the load and closes all connections afterwards
+   * @throws IllegalArgumentException if pipelineDepth is less than 1
+   * @param idleConnections number of connections kept open without sending anything
+   * @param activeClients number of clients sending commands in parallel
+   * @param commandsPerClient number of topup/pay commands sent by every active client after its login
+   * @param pipelineDepth number of commands every client sends before reading their responses
+   * @return report of the run
+   * @throws IOException if the idle connections cannot be opened
+   * @throws InterruptedException
+   */
+  public Report run(int idleConnections, int activeClients, int commandsPerClient, int pipelineDepth)
+      throws IOException, InterruptedException {
+    if (pipelineDepth < 1) {
+      throw new IllegalArgumentException("Pipeline depth must be greater than 0.");
+    }
+    List<Socket> idle = new ArrayList<>(idleConnections);
+    try {
+      for (int i = 0; i < idleConnections; i++) {
+        idle.add(connect());
+      }
+      Report report = runActive(activeClients, commandsPerClient, pipelineDepth);
+      int rejected = 0;
+      for (Socket socket : idle) {
+        if (socket.getInputStream().available() > 0) {
+          rejected++;
+        }
+      }
+      report.idleConnections = idleConnections - rejected;
+      return report;
+    } finally {
+      for (Socket socket : idle) {
+        CommandServer.closeQuietly(socket);
+      }
+    }
+  }
+
+  private Report runActive(int activeClients, int commandsPerClient, int pipelineDepth) throws InterruptedException {
+    long[][] latencies = new long[activeClients][];
+    LongAdder errors = new LongAdder();
+    CountDownLatch loggedIn = new CountDownLatch(activeClients);
+    CountDownLatch finished = new CountDownLatch(activeClients);
+    List<Thread> threads = new ArrayList<>(activeClients);
+    for (int i = 0; i < activeClients; i++) {
+      final int client = i;
+      Thread thread = new Thread(() -> {
+        try {
+          latencies[client] = runClient(client, activeClients, commandsPerClient, pipelineDepth, loggedIn, errors);
+        } catch (IOException | InterruptedException e) {
+          errors.increment();
+          LOGGER.error("Load client=[{}] failed. Exception=[{}].", client, e.getMessage());
+        } finally {
+          finished.countDown();
+        }
+      }, "load-client-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+    }
+    threads.forEach(Thread::start);
+    loggedIn.await();
+    long startNanos = System.nanoTime();
+    finished.await();
+    long elapsedNanos = Math.max(1L, System.nanoTime() - startNanos);
+
+    int total = 0;
+    for (long[] client : latencies) {
+      total += client == null ? 0 : client.length;
+    }
+    long[] all = new long[total];
+    int offset = 0;
+    for (long[] client : latencies) {
+      if (client != null) {
+        System.arraycopy(client, 0, all, offset, client.length);
+        offset += client.length;
+      }
+    }
+    Arrays.sort(all);
+    Report report = new Report();
+    report.activeClients = activeClients;
+    report.pipelineDepth = pipelineDepth;
+    report.commands = total;
+    report.errors = errors.sum();
+    report.elapsedNanos = elapsedNanos;
+    report.latencies = all;
+    return report;
+  }
+
+  /**
+   * logs in, waits till every client is logged in, then sends the commands in batches of pipelineDepth
+   * @return latency in nanos of every command after the login
+   */
+  private long[] runClient(int client, int clients, int commands, int pipelineDepth, CountDownLatch loggedIn,
+      LongAdder errors) throws IOException, InterruptedException {
+    long[] latencies = new long[commands];
+    boolean counted = false;
+    try (Socket socket = connect()) {
+      OutputStream out = socket.getOutputStream();
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      send(out, in, "login load-" + client, errors);
+      send(out, in, "topup " + STARTING_BALANCE, errors);
+      loggedIn.countDown();
+      counted = true;
+      loggedIn.await();
+      byte[] topup = "topup 10\n".getBytes(StandardCharsets.US_ASCII);
+      byte[] pay = ("pay load-" + ((client + 1) % clients) + " 10\n").getBytes(StandardCharsets.US_ASCII);
+      ByteArrayOutputStream batch = new ByteArrayOutputStream(pipelineDepth * pay.length);
+      for (int first = 0; first < commands; first += pipelineDepth) {
+        int count = Math.min(pipelineDepth, commands - first);
+        batch.reset();
+        for (int i = first; i < first + count; i++) {
+          batch.write(i % 2 == 0 ? topup : pay);
+        }
+        long start = System.nanoTime();
+        batch.writeTo(out);
+        out.flush();
+        for (int i = 0; i < count; i++) {
+          String response = in.readLine();
+          if (response == null) {
+            throw new IOException("Connection closed by server.");
+          }
+          if (!response.startsWith("OK")) {
+            errors.increment();
+          }
+        }
+        Arrays.fill(latencies, first, first + count, System.nanoTime() - start);
+      }
+      out.write("exit\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      in.readLine();
+    } finally {
+      if (!counted) {
+        loggedIn.countDown();
+      }
+    }
+    return latencies;
+  }
+
+  private void send(OutputStream out, BufferedReader in, String command, LongAdder errors) throws IOException {
+    out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+    out.flush();
+    String response = in.readLine();
+    if (response == null) {
+      throw new IOException("Connection closed by server.");
+    }
+    if (!response.startsWith("OK")) {
+      errors.increment();
+    }
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      return socket;
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * outcome of a load run
+   */
+  public static final class Report {
+
+    private int idleConnections;
+    private int activeClients;
+    private int pipelineDepth;
+    private long commands;
+    private long errors;
+    private long elapsedNanos;
+    private long[] latencies;
+
+    /**
+     * @return number of idle connections which were still served at the end of the run
+     */
+    public int getIdleConnections() {
+      return idleConnections;
+    }
+
+    public int getActiveClients() {
+      return activeClients;
+    }
+
+    public int getPipelineDepth() {
+      return pipelineDepth;
+    }
+
+    /**
+     * @return number of commands sent by the active clients after their login
+     */
+    public long getCommands() {
+      return commands;
+    }
+
+    /**
+     * @return number of commands not answered with OK
+     */
+    public long getErrors() {
+      return errors;
+    }
+
+    public long getCommandsPerSecond() {
+      return (long) (commands * 1_000_000_000d / elapsedNanos);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return command latency in micros at the given percentile
+     */
+    public long getLatencyMicros(double percentile) {
+      if (latencies.length == 0) {
+        return 0L;
+      }
+      int index = (int) Math.ceil(percentile / 100d * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1000;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("[Load idle connections=[%d] active clients=[%d] pipeline depth=[%d] commands=[%d] errors=[%d] "
+          + "throughput=[%d] commands/sec latency p50=[%d] p99=[%d] p99.9=[%d] max=[%d] micros]",
+          idleConnections, activeClients, pipelineDepth, commands, errors, getCommandsPerSecond(),
+          getLatencyMicros(50), getLatencyMicros(99), getLatencyMicros(99.9), getLatencyMicros(100));
+    }
+  }
+}
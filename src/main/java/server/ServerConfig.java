@@ -0,0 +1,132 @@
+package server;
+
+import org.apache.commons.lang3.StringUtils;
+
+import admission.AdmissionConfig;
+
+/**
+ * @author viswa
+ *
+ * configuration of the network command server.
+ * At most maxConnections clients are served at once, further clients are told that the server is busy and disconnected.
+ * A command line longer than maxLineLength bytes closes its connection, and a connection without any input
+ * for idleTimeoutMillis is closed, 0 keeps idle connections open.
+ * The commands of all connections pass the admission control of the admission configuration, if there is one.
+ */
+public class ServerConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String PORT_PROPERTY = "bank.server.port";
+  public static final String MAX_CONNECTIONS_PROPERTY = "bank.server.maxConnections";
+  public static final String BACKLOG_PROPERTY = "bank.server.backlog";
+  public static final String MAX_LINE_LENGTH_PROPERTY = "bank.server.maxLineLength";
+  public static final String IDLE_TIMEOUT_PROPERTY = "bank.server.idleTimeoutMillis";
+
+  private int port = 7070;
+  private int maxConnections = 20_000;
+  private int backlog = 1024;
+  private int maxLineLength = 1024;
+  private int idleTimeoutMillis;
+  private AdmissionConfig admission;
+
+  /**
+   * builds the configuration from system properties, unset properties keep their defaults
+   * @return configuration
+   */
+  public static ServerConfig fromSystemProperties() {
+    ServerConfig config = new ServerConfig();
+    String port = System.getProperty(PORT_PROPERTY);
+    if (StringUtils.isNotBlank(port)) {
+      config.setPort(Integer.parseInt(port.trim()));
+    }
+    String maxConnections = System.getProperty(MAX_CONNECTIONS_PROPERTY);
+    if (StringUtils.isNotBlank(maxConnections)) {
+      config.setMaxConnections(Integer.parseInt(maxConnections.trim()));
+    }
+    String backlog = System.getProperty(BACKLOG_PROPERTY);
+    if (StringUtils.isNotBlank(backlog)) {
+      config.setBacklog(Integer.parseInt(backlog.trim()));
+    }
+    String maxLineLength = System.getProperty(MAX_LINE_LENGTH_PROPERTY);
+    if (StringUtils.isNotBlank(maxLineLength)) {
+      config.setMaxLineLength(Integer.parseInt(maxLineLength.trim()));
+    }
+    String idleTimeout = System.getProperty(IDLE_TIMEOUT_PROPERTY);
+    if (StringUtils.isNotBlank(idleTimeout)) {
+      config.setIdleTimeoutMillis(Integer.parseInt(idleTimeout.trim()));
+    }
+    config.setAdmission(AdmissionConfig.fromSystemProperties());
+    return config;
+  }
+
+  public int getPort() {
+    return port;
+  }
+  /**
+   * @param port 0 picks a free port
+   */
+  public ServerConfig setPort(int port) {
+    if (port < 0 || port > 0xFFFF) {
+      throw new IllegalArgumentException("Server port must be between 0 and 65535.");
+    }
+    this.port = port;
+    return this;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+  public ServerConfig setMaxConnections(int maxConnections) {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("Maximum connections must be greater than 0.");
+    }
+    this.maxConnections = maxConnections;
+    return this;
+  }
+
+  public int getBacklog() {
+    return backlog;
+  }
+  public ServerConfig setBacklog(int backlog) {
+    if (backlog < 1) {
+      throw new IllegalArgumentException("Server backlog must be greater than 0.");
+    }
+    this.backlog = backlog;
+    return this;
+  }
+
+  public int getMaxLineLength() {
+    return maxLineLength;
+  }
+  public ServerConfig setMaxLineLength(int maxLineLength) {
+    if (maxLineLength < 16) {
+      throw new IllegalArgumentException("Maximum line length must be at least 16.");
+    }
+    this.maxLineLength = maxLineLength;
+    return this;
+  }
+
+  public int getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+  public ServerConfig setIdleTimeoutMillis(int idleTimeoutMillis) {
+    if (idleTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Idle timeout cannot be less than 0.");
+    }
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    return this;
+  }
+
+  public AdmissionConfig getAdmission() {
+    return admission;
+  }
+  /**
+   * @param admission null executes every command without admission control
+   */
+  public ServerConfig setAdmission(AdmissionConfig admission) {
+    this.admission = admission;
+    return this;
+  }
+}
@@ -1,15 +1,43 @@
 package service;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import audit.AuditChannel;
+import audit.AuditConfig;
 import domain.Account;
+import domain.AccountBalance;
+import domain.AccountDirectory;
+import domain.AccountStore;
+import domain.BalanceStore;
+import domain.DebtLedger;
+import domain.Transfer;
+import history.HistoryConfig;
+import history.HistoryEntry;
+import history.TransactionHistory;
+import journal.AccountSnapshot;
+import journal.JournalConfig;
+import journal.JournalFiles;
+import journal.JournalRecovery;
+import journal.JournalSink;
+import journal.TransactionJournal;
+import metrics.Metrics;
+import util.AccountLocks;
+import util.TransactionListener;
 import util.TransactionUtil;
 
 /**
@@ -17,29 +45,169 @@ import util.TransactionUtil;
  * 
  * Service class to to operations on account objects.
  * this is a Singleton class so only one instance available per instance of application
- * stores account information in the private instance field
- * stores current user information in the private instance field
- * 
+ * stores account information in the private instance field, in an AccountDirectory indexed by account id,
+ * and the debts between the accounts in a DebtLedger
+ * loginUser returns an AccountSession handle which the other operations accept, so any number of users
+ * can be logged in at once. The methods without a session parameter work on the default (console) session
+ * account updates are guarded by the striped locks of AccountLocks, so concurrent sessions are safe
+ * when a journal is opened, every change is appended to it while the changed accounts are still locked
+ * when an audit channel is opened, every change is also queued to it, formatted and written by a background thread
+ * when a transaction history is opened, every topup, transfer and settlement is also added to the history of the
+ * accounts involved
+ * when the sequencer is started, account creations, topups and transfers are applied by the single writer thread
+ * of a SequencerEngine instead of under the account locks of the calling threads
+ * when the sharded engine is started, they are applied by the threads of a ShardedEngine, each owning a shard of the
+ * accounts and journaling to its own journal
+ * a replica is read only, its accounts change only by the snapshot and the journal records replicated from a leader
+ * the latencies of logins, topups, transfers and journal writes are recorded in its Metrics
+ * topups and transfers given with an idempotency key are applied once per key within the window of a DedupeCache
  */
 public final class AccountService {
   
   private static final Logger LOGGER = LoggerFactory.getLogger(AccountService.class);
   
   /*
-   * instance field to store account informations by user name to account data map
+   * yields and then park time of a duplicate request waiting for the outcome of the first one
+   */
+  private static final int DEDUPE_SPINS = 16;
+  private static final long DEDUPE_PARK_NANOS = 100_000L;
+  
+  /*
+   * instance field to store account informations by account id, names are turned into ids once
+   */
+  private final AccountDirectory userAccounts;
+  /*
+   * instance field to look up and store the accounts, loading the ones kept in an account file into userAccounts
+   */
+  private final AccountStore accountStore;
+  /*
+   * instance field to store the debts between the accounts
+   */
+  private final DebtLedger ledger;
+  /*
+   * instance field to read balances and debts without holding up the account changes
+   */
+  private final BalanceQuery balanceQuery;
+  /*
+   * instance field to store the metrics of this service
+   */
+  private final Metrics metrics;
+  /*
+   * instance field to store current user information of the default session
+   */
+  private final SessionContext defaultSession = new SessionContext();
+  /*
+   * instance field to store the write-ahead journal, null if journaling is not enabled
+   */
+  private volatile TransactionJournal journal;
+  /*
+   * instance field to store the scheduler of periodic snapshots, null if not scheduled
+   */
+  private ScheduledExecutorService snapshotScheduler;
+  /*
+   * lock object to take one snapshot at a time
+   */
+  private final Object snapshotLock = new Object();
+  /*
+   * instance field to store the audit channel, null if auditing is not enabled
+   */
+  private volatile AuditChannel audit;
+  /*
+   * instance field to store the transaction history, null if it is not enabled
+   */
+  private volatile TransactionHistory history;
+  /*
+   * instance field to start, stop and hold the execution engine, a SequencerEngine or a ShardedEngine
+   */
+  private final EngineControl engines;
+  /*
+   * instance field to recover the accounts from journals and apply replicated journal records
+   */
+  private final JournalRecovery recovery;
+  /*
+   * instance field to store whether this is a read only replica of a leader
    */
-  private final Map<String, Account> userAccounts;
+  private volatile boolean replica;
   /*
-   * instance field to store current user information
+   * instance field to store the settlement engine, null if debts are settled oldest first within the topup
    */
-  private Account currentUser;
+  private volatile SettlementEngine settlement;
+  /*
+   * instance field to store the netting job of the debt graph, null if it is not started
+   */
+  private volatile NettingJob netting;
+  /*
+   * instance field to store the idempotency keys of recent topups and transfers
+   */
+  private volatile DedupeCache dedupe = new DedupeCache(new DedupeConfig());
+  /*
+   * listener which appends the effects of TransactionUtil calls to the journal and the audit channel
+   */
+  private final TransactionListener journalListener = new TransactionListener() {
+    @Override
+    public void onTransfer(Account payer, Account payee, long netted, long moved, long deficit) {
+      TransactionJournal current = journal;
+      if (current != null) {
+        current.appendTransfer(payer.getName(), payee.getName(), netted, moved, deficit);
+      }
+      AuditChannel currentAudit = audit;
+      if (currentAudit != null) {
+        currentAudit.recordTransfer(payer.getId(), payee.getId(), netted, moved, deficit);
+      }
+      TransactionHistory currentHistory = history;
+      if (currentHistory != null) {
+        currentHistory.recordTransfer(payer.getId(), payee.getId(), netted, moved, deficit);
+      }
+    }
+    @Override
+    public void onSettlement(Account debtor, Account creditor, long amount) {
+      TransactionJournal current = journal;
+      if (current != null) {
+        current.appendSettlement(debtor.getName(), creditor.getName(), amount);
+      }
+      AuditChannel currentAudit = audit;
+      if (currentAudit != null) {
+        currentAudit.recordSettlement(debtor.getId(), creditor.getId(), amount);
+      }
+      TransactionHistory currentHistory = history;
+      if (currentHistory != null) {
+        currentHistory.recordSettlement(debtor.getId(), creditor.getId(), amount);
+      }
+    }
+    @Override
+    public void onNetting(Account debtor, Account creditor, long change) {
+      TransactionJournal current = journal;
+      if (current != null) {
+        current.appendNetting(debtor.getName(), creditor.getName(), change);
+      }
+      AuditChannel currentAudit = audit;
+      if (currentAudit != null) {
+        currentAudit.recordNetting(debtor.getId(), creditor.getId(), change);
+      }
+    }
+  };
+  
+  /**
+   * constructor for this class, package private so that tests can use an isolated instance
+   * the balance store is selected by the system properties, see BalanceStore
+   * calls private method addInitialAccounts to setup few intial account infos
+   */
+  AccountService() {
+    this(BalanceStore.fromSystemProperties());
+  }
   
   /**
-   * private constructor for this class
-   * calls private method getInitialAccounts to setup few intial account infos
+   * constructor for this class with the given balance store, package private for tests
    */
-  private AccountService() {
-    userAccounts = getInitialAccounts();
+  AccountService(BalanceStore balances) {
+    userAccounts = new AccountDirectory(balances);
+    ledger = new DebtLedger(userAccounts);
+    accountStore = AccountStore.of(ledger);
+    balanceQuery = new BalanceQuery(userAccounts);
+    metrics = new Metrics(userAccounts::size, ledger::totalAmount);
+    engines = new EngineControl(this, userAccounts, ledger);
+    recovery = new JournalRecovery(ledger, accountStore, this::addInitialAccounts);
+    addInitialAccounts();
   }
   
   /**
@@ -64,22 +232,605 @@ public final class AccountService {
   }
   
   /**
-   * method used to do initial setup for accounts
-   * @return map couple of initial userAccounts, with name as key and account as value 
+   * method used to do initial setup for accounts, adds couple of initial userAccounts
+   * unless they are already kept in the account store
    */
-  private Map<String, Account> getInitialAccounts() {
-    Map<String, Account> userAccounts = new HashMap<String, Account>();
-    userAccounts.put("Alice", new Account("Alice").setBalance(0L));
-    userAccounts.put("Bob", new Account("Bob").setBalance(0L));
-    return userAccounts;
+  private void addInitialAccounts() {
+    for (String name : new String[] {"Alice", "Bob"}) {
+      if (accountStore.get(name) == null) {
+        accountStore.put(new Account(name, ledger).setBalance(0L));
+      }
+    }
   }
   
   /**
    * method to clear existing account information and loggedIn user
    */
   public void clearAccounts() {
-    this.userAccounts.clear();
-    this.currentUser = null;
+    checkWritable();
+    try {
+      runExclusive(() -> {
+        this.userAccounts.clear();
+        this.ledger.clear();
+        this.defaultSession.setSession(null);
+        TransactionJournal current = journal;
+        if (current != null) {
+          current.appendReset();
+        }
+        ExecutionEngine currentEngine = engines.current();
+        if (currentEngine != null) {
+          currentEngine.journalReset();
+        }
+        AuditChannel currentAudit = audit;
+        if (currentAudit != null) {
+          currentAudit.recordReset();
+        }
+        TransactionHistory currentHistory = history;
+        if (currentHistory != null) {
+          currentHistory.reset();
+        }
+        dedupe.clear();
+        return null;
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    commitJournal();
+  }
+  
+  /**
+   * runs the task while no account is changed by any other thread: under all account locks,
+   * or through the execution engine when it is started
+   * @return result of the task
+   * @throws IOException if the task throws it
+   */
+  private <T> T runExclusive(Callable<T> task) throws IOException {
+    return engines.runExclusive(task);
+  }
+  
+  /**
+   * recovers the accounts from the journal directory, see JournalRecovery, and keeps appending every later change
+   * to the journal
+   * periodic snapshots are started when the configuration asks for them
+   * @throws IllegalStateException if a journal is already open
+   * @throws IOException if journal cannot be read or opened
+   */
+  public synchronized void openJournal(JournalConfig config) throws IOException {
+    if (config == null || config.getDirectory() == null) {
+      throw new IllegalArgumentException("Journal directory is not configured.");
+    }
+    if (journal != null) {
+      throw new IllegalStateException("Journal already opened.");
+    }
+    if (replica) {
+      throw new IllegalStateException("A replica keeps no journal.");
+    }
+    if (engines.isStarted()) {
+      throw new IllegalStateException("Journal must be opened before the execution engine is started.");
+    }
+    TransactionJournal opened = recovery.openJournal(config);
+    opened.setWriteLatency(metrics.getJournalWrite());
+    journal = opened;
+    if (config.getSnapshotIntervalSeconds() > 0) {
+      snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "account-snapshot");
+        thread.setDaemon(true);
+        return thread;
+      });
+      snapshotScheduler.scheduleWithFixedDelay(this::takeScheduledSnapshot, config.getSnapshotIntervalSeconds(),
+          config.getSnapshotIntervalSeconds(), TimeUnit.SECONDS);
+    }
+  }
+  
+  /**
+   * stops periodic snapshots, flushes and closes the journal, later changes are not journaled anymore
+   * @throws IOException if pending records cannot be written
+   */
+  public synchronized void closeJournal() throws IOException {
+    ScheduledExecutorService scheduler = snapshotScheduler;
+    snapshotScheduler = null;
+    if (scheduler != null) {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    TransactionJournal current = journal;
+    journal = null;
+    if (current != null) {
+      current.close();
+    }
+  }
+  
+  /**
+   * @return true if the journal is open
+   */
+  public boolean isJournalOpen() {
+    return journal != null;
+  }
+  
+  /**
+   * starts writing an audit record of every later account change to the audit file, asynchronously
+   * @throws IllegalStateException if an audit channel is already open
+   * @throws IOException if audit file cannot be opened
+   */
+  public synchronized void openAudit(AuditConfig config) throws IOException {
+    if (audit != null) {
+      throw new IllegalStateException("Audit channel already opened.");
+    }
+    audit = AuditChannel.open(config, userAccounts);
+  }
+  
+  /**
+   * writes the pending audit records and closes the audit channel
+   * @throws IOException if audit file cannot be closed
+   */
+  public synchronized void closeAudit() throws IOException {
+    AuditChannel current = audit;
+    audit = null;
+    if (current != null) {
+      current.close();
+    }
+  }
+  
+  /**
+   * starts adding every later topup, transfer and settlement to the transaction history of the accounts involved
+   * @throws IllegalStateException if a history is already open
+   * @throws IOException if the history cannot be opened
+   */
+  public synchronized void openHistory(HistoryConfig config) throws IOException {
+    if (history != null) {
+      throw new IllegalStateException("History already opened.");
+    }
+    history = TransactionHistory.open(config, userAccounts);
+  }
+  
+  /**
+   * closes the transaction history, later changes are not added to it anymore
+   * @throws IOException if the history cannot be closed
+   */
+  public synchronized void closeHistory() throws IOException {
+    TransactionHistory current = history;
+    history = null;
+    if (current != null) {
+      current.close();
+    }
+  }
+  
+  /**
+   * method to get a page of the transaction history of the current user of the default session
+   * @see #getHistory(AccountSession, long, int)
+   * @return entries oldest first
+   */
+  public List<HistoryEntry> getHistory(long from, long count) {
+    return getHistory(defaultSession.getSession(), from, count);
+  }
+  
+  /**
+   * @return number of entries in the transaction history of the current user of the default session
+   */
+  public long getHistorySize() {
+    return getHistorySize(defaultSession.getSession());
+  }
+  
+  /**
+   * method to get a page of the transaction history of the user of the given session handle
+   * @throws IllegalStateException if the history is not enabled
+   * @throws IllegalArgumentException if count is not between 1 and TransactionHistory.MAX_PAGE_SIZE
+   * @param from number of the first entry, negative for the latest entries
+   * @param count number of entries
+   * @return entries oldest first
+   */
+  public List<HistoryEntry> getHistory(AccountSession session, long from, long count) {
+    TransactionHistory current = history;
+    if (current == null) {
+      throw new IllegalStateException("Transaction history is not enabled.");
+    }
+    if (session == null) {
+      throw new IllegalStateException("User not logged in. Please login first");
+    }
+    if (count < 1 || count > TransactionHistory.MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException("History page size must be between 1 and " + TransactionHistory.MAX_PAGE_SIZE
+          + ".");
+    }
+    int id = session.getAccount().getId();
+    return from < 0 ? current.lastEntries(id, (int) count) : current.entries(id, from, (int) count);
+  }
+  
+  /**
+   * @return number of entries in the transaction history of the user of the given session handle, 0 if not enabled
+   */
+  public long getHistorySize(AccountSession session) {
+    TransactionHistory current = history;
+    if (current == null || session == null) {
+      return 0L;
+    }
+    return current.getEntryCount(session.getAccount().getId());
+  }
+  
+  /**
+   * streams the statements of all accounts, with their transactions when the history is enabled, into the configured
+   * file; the accounts keep changing meanwhile, every account is written as left by one completed change
+   * @see StatementExporter
+   * @return number of exported accounts
+   * @throws IOException if the statement file cannot be written
+   */
+  public long exportStatements(StatementConfig config) throws IOException {
+    return StatementExporter.export(config, userAccounts, ledger, history);
+  }
+  
+  /**
+   * switches to the single writer execution mode: from now on account creations, topups and transfers are
+   * applied in sequence by the business logic thread of a SequencerEngine, which also journals them
+   * the journal, if any, must be opened before
+   * @throws IllegalStateException if an execution engine is already started
+   */
+  public synchronized void startSequencer(SequencerConfig config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Sequencer config cannot be null.");
+    }
+    if (engines.isStarted()) {
+      throw new IllegalStateException("Execution engine already started.");
+    }
+    checkNoSettlement();
+    checkNoNetting();
+    engines.startSequencer(config);
+  }
+  
+  /**
+   * applies the commands already given to the sequencer and switches back to applying them under account locks
+   */
+  public synchronized void stopSequencer() {
+    engines.stopSequencer();
+  }
+  
+  /**
+   * @return true if commands are applied by the sequencer
+   */
+  public boolean isSequencerStarted() {
+    return engines.isSequencerStarted();
+  }
+  
+  /**
+   * switches to the sharded execution mode: from now on account creations, topups and transfers are applied by the
+   * threads of a ShardedEngine, each owning the accounts of one shard. When the configuration has a journal, the
+   * accounts are first recovered from the journals of the shards, which the engine then keeps appending to;
+   * the journal of this service is not used in this mode, so snapshots are not taken either
+   * @throws IllegalStateException if an execution engine is already started, the journal is open or the journals
+   * of the shards would have to recover a persistent account store
+   * @throws IOException if the journals of the shards cannot be read or opened
+   */
+  public synchronized void startShardedEngine(ShardConfig config) throws IOException {
+    if (config == null) {
+      throw new IllegalArgumentException("Shard config cannot be null.");
+    }
+    if (engines.isStarted()) {
+      throw new IllegalStateException("Execution engine already started.");
+    }
+    if (journal != null) {
+      throw new IllegalStateException("Sharded engine keeps its own journals, the journal must not be open.");
+    }
+    if (config.getJournal() != null && accountStore.isPersistent()) {
+      throw new IllegalStateException("Sharded journals take no snapshots, so they cannot recover the account file.");
+    }
+    checkNoSettlement();
+    checkNoNetting();
+    TransactionJournal[] journals = null;
+    if (config.getJournal() != null) {
+      journals = recovery.openShardJournals(config.getJournal(), config.getShardCount());
+      for (TransactionJournal shardJournal : journals) {
+        shardJournal.setWriteLatency(metrics.getJournalWrite());
+      }
+    }
+    engines.startSharded(config, journals);
+  }
+  
+  /**
+   * applies the commands already given to the shards, closes their journals
+   * and switches back to applying the commands under account locks
+   */
+  public synchronized void stopShardedEngine() {
+    engines.stopSharded();
+  }
+  
+  /**
+   * @return true if commands are applied by the sharded engine
+   */
+  public boolean isShardedEngineStarted() {
+    return engines.currentSharded() != null;
+  }
+  
+  /**
+   * starts the settlement engine: from now on the debts of a topped up account are paid off in the configured order,
+   * and, when the number per topup is bounded, the ones left are paid off by a background settler
+   * @throws IllegalStateException if the settlement engine or an execution engine is already started
+   */
+  public synchronized void startSettlement(SettlementConfig config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Settlement config cannot be null.");
+    }
+    if (settlement != null) {
+      throw new IllegalStateException("Settlement engine already started.");
+    }
+    if (engines.isStarted()) {
+      throw new IllegalStateException("Settlement engine works in the locking mode, execution engine already started.");
+    }
+    settlement = SettlementEngine.start(config, userAccounts, ledger, debtor -> {
+      boolean unsettled = checkOwesToAndPay(debtor);
+      commitJournal();
+      return unsettled;
+    });
+  }
+  
+  /**
+   * stops the background settler, settling the debtors still waiting for it on the calling thread,
+   * and switches back to settling all debts oldest first within the topup
+   */
+  public synchronized void stopSettlement() {
+    SettlementEngine current = settlement;
+    if (current != null) {
+      current.close();
+      settlement = null;
+    }
+  }
+  
+  /**
+   * @return true if the settlement engine is started
+   */
+  public boolean isSettlementStarted() {
+    return settlement != null;
+  }
+  
+  /**
+   * @return started settlement engine, null if there is none
+   */
+  SettlementEngine currentSettlement() {
+    return settlement;
+  }
+  
+  /**
+   * @throws IllegalStateException if the settlement engine is started, as its settler changes accounts under locks
+   */
+  private void checkNoSettlement() {
+    if (settlement != null) {
+      throw new IllegalStateException("Settlement engine must be stopped before an execution engine is started.");
+    }
+  }
+  
+  /**
+   * starts the netting job, which nets the debts created or grown since its previous run every configured interval:
+   * cycles of debts are cancelled and chains are compressed, balances are not touched
+   * @throws IllegalStateException if the netting job or an execution engine is already started, or this is a replica
+   */
+  public synchronized void startNetting(NettingConfig config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Netting config cannot be null.");
+    }
+    if (netting != null) {
+      throw new IllegalStateException("Netting job already started.");
+    }
+    checkNettable();
+    netting = NettingJob.start(config, userAccounts, ledger, journalListener, this::commitJournal);
+  }
+  
+  /**
+   * stops the netting job, a run in progress is finished first
+   */
+  public synchronized void stopNetting() {
+    NettingJob current = netting;
+    if (current != null) {
+      netting = null;
+      current.close();
+    }
+  }
+  
+  /**
+   * @return true if the netting job is started
+   */
+  public boolean isNettingStarted() {
+    return netting != null;
+  }
+  
+  /**
+   * @return started netting job, null if there is none
+   */
+  NettingJob currentNetting() {
+    return netting;
+  }
+  
+  /**
+   * nets the debt graph now, by the started netting job or else by a sequential one for this run only
+   * @throws IllegalStateException if an execution engine is started or this is a replica
+   * @param changedOnly true to net only the debts created or grown since the previous run, false for all debts
+   * @return amount by which the sum of all debts went down
+   */
+  public synchronized long netDebts(boolean changedOnly) {
+    checkNettable();
+    NettingJob current = netting;
+    if (current != null) {
+      return current.run(changedOnly);
+    }
+    try (NettingJob job = NettingJob.start(new NettingConfig().setIntervalMillis(0L), userAccounts, ledger,
+        journalListener, this::commitJournal)) {
+      return job.run(changedOnly);
+    }
+  }
+  
+  /**
+   * @throws IllegalStateException if an execution engine is started, as netting changes accounts under locks,
+   * or if this is a replica
+   */
+  private void checkNettable() {
+    checkWritable();
+    if (engines.isStarted()) {
+      throw new IllegalStateException("Netting job works in the locking mode, execution engine already started.");
+    }
+  }
+  
+  /**
+   * @throws IllegalStateException if the netting job is started, as it changes debts under locks
+   */
+  private void checkNoNetting() {
+    if (netting != null) {
+      throw new IllegalStateException("Netting job must be stopped before an execution engine is started.");
+    }
+  }
+  
+  /**
+   * @return started sharded engine, null if there is none
+   */
+  ShardedEngine currentShardedEngine() {
+    return engines.currentSharded();
+  }
+  
+  /**
+   * @return open journal, null if journaling is not enabled
+   */
+  TransactionJournal currentJournal() {
+    return journal;
+  }
+  
+  /**
+   * @return open audit channel, null if auditing is not enabled
+   */
+  AuditChannel currentAudit() {
+    return audit;
+  }
+  
+  /**
+   * @return open transaction history, null if it is not enabled
+   */
+  TransactionHistory currentHistory() {
+    return history;
+  }
+  
+  /**
+   * takes a snapshot of all accounts. All account locks are held, or the engine applies nothing else, only while
+   * the journal is rolled to a new segment and the accounts are encoded in memory; the file is written afterwards.
+   * Older snapshots and journal segments which are no longer needed are deleted afterwards,
+   * the previous snapshot is kept as fallback
+   * @throws IllegalStateException if no journal is open
+   * @throws IOException if snapshot cannot be written
+   * @return journal sequence of the snapshot
+   */
+  public long takeSnapshot() throws IOException {
+    synchronized (snapshotLock) {
+      TransactionJournal current = journal;
+      if (current == null) {
+        throw new IllegalStateException("Journal is not open.");
+      }
+      long startNanos = System.nanoTime();
+      ByteBuffer content = runExclusive(() -> AccountSnapshot.encode(current.roll(), ledger, accountStore));
+      long sequence = AccountSnapshot.sequenceOf(content);
+      long pauseNanos = System.nanoTime() - startNanos;
+      Path directory = current.getDirectory();
+      AccountSnapshot.write(directory, sequence, content);
+      Long previous = JournalFiles.listSnapshots(directory).lowerKey(sequence);
+      if (previous != null) {
+        JournalFiles.deleteBefore(directory, previous);
+      }
+      LOGGER.info("Snapshot taken at sequence=[{}] size=[{}] bytes, accounts locked for [{}] ms, total [{}] ms.", sequence,
+          content.limit(), pauseNanos / 1_000_000, (System.nanoTime() - startNanos) / 1_000_000);
+      return sequence;
+    }
+  }
+  
+  /**
+   * starts replicating the journal to the sink: a snapshot of all accounts is encoded and the sink is added
+   * to the journal while no account changes, so the sink gets the records of every change after the snapshot
+   * and the records synced before may be skipped by their sequence
+   * @throws IllegalStateException if no journal is open
+   * @throws IOException if the journal fails
+   * @return snapshot content, its sequence is the one of the last journal record it includes
+   */
+  public ByteBuffer openReplicationStream(JournalSink sink) throws IOException {
+    if (sink == null) {
+      throw new IllegalArgumentException("Journal sink cannot be null.");
+    }
+    TransactionJournal current = journal;
+    if (current == null) {
+      throw new IllegalStateException("Journal is not open.");
+    }
+    return runExclusive(() -> {
+      current.addSink(sink);
+      return AccountSnapshot.encode(current.getAppendedSequence(), ledger, accountStore);
+    });
+  }
+  
+  /**
+   * stops replicating the journal to the sink
+   */
+  public void closeReplicationStream(JournalSink sink) {
+    TransactionJournal current = journal;
+    if (current != null) {
+      current.removeSink(sink);
+    }
+  }
+  
+  /**
+   * makes this service a read only replica: from now on accounts can only be changed by loadReplicaSnapshot
+   * and applyReplicatedRecords, logins of existing accounts still work for reading their balance and debts
+   * @throws IllegalStateException if the journal is open or an execution engine is started
+   */
+  public synchronized void startReplica() {
+    if (journal != null || engines.isStarted()) {
+      throw new IllegalStateException("A replica keeps no journal and no execution engine.");
+    }
+    replica = true;
+  }
+  
+  /**
+   * @return true if this is a read only replica
+   */
+  public boolean isReplica() {
+    return replica;
+  }
+  
+  /**
+   * replaces all accounts by the ones of the snapshot content received from the leader
+   * @throws IOException if content is not a valid snapshot
+   * @return journal sequence of the snapshot
+   */
+  public long loadReplicaSnapshot(ByteBuffer content) throws IOException {
+    return runExclusive(() -> {
+      userAccounts.clear();
+      ledger.clear();
+      defaultSession.setSession(null);
+      return AccountSnapshot.decode(content, ledger, accountStore);
+    });
+  }
+  
+  /**
+   * applies the journal records received from the leader, all at once under all account locks
+   * @throws IOException if a record is incomplete or corrupt
+   * @param records records in journal file layout
+   * @param afterSequence records up to this sequence are already applied and skipped
+   * @return sequence of the last applied record, afterSequence if none was applied
+   */
+  public long applyReplicatedRecords(ByteBuffer records, long afterSequence) throws IOException {
+    return runExclusive(() -> recovery.replay(records, afterSequence));
+  }
+  
+  /**
+   * @throws IllegalStateException if this is a read only replica
+   */
+  private void checkWritable() {
+    if (replica) {
+      throw new IllegalStateException("Accounts are read only on a replica.");
+    }
+  }
+  
+  /**
+   * snapshot task of the scheduler, failures are logged and retried at the next interval
+   */
+  private void takeScheduledSnapshot() {
+    try {
+      takeSnapshot();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Unable to take snapshot. Exception=[{}].", e.getMessage());
+    }
   }
   
   /**
@@ -89,15 +840,58 @@ public final class AccountService {
    * returns empty Optional if no match found
    */
   public Optional<Account> getAccount(String name) {
-    LOGGER.info("Getting User Account by Name=[{}].", name);
+    LOGGER.debug("Getting User Account by Name=[{}].", name);
     if (StringUtils.isBlank(name)) {
       throw new IllegalArgumentException("Input name is null/empty");
     }
-    Account account = userAccounts.get(name);
-    LOGGER.info("Got User Account=[{}] by Name=[{}].", account, name);
+    Account account = accountStore.get(name);
+    LOGGER.debug("Got User Account=[{}] by Name=[{}].", account, name);
     return Optional.ofNullable(account);
   }
   
+  /**
+   * get user account by account id
+   * @return An Optional enclosing Account object for the id, returns empty Optional if no match found
+   */
+  public Optional<Account> getAccount(int id) {
+    return Optional.ofNullable(accountStore.get(id));
+  }
+  
+  /**
+   * @return query reading the balance and the debts of accounts without taking their locks
+   */
+  public BalanceQuery getBalanceQuery() {
+    return balanceQuery;
+  }
+  
+  /**
+   * get the account id of the user name, the name is hashed here once so that later calls can use the id
+   * an account kept in the account store is loaded, an unknown name is mostly ruled out by its Bloom filter
+   * @return account id, -1 if there is no account of the name
+   */
+  public int getAccountId(String name) {
+    Account account = accountStore.get(name);
+    return account == null ? -1 : account.getId();
+  }
+  
+  /**
+   * @return store of the accounts, with the hit, miss and eviction counters of its cache
+   */
+  public AccountStore getAccountStore() {
+    return accountStore;
+  }
+  
+  /**
+   * writes the balances changed since the last flush to the account store, if it keeps them in a file
+   * @throws IOException if the account store cannot be written
+   */
+  public void flushAccountStore() throws IOException {
+    accountStore.flush();
+    LOGGER.info("Flushed account store, cache hits=[{}] misses=[{}] evictions=[{}] filtered lookups=[{}].",
+        accountStore.getHitCount(), accountStore.getMissCount(), accountStore.getEvictionCount(),
+        accountStore.getFilteredCount());
+  }
+  
   /**
    * adds account created based on given name and balance values to the UserAccounts
    * @throws IllegalArgumentException if input name is null or empty 
@@ -108,171 +902,605 @@ public final class AccountService {
     if (StringUtils.isBlank(name)) {
       throw new IllegalArgumentException("Input name is null/empty");
     }
+    checkWritable();
     LOGGER.info("Creating User Account with Name=[{}] Balance=[{}].", name, balance);
-    Account account = new Account(name).setBalance(balance);
-    this.userAccounts.put(name, account);
+    ExecutionEngine currentEngine = engines.current();
+    if (currentEngine != null) {
+      currentEngine.add(userAccounts.intern(name), balance);
+      LOGGER.info("Successfully created User Account with Name=[{}] Balance=[{}].", name, balance);
+      return;
+    }
+    Account account = new Account(name, ledger);
+    AccountLocks.lock(account);
+    try {
+      account.setBalance(balance);
+      accountStore.put(account);
+      appendAccount(account);
+    } finally {
+      AccountLocks.unlock(account);
+    }
+    commitJournal();
     LOGGER.info("Successfully created User Account with Name=[{}] Balance=[{}].", name, balance);
   }
   
   /**
    * method to log in the user based on given name
    * if account not already exists for the name, then creates new account with default balance value 
+   * the user also becomes the current user of the default (console) session
    * @throws IllegalArgumentException if input name is null or empty
-   * @param name
+   * @return session handle of the logged in user
    */
-  public void loginUser(String name) {
+  public AccountSession loginUser(String name) {
+    return loginUser(defaultSession, name);
+  }
+  
+  /**
+   * method to log in the user based on given name in the given session context
+   * if account not already exists for the name, then creates new account with default balance value 
+   * @throws IllegalArgumentException if input name is null or empty
+   * @return session handle of the logged in user
+   */
+  public AccountSession loginUser(SessionContext context, String name) {
+    AccountSession session = openSession(name);
+    context.setSession(session);
+    return session;
+  }
+  
+  /**
+   * method to log in the user based on given name without touching any session context
+   * if account not already exists for the name, then creates new account with default balance value 
+   * @throws IllegalArgumentException if input name is null or empty
+   * @return session handle of the logged in user
+   */
+  public AccountSession openSession(String name) {
+    long startNanos = System.nanoTime();
+    try {
+      return open(name);
+    } finally {
+      metrics.getLogin().recordSince(startNanos);
+    }
+  }
+  
+  /**
+   * opens the session of the given name, creating its account if needed
+   * @return session handle of the logged in user
+   */
+  private AccountSession open(String name) {
     LOGGER.info("Trying to login user with name=[{}].", name);
     if (StringUtils.isBlank(name)) {
       throw new IllegalArgumentException("Input name is null/empty");
     }
-    Optional<Account> loginUser = this.getAccount(name);
-    if (loginUser.isEmpty()) {
+    Account account = accountStore.get(name);
+    if (account == null) {
+      checkWritable();
+    }
+    ExecutionEngine currentEngine = engines.current();
+    if (account == null && currentEngine != null) {
+      LOGGER.warn("Creating user since Account not exists for the user. name=[{}].", name);
+      account = currentEngine.open(userAccounts.intern(name));
+    } else if (account == null) {
       LOGGER.warn("Creating user since Account not exists for the user. name=[{}].", name);
-      this.addAccount(name, 0);
-      currentUser = this.getAccount(name).get();
+      Account newAccount = new Account(name, ledger);
+      AccountLocks.lock(newAccount);
+      try {
+        account = accountStore.get(newAccount.getId());
+        if (account == null) {
+          account = newAccount.setBalance(0L);
+          accountStore.put(newAccount);
+          appendAccount(newAccount);
+        }
+      } finally {
+        AccountLocks.unlock(newAccount);
+      }
+      commitJournal();
     } else {
       LOGGER.info("Account already exists for the user. name=[{}].", name);
-      currentUser = loginUser.get();
     }
-    LOGGER.info("Hello, [{}].", currentUser.getName());
-    printCurrentUserBalance();
-    printCurrentUserOwesTo();
-    printCurrentUserOwesFrom();
+    AccountSession session = new AccountSession(account);
+    LOGGER.info("Hello, [{}].", account.getName());
+    printSessionDetails(session);
+    return session;
   }
   
   /**
-   * method to top up balance for the current user
+   * method to top up balance for the current user of the default session
    * the user should be already loggedIn for successful completion
    * @throws IllegalArgumentException if top up amount is negative value
    * this method also do credit/debit adjustments after top up 
-   * @param amount
    */
   public void topupBalance(long amount) {
-    LOGGER.info("Topping up balance for the current user. Amount=[{}].", amount);
-    if (!isLoggedIn()) {
+    topupBalance(defaultSession, amount);
+  }
+  
+  /**
+   * method to top up balance for the current user of the default session at most once per idempotency key
+   * @see #topupBalance(AccountSession, long, long)
+   * @return outcome of the topup, the earlier one for a duplicate
+   */
+  public RequestOutcome topupBalance(long amount, long requestKey) {
+    return topupBalance(defaultSession.getSession(), amount, requestKey);
+  }
+  
+  /**
+   * method to top up balance for the user of the given session handle at most once per idempotency key
+   * a topup or transfer of the same user with the same key within the dedupe window is not applied again,
+   * it is answered with the outcome of the first one instead. A topup which fails can be tried again with its key
+   * @throws IllegalArgumentException if top up amount is negative value
+   * @param requestKey hash of the idempotency key, see CommandBufferParser.keyOf
+   * @return outcome of the topup, the earlier one for a duplicate
+   */
+  public RequestOutcome topupBalance(AccountSession session, long amount, long requestKey) {
+    return applyOnce(session, requestKey, () -> timedTopup(session, amount));
+  }
+  
+  /**
+   * method to top up balance for the current user of the given session context
+   * the user should be already loggedIn for successful completion
+   * @throws IllegalArgumentException if top up amount is negative value
+   */
+  public void topupBalance(SessionContext context, long amount) {
+    topupBalance(context.getSession(), amount);
+  }
+  
+  /**
+   * method to top up balance for the user of the given session handle
+   * @throws IllegalArgumentException if top up amount is negative value
+   * this method also do credit/debit adjustments after top up 
+   */
+  public void topupBalance(AccountSession session, long amount) {
+    timedTopup(session, amount);
+  }
+  
+  /**
+   * tops up like topupBalance and reports the status for the dedupe table
+   * @return APPLIED, or NOT_LOGGED_IN without a session
+   */
+  private RequestOutcome.Status timedTopup(AccountSession session, long amount) {
+    long startNanos = System.nanoTime();
+    try {
+      return topup(session, amount);
+    } finally {
+      metrics.getTopup().recordSince(startNanos);
+    }
+  }
+  
+  /**
+   * tops up the balance of the user of the given session handle and pays off its debts
+   * @return APPLIED, or NOT_LOGGED_IN without a session
+   */
+  private RequestOutcome.Status topup(AccountSession session, long amount) {
+    LOGGER.debug("Topping up balance for the current user. Amount=[{}].", amount);
+    if (session == null) {
       LOGGER.error("User not logged in. Please login first");
-      return;
+      return RequestOutcome.Status.NOT_LOGGED_IN;
     }
     if (amount < 0) {
       throw new IllegalArgumentException("Amount cannot be less than 0.");
     }
-    long prevBalance = currentUser.getBalance();
-    currentUser.setBalance(amount + prevBalance);
-    checkCurrentUserOwesToAndPay();
-    printCurrentUserBalance();
-    printCurrentUserOwesTo();
-    printCurrentUserOwesFrom();
+    checkWritable();
+    ExecutionEngine currentEngine = engines.current();
+    if (currentEngine != null) {
+      currentEngine.topup(session.getAccount().getId(), amount);
+      printSessionDetails(session);
+      return RequestOutcome.Status.APPLIED;
+    }
+    Account currentUser = session.getAccount();
+    AccountLocks.lock(currentUser);
+    try {
+      currentUser.setBalance(amount + currentUser.getBalance());
+      TransactionJournal current = journal;
+      if (current != null) {
+        current.appendTopup(currentUser.getName(), amount);
+      }
+      AuditChannel currentAudit = audit;
+      if (currentAudit != null) {
+        currentAudit.recordTopup(currentUser.getId(), amount);
+      }
+      TransactionHistory currentHistory = history;
+      if (currentHistory != null) {
+        currentHistory.recordTopup(currentUser.getId(), amount);
+      }
+    } finally {
+      AccountLocks.unlock(currentUser);
+    }
+    boolean unsettled = checkOwesToAndPay(currentUser);
+    commitJournal();
+    SettlementEngine currentSettlement = settlement;
+    if (unsettled && currentSettlement != null) {
+      currentSettlement.defer(currentUser);
+    }
+    printSessionDetails(session);
+    return RequestOutcome.Status.APPLIED;
   }
   
   /**
-   * method to transfer amount based on the given name
+   * method to transfer amount based on the given name from the current user of the default session
    * the user should be already loggedIn for successful completion
    * the name also should have corresponding account information
    * @throws IllegalArgumentException if input name is null or empty
    * @throws IllegalArgumentException if transfer amount is negative value
    * this method also takes into account of credit/debit between current and target accounts
-   * @param name 
-   * @param amount
    */
   public void transferAmount(String name, long amount) {
-    LOGGER.info("Transferring amount=[{}] to the user=[{}].", amount, name);
+    transferAmount(defaultSession, name, amount);
+  }
+  
+  /**
+   * method to transfer amount from the current user of the default session at most once per idempotency key
+   * @see #transferAmount(AccountSession, int, long, long)
+   * @throws IllegalArgumentException if input name is null or empty
+   * @return outcome of the transfer, the earlier one for a duplicate
+   */
+  public RequestOutcome transferAmount(String name, long amount, long requestKey) {
+    if (StringUtils.isBlank(name)) {
+      throw new IllegalArgumentException("Input name is null/empty");
+    }
+    return transferAmount(defaultSession.getSession(), getAccountId(name), amount, requestKey);
+  }
+  
+  /**
+   * method to transfer amount based on the given name from the current user of the given session context
+   * the user should be already loggedIn for successful completion
+   * @throws IllegalArgumentException if input name is null or empty
+   * @throws IllegalArgumentException if transfer amount is negative value
+   */
+  public void transferAmount(SessionContext context, String name, long amount) {
+    transferAmount(context.getSession(), name, amount);
+  }
+  
+  /**
+   * method to transfer amount based on the given name from the user of the given session handle
+   * the name also should have corresponding account information
+   * @throws IllegalArgumentException if input name is null or empty
+   * @throws IllegalArgumentException if transfer amount is negative value
+   * this method also takes into account of credit/debit between current and target accounts
+   */
+  public void transferAmount(AccountSession session, String name, long amount) {
+    LOGGER.debug("Transferring amount=[{}] to the user=[{}].", amount, name);
     if (StringUtils.isBlank(name)) {
       throw new IllegalArgumentException("Input name is null/empty");
     }
+    transferAmount(session, getAccountId(name), amount);
+  }
+  
+  /**
+   * method to transfer amount to the account of the given id from the user of the given session handle
+   * the id is resolved once from the payee name by getAccountId, the transfer itself works on ids only
+   * @throws IllegalArgumentException if transfer amount is negative value
+   * this method also takes into account of credit/debit between current and target accounts
+   */
+  public void transferAmount(AccountSession session, int payeeId, long amount) {
+    timedTransfer(session, payeeId, amount);
+  }
+  
+  /**
+   * transfers like transferAmount and reports the status for the dedupe table
+   * @return APPLIED, or why the transfer was not done
+   */
+  private RequestOutcome.Status timedTransfer(AccountSession session, int payeeId, long amount) {
+    long startNanos = System.nanoTime();
+    try {
+      return transfer(session, payeeId, amount);
+    } finally {
+      metrics.getTransfer().recordSince(startNanos);
+    }
+  }
+  
+  /**
+   * method to transfer amount to the account of the given id at most once per idempotency key
+   * a topup or transfer of the same user with the same key within the dedupe window is not applied again,
+   * it is answered with the outcome of the first one instead. A transfer which fails or is not done, like one to
+   * an unknown payee, can be tried again with its key
+   * @throws IllegalArgumentException if transfer amount is negative value
+   * @param requestKey hash of the idempotency key, see CommandBufferParser.keyOf
+   * @return outcome of the transfer, the earlier one for a duplicate
+   */
+  public RequestOutcome transferAmount(AccountSession session, int payeeId, long amount, long requestKey) {
+    return applyOnce(session, requestKey, () -> timedTransfer(session, payeeId, amount));
+  }
+  
+  /**
+   * runs the command unless the key of the session user is found in the dedupe table, and keeps its outcome
+   * with the key if it is applied; the key is forgotten again when the command is not applied or throws.
+   * A duplicate given while the first request is still being applied waits for its outcome
+   * @return outcome of the command, or the earlier outcome for a duplicate
+   */
+  private RequestOutcome applyOnce(AccountSession session, long requestKey, Supplier<RequestOutcome.Status> command) {
+    if (session == null) {
+      LOGGER.error("User not logged in. Please login first");
+      return new RequestOutcome(RequestOutcome.Status.NOT_LOGGED_IN, 0L, false);
+    }
+    DedupeCache current = dedupe;
+    long key = DedupeCache.keyOf(session.getAccount().getId(), requestKey);
+    RequestOutcome earlier;
+    for (int attempt = 0; (earlier = current.claim(key)) == DedupeCache.IN_PROGRESS; attempt++) {
+      if (attempt < DEDUPE_SPINS) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(DEDUPE_PARK_NANOS);
+      }
+    }
+    if (earlier != null) {
+      LOGGER.info("Duplicate request of the user=[{}] is not applied again, balance was=[{}].",
+          session.getAccount().getName(), earlier.getBalance());
+      return earlier;
+    }
+    RequestOutcome outcome = null;
+    try {
+      RequestOutcome.Status status = command.get();
+      outcome = new RequestOutcome(status, balanceQuery.query(session.getAccount()).getBalance(), false);
+    } finally {
+      if (outcome != null && outcome.getStatus() == RequestOutcome.Status.APPLIED) {
+        current.complete(key, outcome);
+      } else {
+        current.release(key);
+      }
+    }
+    return outcome;
+  }
+  
+  /**
+   * replaces the dedupe table of the idempotency keys, the keys remembered so far are forgotten
+   */
+  public synchronized void configureDedupe(DedupeConfig config) {
+    if (config == null) {
+      throw new IllegalArgumentException("Dedupe config cannot be null.");
+    }
+    dedupe = new DedupeCache(config);
+  }
+  
+  /**
+   * @return number of topups and transfers not applied again because of their idempotency key
+   */
+  public long getDuplicateCount() {
+    return dedupe.getDuplicateCount();
+  }
+  
+  /**
+   * transfers amount to the account of the given id from the user of the given session handle
+   * @return APPLIED, or why the transfer was not done
+   */
+  private RequestOutcome.Status transfer(AccountSession session, int payeeId, long amount) {
     if (amount < 0) {
       throw new IllegalArgumentException("Paying amount cannot be less than 0.");
     }
-    if (!isLoggedIn()) {
+    if (session == null) {
       LOGGER.error("User not logged in. Please login first");
-      return;
+      return RequestOutcome.Status.NOT_LOGGED_IN;
     }
-    Optional<Account> payee = this.getAccount(name);
-    if (payee.isEmpty()) {
+    checkWritable();
+    ExecutionEngine currentEngine = engines.current();
+    if (currentEngine != null) {
+      return transferInEngine(currentEngine, session, payeeId, amount);
+    }
+    Account payee = userAccounts.get(payeeId);
+    if (payee == null) {
       LOGGER.error("Not a valid payee.");
-      return;
+      return RequestOutcome.Status.NO_PAYEE;
     }
-    TransactionUtil.transferAmount(currentUser, payee.get(), amount);
-    LOGGER.info("Transferred amount=[{}] to the user=[{}].", amount, name);
-    printCurrentUserBalance();
-    printCurrentUserOwesTo();
-    printCurrentUserOwesFrom();
+    if (payee.getId() == session.getAccount().getId()) {
+      LOGGER.error("Cannot transfer to own account.");
+      return RequestOutcome.Status.SAME_ACCOUNT;
+    }
+    TransactionUtil.transferAmount(session.getAccount(), payee, amount, journalListener);
+    commitJournal();
+    LOGGER.info("Transferred amount=[{}] to the user=[{}].", amount, payee.getName());
+    printSessionDetails(session);
+    return RequestOutcome.Status.APPLIED;
+  }
+  
+  /**
+   * transfers through the execution engine, the payee is validated by the engine thread owning it
+   * @return APPLIED, or why the transfer was not done
+   */
+  private RequestOutcome.Status transferInEngine(ExecutionEngine currentEngine, AccountSession session, int payeeId,
+      long amount) {
+    switch (currentEngine.transfer(session.getAccount().getId(), payeeId, amount))
+    {
+      case NO_PAYEE:
+        LOGGER.error("Not a valid payee.");
+        return RequestOutcome.Status.NO_PAYEE;
+      case SAME_ACCOUNT:
+        LOGGER.error("Cannot transfer to own account.");
+        return RequestOutcome.Status.SAME_ACCOUNT;
+      default:
+        break;
+    }
+    LOGGER.info("Transferred amount=[{}] to the user=[{}].", amount, userAccounts.nameOf(payeeId));
+    printSessionDetails(session);
+    return RequestOutcome.Status.APPLIED;
+  }
+  
+  /**
+   * method to transfer a batch of amounts from the current user of the default session
+   * @see #transferBatch(AccountSession, List)
+   */
+  public void transferBatch(List<Transfer> transfers) {
+    transferBatch(defaultSession, transfers);
+  }
+  
+  /**
+   * method to transfer a batch of amounts from the current user of the given session context
+   * @see #transferBatch(AccountSession, List)
+   */
+  public void transferBatch(SessionContext context, List<Transfer> transfers) {
+    transferBatch(context.getSession(), transfers);
   }
   
   /**
-   * method to check the credit/debit details of current user account and do adjustments based on balance value
+   * method to transfer a batch of amounts from the user of the given session handle, with exactly the balances
+   * and debts that transferring every entry in order by transferAmount would leave
+   * the whole batch is validated before anything is transferred, transfers to the same payee are netted into
+   * one change of that payee, which is journaled once
+   * @throws IllegalArgumentException if transfers is null, an entry is null, names an unknown payee or the user
    */
-  private void checkCurrentUserOwesToAndPay() {
-    long balance = this.currentUser.getBalance();
-    if (balance <= 0 || this.currentUser.getOwesTo() == null || this.currentUser.getOwesTo().isEmpty()) {
+  public void transferBatch(AccountSession session, List<Transfer> transfers) {
+    if (transfers == null) {
+      throw new IllegalArgumentException("Transfers cannot be null.");
+    }
+    if (session == null) {
+      LOGGER.error("User not logged in. Please login first");
       return;
     }
-    Iterator<Map.Entry<String, Long>> iterator = this.currentUser.getOwesTo().entrySet().iterator();
-    while(balance > 0 && iterator.hasNext()) {
-      Map.Entry<String, Long> entry = iterator.next();
-      Optional<Account> payee = this.getAccount(entry.getKey());
-      if (payee.isEmpty()) {
+    checkWritable();
+    int payerId = session.getAccount().getId();
+    int count = transfers.size();
+    int[] payeeIds = new int[count];
+    long[] amounts = new long[count];
+    for (int i = 0; i < count; i++) {
+      Transfer transfer = transfers.get(i);
+      if (transfer == null) {
+        throw new IllegalArgumentException("Transfer cannot be null.");
+      }
+      payeeIds[i] = getAccountId(transfer.getPayee());
+      if (payeeIds[i] < 0) {
+        throw new IllegalArgumentException("Not a valid payee=[" + transfer.getPayee() + "].");
+      }
+      if (payeeIds[i] == payerId) {
+        throw new IllegalArgumentException("Cannot transfer to own account.");
+      }
+      amounts[i] = transfer.getAmount();
+    }
+    ExecutionEngine currentEngine = engines.current();
+    if (currentEngine != null) {
+      switch (currentEngine.transferBatch(payerId, payeeIds, amounts))
+      {
+        case NO_PAYEE:
+          throw new IllegalArgumentException("Not a valid payee in the batch.");
+        case SAME_ACCOUNT:
+          throw new IllegalArgumentException("Cannot transfer to own account.");
+        default:
+          break;
+      }
+    } else {
+      Account[] payees = new Account[count];
+      for (int i = 0; i < count; i++) {
+        payees[i] = userAccounts.get(payeeIds[i]);
+        if (payees[i] == null) {
+          throw new IllegalArgumentException("Not a valid payee=[" + transfers.get(i).getPayee() + "].");
+        }
+      }
+      TransactionUtil.transferBatch(session.getAccount(), payees, amounts, journalListener);
+      commitJournal();
+    }
+    LOGGER.info("Transferred batch of transfers=[{}] from the user=[{}].", count, session.getAccount().getName());
+    printSessionDetails(session);
+  }
+
+  /**
+   * @return metrics of this service
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * method to check the credit/debit details of given account and do adjustments based on balance value
+   * creditors are settled one by one, each under the locks of the debtor and the creditor,
+   * so that no lock is held while taking another one out of order
+   * the creditors are taken oldest debt first, or in the order and up to the number per round
+   * of the settlement engine when it is started
+   * @return true if the round of a bounded settlement engine ended with a balance and debts left
+   */
+  private boolean checkOwesToAndPay(Account debtor) {
+    SettlementEngine currentSettlement = settlement;
+    int[] creditors;
+    AccountLocks.lock(debtor);
+    try {
+      if (debtor.getBalance() <= 0) {
+        return false;
+      }
+      metrics.recordSettlementRound();
+      creditors = currentSettlement == null ? ledger.creditorsOf(debtor.getId())
+          : currentSettlement.nextCreditors(debtor.getId());
+    } finally {
+      AccountLocks.unlock(debtor);
+    }
+    for (int creditor : creditors) {
+      Account payee = userAccounts.get(creditor);
+      if (payee == null) {
         throw new IllegalStateException("Payee Accout not exists.");
       }
-      balance = TransactionUtil.adjustDebitsAndCredits(currentUser, payee.get(), balance, iterator);
-      this.currentUser.setBalance(balance);
+      AccountLocks.lockPair(debtor, payee);
+      try {
+        long balance = debtor.getBalance();
+        if (balance <= 0) {
+          return false;
+        }
+        metrics.recordSettlementIteration();
+        debtor.setBalance(TransactionUtil.adjustDebitsAndCredits(debtor, payee, balance, journalListener));
+      } finally {
+        AccountLocks.unlockPair(debtor, payee);
+      }
     }
+    return currentSettlement != null && currentSettlement.isBounded() && debtor.getBalance() > 0
+        && ledger.creditorsOf(debtor.getId(), 1).length > 0;
   }
   
   /**
-   * method to check if user is logged in
-   * @return true if already loggedIn else false
+   * appends the creation of given account to the journal and the audit channel, the caller must hold the account lock
    */
-  private boolean isLoggedIn() {
-    boolean isLoggedIn = false;
-    if (currentUser != null) {
-      isLoggedIn = true;
+  private void appendAccount(Account account) {
+    TransactionJournal current = journal;
+    if (current != null) {
+      current.appendAccount(account.getName(), account.getBalance());
+    }
+    AuditChannel currentAudit = audit;
+    if (currentAudit != null) {
+      currentAudit.recordAccount(account.getId(), account.getBalance());
     }
-    return isLoggedIn;
   }
   
   /**
-   * method to print the current user balance
-   * the user should be already loggedIn for successful completion
+   * waits for the journal records of the current operation to be synced, when sync commit is configured
+   * called after all account locks are released so that concurrent operations share the fsync
    */
-  private void printCurrentUserBalance() {
-    if (!isLoggedIn()) {
-      LOGGER.error("User not logged in. Please login first");
-      return;
+  private void commitJournal() {
+    TransactionJournal current = journal;
+    if (current != null) {
+      current.commit();
     }
-    LOGGER.info("Your balance is [{}].", currentUser.getBalance());
   }
   
   /**
-   * method to print the current user credits
-   * the user should be already loggedIn for successful completion
+   * method to print the balance, credits and debits of the user of given session
+   * the details are read by the balance query, without taking the lock of the user account
+   */
+  private void printSessionDetails(AccountSession session) {
+    AccountBalance details = balanceQuery.query(session.getAccount());
+    printBalance(details);
+    printOwesTo(details);
+    printOwesFrom(details);
+  }
+  
+  /**
+   * method to print the given user balance
+   */
+  private void printBalance(AccountBalance account) {
+    LOGGER.info("Your balance is [{}].", account.getBalance());
+  }
+  
+  /**
+   * method to print the given user credits
    * prints nothing if not credit info
    */
-  private void printCurrentUserOwesTo() {
-    if (!isLoggedIn()) {
-      LOGGER.error("User not logged in. Please login first");
-      return;
-    }
-    Map<String, Long> currentUserOwesTo = currentUser.getOwesTo();
-    if (currentUserOwesTo == null || currentUserOwesTo.isEmpty()) {
+  private void printOwesTo(AccountBalance account) {
+    Map<String, Long> owesTo = account.getOwesTo();
+    if (owesTo == null || owesTo.isEmpty()) {
       return;
     }
-    currentUserOwesTo.forEach( (key, value) -> LOGGER.info("Owing [{}] to [{}].", value, key));
+    owesTo.forEach( (key, value) -> LOGGER.info("Owing [{}] to [{}].", value, key));
   }
   
   /**
-   * method to print the current user debits
-   * the user should be already loggedIn for successful completion
+   * method to print the given user debits
    * prints nothing if not debit info
    */
-  private void printCurrentUserOwesFrom() {
-    if (!isLoggedIn()) {
-      LOGGER.error("User not logged in. Please login first");
-      return;
-    }
-    Map<String, Long> currentUserOwesFrom = currentUser.getOwesFrom();
-    if (currentUserOwesFrom == null || currentUserOwesFrom.isEmpty()) {
+  private void printOwesFrom(AccountBalance account) {
+    Map<String, Long> owesFrom = account.getOwesFrom();
+    if (owesFrom == null || owesFrom.isEmpty()) {
       return;
     }
-    currentUserOwesFrom.forEach( (key, value) -> LOGGER.info("Owing [{}] from [{}].", value, key));
+    owesFrom.forEach( (key, value) -> LOGGER.info("Owing [{}] from [{}].", value, key));
   }
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package service;
+
+import domain.Account;
+
+/**
+ * @author viswa
+ *
+ * lightweight handle of a logged in user, returned by AccountService.loginUser.
+ * The handle carries the account reference, so operations on it need no account lookup by name.
+ * A handle is immutable and can be shared between threads, any number of handles can exist at once.
+ */
+public final class AccountSession {
+
+  private final Account account;
+
+  AccountSession(Account account) {
+    if (account == null) {
+      throw new IllegalArgumentException("Session Account cannot be null.");
+    }
+    this.account = account;
+  }
+
+  public Account getAccount() {
+    return account;
+  }
+
+  public String getName() {
+    return account.getName();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[Session User=[%s]]", getName());
+  }
+}
@@ -0,0 +1,67 @@
+package service;
+
+import java.util.Optional;
+
+import org.apache.commons.lang3.StringUtils;
+
+import domain.Account;
+import domain.AccountBalance;
+import domain.AccountDirectory;
+import util.AccountLocks;
+
+/**
+ * @author viswa
+ *
+ * read path for the balance and the debts of an account that does not hold up the account changes.
+ * A query reads the account with AccountLocks.readOptimistic, so it never takes the account lock and is retried,
+ * backing off while changes of the lock stripe keep running, when a change of an account of the stripe ran meanwhile.
+ * The returned AccountBalance is one consistent view of the account as left by a completed change.
+ * While an execution engine owns the accounts no account locks are taken by the changes, every value is then
+ * read as of its last change
+ */
+public final class BalanceQuery {
+
+  private final AccountDirectory accounts;
+
+  /**
+   * constructor for BalanceQuery, package private as the queries are handed out by AccountService
+   */
+  BalanceQuery(AccountDirectory accounts) {
+    this.accounts = accounts;
+  }
+
+  /**
+   * @return balance and debts of the account of the name, empty if there is no such account
+   * @throws IllegalArgumentException if input name is null or empty
+   */
+  public Optional<AccountBalance> query(String name) {
+    if (StringUtils.isBlank(name)) {
+      throw new IllegalArgumentException("Input name is null/empty");
+    }
+    Account account = accounts.get(name);
+    return account == null ? Optional.empty() : Optional.of(query(account));
+  }
+
+  /**
+   * @return balance and debts of the account of the id, empty if there is no such account
+   */
+  public Optional<AccountBalance> query(int id) {
+    Account account = accounts.get(id);
+    return account == null ? Optional.empty() : Optional.of(query(account));
+  }
+
+  /**
+   * @return balance and debts of the account
+   */
+  public AccountBalance query(Account account) {
+    if (account == null) {
+      throw new IllegalArgumentException("Account cannot be null.");
+    }
+    return AccountLocks.readOptimistic(account, () -> read(account));
+  }
+
+  private static AccountBalance read(Account account) {
+    return new AccountBalance(account.getName(), account.getId(), account.getBalance(), account.getOwesTo(),
+        account.getOwesFrom());
+  }
+}
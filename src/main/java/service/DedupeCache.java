@@ -0,0 +1,221 @@
+package service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * @author viswa
+ *
+ * bounded dedupe table of the idempotency keys of recent topups and transfers and of the outcome of their requests.
+ * The keys are 64 bit hashes of the account id of the user and its request key, kept in an open addressing table
+ * of primitive arrays with a fixed capacity. The table is split into groups of PROBE_LENGTH slots and a key is
+ * looked up only in the group its hash selects, so a lookup costs one short scan whatever the load of the table,
+ * and nothing is allocated after construction except the outcome handed to a duplicate.
+ * Time is divided into a ring of BUCKETS buckets of windowMillis / BUCKETS each, every slot remembers the bucket its key
+ * was stored in and expires once the ring has moved BUCKETS buckets past it. Expired slots are not cleaned up,
+ * the next key probing them takes them over. When all slots of a group hold live keys the oldest of them is replaced,
+ * so under more than capacity keys per window a key can be forgotten before its window ends.
+ * Every group is guarded by one of STRIPES locks, held for one scan of the group, so requests with keys of
+ * different stripes do not wait for each other.
+ */
+final class DedupeCache {
+
+  /*
+   * number of buckets of one window
+   */
+  static final int BUCKETS = 16;
+  /*
+   * number of slots of a group searched for a key, one cache line of each long array
+   */
+  static final int PROBE_LENGTH = 8;
+  /*
+   * most locks of a table, every group of slots is guarded by one of them
+   */
+  private static final int STRIPES = 64;
+  /*
+   * stored status of a key whose request is still being applied
+   */
+  private static final byte PENDING = -1;
+  private static final RequestOutcome.Status[] STATUSES = RequestOutcome.Status.values();
+
+  /*
+   * answer of claim for a key whose first request is still being applied
+   */
+  static final RequestOutcome IN_PROGRESS = new RequestOutcome(null, 0L, true);
+
+  private final long[] keys;
+  /*
+   * bucket number each key was stored in, 0 for a free slot
+   */
+  private final long[] epochs;
+  /*
+   * outcome of the request of each key: balance after it and status ordinal, PENDING till it is applied
+   */
+  private final long[] balances;
+  private final byte[] statuses;
+  private final Object[] locks;
+  private final int mask;
+  private final long bucketMillis;
+  private final LongSupplier clock;
+  private final LongAdder duplicateCount = new LongAdder();
+
+  DedupeCache(DedupeConfig config) {
+    this(config, System::currentTimeMillis);
+  }
+
+  /**
+   * constructor with the given clock in milliseconds, package private for tests
+   */
+  DedupeCache(DedupeConfig config, LongSupplier clock) {
+    int capacity = Integer.highestOneBit(config.getCapacity() - 1) << 1;
+    this.keys = new long[capacity];
+    this.epochs = new long[capacity];
+    this.balances = new long[capacity];
+    this.statuses = new byte[capacity];
+    this.locks = new Object[Math.min(STRIPES, capacity / PROBE_LENGTH)];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+    this.mask = capacity - 1;
+    this.bucketMillis = config.getWindowMillis() / BUCKETS;
+    this.clock = clock;
+  }
+
+  /**
+   * builds the key of a request of the given account
+   * @param requestKey hash of the request key given by the client
+   * @return key of the table
+   */
+  static long keyOf(int accountId, long requestKey) {
+    long key = requestKey ^ (accountId * 0x9E3779B97F4A7C15L);
+    key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+    key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return key ^ (key >>> 33);
+  }
+
+  /**
+   * remembers the key as pending unless it is already remembered within the window
+   * @return null if the key is new and its request is to be applied, followed by complete or release;
+   * the outcome of the first request for a duplicate, or IN_PROGRESS while that request is still being applied
+   */
+  RequestOutcome claim(long key) {
+    long now = currentEpoch();
+    int start = groupOf(key);
+    synchronized (lockOf(start)) {
+      int target = -1;
+      long targetEpoch = Long.MAX_VALUE;
+      // the scan starts at a slot picked by the key, so that the oldest slots of one bucket are replaced in turn
+      int offset = (int) (key >>> 32);
+      for (int i = 0; i < PROBE_LENGTH; i++) {
+        int slot = start + ((offset + i) & (PROBE_LENGTH - 1));
+        long epoch = epochs[slot];
+        boolean live = epoch != 0 && now - epoch < BUCKETS;
+        if (live && keys[slot] == key) {
+          if (statuses[slot] == PENDING) {
+            return IN_PROGRESS;
+          }
+          duplicateCount.increment();
+          return new RequestOutcome(STATUSES[statuses[slot]], balances[slot], true);
+        }
+        long age = live ? epoch : 0;
+        if (age < targetEpoch) {
+          target = slot;
+          targetEpoch = age;
+        }
+      }
+      keys[target] = key;
+      epochs[target] = now;
+      statuses[target] = PENDING;
+      return null;
+    }
+  }
+
+  /**
+   * keeps the outcome of the applied request of a claimed key, for the duplicates of the request
+   */
+  void complete(long key, RequestOutcome outcome) {
+    int start = groupOf(key);
+    synchronized (lockOf(start)) {
+      for (int slot = start; slot < start + PROBE_LENGTH; slot++) {
+        if (epochs[slot] != 0 && keys[slot] == key) {
+          balances[slot] = outcome.getBalance();
+          statuses[slot] = (byte) outcome.getStatus().ordinal();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * forgets the key, so that its request can be tried again after it was not applied
+   */
+  void release(long key) {
+    int start = groupOf(key);
+    synchronized (lockOf(start)) {
+      for (int slot = start; slot < start + PROBE_LENGTH; slot++) {
+        if (epochs[slot] != 0 && keys[slot] == key) {
+          epochs[slot] = 0;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the key is remembered within the window
+   */
+  boolean contains(long key) {
+    long now = currentEpoch();
+    int start = groupOf(key);
+    synchronized (lockOf(start)) {
+      for (int slot = start; slot < start + PROBE_LENGTH; slot++) {
+        long epoch = epochs[slot];
+        if (epoch != 0 && now - epoch < BUCKETS && keys[slot] == key) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * forgets all keys, the account ids they are built from are given out again after the accounts are cleared
+   */
+  void clear() {
+    for (int start = 0; start < epochs.length; start += PROBE_LENGTH) {
+      synchronized (lockOf(start)) {
+        Arrays.fill(epochs, start, start + PROBE_LENGTH, 0L);
+      }
+    }
+  }
+
+  /**
+   * @return number of duplicate requests found
+   */
+  long getDuplicateCount() {
+    return duplicateCount.sum();
+  }
+
+  /**
+   * @return number of slots of the table
+   */
+  int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * @return first slot of the group of the key
+   */
+  private int groupOf(long key) {
+    return (int) key & mask & -PROBE_LENGTH;
+  }
+
+  private Object lockOf(int start) {
+    return locks[(start / PROBE_LENGTH) & (locks.length - 1)];
+  }
+
+  private long currentEpoch() {
+    return clock.getAsLong() / bucketMillis + 1;
+  }
+}
@@ -0,0 +1,68 @@
+package service;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the dedupe table of the idempotency keys of AccountService. A key given with a topup or a payment
+ * is remembered for windowMillis, later commands of the same user with the same key are not applied again.
+ * The table holds at most capacity keys, rounded up to a power of two, and takes 25 bytes per key, with the outcome
+ * of its request, whatever the load.
+ */
+public class DedupeConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String WINDOW_PROPERTY = "bank.dedupe.windowMillis";
+  public static final String CAPACITY_PROPERTY = "bank.dedupe.capacity";
+
+  /*
+   * largest number of keys, keeps the table within 4 GB
+   */
+  public static final int MAX_CAPACITY = 1 << 27;
+
+  private long windowMillis = 60_000L;
+  private int capacity = 1 << 16;
+
+  /**
+   * builds the configuration from system properties, the defaults are used for the properties which are not set
+   * @return configuration
+   */
+  public static DedupeConfig fromSystemProperties() {
+    DedupeConfig config = new DedupeConfig();
+    String window = System.getProperty(WINDOW_PROPERTY);
+    if (StringUtils.isNotBlank(window)) {
+      config.setWindowMillis(Long.parseLong(window.trim()));
+    }
+    String capacity = System.getProperty(CAPACITY_PROPERTY);
+    if (StringUtils.isNotBlank(capacity)) {
+      config.setCapacity(Integer.parseInt(capacity.trim()));
+    }
+    return config;
+  }
+
+  public long getWindowMillis() {
+    return windowMillis;
+  }
+  public DedupeConfig setWindowMillis(long windowMillis) {
+    if (windowMillis < DedupeCache.BUCKETS) {
+      throw new IllegalArgumentException("Dedupe window cannot be less than " + DedupeCache.BUCKETS + " ms.");
+    }
+    this.windowMillis = windowMillis;
+    return this;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+  public DedupeConfig setCapacity(int capacity) {
+    if (capacity < DedupeCache.PROBE_LENGTH || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException("Dedupe capacity must be between " + DedupeCache.PROBE_LENGTH + " and "
+          + MAX_CAPACITY + ".");
+    }
+    this.capacity = capacity;
+    return this;
+  }
+}
@@ -0,0 +1,127 @@
+package service;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import domain.AccountDirectory;
+import domain.DebtLedger;
+import journal.TransactionJournal;
+import util.AccountLocks;
+
+/**
+ * @author viswa
+ *
+ * starts, stops and holds the execution engine of an AccountService, a SequencerEngine or a ShardedEngine.
+ * Without an engine the account changes are applied under the account locks of the calling threads.
+ * The engine is started and stopped under the monitor of the service, and read without it by every command.
+ */
+final class EngineControl {
+
+  private final AccountService accountService;
+  private final AccountDirectory directory;
+  private final DebtLedger ledger;
+  private volatile ExecutionEngine engine;
+
+  EngineControl(AccountService accountService, AccountDirectory directory, DebtLedger ledger) {
+    this.accountService = accountService;
+    this.directory = directory;
+    this.ledger = ledger;
+  }
+
+  /**
+   * @return started engine, null if commands are applied under account locks
+   */
+  ExecutionEngine current() {
+    return engine;
+  }
+
+  /**
+   * @return true if an engine is started
+   */
+  boolean isStarted() {
+    return engine != null;
+  }
+
+  /**
+   * @return true if commands are applied by the sequencer
+   */
+  boolean isSequencerStarted() {
+    return engine instanceof SequencerEngine;
+  }
+
+  /**
+   * @return started sharded engine, null if there is none
+   */
+  ShardedEngine currentSharded() {
+    ExecutionEngine current = engine;
+    return current instanceof ShardedEngine ? (ShardedEngine) current : null;
+  }
+
+  /**
+   * @throws IllegalStateException if an engine is already started
+   */
+  void startSequencer(SequencerConfig config) {
+    checkStopped();
+    engine = SequencerEngine.start(config, accountService, directory, ledger);
+  }
+
+  /**
+   * @throws IllegalStateException if an engine is already started
+   * @param journals journal of every shard, null if journaling is not enabled
+   */
+  void startSharded(ShardConfig config, TransactionJournal[] journals) {
+    checkStopped();
+    engine = ShardedEngine.start(config, accountService, directory, ledger, journals);
+  }
+
+  /**
+   * applies the commands already given to the sequencer, if it is the started engine, and stops it
+   */
+  void stopSequencer() {
+    ExecutionEngine current = engine;
+    if (current instanceof SequencerEngine) {
+      engine = null;
+      current.close();
+    }
+  }
+
+  /**
+   * applies the commands already given to the shards, if they are the started engine, and stops them
+   */
+  void stopSharded() {
+    ExecutionEngine current = engine;
+    if (current instanceof ShardedEngine) {
+      engine = null;
+      current.close();
+    }
+  }
+
+  /**
+   * runs the task while no account is changed by any other thread: under all account locks,
+   * or through the engine when it is started
+   * @return result of the task
+   * @throws IOException if the task throws it
+   */
+  <T> T runExclusive(Callable<T> task) throws IOException {
+    ExecutionEngine current = engine;
+    if (current != null) {
+      return current.runExclusive(task);
+    }
+    AccountLocks.lockAll();
+    try {
+      return task.call();
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      AccountLocks.unlockAll();
+    }
+  }
+
+  private void checkStopped() {
+    if (engine != null) {
+      throw new IllegalStateException("Execution engine already started.");
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import domain.Account;
+
+/**
+ * @author viswa
+ *
+ * execution engine which applies the account changes of AccountService on its own threads instead of under
+ * the account locks of the calling threads, see SequencerEngine and ShardedEngine.
+ * Every method returns once the change is applied and journaled.
+ */
+interface ExecutionEngine extends Closeable {
+
+  /**
+   * outcome of a transfer
+   */
+  enum Status {
+    OK, NO_PAYEE, SAME_ACCOUNT, FAILED
+  }
+
+  /**
+   * creates the account of the given id with balance 0 unless it exists
+   * @return account of the id
+   */
+  Account open(int id);
+
+  /**
+   * creates the account of the given id with the given balance, replacing an existing one
+   */
+  void add(int id, long balance);
+
+  /**
+   * adds the amount to the balance of the account and settles its debts from the new balance
+   * @return balance after the topup
+   */
+  long topup(int id, long amount);
+
+  /**
+   * transfers the amount between the accounts like TransactionUtil.transferAmount
+   * @return OK, or NO_PAYEE / SAME_ACCOUNT if the transfer was not done
+   */
+  Status transfer(int payerId, int payeeId, long amount);
+
+  /**
+   * transfers a batch of amounts from one payer like TransactionUtil.transferBatch, as one change:
+   * either every entry is applied or none
+   * @param payeeIds payee of every entry
+   * @param amounts amount of every entry
+   * @return OK, or NO_PAYEE / SAME_ACCOUNT for the first entry which cannot be transferred, nothing is transferred then
+   */
+  Status transferBatch(int payerId, int[] payeeIds, long[] amounts);
+
+  /**
+   * runs the task once all earlier changes are applied and journaled, no other change is applied while it runs
+   * @throws IOException if the task throws it
+   * @return result of the task
+   */
+  <T> T runExclusive(Callable<T> task) throws IOException;
+
+  /**
+   * appends a reset record to the journals owned by the engine, called from an exclusive task which clears the accounts
+   */
+  void journalReset();
+
+  /**
+   * applies the changes already given to the engine and stops its threads
+   */
+  @Override
+  void close();
+}
@@ -0,0 +1,64 @@
+package service;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the netting job of AccountService. Every intervalMillis the debts changed since the previous run
+ * are netted, 0 runs the job only when asked. With a parallelism above 1 the parts of the debt graph are netted
+ * by that many fork-join threads.
+ */
+public class NettingConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String INTERVAL_PROPERTY = "bank.netting.intervalMillis";
+  public static final String PARALLELISM_PROPERTY = "bank.netting.parallelism";
+
+  private long intervalMillis = 1000L;
+  private int parallelism = 1;
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if neither the interval nor the parallelism is configured
+   */
+  public static NettingConfig fromSystemProperties() {
+    String interval = System.getProperty(INTERVAL_PROPERTY);
+    String parallelism = System.getProperty(PARALLELISM_PROPERTY);
+    if (StringUtils.isBlank(interval) && StringUtils.isBlank(parallelism)) {
+      return null;
+    }
+    NettingConfig config = new NettingConfig();
+    if (StringUtils.isNotBlank(interval)) {
+      config.setIntervalMillis(Long.parseLong(interval.trim()));
+    }
+    if (StringUtils.isNotBlank(parallelism)) {
+      config.setParallelism(Integer.parseInt(parallelism.trim()));
+    }
+    return config;
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+  public NettingConfig setIntervalMillis(long intervalMillis) {
+    if (intervalMillis < 0) {
+      throw new IllegalArgumentException("Netting interval cannot be less than 0.");
+    }
+    this.intervalMillis = intervalMillis;
+    return this;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+  public NettingConfig setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Netting parallelism cannot be less than 1.");
+    }
+    this.parallelism = parallelism;
+    return this;
+  }
+}
@@ -0,0 +1,778 @@
+package service;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import domain.Account;
+import domain.AccountDirectory;
+import domain.DebtLedger;
+import util.AccountLocks;
+import util.TransactionListener;
+import util.TransactionUtil;
+
+/**
+ * @author viswa
+ *
+ * netting job of AccountService in the locking mode. TransactionUtil nets the debts of a pair of accounts only,
+ * this job nets the whole debt graph: debts going round in a cycle are cancelled by the smallest debt of the cycle,
+ * and chains are compressed by letting the debtors of an account owe directly to its creditors, until every account
+ * either only owes or is only owed (minimum cash flow style). What each account owes less what it is owed is kept,
+ * balances are not touched.
+ *
+ * A run loads the weakly connected parts of the graph around the accounts the ledger marked as changed, or all of
+ * them, into primitive arrays without holding any account lock, and nets every part on its own, on a fork-join pool
+ * when the parallelism is above 1. The debt changes are applied under all account locks afterwards; a part whose
+ * debts changed meanwhile is skipped and netted again by the next run.
+ */
+final class NettingJob implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NettingJob.class);
+
+  private static final int NONE = -1;
+  private static final int[] NO_IDS = new int[0];
+  /*
+   * edges netted by one fork-join task without splitting it further
+   */
+  static final int TASK_EDGES = 16 * 1024;
+
+  private final AccountDirectory accounts;
+  private final DebtLedger ledger;
+  private final TransactionListener listener;
+  private final Runnable commit;
+  private final ForkJoinPool pool;
+  private final ScheduledExecutorService scheduler;
+  private final LongAdder runs = new LongAdder();
+  private final LongAdder cancelled = new LongAdder();
+  private final LongAdder staleParts = new LongAdder();
+
+  /*
+   * accounts of the parts skipped by the previous run, guarded by this
+   */
+  private int[] retry = NO_IDS;
+
+  /**
+   * @param listener called with every applied debt change while all account locks are held
+   * @param commit called after the changes of a run are applied and the locks are released
+   */
+  private NettingJob(NettingConfig config, AccountDirectory accounts, DebtLedger ledger, TransactionListener listener,
+      Runnable commit) {
+    this.accounts = accounts;
+    this.ledger = ledger;
+    this.listener = listener;
+    this.commit = commit;
+    this.pool = config.getParallelism() > 1 ? new ForkJoinPool(config.getParallelism()) : null;
+    this.scheduler = config.getIntervalMillis() > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "debt-netting");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+  }
+
+  /**
+   * creates the job and schedules its runs over the changed debts if an interval is configured
+   * @param listener called with every applied debt change while all account locks are held
+   * @param commit called after the changes of a run are applied and the locks are released
+   * @return started job
+   */
+  static NettingJob start(NettingConfig config, AccountDirectory accounts, DebtLedger ledger,
+      TransactionListener listener, Runnable commit) {
+    NettingJob job = new NettingJob(config, accounts, ledger, listener, commit);
+    if (job.scheduler != null) {
+      job.scheduler.scheduleWithFixedDelay(job::runScheduled, config.getIntervalMillis(), config.getIntervalMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+    LOGGER.info("Netting job started with intervalMillis=[{}] parallelism=[{}].", config.getIntervalMillis(),
+        config.getParallelism());
+    return job;
+  }
+
+  /**
+   * nets the debt graph
+   * @param changedOnly true to net only the parts of the graph with debts created or grown since the previous run
+   * @return amount by which the sum of all debts went down
+   */
+  synchronized long run(boolean changedOnly) {
+    long startNanos = System.nanoTime();
+    int[] changed = ledger.drainChanged();
+    int[] roots;
+    if (changedOnly) {
+      roots = Arrays.copyOf(retry, retry.length + changed.length);
+      System.arraycopy(changed, 0, roots, retry.length, changed.length);
+    } else {
+      roots = new int[accounts.idCount()];
+      for (int i = 0; i < roots.length; i++) {
+        roots[i] = i;
+      }
+    }
+    retry = NO_IDS;
+    DebtGraph graph = DebtGraph.load(ledger, roots);
+    Queue<Deltas> results = new ConcurrentLinkedQueue<>();
+    if (pool != null && graph.edgeCount > TASK_EDGES) {
+      pool.invoke(new NetTask(graph, 0, graph.componentCount, results));
+    } else {
+      results.add(new Workspace(graph).net(0, graph.componentCount));
+    }
+    long amount = apply(graph, results);
+    runs.increment();
+    cancelled.add(amount);
+    LOGGER.debug("Netted debts=[{}] in parts=[{}], debts went down by amount=[{}] in [{}] ms.", graph.edgeCount,
+        graph.componentCount, amount, (System.nanoTime() - startNanos) / 1_000_000);
+    return amount;
+  }
+
+  /**
+   * applies the debt changes of the parts whose debts are still as loaded
+   * @return amount by which the sum of all debts went down
+   */
+  private long apply(DebtGraph graph, Queue<Deltas> results) {
+    long amount = 0L;
+    AccountLocks.lockAll();
+    try {
+      for (Deltas deltas : results) {
+        int start = 0;
+        for (int group = 0; group < deltas.groups; group++) {
+          int end = deltas.groupEnds[group];
+          if (isCurrent(deltas, start, end)) {
+            for (int i = start; i < end; i++) {
+              Account debtor = accounts.get(deltas.debtors[i]);
+              Account creditor = accounts.get(deltas.creditors[i]);
+              TransactionUtil.applyNetting(debtor, creditor, deltas.changes[i]);
+              listener.onNetting(debtor, creditor, deltas.changes[i]);
+              amount -= deltas.changes[i];
+            }
+          } else {
+            staleParts.increment();
+            retry = graph.appendIds(retry, deltas.groupComponents[group]);
+          }
+          start = end;
+        }
+      }
+    } finally {
+      AccountLocks.unlockAll();
+    }
+    commit.run();
+    return amount;
+  }
+
+  /**
+   * @return true if all debts changed by the group are still owed as loaded
+   */
+  private boolean isCurrent(Deltas deltas, int start, int end) {
+    for (int i = start; i < end; i++) {
+      int debtor = deltas.debtors[i];
+      int creditor = deltas.creditors[i];
+      if (accounts.get(debtor) == null || accounts.get(creditor) == null
+          || ledger.get(debtor, creditor) != deltas.originals[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * run of the scheduler, failures are logged and the job goes on at the next interval
+   */
+  private void runScheduled() {
+    try {
+      run(true);
+    } catch (RuntimeException e) {
+      LOGGER.error("Unable to net debts. Exception=[{}].", e.getMessage());
+    }
+  }
+
+  /**
+   * @return number of runs done so far
+   */
+  long getRuns() {
+    return runs.sum();
+  }
+
+  /**
+   * @return amount by which all runs together brought down the sum of all debts
+   */
+  long getCancelledAmount() {
+    return cancelled.sum();
+  }
+
+  /**
+   * @return number of parts skipped since their debts changed while they were netted
+   */
+  long getStaleParts() {
+    return staleParts.sum();
+  }
+
+  /**
+   * stops the scheduled runs and the fork-join pool, a run in progress is finished first
+   */
+  @Override
+  public void close() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (pool != null) {
+      pool.shutdown();
+    }
+    LOGGER.info("Netting job stopped.");
+  }
+
+  /**
+   * weakly connected parts (components) of the debt graph around the root accounts, as loaded from the ledger.
+   * Nodes are numbered in the order they are found, so the nodes and the edges of a component are each a range
+   * of the arrays, given by nodeStarts and edgeStarts
+   */
+  private static final class DebtGraph {
+
+    private final NodeIndex index = new NodeIndex();
+    private int[] ids = new int[16];
+    private int nodeCount;
+    private int[] from = new int[16];
+    private int[] to = new int[16];
+    private long[] amounts = new long[16];
+    private int edgeCount;
+    private int[] nodeStarts = new int[16];
+    private int[] edgeStarts = new int[16];
+    private int componentCount;
+
+    /**
+     * loads the components of the roots, reading the debts of every account in them breadth first
+     */
+    private static DebtGraph load(DebtLedger ledger, int[] roots) {
+      DebtGraph graph = new DebtGraph();
+      for (int root : roots) {
+        if (graph.index.get(root) != NONE) {
+          continue;
+        }
+        int first = graph.nodeOf(root);
+        for (int node = first; node < graph.nodeCount; node++) {
+          graph.loadNode(ledger, node, first);
+        }
+        if (graph.edgeCount == graph.edgeStarts[graph.componentCount]) {
+          for (int node = first; node < graph.nodeCount; node++) {
+            graph.index.put(graph.ids[node], NodeIndex.ISOLATED);
+          }
+          graph.nodeCount = first;
+        } else {
+          graph.endComponent();
+        }
+      }
+      return graph;
+    }
+
+    /**
+     * adds the debts owed by the account of the node as edges, and the accounts owing to it as nodes.
+     * A debt to a node of an earlier component was created after that component was loaded, it is left out
+     * since the components are netted on their own
+     */
+    private void loadNode(DebtLedger ledger, int node, int first) {
+      int id = ids[node];
+      ledger.forEachOwedBy(id, (debtor, creditor, amount) -> {
+        int other = nodeOf(creditor);
+        if (other >= first) {
+          addEdge(node, other, amount);
+        }
+      });
+      ledger.forEachOwedTo(id, (debtor, creditor, amount) -> nodeOf(debtor));
+    }
+
+    private int nodeOf(int id) {
+      int node = index.get(id);
+      if (node >= 0) {
+        return node;
+      }
+      if (nodeCount == ids.length) {
+        ids = Arrays.copyOf(ids, nodeCount * 2);
+      }
+      ids[nodeCount] = id;
+      index.put(id, nodeCount);
+      return nodeCount++;
+    }
+
+    private void addEdge(int debtor, int creditor, long amount) {
+      if (edgeCount == amounts.length) {
+        from = Arrays.copyOf(from, edgeCount * 2);
+        to = Arrays.copyOf(to, edgeCount * 2);
+        amounts = Arrays.copyOf(amounts, edgeCount * 2);
+      }
+      from[edgeCount] = debtor;
+      to[edgeCount] = creditor;
+      amounts[edgeCount] = amount;
+      edgeCount++;
+    }
+
+    private void endComponent() {
+      componentCount++;
+      if (componentCount + 1 == nodeStarts.length) {
+        nodeStarts = Arrays.copyOf(nodeStarts, nodeStarts.length * 2);
+        edgeStarts = Arrays.copyOf(edgeStarts, edgeStarts.length * 2);
+      }
+      nodeStarts[componentCount] = nodeCount;
+      edgeStarts[componentCount] = edgeCount;
+    }
+
+    /**
+     * @return copy of the given ids with the account ids of the component appended
+     */
+    private int[] appendIds(int[] target, int component) {
+      int start = nodeStarts[component];
+      int count = nodeStarts[component + 1] - start;
+      int[] result = Arrays.copyOf(target, target.length + count);
+      System.arraycopy(ids, start, result, target.length, count);
+      return result;
+    }
+  }
+
+  /**
+   * open addressing hash index from account id to node, linear probing
+   */
+  private static final class NodeIndex {
+
+    /*
+     * value of an account without debts, which has no node
+     */
+    private static final int ISOLATED = -2;
+
+    private int[] keys = filled(32);
+    private int[] values = new int[32];
+    private int size;
+
+    private int get(int id) {
+      int mask = keys.length - 1;
+      for (int position = hash(id) & mask; keys[position] != NONE; position = (position + 1) & mask) {
+        if (keys[position] == id) {
+          return values[position];
+        }
+      }
+      return NONE;
+    }
+
+    private void put(int id, int value) {
+      int mask = keys.length - 1;
+      int position = hash(id) & mask;
+      while (keys[position] != NONE && keys[position] != id) {
+        position = (position + 1) & mask;
+      }
+      if (keys[position] == NONE) {
+        keys[position] = id;
+        if (++size * 2 > keys.length) {
+          values[position] = value;
+          rehash();
+          return;
+        }
+      }
+      values[position] = value;
+    }
+
+    private void rehash() {
+      int[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = filled(oldKeys.length * 2);
+      values = new int[oldKeys.length * 2];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != NONE) {
+          put(oldKeys[i], oldValues[i]);
+        }
+      }
+    }
+
+    private static int hash(int id) {
+      int mixed = id * 0x9E3779B9;
+      return mixed ^ (mixed >>> 16);
+    }
+
+    private static int[] filled(int capacity) {
+      int[] array = new int[capacity];
+      Arrays.fill(array, NONE);
+      return array;
+    }
+  }
+
+  /**
+   * debt changes of a range of components, grouped by component
+   */
+  private static final class Deltas {
+
+    private int[] debtors = new int[16];
+    private int[] creditors = new int[16];
+    private long[] originals = new long[16];
+    private long[] changes = new long[16];
+    private int count;
+    private int[] groupEnds = new int[4];
+    private int[] groupComponents = new int[4];
+    private int groups;
+
+    private void add(int debtor, int creditor, long original, long change) {
+      if (count == changes.length) {
+        debtors = Arrays.copyOf(debtors, count * 2);
+        creditors = Arrays.copyOf(creditors, count * 2);
+        originals = Arrays.copyOf(originals, count * 2);
+        changes = Arrays.copyOf(changes, count * 2);
+      }
+      debtors[count] = debtor;
+      creditors[count] = creditor;
+      originals[count] = original;
+      changes[count] = change;
+      count++;
+    }
+
+    private void endGroup(int component) {
+      if (count == (groups == 0 ? 0 : groupEnds[groups - 1])) {
+        return;
+      }
+      if (groups == groupEnds.length) {
+        groupEnds = Arrays.copyOf(groupEnds, groups * 2);
+        groupComponents = Arrays.copyOf(groupComponents, groups * 2);
+      }
+      groupEnds[groups] = count;
+      groupComponents[groups] = component;
+      groups++;
+    }
+  }
+
+  /**
+   * fork-join task netting a range of components, split in two halves of about the same number of edges
+   * as long as it has more than TASK_EDGES of them
+   */
+  private static final class NetTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient DebtGraph graph;
+    private final int first;
+    private final int last;
+    private final transient Queue<Deltas> results;
+
+    private NetTask(DebtGraph graph, int first, int last, Queue<Deltas> results) {
+      this.graph = graph;
+      this.first = first;
+      this.last = last;
+      this.results = results;
+    }
+
+    @Override
+    protected void compute() {
+      if (last - first < 2 || graph.edgeStarts[last] - graph.edgeStarts[first] <= TASK_EDGES) {
+        results.add(new Workspace(graph).net(first, last));
+        return;
+      }
+      int half = (graph.edgeStarts[first] + graph.edgeStarts[last]) >>> 1;
+      int middle = Arrays.binarySearch(graph.edgeStarts, first + 1, last, half);
+      if (middle < 0) {
+        middle = -middle - 1;
+      }
+      middle = Math.max(first + 1, Math.min(last - 1, middle));
+      invokeAll(new NetTask(graph, first, middle, results), new NetTask(graph, middle, last, results));
+    }
+  }
+
+  /**
+   * nets one component at a time in its own arrays, which are reused for the next component.
+   * Edges are linked into the out list of their debtor and the in list of their creditor; an edge brought down
+   * to 0 stays in the lists and is skipped
+   */
+  private static final class Workspace {
+
+    private static final byte WHITE = 0;
+    private static final byte GRAY = 1;
+    private static final byte BLACK = 2;
+    private static final long EMPTY_KEY = -1L;
+
+    private final DebtGraph graph;
+    private final Deltas deltas = new Deltas();
+
+    /*
+     * node arrays
+     */
+    private int[] outHead = new int[16];
+    private int[] inHead = new int[16];
+    private byte[] states = new byte[16];
+    private int[] cursors = new int[16];
+    private int[] depths = new int[16];
+    private int[] stack = new int[16];
+    private int[] path = new int[16];
+    private int[] inDegrees = new int[16];
+    private int[] order = new int[16];
+
+    /*
+     * edge arrays, the first edges of a component are the loaded ones
+     */
+    private int[] from = new int[16];
+    private int[] to = new int[16];
+    private long[] amounts = new long[16];
+    private long[] loaded = new long[16];
+    private int[] nextOut = new int[16];
+    private int[] nextIn = new int[16];
+    private int edgeCount;
+    private boolean changed;
+
+    /*
+     * hash table of the (debtor, creditor) pairs of a component, with the loaded and the netted amount of each pair
+     */
+    private long[] pairKeys = new long[32];
+    private long[] pairLoaded = new long[32];
+    private long[] pairNetted = new long[32];
+    private int[] pairSlots = new int[16];
+    private int pairCount;
+
+    private Workspace(DebtGraph graph) {
+      this.graph = graph;
+    }
+
+    /**
+     * @return debt changes of the components from first to last (exclusive)
+     */
+    private Deltas net(int first, int last) {
+      for (int component = first; component < last; component++) {
+        netComponent(component);
+      }
+      return deltas;
+    }
+
+    private void netComponent(int component) {
+      int nodeBase = graph.nodeStarts[component];
+      int nodes = graph.nodeStarts[component + 1] - nodeBase;
+      int edgeBase = graph.edgeStarts[component];
+      int edges = graph.edgeStarts[component + 1] - edgeBase;
+      if (edges < 2) {
+        return;
+      }
+      prepare(nodes, edges);
+      for (int i = edges - 1; i >= 0; i--) {
+        addEdge(graph.from[edgeBase + i] - nodeBase, graph.to[edgeBase + i] - nodeBase, graph.amounts[edgeBase + i]);
+      }
+      System.arraycopy(amounts, 0, loaded, 0, edges);
+      changed = false;
+      cancelCycles(nodes);
+      compressChains(nodes);
+      if (changed) {
+        collectDeltas(nodeBase, edges);
+        deltas.endGroup(component);
+      }
+    }
+
+    private void prepare(int nodes, int edges) {
+      if (outHead.length < nodes) {
+        int capacity = Integer.highestOneBit(nodes - 1) << 1;
+        outHead = new int[capacity];
+        inHead = new int[capacity];
+        states = new byte[capacity];
+        cursors = new int[capacity];
+        depths = new int[capacity];
+        stack = new int[capacity];
+        path = new int[capacity];
+        inDegrees = new int[capacity];
+        order = new int[capacity];
+      }
+      if (loaded.length < edges) {
+        loaded = new long[Integer.highestOneBit(edges - 1) << 1];
+      }
+      Arrays.fill(outHead, 0, nodes, NONE);
+      Arrays.fill(inHead, 0, nodes, NONE);
+      edgeCount = 0;
+    }
+
+    private void addEdge(int debtor, int creditor, long amount) {
+      if (edgeCount == amounts.length) {
+        int capacity = edgeCount * 2;
+        from = Arrays.copyOf(from, capacity);
+        to = Arrays.copyOf(to, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        nextOut = Arrays.copyOf(nextOut, capacity);
+        nextIn = Arrays.copyOf(nextIn, capacity);
+      }
+      int edge = edgeCount++;
+      from[edge] = debtor;
+      to[edge] = creditor;
+      amounts[edge] = amount;
+      nextOut[edge] = outHead[debtor];
+      outHead[debtor] = edge;
+      nextIn[edge] = inHead[creditor];
+      inHead[creditor] = edge;
+    }
+
+    /**
+     * depth first search over the edges left, every edge back to a node on the stack closes a cycle which is
+     * cancelled by its smallest edge; the search then goes on from the debtor of the first edge brought down to 0.
+     * A node is finished once all its edges lead to finished nodes, so no cycle is left when all are finished
+     */
+    private void cancelCycles(int nodes) {
+      Arrays.fill(states, 0, nodes, WHITE);
+      System.arraycopy(outHead, 0, cursors, 0, nodes);
+      for (int root = 0; root < nodes; root++) {
+        if (states[root] != WHITE) {
+          continue;
+        }
+        int top = 0;
+        stack[0] = root;
+        states[root] = GRAY;
+        depths[root] = 0;
+        while (top >= 0) {
+          int node = stack[top];
+          int edge = cursors[node];
+          while (edge != NONE && (amounts[edge] == 0 || states[to[edge]] == BLACK)) {
+            edge = nextOut[edge];
+          }
+          cursors[node] = edge;
+          if (edge == NONE) {
+            states[node] = BLACK;
+            top--;
+            continue;
+          }
+          int next = to[edge];
+          if (states[next] == WHITE) {
+            path[top] = edge;
+            stack[++top] = next;
+            states[next] = GRAY;
+            depths[next] = top;
+            continue;
+          }
+          int start = depths[next];
+          long smallest = amounts[edge];
+          for (int i = start; i < top; i++) {
+            smallest = Math.min(smallest, amounts[path[i]]);
+          }
+          amounts[edge] -= smallest;
+          int cut = top;
+          for (int i = start; i < top; i++) {
+            amounts[path[i]] -= smallest;
+            if (amounts[path[i]] == 0 && cut == top) {
+              cut = i;
+            }
+          }
+          for (int i = cut + 1; i <= top; i++) {
+            states[stack[i]] = WHITE;
+          }
+          top = cut;
+          changed = true;
+        }
+      }
+    }
+
+    /**
+     * visits the nodes of the acyclic graph left in topological order and pairs the edges into each node with the
+     * edges out of it, replacing debtor -> node -> creditor by debtor -> creditor. The edges into a node are all
+     * known when it is visited, and a new edge keeps the order, so every node ends up without edges in or out
+     */
+    private void compressChains(int nodes) {
+      Arrays.fill(inDegrees, 0, nodes, 0);
+      for (int edge = 0; edge < edgeCount; edge++) {
+        if (amounts[edge] > 0) {
+          inDegrees[to[edge]]++;
+        }
+      }
+      int tail = 0;
+      for (int node = 0; node < nodes; node++) {
+        if (inDegrees[node] == 0) {
+          order[tail++] = node;
+        }
+      }
+      for (int head = 0; head < tail; head++) {
+        for (int edge = outHead[order[head]]; edge != NONE; edge = nextOut[edge]) {
+          if (amounts[edge] > 0 && --inDegrees[to[edge]] == 0) {
+            order[tail++] = to[edge];
+          }
+        }
+      }
+      for (int i = 0; i < tail; i++) {
+        int node = order[i];
+        int in = positiveIn(inHead[node]);
+        int out = positiveOut(outHead[node]);
+        while (in != NONE && out != NONE) {
+          long amount = Math.min(amounts[in], amounts[out]);
+          amounts[in] -= amount;
+          amounts[out] -= amount;
+          addEdge(from[in], to[out], amount);
+          changed = true;
+          if (amounts[in] == 0) {
+            in = positiveIn(nextIn[in]);
+          }
+          if (amounts[out] == 0) {
+            out = positiveOut(nextOut[out]);
+          }
+        }
+      }
+    }
+
+    private int positiveIn(int edge) {
+      while (edge != NONE && amounts[edge] == 0) {
+        edge = nextIn[edge];
+      }
+      return edge;
+    }
+
+    private int positiveOut(int edge) {
+      while (edge != NONE && amounts[edge] == 0) {
+        edge = nextOut[edge];
+      }
+      return edge;
+    }
+
+    /**
+     * sums the loaded and the netted amounts by pair and adds the pairs whose amount changed to the deltas
+     */
+    private void collectDeltas(int nodeBase, int edges) {
+      int capacity = Integer.highestOneBit(Math.max(edgeCount, 8) - 1) << 2;
+      if (pairKeys.length < capacity) {
+        pairKeys = new long[capacity];
+        pairLoaded = new long[capacity];
+        pairNetted = new long[capacity];
+      }
+      if (pairSlots.length < edgeCount) {
+        pairSlots = new int[capacity];
+      }
+      Arrays.fill(pairKeys, 0, capacity, EMPTY_KEY);
+      pairCount = 0;
+      int mask = capacity - 1;
+      for (int edge = 0; edge < edgeCount; edge++) {
+        if (edge >= edges && amounts[edge] == 0) {
+          continue;
+        }
+        int slot = slotOf(((long) from[edge] << 32) | to[edge], mask);
+        if (edge < edges) {
+          pairLoaded[slot] += loaded[edge];
+        }
+        pairNetted[slot] += amounts[edge];
+      }
+      for (int i = 0; i < pairCount; i++) {
+        int slot = pairSlots[i];
+        long change = pairNetted[slot] - pairLoaded[slot];
+        if (change != 0) {
+          int debtor = graph.ids[nodeBase + (int) (pairKeys[slot] >>> 32)];
+          int creditor = graph.ids[nodeBase + (int) pairKeys[slot]];
+          deltas.add(debtor, creditor, pairLoaded[slot], change);
+        }
+      }
+    }
+
+    private int slotOf(long key, int mask) {
+      long mixed = key * 0x9E3779B97F4A7C15L;
+      int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+      while (pairKeys[slot] != EMPTY_KEY) {
+        if (pairKeys[slot] == key) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      pairKeys[slot] = key;
+      pairLoaded[slot] = 0L;
+      pairNetted[slot] = 0L;
+      pairSlots[pairCount++] = slot;
+      return slot;
+    }
+  }
+}
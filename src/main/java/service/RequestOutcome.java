@@ -0,0 +1,58 @@
+package service;
+
+/**
+ * @author viswa
+ *
+ * outcome of a topup or transfer given with an idempotency key, returned by AccountService.
+ * A duplicate request is answered with the outcome of the request first given with its key, which is kept
+ * in the dedupe table together with the key.
+ */
+public final class RequestOutcome {
+
+  /**
+   * what became of a request, only applied requests keep their key
+   */
+  public enum Status {
+    APPLIED, NO_PAYEE, SAME_ACCOUNT, NOT_LOGGED_IN
+  }
+
+  private final Status status;
+  private final long balance;
+  private final boolean duplicate;
+
+  RequestOutcome(Status status, long balance, boolean duplicate) {
+    this.status = status;
+    this.balance = balance;
+    this.duplicate = duplicate;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * @return balance of the user right after the request was applied
+   */
+  public long getBalance() {
+    return balance;
+  }
+
+  /**
+   * @return true if the request was given before and this is its outcome then, nothing was applied again
+   */
+  public boolean isDuplicate() {
+    return duplicate;
+  }
+
+  /**
+   * @return true if the request was applied by this call
+   */
+  public boolean isApplied() {
+    return status == Status.APPLIED && !duplicate;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[Outcome Status=[%s] Balance=[%d] Duplicate=[%s]]", status, balance, duplicate);
+  }
+}
@@ -0,0 +1,54 @@
+package service;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author viswa
+ *
+ * configuration of the single writer sequencer execution mode of AccountService.
+ * Commands wait in a ring buffer of ringSize slots, callers wait for a free slot when the ring is full.
+ * The mode is chosen for the deterministic order of the changes; transfers are slower than in the locking mode.
+ */
+public class SequencerConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String ENGINE_PROPERTY = "bank.engine";
+  public static final String RING_SIZE_PROPERTY = "bank.engine.ringSize";
+
+  /*
+   * value of the engine property selecting the sequencer, any other value keeps the locking mode
+   */
+  public static final String SEQUENCER_ENGINE = "sequencer";
+
+  private int ringSize = 1 << 14;
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if the sequencer engine is not selected
+   */
+  public static SequencerConfig fromSystemProperties() {
+    String engine = System.getProperty(ENGINE_PROPERTY);
+    if (StringUtils.isBlank(engine) || !SEQUENCER_ENGINE.equals(engine.trim())) {
+      return null;
+    }
+    SequencerConfig config = new SequencerConfig();
+    String ringSize = System.getProperty(RING_SIZE_PROPERTY);
+    if (StringUtils.isNotBlank(ringSize)) {
+      config.setRingSize(Integer.parseInt(ringSize.trim()));
+    }
+    return config;
+  }
+
+  public int getRingSize() {
+    return ringSize;
+  }
+  public SequencerConfig setRingSize(int ringSize) {
+    if (ringSize < 2 || Integer.bitCount(ringSize) != 1) {
+      throw new IllegalArgumentException("Sequencer ring size must be a power of two greater than 1.");
+    }
+    this.ringSize = ringSize;
+    return this;
+  }
+}
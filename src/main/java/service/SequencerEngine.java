@@ -0,0 +1,676 @@
+package service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import audit.AuditChannel;
+import domain.Account;
+import domain.AccountDirectory;
+import domain.DebtLedger;
+import enums.JournalRecordType;
+import history.TransactionHistory;
+import journal.TransactionJournal;
+import util.TransactionListener;
+import util.TransactionUtil;
+
+/**
+ * @author viswa
+ *
+ * single writer execution engine of AccountService, in the style of the LMAX disruptor.
+ * Callers of any thread claim a slot of a pre-allocated ring buffer with one atomic increment, store the
+ * primitive fields of their command into it and publish it. Two threads follow the published commands
+ * in sequence order, the second one only behind the first one:
+ * <ol>
+ * <li>the business logic thread applies the commands to the accounts and the ledger, it is the only thread
+ * changing them, so it takes no account locks, and it collects the effects of every command in its slot</li>
+ * <li>the journal thread appends the effects to the journal and the audit channel, commits the journal
+ * once per batch of commands, so that one fsync covers all of them, and then hands the result of every
+ * command of the batch to its waiting caller and frees the slots</li>
+ * </ol>
+ * Both threads take every command published so far as one batch and tell the next stage once per batch.
+ * A thread with nothing to do, and a caller waiting for its result, spins a bounded number of rounds and
+ * yields before it parks, and it is only unparked when it has really parked.
+ * The order of the commands is the order of their sequence, so replaying the same commands gives the same state.
+ * Exclusive tasks, like snapshots, run on the business logic thread once everything before them is journaled.
+ */
+final class SequencerEngine implements ExecutionEngine {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SequencerEngine.class);
+
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 200;
+  private static final long IDLE_PARK_NANOS = 50_000L;
+  private static final int INITIAL_EFFECTS = 4;
+  private static final int NO_ACCOUNT = -1;
+
+  /**
+   * commands understood by the engine
+   */
+  private enum CommandType {
+    OPEN, ADD, TOPUP, TRANSFER, BATCH, EXCLUSIVE
+  }
+
+  private static final ThreadLocal<Waiter> WAITERS = ThreadLocal.withInitial(Waiter::new);
+
+  private final AccountService accountService;
+  private final AccountDirectory directory;
+  private final DebtLedger ledger;
+  private final int mask;
+
+  /*
+   * next sequence to be claimed, and per slot the sequence + 1 of the command published in it
+   */
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLongArray published;
+  /*
+   * next sequence of each stage, every stage stays behind the previous one
+   */
+  private volatile long applied;
+  private volatile long journaled;
+  private volatile long responded;
+
+  /*
+   * command fields per slot
+   */
+  private final CommandType[] types;
+  private final int[] accountIds;
+  private final int[] otherIds;
+  private final long[] amounts;
+  private final int[][] batchIds;
+  private final long[][] batchAmounts;
+  private final Callable<?>[] tasks;
+  private final Waiter[] waiters;
+  /*
+   * result fields per slot
+   */
+  private final Status[] statuses;
+  private final long[] balances;
+  private final Object[] values;
+  private final Throwable[] failures;
+  private final Effects[] effects;
+
+  private final Stage logicStage;
+  private final Stage journalStage;
+  private final LongAdder fullWaits = new LongAdder();
+  private volatile boolean closed;
+
+  /*
+   * effects of the command being applied, written by the listener on the business logic thread
+   */
+  private Effects current;
+  private final TransactionListener effectListener = new TransactionListener() {
+    @Override
+    public void onTransfer(Account payer, Account payee, long netted, long moved, long deficit) {
+      current.add(JournalRecordType.TRANSFER, payer.getId(), payee.getId(), netted, moved, deficit);
+    }
+    @Override
+    public void onSettlement(Account debtor, Account creditor, long amount) {
+      current.add(JournalRecordType.SETTLEMENT, debtor.getId(), creditor.getId(), amount, 0L, 0L);
+    }
+  };
+
+  private SequencerEngine(SequencerConfig config, AccountService accountService, AccountDirectory directory,
+      DebtLedger ledger) {
+    this.accountService = accountService;
+    this.directory = directory;
+    this.ledger = ledger;
+    int size = config.getRingSize();
+    this.mask = size - 1;
+    this.published = new AtomicLongArray(size);
+    this.types = new CommandType[size];
+    this.accountIds = new int[size];
+    this.otherIds = new int[size];
+    this.amounts = new long[size];
+    this.batchIds = new int[size][];
+    this.batchAmounts = new long[size][];
+    this.tasks = new Callable<?>[size];
+    this.waiters = new Waiter[size];
+    this.statuses = new Status[size];
+    this.balances = new long[size];
+    this.values = new Object[size];
+    this.failures = new Throwable[size];
+    this.effects = new Effects[size];
+    for (int i = 0; i < size; i++) {
+      effects[i] = new Effects();
+    }
+    this.logicStage = new Stage(newThread(this::logicLoop, "sequencer-logic"));
+    this.journalStage = new Stage(newThread(this::journalLoop, "sequencer-journal"));
+  }
+
+  /**
+   * starts the threads of the engine
+   * @param accountService service whose journal and audit channel receive the effects
+   * @param directory accounts owned by the engine from now on
+   * @param ledger debts owned by the engine from now on
+   * @return running engine
+   */
+  static SequencerEngine start(SequencerConfig config, AccountService accountService, AccountDirectory directory,
+      DebtLedger ledger) {
+    SequencerEngine engine = new SequencerEngine(config, accountService, directory, ledger);
+    engine.logicStage.thread.start();
+    engine.journalStage.thread.start();
+    LOGGER.info("Sequencer engine started with ring size=[{}].", config.getRingSize());
+    return engine;
+  }
+
+  private static Thread newThread(Runnable loop, String name) {
+    Thread thread = new Thread(loop, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  @Override
+  public Account open(int id) {
+    return (Account) completed(submit(CommandType.OPEN, id, NO_ACCOUNT, 0L, null)).value;
+  }
+
+  @Override
+  public void add(int id, long balance) {
+    completed(submit(CommandType.ADD, id, NO_ACCOUNT, balance, null));
+  }
+
+  @Override
+  public long topup(int id, long amount) {
+    return completed(submit(CommandType.TOPUP, id, NO_ACCOUNT, amount, null)).balance;
+  }
+
+  @Override
+  public Status transfer(int payerId, int payeeId, long amount) {
+    return completed(submit(CommandType.TRANSFER, payerId, payeeId, amount, null)).status;
+  }
+
+  /**
+   * publishes the whole batch in one slot, so the business logic thread applies it as one command
+   * and its effects are journaled with one commit
+   */
+  @Override
+  public Status transferBatch(int payerId, int[] payeeIds, long[] amounts) {
+    return completed(submit(CommandType.BATCH, payerId, NO_ACCOUNT, 0L, null, payeeIds, amounts)).status;
+  }
+
+  /**
+   * runs the task on the business logic thread once all earlier commands are applied and journaled,
+   * no other command is applied while it runs
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T runExclusive(Callable<T> task) throws IOException {
+    Waiter waiter = submit(CommandType.EXCLUSIVE, NO_ACCOUNT, NO_ACCOUNT, 0L, task);
+    if (waiter.failure instanceof IOException) {
+      IOException failure = (IOException) waiter.failure;
+      waiter.failure = null;
+      throw failure;
+    }
+    return (T) completed(waiter).value;
+  }
+
+  /**
+   * nothing to do, the sequencer journals to the journal of AccountService, which gets the reset from the task
+   */
+  @Override
+  public void journalReset() {
+  }
+
+  /**
+   * @return number of commands published so far
+   */
+  long getPublishedCount() {
+    return claimed.get();
+  }
+
+  /**
+   * @return number of times a caller found the ring full and had to wait
+   */
+  long getFullWaits() {
+    return fullWaits.sum();
+  }
+
+  private Waiter submit(CommandType type, int accountId, int otherId, long amount, Callable<?> task) {
+    return submit(type, accountId, otherId, amount, task, null, null);
+  }
+
+  private Waiter submit(CommandType type, int accountId, int otherId, long amount, Callable<?> task, int[] payeeIds,
+      long[] payeeAmounts) {
+    if (closed) {
+      throw new IllegalStateException("Sequencer engine is closed.");
+    }
+    Waiter waiter = WAITERS.get();
+    waiter.done = false;
+    long sequence = claimed.getAndIncrement();
+    long wrapPoint = sequence - types.length;
+    if (wrapPoint >= responded) {
+      fullWaits.increment();
+      for (int idle = 0; wrapPoint >= responded; idle++) {
+        if (idle < SPIN_TRIES) {
+          // busy spin
+        } else if (idle < YIELD_TRIES) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+      }
+    }
+    int slot = (int) sequence & mask;
+    types[slot] = type;
+    accountIds[slot] = accountId;
+    otherIds[slot] = otherId;
+    amounts[slot] = amount;
+    batchIds[slot] = payeeIds;
+    batchAmounts[slot] = payeeAmounts;
+    tasks[slot] = task;
+    waiters[slot] = waiter;
+    published.lazySet(slot, sequence + 1);
+    logicStage.wake();
+    for (int idle = 0; !waiter.done; idle++) {
+      if (idle < SPIN_TRIES) {
+        // busy spin
+      } else if (idle < YIELD_TRIES) {
+        Thread.yield();
+      } else {
+        waiter.parked = true;
+        if (!waiter.done) {
+          LockSupport.park(this);
+        }
+        waiter.parked = false;
+      }
+    }
+    return waiter;
+  }
+
+  /**
+   * @throws RuntimeException the failure of the command, if it failed
+   * @return the waiter of a command which did not fail
+   */
+  private static Waiter completed(Waiter waiter) {
+    Throwable failure = waiter.failure;
+    if (failure == null) {
+      return waiter;
+    }
+    waiter.failure = null;
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    throw new IllegalStateException(failure);
+  }
+
+  private void logicLoop() {
+    long next = 0;
+    int idle = 0;
+    while (true) {
+      int slot = (int) next & mask;
+      if (published.get(slot) == next + 1) {
+        do {
+          apply(next, slot);
+          next++;
+          slot = (int) next & mask;
+        } while (published.get(slot) == next + 1);
+        applied = next;
+        journalStage.wake();
+        idle = logicStage.busy();
+        continue;
+      }
+      if (closed && next == claimed.get()) {
+        return;
+      }
+      idle = logicStage.idle(idle);
+    }
+  }
+
+  private void apply(long sequence, int slot) {
+    Effects slotEffects = effects[slot];
+    slotEffects.count = 0;
+    current = slotEffects;
+    statuses[slot] = Status.OK;
+    values[slot] = null;
+    failures[slot] = null;
+    try {
+      switch (types[slot])
+      {
+        case OPEN:
+          applyOpen(slot);
+          break;
+        case ADD:
+          applyAdd(slot);
+          break;
+        case TOPUP:
+          applyTopup(slot);
+          break;
+        case TRANSFER:
+          applyTransfer(slot);
+          break;
+        case BATCH:
+          applyBatch(slot);
+          break;
+        case EXCLUSIVE:
+          applyExclusive(sequence, slot);
+          break;
+        default:
+          break;
+      }
+    } catch (Exception e) {
+      statuses[slot] = Status.FAILED;
+      failures[slot] = e;
+    }
+  }
+
+  private void applyOpen(int slot) {
+    int id = accountIds[slot];
+    Account account = directory.get(id);
+    if (account == null) {
+      account = new Account(directory.nameOf(id), ledger).setBalance(0L);
+      directory.put(account);
+      current.add(JournalRecordType.ACCOUNT, id, NO_ACCOUNT, 0L, 0L, 0L);
+    }
+    values[slot] = account;
+    balances[slot] = account.getBalance();
+  }
+
+  private void applyAdd(int slot) {
+    int id = accountIds[slot];
+    Account account = new Account(directory.nameOf(id), ledger).setBalance(amounts[slot]);
+    directory.put(account);
+    current.add(JournalRecordType.ACCOUNT, id, NO_ACCOUNT, amounts[slot], 0L, 0L);
+    values[slot] = account;
+    balances[slot] = account.getBalance();
+  }
+
+  private void applyTopup(int slot) {
+    Account account = account(accountIds[slot]);
+    long amount = amounts[slot];
+    account.setBalance(account.getBalance() + amount);
+    current.add(JournalRecordType.TOPUP, account.getId(), NO_ACCOUNT, amount, 0L, 0L);
+    if (account.getBalance() > 0) {
+      for (int creditor : ledger.creditorsOf(account.getId())) {
+        long balance = account.getBalance();
+        if (balance <= 0) {
+          break;
+        }
+        account.setBalance(TransactionUtil.adjustExclusive(account, account(creditor), balance, effectListener));
+      }
+    }
+    balances[slot] = account.getBalance();
+  }
+
+  private void applyTransfer(int slot) {
+    Account payer = account(accountIds[slot]);
+    Account payee = directory.get(otherIds[slot]);
+    if (payee == null) {
+      statuses[slot] = Status.NO_PAYEE;
+    } else if (payee.getId() == payer.getId()) {
+      statuses[slot] = Status.SAME_ACCOUNT;
+    } else {
+      TransactionUtil.transferExclusive(payer, payee, amounts[slot], effectListener);
+    }
+    balances[slot] = payer.getBalance();
+  }
+
+  private void applyBatch(int slot) {
+    Account payer = account(accountIds[slot]);
+    int[] payeeIds = batchIds[slot];
+    Account[] payees = new Account[payeeIds.length];
+    for (int i = 0; i < payeeIds.length && statuses[slot] == Status.OK; i++) {
+      payees[i] = directory.get(payeeIds[i]);
+      if (payees[i] == null) {
+        statuses[slot] = Status.NO_PAYEE;
+      } else if (payees[i].getId() == payer.getId()) {
+        statuses[slot] = Status.SAME_ACCOUNT;
+      }
+    }
+    if (statuses[slot] == Status.OK) {
+      TransactionUtil.transferBatchExclusive(payer, payees, batchAmounts[slot], effectListener);
+    }
+    balances[slot] = payer.getBalance();
+  }
+
+  private void applyExclusive(long sequence, int slot) throws Exception {
+    int idle = 0;
+    while (journaled < sequence) {
+      idle = logicStage.idle(idle);
+    }
+    logicStage.busy();
+    values[slot] = tasks[slot].call();
+  }
+
+  private Account account(int id) {
+    Account account = directory.get(id);
+    if (account == null) {
+      throw new IllegalStateException("Account not exists for id=[" + id + "].");
+    }
+    return account;
+  }
+
+  private void journalLoop() {
+    long next = 0;
+    int idle = 0;
+    while (true) {
+      long available = applied;
+      if (next < available) {
+        TransactionJournal journal = accountService.currentJournal();
+        AuditChannel audit = accountService.currentAudit();
+        TransactionHistory history = accountService.currentHistory();
+        for (; next < available; next++) {
+          effects[(int) next & mask].write(journal, audit, history, directory);
+        }
+        if (journal != null) {
+          try {
+            journal.commit();
+          } catch (RuntimeException e) {
+            LOGGER.error("Unable to commit journal. Exception=[{}].", e.getMessage());
+          }
+        }
+        journaled = next;
+        logicStage.wake();
+        respond(responded, next);
+        responded = next;
+        idle = journalStage.busy();
+        continue;
+      }
+      if (closed && next == claimed.get()) {
+        return;
+      }
+      idle = journalStage.idle(idle);
+    }
+  }
+
+  /**
+   * hands the results of the journaled commands to their callers and frees their slots
+   * @param from first sequence
+   * @param to sequence after the last one
+   */
+  private void respond(long from, long to) {
+    for (long next = from; next < to; next++) {
+      int slot = (int) next & mask;
+      Waiter waiter = waiters[slot];
+      waiters[slot] = null;
+      tasks[slot] = null;
+      batchIds[slot] = null;
+      batchAmounts[slot] = null;
+      waiter.status = statuses[slot];
+      waiter.balance = balances[slot];
+      waiter.value = values[slot];
+      waiter.failure = failures[slot];
+      values[slot] = null;
+      failures[slot] = null;
+      waiter.done = true;
+      if (waiter.parked) {
+        LockSupport.unpark(waiter.thread);
+      }
+    }
+  }
+
+  /**
+   * applies the commands already published and stops the threads, commands must not be submitted afterwards
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      logicStage.thread.join();
+      journalStage.thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LOGGER.info("Sequencer engine stopped after commands=[{}].", claimed.get());
+  }
+
+  /**
+   * per thread result holder of the commands submitted by that thread
+   */
+  private static final class Waiter {
+    private final Thread thread = Thread.currentThread();
+    private volatile boolean done;
+    private volatile boolean parked;
+    private Status status;
+    private long balance;
+    private Object value;
+    private Throwable failure;
+  }
+
+  /**
+   * thread of one stage of the engine and whether it is parked for lack of work
+   */
+  private static final class Stage {
+    private final Thread thread;
+    private volatile boolean parked;
+
+    private Stage(Thread thread) {
+      this.thread = thread;
+    }
+
+    /**
+     * waits a little while the stage has nothing to do: spins first, then yields, then parks.
+     * The first round at the parking level only marks the stage parked, so that the caller checks for work
+     * once more before it really parks and a command published meanwhile is not missed
+     * @param idle number of idle rounds so far
+     * @return idle rounds including this one
+     */
+    private int idle(int idle) {
+      if (idle < SPIN_TRIES) {
+        // busy spin
+      } else if (idle < YIELD_TRIES) {
+        Thread.yield();
+      } else if (!parked) {
+        parked = true;
+      } else {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      return idle + 1;
+    }
+
+    /**
+     * marks the stage busy again after it found work
+     * @return idle rounds reset to zero
+     */
+    private int busy() {
+      if (parked) {
+        parked = false;
+      }
+      return 0;
+    }
+
+    /**
+     * unparks the stage thread if it is parked, there is nothing to do if it is still spinning
+     */
+    private void wake() {
+      if (parked) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * effects of one command as journal records, kept in primitive arrays reused by every command of the slot
+   */
+  private static final class Effects {
+    private int count;
+    private JournalRecordType[] types = new JournalRecordType[INITIAL_EFFECTS];
+    private int[] firstIds = new int[INITIAL_EFFECTS];
+    private int[] secondIds = new int[INITIAL_EFFECTS];
+    private long[] firstAmounts = new long[INITIAL_EFFECTS];
+    private long[] secondAmounts = new long[INITIAL_EFFECTS];
+    private long[] thirdAmounts = new long[INITIAL_EFFECTS];
+
+    private void add(JournalRecordType type, int first, int second, long firstAmount, long secondAmount, long thirdAmount) {
+      if (count == types.length) {
+        int capacity = count * 2;
+        types = Arrays.copyOf(types, capacity);
+        firstIds = Arrays.copyOf(firstIds, capacity);
+        secondIds = Arrays.copyOf(secondIds, capacity);
+        firstAmounts = Arrays.copyOf(firstAmounts, capacity);
+        secondAmounts = Arrays.copyOf(secondAmounts, capacity);
+        thirdAmounts = Arrays.copyOf(thirdAmounts, capacity);
+      }
+      types[count] = type;
+      firstIds[count] = first;
+      secondIds[count] = second;
+      firstAmounts[count] = firstAmount;
+      secondAmounts[count] = secondAmount;
+      thirdAmounts[count] = thirdAmount;
+      count++;
+    }
+
+    private void write(TransactionJournal journal, AuditChannel audit, TransactionHistory history,
+        AccountDirectory directory) {
+      for (int i = 0; i < count; i++) {
+        switch (types[i])
+        {
+          case ACCOUNT:
+            if (journal != null) {
+              journal.appendAccount(directory.nameOf(firstIds[i]), firstAmounts[i]);
+            }
+            if (audit != null) {
+              audit.recordAccount(firstIds[i], firstAmounts[i]);
+            }
+            break;
+          case TOPUP:
+            if (journal != null) {
+              journal.appendTopup(directory.nameOf(firstIds[i]), firstAmounts[i]);
+            }
+            if (audit != null) {
+              audit.recordTopup(firstIds[i], firstAmounts[i]);
+            }
+            if (history != null) {
+              history.recordTopup(firstIds[i], firstAmounts[i]);
+            }
+            break;
+          case TRANSFER:
+            if (journal != null) {
+              journal.appendTransfer(directory.nameOf(firstIds[i]), directory.nameOf(secondIds[i]), firstAmounts[i],
+                  secondAmounts[i], thirdAmounts[i]);
+            }
+            if (audit != null) {
+              audit.recordTransfer(firstIds[i], secondIds[i], firstAmounts[i], secondAmounts[i], thirdAmounts[i]);
+            }
+            if (history != null) {
+              history.recordTransfer(firstIds[i], secondIds[i], firstAmounts[i], secondAmounts[i], thirdAmounts[i]);
+            }
+            break;
+          case SETTLEMENT:
+            if (journal != null) {
+              journal.appendSettlement(directory.nameOf(firstIds[i]), directory.nameOf(secondIds[i]), firstAmounts[i]);
+            }
+            if (audit != null) {
+              audit.recordSettlement(firstIds[i], secondIds[i], firstAmounts[i]);
+            }
+            if (history != null) {
+              history.recordSettlement(firstIds[i], secondIds[i], firstAmounts[i]);
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    }
+  }
+}
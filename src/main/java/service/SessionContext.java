@@ -0,0 +1,40 @@
+package service;
+
+import domain.Account;
+
+/**
+ * @author viswa
+ *
+ * per session context holding the session handle of the currently logged in user.
+ * Every concurrent session (console, connection, worker thread) uses its own context,
+ * so logging in one session does not change the user of another one.
+ */
+public final class SessionContext {
+
+  private volatile AccountSession session;
+
+  public AccountSession getSession() {
+    return session;
+  }
+
+  SessionContext setSession(AccountSession session) {
+    this.session = session;
+    return this;
+  }
+
+  /**
+   * @return account of the logged in user, null if not logged in
+   */
+  public Account getCurrentUser() {
+    AccountSession current = session;
+    return current == null ? null : current.getAccount();
+  }
+
+  /**
+   * method to check if user is logged in this session
+   * @return true if already loggedIn else false
+   */
+  public boolean isLoggedIn() {
+    return session != null;
+  }
+}
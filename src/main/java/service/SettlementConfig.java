@@ -0,0 +1,70 @@
+package service;
+
+import org.apache.commons.lang3.StringUtils;
+
+import enums.SettlementOrder;
+
+/**
+ * @author viswa
+ *
+ * configuration of the settlement engine of AccountService. After a topup the creditors of the debtor are paid off
+ * in the given order, at most maxPerCommand of them by the topup itself; the rest is left to a background settler.
+ * maxPerCommand 0 settles every creditor within the topup.
+ */
+public class SettlementConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String ORDER_PROPERTY = "bank.settlement.order";
+  public static final String MAX_PER_COMMAND_PROPERTY = "bank.settlement.maxPerCommand";
+
+  private SettlementOrder order = SettlementOrder.FIFO;
+  private int maxPerCommand = 64;
+
+  /**
+   * builds the configuration from system properties
+   * @return configuration, or null if neither the order nor the bound per command is configured
+   */
+  public static SettlementConfig fromSystemProperties() {
+    String order = System.getProperty(ORDER_PROPERTY);
+    String maxPerCommand = System.getProperty(MAX_PER_COMMAND_PROPERTY);
+    if (StringUtils.isBlank(order) && StringUtils.isBlank(maxPerCommand)) {
+      return null;
+    }
+    SettlementConfig config = new SettlementConfig();
+    if (StringUtils.isNotBlank(order)) {
+      SettlementOrder settlementOrder = SettlementOrder.fromName(order.trim());
+      if (settlementOrder == null) {
+        throw new IllegalArgumentException("Unknown settlement order=[" + order.trim() + "].");
+      }
+      config.setOrder(settlementOrder);
+    }
+    if (StringUtils.isNotBlank(maxPerCommand)) {
+      config.setMaxPerCommand(Integer.parseInt(maxPerCommand.trim()));
+    }
+    return config;
+  }
+
+  public SettlementOrder getOrder() {
+    return order;
+  }
+  public SettlementConfig setOrder(SettlementOrder order) {
+    if (order == null) {
+      throw new IllegalArgumentException("Settlement order cannot be null.");
+    }
+    this.order = order;
+    return this;
+  }
+
+  public int getMaxPerCommand() {
+    return maxPerCommand;
+  }
+  public SettlementConfig setMaxPerCommand(int maxPerCommand) {
+    if (maxPerCommand < 0) {
+      throw new IllegalArgumentException("Settlements per command cannot be less than 0.");
+    }
+    this.maxPerCommand = maxPerCommand;
+    return this;
+  }
+}
@@ -0,0 +1,164 @@
+package service;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import domain.Account;
+import domain.AccountDirectory;
+import domain.DebtLedger;
+import enums.SettlementOrder;
+
+/**
+ * @author viswa
+ *
+ * settlement engine of AccountService in the locking mode. It picks the creditors a debtor pays off next, in the
+ * configured order and at most maxPerCommand of them per round, so that a topup of a debtor with thousands of
+ * creditors does a bounded amount of work. Debtors left with a balance and debts after their round are queued once
+ * to the background settler thread, which settles them round by round until their balance or their debts are gone.
+ */
+final class SettlementEngine implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SettlementEngine.class);
+
+  private final SettlementConfig config;
+  private final AccountDirectory accounts;
+  private final DebtLedger ledger;
+  private final Predicate<Account> round;
+  private final LinkedBlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+  private final Set<Integer> queued = ConcurrentHashMap.newKeySet();
+  private final LongAdder deferred = new LongAdder();
+  private final LongAdder backgroundRounds = new LongAdder();
+  private final Thread settler;
+  private volatile boolean closed;
+
+  /**
+   * @param round settles one round of a debtor, returns true if the debtor still has a balance and debts left
+   */
+  private SettlementEngine(SettlementConfig config, AccountDirectory accounts, DebtLedger ledger,
+      Predicate<Account> round) {
+    this.config = config;
+    this.accounts = accounts;
+    this.ledger = ledger;
+    this.round = round;
+    this.settler = new Thread(this::settleLoop, "settlement");
+    this.settler.setDaemon(true);
+  }
+
+  /**
+   * creates the engine and starts its background settler if rounds are bounded
+   * @param round settles one round of a debtor, returns true if the debtor still has a balance and debts left
+   * @return started engine
+   */
+  static SettlementEngine start(SettlementConfig config, AccountDirectory accounts, DebtLedger ledger,
+      Predicate<Account> round) {
+    SettlementEngine engine = new SettlementEngine(config, accounts, ledger, round);
+    if (engine.isBounded()) {
+      engine.settler.start();
+    }
+    LOGGER.info("Settlement engine started with order=[{}] maxPerCommand=[{}].", config.getOrder().getName(),
+        config.getMaxPerCommand());
+    return engine;
+  }
+
+  /**
+   * @return true if a round settles a bounded number of creditors
+   */
+  boolean isBounded() {
+    return config.getMaxPerCommand() > 0;
+  }
+
+  /**
+   * @param debtor id of the debtor
+   * @return ids of the creditors the debtor pays off in its next round, in order
+   */
+  int[] nextCreditors(int debtor) {
+    int limit = isBounded() ? config.getMaxPerCommand() : Integer.MAX_VALUE;
+    if (config.getOrder() == SettlementOrder.SMALLEST_FIRST) {
+      return ledger.smallestCreditorsOf(debtor, limit);
+    }
+    return ledger.creditorsOf(debtor, limit);
+  }
+
+  /**
+   * queues the debtor to the background settler, unless it is queued already
+   */
+  void defer(Account debtor) {
+    if (queued.add(debtor.getId())) {
+      deferred.increment();
+      pending.offer(debtor.getId());
+    }
+  }
+
+  /**
+   * @return number of times a debtor was queued to the background settler
+   */
+  long getDeferredCount() {
+    return deferred.sum();
+  }
+
+  /**
+   * @return number of rounds run by the background settler
+   */
+  long getBackgroundRounds() {
+    return backgroundRounds.sum();
+  }
+
+  private void settleLoop() {
+    while (!closed) {
+      Integer debtor;
+      try {
+        debtor = pending.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (debtor != null) {
+        settle(debtor);
+      }
+    }
+  }
+
+  /**
+   * runs one round of the debtor, queueing it again at the end if it is not done,
+   * so that the debtors waiting for the settler take turns
+   */
+  private void settle(int debtor) {
+    queued.remove(debtor);
+    Account account = accounts.get(debtor);
+    if (account == null) {
+      return;
+    }
+    backgroundRounds.increment();
+    try {
+      if (round.test(account)) {
+        defer(account);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Unable to settle debts of account=[{}]. Exception=[{}].", account.getName(), e.getMessage());
+    }
+  }
+
+  /**
+   * stops the background settler and settles the debtors still queued on the calling thread
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      settler.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    Integer debtor;
+    while ((debtor = pending.poll()) != null) {
+      settle(debtor);
+    }
+    LOGGER.info("Settlement engine stopped.");
+  }
+}
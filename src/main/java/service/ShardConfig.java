@@ -0,0 +1,69 @@
+package service;
+
+import org.apache.commons.lang3.StringUtils;
+
+import journal.JournalConfig;
+
+/**
+ * @author viswa
+ *
+ * configuration of the sharded execution mode of AccountService.
+ * Accounts are partitioned into shardCount shards by the hash of their name, every shard is owned by one thread.
+ * When a journal configuration is given, every shard journals to its own subdirectory shard-[n] of its directory.
+ */
+public class ShardConfig {
+
+  /*
+   * system property names used by fromSystemProperties, the engine is selected by SequencerConfig.ENGINE_PROPERTY
+   */
+  public static final String SHARD_COUNT_PROPERTY = "bank.engine.shards";
+
+  /*
+   * value of the engine property selecting the sharded engine
+   */
+  public static final String SHARDED_ENGINE = "sharded";
+
+  private static final int MAX_SHARD_COUNT = 1024;
+
+  private int shardCount = Math.min(MAX_SHARD_COUNT, Runtime.getRuntime().availableProcessors());
+  private JournalConfig journal;
+
+  /**
+   * builds the configuration from system properties, with the journal settings of JournalConfig.fromSystemProperties
+   * @return configuration, or null if the sharded engine is not selected
+   */
+  public static ShardConfig fromSystemProperties() {
+    String engine = System.getProperty(SequencerConfig.ENGINE_PROPERTY);
+    if (StringUtils.isBlank(engine) || !SHARDED_ENGINE.equals(engine.trim())) {
+      return null;
+    }
+    ShardConfig config = new ShardConfig();
+    String shardCount = System.getProperty(SHARD_COUNT_PROPERTY);
+    if (StringUtils.isNotBlank(shardCount)) {
+      config.setShardCount(Integer.parseInt(shardCount.trim()));
+    }
+    return config.setJournal(JournalConfig.fromSystemProperties());
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+  public ShardConfig setShardCount(int shardCount) {
+    if (shardCount < 1 || shardCount > MAX_SHARD_COUNT) {
+      throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARD_COUNT + ".");
+    }
+    this.shardCount = shardCount;
+    return this;
+  }
+
+  public JournalConfig getJournal() {
+    return journal;
+  }
+  public ShardConfig setJournal(JournalConfig journal) {
+    if (journal != null && journal.getDirectory() == null) {
+      throw new IllegalArgumentException("Journal directory is not configured.");
+    }
+    this.journal = journal;
+    return this;
+  }
+}
@@ -0,0 +1,700 @@
+package service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import audit.AuditChannel;
+import domain.Account;
+import domain.AccountDirectory;
+import domain.DebtLedger;
+import history.TransactionHistory;
+import journal.TransactionJournal;
+import util.TransactionListener;
+import util.TransactionUtil;
+
+/**
+ * @author viswa
+ *
+ * sharded execution engine of AccountService. Accounts are partitioned into shards by the hash of their name,
+ * every shard has one thread, which is the only one changing the balances of its accounts and the debts they owe,
+ * and its own journal. Commands are passed to the shards as messages through lock free queues:
+ * <ul>
+ * <li>account creations and topups go to the shard of the account; a topup settles the debts of the account there
+ * and sends the settled amounts to the shards of the creditors</li>
+ * <li>a transfer between two accounts of one shard is applied there at once by TransactionUtil.transferExclusive</li>
+ * <li>a transfer between two shards is split into a debit and a credit phase: the shard of the payee checks the payee
+ * and nets what the payee owes to the payer (netExclusive), then the shard of the payer takes the rest from the payer
+ * balance or adds it to the payer debt (debitExclusive) and sends the moved amount back to the shard of the payee,
+ * which credits it. The effects are the ones transferAmount has, only applied by the owners of the accounts</li>
+ * <li>a batch of transfers is applied in one step while the shards are paused, with the effects journaled by the
+ * shards the two phases of a transfer between shards would journal them on</li>
+ * </ul>
+ * Every shard commits its journal once per batch of messages, and passes messages on or completes commands only after
+ * that commit, so an effect is durable before anything depending on it is applied. Every debt is changed only by the
+ * shard of the debtor, so the records of one debt are in one journal in order, and the balance changes of all records
+ * add up to the same balances in any order of the journals; AccountService relies on both when it replays them.
+ * While the engine runs the DebtLedger is repartitioned by shard, so the debts owed by the accounts of a shard, their
+ * lock and their changed marks are in a partition of their own and the shards do not contend on ledger writes;
+ * the creation sequence of the ledger is the only counter they share. The default partitions are restored on close.
+ */
+final class ShardedEngine implements ExecutionEngine {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardedEngine.class);
+
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 200;
+  private static final long IDLE_PARK_NANOS = 1_000_000L;
+  private static final int BATCH_SIZE = 256;
+
+  /**
+   * steps of the commands, every step is applied by the shard owning the account it changes
+   */
+  private enum Step {
+    OPEN, ADD, TOPUP, TRANSFER, DEBIT, CREDIT
+  }
+
+  private final AccountService accountService;
+  private final AccountDirectory directory;
+  private final DebtLedger ledger;
+  private final Shard[] shards;
+
+  /*
+   * number of commands submitted and not completed yet, exclusive tasks wait till it drops to 0
+   */
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final Object exclusiveLock = new Object();
+  private final LongAdder crossShardTransfers = new LongAdder();
+  private volatile boolean paused;
+  private volatile boolean closed;
+
+  private ShardedEngine(ShardConfig config, AccountService accountService, AccountDirectory directory, DebtLedger ledger,
+      TransactionJournal[] journals) {
+    this.accountService = accountService;
+    this.directory = directory;
+    this.ledger = ledger;
+    this.shards = new Shard[config.getShardCount()];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(i, journals == null ? null : journals[i]);
+    }
+  }
+
+  /**
+   * starts the threads of the shards
+   * @param accountService service whose audit channel receives the effects
+   * @param directory accounts owned by the shards from now on
+   * @param ledger debts owned by the shards from now on, repartitioned by shard till the engine is closed
+   * @param journals journal of every shard, owned and closed by the engine, null if journaling is not enabled
+   * @return running engine
+   */
+  static ShardedEngine start(ShardConfig config, AccountService accountService, AccountDirectory directory,
+      DebtLedger ledger, TransactionJournal[] journals) {
+    if (journals != null && journals.length != config.getShardCount()) {
+      throw new IllegalArgumentException("One journal per shard is needed.");
+    }
+    ShardedEngine engine = new ShardedEngine(config, accountService, directory, ledger, journals);
+    ledger.repartition(config.getShardCount(), engine::shardOf);
+    for (Shard shard : engine.shards) {
+      shard.thread.start();
+    }
+    LOGGER.info("Sharded engine started with shards=[{}].", config.getShardCount());
+    return engine;
+  }
+
+  /**
+   * @return index of the shard owning the account of the given id
+   */
+  int shardOf(int id) {
+    int hash = directory.nameOf(id).hashCode();
+    hash ^= hash >>> 16;
+    return (hash & Integer.MAX_VALUE) % shards.length;
+  }
+
+  @Override
+  public Account open(int id) {
+    return completed(submit(Step.OPEN, id, id, 0L)).account;
+  }
+
+  @Override
+  public void add(int id, long balance) {
+    completed(submit(Step.ADD, id, id, balance));
+  }
+
+  @Override
+  public long topup(int id, long amount) {
+    return completed(submit(Step.TOPUP, id, id, amount)).balance;
+  }
+
+  @Override
+  public Status transfer(int payerId, int payeeId, long amount) {
+    if (payeeId < 0 || payeeId >= directory.idCount()) {
+      return Status.NO_PAYEE;
+    }
+    if (payeeId == payerId) {
+      return Status.SAME_ACCOUNT;
+    }
+    return completed(submit(Step.TRANSFER, payerId, payeeId, amount)).status;
+  }
+
+  /**
+   * applies the batch on the calling thread like an exclusive task, so no other command sees a part of it.
+   * What a payee owes to the payer is netted in the journal of the payee shard and the rest in the journal of the
+   * payer shard, as by the two phases of a transfer between shards, and the journals are committed before the
+   * shards go on
+   */
+  @Override
+  public Status transferBatch(int payerId, int[] payeeIds, long[] amounts) {
+    try {
+      return runExclusive(() -> applyBatch(payerId, payeeIds, amounts));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Status applyBatch(int payerId, int[] payeeIds, long[] amounts) {
+    Account[] payees = new Account[payeeIds.length];
+    for (int i = 0; i < payeeIds.length; i++) {
+      if (payeeIds[i] < 0 || payeeIds[i] >= directory.idCount() || directory.get(payeeIds[i]) == null) {
+        return Status.NO_PAYEE;
+      }
+      if (payeeIds[i] == payerId) {
+        return Status.SAME_ACCOUNT;
+      }
+      payees[i] = directory.get(payeeIds[i]);
+    }
+    Shard payerShard = shards[shardOf(payerId)];
+    TransactionUtil.transferBatchExclusive(account(payerId), payees, amounts, new TransactionListener() {
+      @Override
+      public void onTransfer(Account payer, Account payee, long netted, long moved, long deficit) {
+        Shard payeeShard = shards[shardOf(payee.getId())];
+        if (payeeShard == payerShard) {
+          payerShard.onTransfer(payer, payee, netted, moved, deficit);
+          return;
+        }
+        crossShardTransfers.increment();
+        if (netted > 0) {
+          payeeShard.onTransfer(payer, payee, netted, 0L, 0L);
+        }
+        if (moved > 0 || deficit > 0) {
+          payerShard.onTransfer(payer, payee, 0L, moved, deficit);
+        }
+      }
+    });
+    for (Shard shard : shards) {
+      shard.commit();
+    }
+    return Status.OK;
+  }
+
+  /**
+   * runs the task on the calling thread once all commands submitted before are completed, commands submitted
+   * meanwhile wait till it is done
+   */
+  @Override
+  public <T> T runExclusive(Callable<T> task) throws IOException {
+    synchronized (exclusiveLock) {
+      if (closed) {
+        throw new IllegalStateException("Sharded engine is closed.");
+      }
+      paused = true;
+      try {
+        awaitIdle();
+        return task.call();
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      } finally {
+        paused = false;
+      }
+    }
+  }
+
+  @Override
+  public void journalReset() {
+    for (Shard shard : shards) {
+      if (shard.journal != null) {
+        shard.journal.appendReset();
+      }
+    }
+    for (Shard shard : shards) {
+      if (shard.journal != null) {
+        shard.journal.commit();
+      }
+    }
+  }
+
+  /**
+   * @return number of shards
+   */
+  int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * @return number of transfers between accounts of different shards so far
+   */
+  long getCrossShardTransfers() {
+    return crossShardTransfers.sum();
+  }
+
+  private Command submit(Step step, int accountId, int otherId, long amount) {
+    Shard shard = shards[shardOf(step == Step.TRANSFER ? otherId : accountId)];
+    enter();
+    Command command = new Command();
+    shard.send(new Message(step, accountId, otherId, amount, command));
+    while (!command.done) {
+      LockSupport.park(this);
+    }
+    return command;
+  }
+
+  /**
+   * counts a new command in, waiting while an exclusive task runs
+   * @throws IllegalStateException if the engine is closed
+   */
+  private void enter() {
+    while (true) {
+      if (closed) {
+        throw new IllegalStateException("Sharded engine is closed.");
+      }
+      inFlight.incrementAndGet();
+      if (!paused) {
+        return;
+      }
+      inFlight.decrementAndGet();
+      while (paused && !closed) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  /**
+   * waits till all commands counted in are completed, the caller has set paused so that no new one is counted in
+   */
+  private void awaitIdle() {
+    int idle = 0;
+    while (inFlight.get() != 0) {
+      if (idle++ < YIELD_TRIES) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  /**
+   * @throws RuntimeException the failure of the command, if it failed
+   * @return the command, if it did not fail
+   */
+  private static Command completed(Command command) {
+    Throwable failure = command.failure;
+    if (failure == null) {
+      return command;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    throw new IllegalStateException(failure);
+  }
+
+  private Account account(int id) {
+    Account account = directory.get(id);
+    if (account == null) {
+      throw new IllegalStateException("Account not exists for id=[" + id + "].");
+    }
+    return account;
+  }
+
+  /**
+   * completes the commands submitted before and stops the threads of the shards and their journals,
+   * commands submitted afterwards fail
+   */
+  @Override
+  public void close() {
+    synchronized (exclusiveLock) {
+      if (closed) {
+        return;
+      }
+      paused = true;
+      awaitIdle();
+      closed = true;
+    }
+    for (Shard shard : shards) {
+      LockSupport.unpark(shard.thread);
+    }
+    for (Shard shard : shards) {
+      try {
+        shard.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (shard.journal != null) {
+        try {
+          shard.journal.close();
+        } catch (IOException e) {
+          LOGGER.error("Unable to close journal of shard=[{}]. Exception=[{}].", shard.index, e.getMessage());
+        }
+      }
+    }
+    ledger.repartition(DebtLedger.DEFAULT_PARTITIONS);
+    LOGGER.info("Sharded engine stopped after cross shard transfers=[{}].", crossShardTransfers.sum());
+  }
+
+  /**
+   * caller side of a command, completed once all of its messages are applied and journaled
+   */
+  private static final class Command {
+    private final Thread caller = Thread.currentThread();
+    /*
+     * messages of the command not applied yet, a settlement of a topup adds one for every other shard credited
+     */
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private volatile boolean done;
+    private Status status = Status.OK;
+    private long balance;
+    private Account account;
+    private Throwable failure;
+  }
+
+  /**
+   * one step of a command on its way between the shards
+   */
+  private static final class Message {
+    private Step step;
+    /*
+     * account of the command, the payer of a transfer or the debtor of a settlement
+     */
+    private final int accountId;
+    /*
+     * payee of a transfer or creditor of a settlement, the account credited by the CREDIT step
+     */
+    private final int otherId;
+    private long amount;
+    private final Command command;
+
+    private Message(Step step, int accountId, int otherId, long amount, Command command) {
+      this.step = step;
+      this.accountId = accountId;
+      this.otherId = otherId;
+      this.amount = amount;
+      this.command = command;
+    }
+  }
+
+  /**
+   * one partition of the accounts with its thread, its queue of messages and its journal.
+   * It also receives the effects of TransactionUtil as the listener and journals them
+   */
+  private final class Shard implements TransactionListener, Runnable {
+
+    private final int index;
+    private final TransactionJournal journal;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<>();
+    private volatile boolean sleeping;
+
+    /*
+     * fields owned by the shard thread: messages to pass on and commands to complete after the next commit
+     */
+    private final List<Message> outbox = new ArrayList<>();
+    private final List<Command> finished = new ArrayList<>();
+    private boolean appended;
+
+    private Shard(int index, TransactionJournal journal) {
+      this.index = index;
+      this.journal = journal;
+      this.thread = new Thread(this, "shard-" + index);
+      this.thread.setDaemon(true);
+    }
+
+    private void send(Message message) {
+      inbox.offer(message);
+      if (sleeping) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    @Override
+    public void run() {
+      int idle = 0;
+      while (true) {
+        Message message = inbox.poll();
+        if (message == null) {
+          if (closed) {
+            return;
+          }
+          idle = idle(idle);
+          continue;
+        }
+        idle = 0;
+        int count = 0;
+        do {
+          apply(message);
+          count++;
+        } while (count < BATCH_SIZE && (message = inbox.poll()) != null);
+        commit();
+        for (Message next : outbox) {
+          shards[next.step == Step.CREDIT || next.step == Step.TRANSFER ? shardOf(next.otherId) : shardOf(next.accountId)]
+              .send(next);
+        }
+        outbox.clear();
+        for (Command command : finished) {
+          finish(command);
+        }
+        finished.clear();
+      }
+    }
+
+    /**
+     * waits a little while the queue is empty: spins first, then yields, then parks till a message is sent
+     * @param idle number of idle rounds so far
+     * @return idle rounds including this one
+     */
+    private int idle(int idle) {
+      if (idle < SPIN_TRIES) {
+        // busy spin
+      } else if (idle < YIELD_TRIES) {
+        Thread.yield();
+      } else {
+        sleeping = true;
+        if (inbox.isEmpty() && !closed) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        sleeping = false;
+      }
+      return idle + 1;
+    }
+
+    private void apply(Message message) {
+      try {
+        switch (message.step)
+        {
+          case OPEN:
+            applyOpen(message);
+            break;
+          case ADD:
+            applyAdd(message);
+            break;
+          case TOPUP:
+            applyTopup(message);
+            break;
+          case TRANSFER:
+            applyTransfer(message);
+            break;
+          case DEBIT:
+            applyDebit(message);
+            break;
+          case CREDIT:
+            applyCredit(message);
+            break;
+          default:
+            break;
+        }
+      } catch (RuntimeException e) {
+        message.command.status = Status.FAILED;
+        message.command.failure = e;
+        finished.add(message.command);
+      }
+    }
+
+    private void applyOpen(Message message) {
+      Account account = directory.get(message.accountId);
+      if (account == null) {
+        account = new Account(directory.nameOf(message.accountId), ledger).setBalance(0L);
+        directory.put(account);
+        appendAccount(account);
+      }
+      message.command.account = account;
+      message.command.balance = account.getBalance();
+      finished.add(message.command);
+    }
+
+    /**
+     * replaces the balance of an existing account by journaling the change as a topup, so that the credits
+     * of other shards to the account, journaled there, still add up when the journals are replayed
+     */
+    private void applyAdd(Message message) {
+      Account account = directory.get(message.accountId);
+      if (account == null) {
+        account = new Account(directory.nameOf(message.accountId), ledger).setBalance(message.amount);
+        directory.put(account);
+        appendAccount(account);
+      } else {
+        long change = message.amount - account.getBalance();
+        account.setBalance(message.amount);
+        if (journal != null) {
+          journal.appendTopup(account.getName(), change);
+          appended = true;
+        }
+        AuditChannel audit = accountService.currentAudit();
+        if (audit != null) {
+          audit.recordAccount(account.getId(), message.amount);
+        }
+      }
+      message.command.account = account;
+      message.command.balance = account.getBalance();
+      finished.add(message.command);
+    }
+
+    private void applyTopup(Message message) {
+      Account account = account(message.accountId);
+      account.setBalance(account.getBalance() + message.amount);
+      if (journal != null) {
+        journal.appendTopup(account.getName(), message.amount);
+        appended = true;
+      }
+      AuditChannel audit = accountService.currentAudit();
+      if (audit != null) {
+        audit.recordTopup(account.getId(), message.amount);
+      }
+      TransactionHistory history = accountService.currentHistory();
+      if (history != null) {
+        history.recordTopup(account.getId(), message.amount);
+      }
+      if (account.getBalance() > 0) {
+        for (int creditor : ledger.creditorsOf(account.getId())) {
+          long balance = account.getBalance();
+          if (balance <= 0) {
+            break;
+          }
+          Account payee = account(creditor);
+          if (shardOf(creditor) == index) {
+            account.setBalance(TransactionUtil.adjustExclusive(account, payee, balance, this));
+            continue;
+          }
+          long settled = TransactionUtil.settleExclusive(account, payee, balance, this);
+          if (settled > 0) {
+            message.command.pending.incrementAndGet();
+            outbox.add(new Message(Step.CREDIT, account.getId(), creditor, settled, message.command));
+          }
+        }
+      }
+      message.command.balance = account.getBalance();
+      finished.add(message.command);
+    }
+
+    /**
+     * first step of a transfer, on the shard of the payee
+     */
+    private void applyTransfer(Message message) {
+      Account payee = directory.get(message.otherId);
+      if (payee == null) {
+        message.command.status = Status.NO_PAYEE;
+        finished.add(message.command);
+        return;
+      }
+      Account payer = account(message.accountId);
+      if (shardOf(message.accountId) == index) {
+        TransactionUtil.transferExclusive(payer, payee, message.amount, this);
+        finished.add(message.command);
+        return;
+      }
+      crossShardTransfers.increment();
+      long remaining = TransactionUtil.netExclusive(payer, payee, message.amount, this);
+      if (remaining == 0) {
+        finished.add(message.command);
+        return;
+      }
+      message.step = Step.DEBIT;
+      message.amount = remaining;
+      outbox.add(message);
+    }
+
+    /**
+     * debit phase of a transfer between shards, on the shard of the payer
+     */
+    private void applyDebit(Message message) {
+      long moved = TransactionUtil.debitExclusive(account(message.accountId), account(message.otherId), message.amount, this);
+      if (moved == 0) {
+        finished.add(message.command);
+        return;
+      }
+      message.step = Step.CREDIT;
+      message.amount = moved;
+      outbox.add(message);
+    }
+
+    /**
+     * credit phase of a transfer or settlement between shards, on the shard of the credited account.
+     * Nothing is journaled here, the record journaled by the debit phase replays the credit as well
+     */
+    private void applyCredit(Message message) {
+      Account account = account(message.otherId);
+      account.setBalance(account.getBalance() + message.amount);
+      finished.add(message.command);
+    }
+
+    private void commit() {
+      if (!appended) {
+        return;
+      }
+      appended = false;
+      try {
+        journal.commit();
+      } catch (RuntimeException e) {
+        LOGGER.error("Unable to commit journal of shard=[{}]. Exception=[{}].", index, e.getMessage());
+      }
+    }
+
+    private void finish(Command command) {
+      if (command.pending.decrementAndGet() != 0) {
+        return;
+      }
+      inFlight.decrementAndGet();
+      command.done = true;
+      LockSupport.unpark(command.caller);
+    }
+
+    private void appendAccount(Account account) {
+      if (journal != null) {
+        journal.appendAccount(account.getName(), account.getBalance());
+        appended = true;
+      }
+      AuditChannel audit = accountService.currentAudit();
+      if (audit != null) {
+        audit.recordAccount(account.getId(), account.getBalance());
+      }
+    }
+
+    @Override
+    public void onTransfer(Account payer, Account payee, long netted, long moved, long deficit) {
+      if (journal != null) {
+        journal.appendTransfer(payer.getName(), payee.getName(), netted, moved, deficit);
+        appended = true;
+      }
+      AuditChannel audit = accountService.currentAudit();
+      if (audit != null) {
+        audit.recordTransfer(payer.getId(), payee.getId(), netted, moved, deficit);
+      }
+      TransactionHistory history = accountService.currentHistory();
+      if (history != null) {
+        history.recordTransfer(payer.getId(), payee.getId(), netted, moved, deficit);
+      }
+    }
+
+    @Override
+    public void onSettlement(Account debtor, Account creditor, long amount) {
+      if (journal != null) {
+        journal.appendSettlement(debtor.getName(), creditor.getName(), amount);
+        appended = true;
+      }
+      AuditChannel audit = accountService.currentAudit();
+      if (audit != null) {
+        audit.recordSettlement(debtor.getId(), creditor.getId(), amount);
+      }
+      TransactionHistory history = accountService.currentHistory();
+      if (history != null) {
+        history.recordSettlement(debtor.getId(), creditor.getId(), amount);
+      }
+    }
+  }
+}
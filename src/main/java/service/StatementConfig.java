@@ -0,0 +1,125 @@
+package service;
+
+import java.nio.file.Path;
+
+import org.apache.commons.lang3.StringUtils;
+
+import enums.StatementFormat;
+
+/**
+ * @author viswa
+ *
+ * configuration of the statement export of AccountService. The accounts are split by id into parallelism ranges,
+ * each written by its own thread through a direct buffer of bufferBytes, so the export needs parallelism * bufferBytes
+ * of memory whatever the number of accounts. Transactions are taken from the history when it is enabled, only the ones
+ * recorded from fromTime (inclusive) to toTime (exclusive), in epoch millis.
+ */
+public class StatementConfig {
+
+  /*
+   * system property names used by fromSystemProperties
+   */
+  public static final String FORMAT_PROPERTY = "bank.statement.format";
+  public static final String PARALLELISM_PROPERTY = "bank.statement.parallelism";
+  public static final String BUFFER_BYTES_PROPERTY = "bank.statement.bufferBytes";
+
+  private Path file;
+  private StatementFormat format = StatementFormat.CSV;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private int bufferBytes = 1 << 20;
+  private long fromTime;
+  private long toTime = Long.MAX_VALUE;
+
+  /**
+   * builds the configuration from system properties, the file is given with the statement command
+   * @return configuration with the defaults for the properties that are not set
+   */
+  public static StatementConfig fromSystemProperties() {
+    StatementConfig config = new StatementConfig();
+    String format = System.getProperty(FORMAT_PROPERTY);
+    if (StringUtils.isNotBlank(format)) {
+      config.setFormat(parseFormat(format));
+    }
+    String parallelism = System.getProperty(PARALLELISM_PROPERTY);
+    if (StringUtils.isNotBlank(parallelism)) {
+      config.setParallelism(Integer.parseInt(parallelism.trim()));
+    }
+    String bufferBytes = System.getProperty(BUFFER_BYTES_PROPERTY);
+    if (StringUtils.isNotBlank(bufferBytes)) {
+      config.setBufferBytes(Integer.parseInt(bufferBytes.trim()));
+    }
+    return config;
+  }
+
+  /**
+   * @return statement format of the given name
+   * @throws IllegalArgumentException if there is no format of the name
+   */
+  public static StatementFormat parseFormat(String format) {
+    StatementFormat statementFormat = StringUtils.isBlank(format) ? null : StatementFormat.fromName(format.trim());
+    if (statementFormat == null) {
+      throw new IllegalArgumentException("Unknown statement format=[" + format + "].");
+    }
+    return statementFormat;
+  }
+
+  public Path getFile() {
+    return file;
+  }
+  public StatementConfig setFile(Path file) {
+    this.file = file;
+    return this;
+  }
+
+  public StatementFormat getFormat() {
+    return format;
+  }
+  public StatementConfig setFormat(StatementFormat format) {
+    if (format == null) {
+      throw new IllegalArgumentException("Statement format cannot be null.");
+    }
+    this.format = format;
+    return this;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+  public StatementConfig setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Statement parallelism cannot be less than 1.");
+    }
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  public int getBufferBytes() {
+    return bufferBytes;
+  }
+  public StatementConfig setBufferBytes(int bufferBytes) {
+    if (bufferBytes < 4096) {
+      throw new IllegalArgumentException("Statement buffer must hold at least 4096 bytes.");
+    }
+    this.bufferBytes = bufferBytes;
+    return this;
+  }
+
+  public long getFromTime() {
+    return fromTime;
+  }
+  public long getToTime() {
+    return toTime;
+  }
+  /**
+   * @param fromTime first epoch millis of the transactions, inclusive
+   * @param toTime last epoch millis of the transactions, exclusive
+   */
+  public StatementConfig setPeriod(long fromTime, long toTime) {
+    if (fromTime > toTime) {
+      throw new IllegalArgumentException("Statement period cannot end before it starts.");
+    }
+    this.fromTime = fromTime;
+    this.toTime = toTime;
+    return this;
+  }
+}
@@ -0,0 +1,441 @@
+package service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import domain.Account;
+import domain.AccountDirectory;
+import domain.DebtLedger;
+import enums.StatementFormat;
+import history.HistoryEntry;
+import history.TransactionHistory;
+import util.AccountLocks;
+
+/**
+ * @author viswa
+ *
+ * streams the statements of all accounts into a file. The account ids are split into one range per thread, every
+ * thread encodes its accounts straight into a direct buffer, without building strings, and writes it to its own part
+ * file whenever it is full. The parts are then appended to the statement file in order with FileChannel.transferTo,
+ * so they are copied by the kernel. Memory use is parallelism buffers whatever the number of accounts.
+ * The balance and the debts of an account are read like BalanceQuery does, with AccountLocks.readOptimistic on the lock stripe of the
+ * account, so every account is consistent in itself while the accounts keep changing; the statement is not a snapshot
+ * of all accounts at one point in time.
+ * CSV: ACCOUNT,name,balance then OWES_TO,name,creditor,amount and OWES_FROM,name,debtor,amount per debt, then
+ * TRANSACTION,name,number,time,type,counterparty,amount,moved per history entry of the period; names holding a comma
+ * or a quote are quoted.
+ * Binary (big endian): magic and version, then per account its name, balance, owesTo and owesFrom as a count
+ * followed by (name, amount) pairs and the transactions as a count followed by (number, time, type code, counterparty,
+ * amount, moved); names are an int byte length followed by UTF-8 bytes, an empty name for no counterparty.
+ */
+final class StatementExporter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StatementExporter.class);
+
+  static final int BINARY_MAGIC = 0x4253544D;
+  static final int BINARY_VERSION = 1;
+  private static final byte[] ACCOUNT = "ACCOUNT,".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] OWES_TO = "OWES_TO,".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] OWES_FROM = "OWES_FROM,".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] TRANSACTION = "TRANSACTION,".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+  private final StatementConfig config;
+  private final AccountDirectory accounts;
+  private final DebtLedger ledger;
+  private final TransactionHistory history;
+
+  private StatementExporter(StatementConfig config, AccountDirectory accounts, DebtLedger ledger,
+      TransactionHistory history) {
+    this.config = config;
+    this.accounts = accounts;
+    this.ledger = ledger;
+    this.history = history;
+  }
+
+  /**
+   * writes the statements of all accounts to the configured file, replacing it
+   * @param history transaction history, null if the statements hold no transactions
+   * @return number of exported accounts
+   * @throws IOException if the file cannot be written
+   */
+  static long export(StatementConfig config, AccountDirectory accounts, DebtLedger ledger, TransactionHistory history)
+      throws IOException {
+    if (config == null || config.getFile() == null) {
+      throw new IllegalArgumentException("Statement file is not configured.");
+    }
+    return new StatementExporter(config, accounts, ledger, history).run();
+  }
+
+  private long run() throws IOException {
+    long startNanos = System.nanoTime();
+    Path file = config.getFile();
+    int idCount = accounts.idCount();
+    int partCount = Math.max(1, Math.min(config.getParallelism(), idCount));
+    List<Part> parts = new ArrayList<>(partCount);
+    for (int i = 0; i < partCount; i++) {
+      int from = (int) ((long) idCount * i / partCount);
+      int to = (int) ((long) idCount * (i + 1) / partCount);
+      parts.add(new Part(file.resolveSibling(file.getFileName() + ".part-" + i), from, to));
+    }
+    try {
+      writeParts(parts);
+      long exported = 0;
+      long bytes;
+      try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        if (config.getFormat() == StatementFormat.BINARY) {
+          ByteBuffer header = ByteBuffer.allocate(8).putInt(BINARY_MAGIC).putInt(BINARY_VERSION);
+          header.flip();
+          while (header.hasRemaining()) {
+            target.write(header);
+          }
+        }
+        for (Part part : parts) {
+          exported += part.exported;
+          appendPart(part.file, target);
+        }
+        target.force(false);
+        bytes = target.size();
+      }
+      LOGGER.info("Exported statements of accounts=[{}] to file=[{}] bytes=[{}] with threads=[{}] in [{}] ms.", exported,
+          file, bytes, partCount, (System.nanoTime() - startNanos) / 1_000_000);
+      return exported;
+    } finally {
+      for (Part part : parts) {
+        Files.deleteIfExists(part.file);
+      }
+    }
+  }
+
+  private void writeParts(List<Part> parts) throws IOException {
+    if (parts.size() == 1) {
+      parts.get(0).call();
+      return;
+    }
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(parts.size(), runnable -> {
+      Thread thread = new Thread(runnable, "statement-export-" + threadCount.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<Void>> results = executor.invokeAll(parts);
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Statement export interrupted.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void appendPart(Path part, FileChannel target) throws IOException {
+    try (FileChannel source = FileChannel.open(part, StandardOpenOption.READ)) {
+      long size = source.size();
+      long position = 0;
+      while (position < size) {
+        position += source.transferTo(position, size - position, target);
+      }
+    }
+  }
+
+  /**
+   * writer of the statements of one range of account ids to its part file
+   */
+  private final class Part implements Callable<Void>, DebtLedger.DebtVisitor {
+
+    private final Path file;
+    private final int fromId;
+    private final int toId;
+    private final boolean csv = config.getFormat() == StatementFormat.CSV;
+    private ByteBuffer buffer;
+    private FileChannel channel;
+    private long exported;
+
+    /*
+     * debts of the account being written, owed by it first and owed to it from owedToStart on
+     */
+    private int[] counterparties = new int[16];
+    private long[] amounts = new long[16];
+    private int debtCount;
+    private int owedToStart;
+    private long balance;
+
+    private Part(Path file, int fromId, int toId) {
+      this.file = file;
+      this.fromId = fromId;
+      this.toId = toId;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      buffer = ByteBuffer.allocateDirect(config.getBufferBytes());
+      try (FileChannel output = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        channel = output;
+        for (int id = fromId; id < toId; id++) {
+          Account account = accounts.get(id);
+          if (account != null) {
+            read(account);
+            write(account);
+            exported++;
+          }
+        }
+        flush();
+      } finally {
+        channel = null;
+        buffer = null;
+      }
+      return null;
+    }
+
+    @Override
+    public void visit(int debtor, int creditor, long amount) {
+      if (debtCount == counterparties.length) {
+        counterparties = Arrays.copyOf(counterparties, debtCount * 2);
+        amounts = Arrays.copyOf(amounts, debtCount * 2);
+      }
+      counterparties[debtCount] = owedToStart < 0 ? creditor : debtor;
+      amounts[debtCount] = amount;
+      debtCount++;
+    }
+
+    /**
+     * reads balance and debts of the account into the fields, retried by AccountLocks.readOptimistic while a change
+     * of its stripe runs meanwhile
+     */
+    private void read(Account account) {
+      AccountLocks.readOptimistic(account, () -> readDebts(account));
+    }
+
+    private Part readDebts(Account account) {
+      balance = account.getBalance();
+      debtCount = 0;
+      owedToStart = -1;
+      ledger.forEachOwedBy(account.getId(), this);
+      owedToStart = debtCount;
+      ledger.forEachOwedTo(account.getId(), this);
+      return this;
+    }
+
+    private void write(Account account) throws IOException {
+      String name = account.getName();
+      if (csv) {
+        putBytes(ACCOUNT);
+        putName(name);
+        putByte(',');
+        putNumber(balance);
+        putByte('\n');
+        for (int i = 0; i < debtCount; i++) {
+          putBytes(i < owedToStart ? OWES_TO : OWES_FROM);
+          putName(name);
+          putByte(',');
+          putName(accounts.nameOf(counterparties[i]));
+          putByte(',');
+          putNumber(amounts[i]);
+          putByte('\n');
+        }
+      } else {
+        putName(name);
+        ensure(12);
+        buffer.putLong(balance).putInt(owedToStart);
+        for (int i = 0; i < debtCount; i++) {
+          if (i == owedToStart) {
+            ensure(4);
+            buffer.putInt(debtCount - owedToStart);
+          }
+          putName(accounts.nameOf(counterparties[i]));
+          ensure(8);
+          buffer.putLong(amounts[i]);
+        }
+        if (owedToStart == debtCount) {
+          ensure(4);
+          buffer.putInt(0);
+        }
+      }
+      writeTransactions(account, name);
+    }
+
+    private void writeTransactions(Account account, String name) throws IOException {
+      if (history == null) {
+        if (!csv) {
+          ensure(8);
+          buffer.putLong(0L);
+        }
+        return;
+      }
+      int id = account.getId();
+      long from = history.entryAt(id, config.getFromTime());
+      long to = config.getToTime() == Long.MAX_VALUE ? history.getEntryCount(id) : history.entryAt(id, config.getToTime());
+      if (!csv) {
+        ensure(8);
+        buffer.putLong(Math.max(0L, to - from));
+      }
+      while (from < to) {
+        List<HistoryEntry> page = history.entries(id, from, (int) Math.min(TransactionHistory.MAX_PAGE_SIZE, to - from));
+        if (page.isEmpty()) {
+          break;
+        }
+        for (HistoryEntry entry : page) {
+          writeTransaction(name, entry);
+        }
+        from += page.size();
+      }
+    }
+
+    private void writeTransaction(String name, HistoryEntry entry) throws IOException {
+      String counterparty = entry.getCounterparty();
+      if (csv) {
+        putBytes(TRANSACTION);
+        putName(name);
+        putByte(',');
+        putNumber(entry.getNumber());
+        putByte(',');
+        putNumber(entry.getTime());
+        putByte(',');
+        putAscii(entry.getType().name());
+        putByte(',');
+        if (counterparty != null) {
+          putName(counterparty);
+        }
+        putByte(',');
+        putNumber(entry.getAmount());
+        putByte(',');
+        putNumber(entry.getMoved());
+        putByte('\n');
+      } else {
+        ensure(20);
+        buffer.putLong(entry.getNumber()).putLong(entry.getTime()).putInt(entry.getType().getCode());
+        putName(counterparty == null ? "" : counterparty);
+        ensure(16);
+        buffer.putLong(entry.getAmount()).putLong(entry.getMoved());
+      }
+    }
+
+    /**
+     * puts the name, ASCII names without encoding; CSV names holding a comma or a quote are quoted
+     */
+    private void putName(String name) throws IOException {
+      int length = name.length();
+      boolean ascii = true;
+      boolean quote = false;
+      for (int i = 0; i < length; i++) {
+        char c = name.charAt(i);
+        ascii &= c < 0x80;
+        quote |= c == ',' || c == '"';
+      }
+      if (csv) {
+        if (quote) {
+          putQuoted(name);
+        } else if (ascii) {
+          putAscii(name);
+        } else {
+          putBytes(name.getBytes(StandardCharsets.UTF_8));
+        }
+        return;
+      }
+      if (ascii) {
+        ensure(4 + length);
+        buffer.putInt(length);
+        putAscii(name);
+      } else {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ensure(4);
+        buffer.putInt(bytes.length);
+        putBytes(bytes);
+      }
+    }
+
+    private void putQuoted(String name) throws IOException {
+      byte[] bytes = ('"' + name.replace("\"", "\"\"") + '"').getBytes(StandardCharsets.UTF_8);
+      putBytes(bytes);
+    }
+
+    private void putAscii(String text) throws IOException {
+      int length = text.length();
+      ensure(length);
+      for (int i = 0; i < length; i++) {
+        buffer.put((byte) text.charAt(i));
+      }
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+      ensure(bytes.length);
+      buffer.put(bytes);
+    }
+
+    private void putByte(char c) throws IOException {
+      ensure(1);
+      buffer.put((byte) c);
+    }
+
+    /**
+     * puts the decimal digits of the value
+     */
+    private void putNumber(long value) throws IOException {
+      ensure(MIN_LONG.length);
+      if (value == Long.MIN_VALUE) {
+        buffer.put(MIN_LONG);
+        return;
+      }
+      if (value < 0) {
+        buffer.put((byte) '-');
+        value = -value;
+      }
+      long divisor = 1;
+      while (divisor <= value / 10) {
+        divisor *= 10;
+      }
+      for (; divisor > 0; divisor /= 10) {
+        buffer.put((byte) ('0' + value / divisor % 10));
+      }
+    }
+
+    /**
+     * writes the buffer out if fewer than the given bytes are free
+     * @throws IOException if the bytes do not fit into an empty buffer either
+     */
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() >= bytes) {
+        return;
+      }
+      flush();
+      if (buffer.remaining() < bytes) {
+        throw new IOException("Statement field of [" + bytes + "] bytes is larger than the buffer.");
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
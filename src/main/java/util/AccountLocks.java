@@ -0,0 +1,226 @@
+package util;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+import domain.Account;
+
+/**
+ * @author viswa
+ *
+ * utility class holding striped locks for accounts.
+ * Every account maps to one of a fixed number of lock stripes by its id, so no lock object is created per account
+ * and consecutive ids use different stripes.
+ * Locks for two accounts are always taken in ascending stripe order, which gives a deterministic
+ * global lock ordering and rules out deadlocks between concurrent transfers.
+ * The locks are reentrant, so a thread already holding a stripe can take it again.
+ * Every stripe also has a version, a StampedLock write locked from the first lock of the stripe to its last unlock,
+ * so that readers can check with tryOptimisticRead and validate that no change of the accounts of the stripe
+ * ran while they read them, like a seqlock, without ever taking the stripe lock themselves.
+ * readOptimistic wraps that retry loop for all readers.
+ */
+public final class AccountLocks {
+
+  /*
+   * number of lock stripes, power of two so that the stripe can be found by masking
+   */
+  private static final int STRIPE_COUNT = 1024;
+
+  /*
+   * optimistic reads retried at once before backing off, and the longest pause between two tries
+   */
+  private static final int SPIN_ATTEMPTS = 16;
+  private static final long MAX_BACKOFF_NANOS = 1_000_000L;
+
+  private static final ReentrantLock[] STRIPES = new ReentrantLock[STRIPE_COUNT];
+  private static final StampedLock[] VERSIONS = new StampedLock[STRIPE_COUNT];
+
+  static {
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      STRIPES[i] = new ReentrantLock();
+      VERSIONS[i] = new StampedLock();
+    }
+  }
+
+  private AccountLocks() {
+  }
+
+  /**
+   * get the stripe index of the given account
+   * @return stripe index
+   */
+  public static int stripeOf(Account account) {
+    if (account == null) {
+      throw new IllegalArgumentException("Account cannot be null.");
+    }
+    return account.getId() & (STRIPE_COUNT - 1);
+  }
+
+  /**
+   * locks the stripe of the given account
+   */
+  public static void lock(Account account) {
+    lockStripe(stripeOf(account));
+  }
+
+  /**
+   * unlocks the stripe of the given account
+   */
+  public static void unlock(Account account) {
+    unlockStripe(stripeOf(account));
+  }
+
+  /**
+   * locks the stripes of both accounts in ascending stripe order
+   */
+  public static void lockPair(Account first, Account second) {
+    int firstStripe = stripeOf(first);
+    int secondStripe = stripeOf(second);
+    if (firstStripe == secondStripe) {
+      lockStripe(firstStripe);
+    } else {
+      lockStripe(Math.min(firstStripe, secondStripe));
+      lockStripe(Math.max(firstStripe, secondStripe));
+    }
+  }
+
+  /**
+   * unlocks the stripes taken by lockPair, in reverse order
+   */
+  public static void unlockPair(Account first, Account second) {
+    int firstStripe = stripeOf(first);
+    int secondStripe = stripeOf(second);
+    if (firstStripe == secondStripe) {
+      unlockStripe(firstStripe);
+    } else {
+      unlockStripe(Math.max(firstStripe, secondStripe));
+      unlockStripe(Math.min(firstStripe, secondStripe));
+    }
+  }
+
+  /**
+   * @param count number of accounts taken from the start of the array
+   * @return distinct stripes of the accounts in ascending order, to be locked by lockStripes
+   */
+  public static int[] stripesOf(Account[] accounts, int count) {
+    long[] taken = new long[STRIPE_COUNT >>> 6];
+    int stripeCount = 0;
+    for (int i = 0; i < count; i++) {
+      int stripe = stripeOf(accounts[i]);
+      if ((taken[stripe >>> 6] & (1L << stripe)) == 0) {
+        taken[stripe >>> 6] |= 1L << stripe;
+        stripeCount++;
+      }
+    }
+    int[] stripes = new int[stripeCount];
+    int next = 0;
+    for (int word = 0; word < taken.length; word++) {
+      for (long bits = taken[word]; bits != 0; bits &= bits - 1) {
+        stripes[next++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+      }
+    }
+    return stripes;
+  }
+
+  /**
+   * locks the given stripes in ascending order, like lockPair does for two accounts
+   * @param stripes distinct stripes in ascending order, see stripesOf
+   */
+  public static void lockStripes(int[] stripes) {
+    for (int stripe : stripes) {
+      lockStripe(stripe);
+    }
+  }
+
+  /**
+   * unlocks the stripes taken by lockStripes, in reverse order
+   */
+  public static void unlockStripes(int[] stripes) {
+    for (int i = stripes.length - 1; i >= 0; i--) {
+      unlockStripe(stripes[i]);
+    }
+  }
+
+  /**
+   * locks all stripes in ascending order, which waits for every running account change to complete
+   * and blocks new ones until unlockAll. Used to take a consistent view of all accounts
+   */
+  public static void lockAll() {
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      lockStripe(i);
+    }
+  }
+
+  /**
+   * unlocks all stripes taken by lockAll
+   */
+  public static void unlockAll() {
+    for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+      unlockStripe(i);
+    }
+  }
+
+  /**
+   * starts an optimistic read of the given account, without taking its lock
+   * @return stamp to validate after reading, 0 if the stripe of the account is locked right now
+   */
+  public static long tryOptimisticRead(Account account) {
+    return VERSIONS[stripeOf(account)].tryOptimisticRead();
+  }
+
+  /**
+   * @param stamp stamp of tryOptimisticRead
+   * @return true if the stripe of the account was not locked since the stamp was taken,
+   * so that everything read in between is a consistent view of the account
+   */
+  public static boolean validate(Account account, long stamp) {
+    return stamp != 0L && VERSIONS[stripeOf(account)].validate(stamp);
+  }
+
+  /**
+   * runs the reader between tryOptimisticRead and validate of the account until a run validates, so the result
+   * is a consistent view of the account as left by a completed change. The stripe lock is never taken: while changes
+   * of the stripe keep running the read is retried at once SPIN_ATTEMPTS times and then after pauses doubling up to
+   * MAX_BACKOFF_NANOS, so readers never hold up writers and still find the gap between two changes.
+   * The reader may see the account in the middle of a change and must not fail on it
+   * @param reader reads the account without changing anything
+   * @return result of the first read that validated
+   */
+  public static <T> T readOptimistic(Account account, Supplier<T> reader) {
+    StampedLock version = VERSIONS[stripeOf(account)];
+    long backoffNanos = 1_000L;
+    for (int attempt = 0;; attempt++) {
+      long stamp = version.tryOptimisticRead();
+      if (stamp != 0L) {
+        T result = reader.get();
+        if (version.validate(stamp)) {
+          return result;
+        }
+      }
+      if (attempt < SPIN_ATTEMPTS) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(backoffNanos);
+        backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+      }
+    }
+  }
+
+  private static void lockStripe(int stripe) {
+    ReentrantLock lock = STRIPES[stripe];
+    lock.lock();
+    if (lock.getHoldCount() == 1) {
+      VERSIONS[stripe].writeLock();
+    }
+  }
+
+  private static void unlockStripe(int stripe) {
+    ReentrantLock lock = STRIPES[stripe];
+    if (lock.getHoldCount() == 1) {
+      VERSIONS[stripe].tryUnlockWrite();
+    }
+    lock.unlock();
+  }
+}
@@ -0,0 +1,334 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import enums.CommandAction;
+
+/**
+ * @author viswa
+ *
+ * cursor style parser which reads whitespace separated commands directly from a ByteBuffer.
+ * Unlike Scanner and String.split, no String or array is allocated per line,
+ * token boundaries are kept as offsets into the buffer and only the name tokens are
+ * turned into Strings, through a small direct-mapped cache so that repeated names are reused.
+ *
+ * Usage:
+ * <pre>
+ *   parser.reset(buffer, endOfInput);
+ *   while (parser.next()) {
+ *     ... parser.getAction(), parser.getName(1) ...
+ *     if (parser.parseAmount(2)) {
+ *       ... parser.getAmount() ...
+ *     }
+ *   }
+ * </pre>
+ * After next() returns false the buffer position points to the start of the first incomplete line,
+ * so the caller can compact the buffer and read more input.
+ * This class is not thread safe, every reader should use its own parser instance.
+ */
+public final class CommandBufferParser {
+
+  /*
+   * maximum number of tokens remembered per line, extra tokens are counted but ignored,
+   * enough for a paybatch of 31 payees
+   */
+  public static final int MAX_TOKENS = 64;
+
+  /*
+   * default number of names cached, must be a power of two
+   */
+  public static final int DEFAULT_NAME_CACHE_SIZE = 4096;
+
+  /*
+   * FNV-1a parameters of the idempotency key hash
+   */
+  private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+  private static final long FNV_PRIME = 0x100000001B3L;
+
+  /*
+   * values() clones the enum array on every call, so the actions are kept once
+   */
+  private static final CommandAction[] ACTIONS = CommandAction.values();
+  private static final byte[][] COMMAND_BYTES;
+
+  static {
+    CommandAction[] actions = ACTIONS;
+    COMMAND_BYTES = new byte[actions.length][];
+    for (CommandAction action : actions) {
+      COMMAND_BYTES[action.ordinal()] = action.getCommand().getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  private final int[] tokenStart = new int[MAX_TOKENS];
+  private final int[] tokenEnd = new int[MAX_TOKENS];
+  private final byte[][] cachedNameBytes;
+  private final String[] cachedNames;
+
+  private ByteBuffer buffer;
+  private boolean endOfInput;
+  private int tokenCount;
+  private int lineLength;
+  private CommandAction action;
+  private long amount;
+
+  /**
+   * constructor for CommandBufferParser with the default name cache size
+   */
+  public CommandBufferParser() {
+    this(DEFAULT_NAME_CACHE_SIZE);
+  }
+
+  /**
+   * constructor for CommandBufferParser, a small cache suits a parser which sees only a few names,
+   * like the one of a single client connection
+   * @throws IllegalArgumentException if nameCacheSize is not a power of two
+   * @param nameCacheSize number of names cached
+   */
+  public CommandBufferParser(int nameCacheSize) {
+    if (nameCacheSize < 1 || Integer.bitCount(nameCacheSize) != 1) {
+      throw new IllegalArgumentException("Name cache size must be a power of two.");
+    }
+    this.cachedNameBytes = new byte[nameCacheSize][];
+    this.cachedNames = new String[nameCacheSize];
+  }
+
+  /**
+   * sets the buffer to be parsed, parsing starts from the current buffer position up to its limit
+   * @param endOfInput true if no more input follows the buffer, so that the last line need not end with a new line
+   */
+  public void reset(ByteBuffer buffer, boolean endOfInput) {
+    if (buffer == null) {
+      throw new IllegalArgumentException("Input buffer cannot be null.");
+    }
+    this.buffer = buffer;
+    this.endOfInput = endOfInput;
+    this.tokenCount = 0;
+    this.action = null;
+  }
+
+  /**
+   * moves to the next non blank line in the buffer
+   * @return true if a complete line is available, false if the buffer holds no more complete lines
+   */
+  public boolean next() {
+    ByteBuffer buf = this.buffer;
+    int limit = buf.limit();
+    int pos = buf.position();
+    while (pos < limit) {
+      int lineEnd = pos;
+      while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+        lineEnd++;
+      }
+      if (lineEnd == limit && !endOfInput) {
+        return false;
+      }
+      int lineStart = pos;
+      int count = tokenize(buf, pos, lineEnd);
+      pos = lineEnd < limit ? lineEnd + 1 : lineEnd;
+      buf.position(pos);
+      if (count > 0) {
+        this.tokenCount = count;
+        this.lineLength = lineEnd - lineStart;
+        this.action = matchAction(buf, tokenStart[0], tokenEnd[0]);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return action of the current line, null if the first token is not a known command
+   */
+  public CommandAction getAction() {
+    return action;
+  }
+
+  /**
+   * @return number of whitespace separated tokens in the current line including the command
+   */
+  public int getTokenCount() {
+    return tokenCount;
+  }
+
+  /**
+   * @return length in bytes of the current line without its new line
+   */
+  public int getLineLength() {
+    return lineLength;
+  }
+
+  /**
+   * get the token at given index as a String, allocates a new String on every call.
+   * intended for error reporting only
+   * @return token value
+   */
+  public String getToken(int index) {
+    checkIndex(index);
+    int start = tokenStart[index];
+    byte[] bytes = new byte[tokenEnd[index] - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * get the token at given index as a 64 bit hash, used for idempotency keys without allocating the token.
+   * the hash is the same as keyOf of the token as a String
+   * @return hash of the token bytes
+   */
+  public long getKey(int index) {
+    checkIndex(index);
+    long hash = FNV_OFFSET;
+    for (int i = tokenStart[index]; i < tokenEnd[index]; i++) {
+      hash = (hash ^ (buffer.get(i) & 0xFF)) * FNV_PRIME;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * get the 64 bit hash of the given idempotency key, the same as getKey of the key as a token
+   * @return hash of the UTF-8 bytes of the key
+   */
+  public static long keyOf(String key) {
+    long hash = FNV_OFFSET;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * get the token at given index as a name. Repeated names are served from the cache without allocation
+   * @return token value
+   */
+  public String getName(int index) {
+    checkIndex(index);
+    int start = tokenStart[index];
+    int end = tokenEnd[index];
+    int hash = 1;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + buffer.get(i);
+    }
+    int slot = (hash ^ (hash >>> 16)) & (cachedNames.length - 1);
+    byte[] cached = cachedNameBytes[slot];
+    if (cached != null && equalBytes(buffer, start, end, cached)) {
+      return cachedNames[slot];
+    }
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    String name = new String(bytes, StandardCharsets.UTF_8);
+    cachedNameBytes[slot] = bytes;
+    cachedNames[slot] = name;
+    return name;
+  }
+
+  /**
+   * parses the token at given index as a signed decimal long, with the same rules as Long.parseLong
+   * @return true if the token is a valid number, the value is then available from getAmount()
+   */
+  public boolean parseAmount(int index) {
+    checkIndex(index);
+    int pos = tokenStart[index];
+    int end = tokenEnd[index];
+    boolean negative = false;
+    byte first = buffer.get(pos);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      pos++;
+      if (pos == end) {
+        return false;
+      }
+    }
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multiplyMin = limit / 10;
+    long result = 0;
+    // accumulates negatively like Long.parseLong to cover Long.MIN_VALUE
+    while (pos < end) {
+      int digit = buffer.get(pos++) - '0';
+      if (digit < 0 || digit > 9 || result < multiplyMin) {
+        return false;
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        return false;
+      }
+      result -= digit;
+    }
+    this.amount = negative ? result : -result;
+    return true;
+  }
+
+  /**
+   * @return amount parsed by the last successful parseAmount call
+   */
+  public long getAmount() {
+    return amount;
+  }
+
+  private int tokenize(ByteBuffer buf, int from, int to) {
+    int count = 0;
+    int pos = from;
+    while (pos < to) {
+      while (pos < to && isWhitespace(buf.get(pos))) {
+        pos++;
+      }
+      if (pos == to) {
+        break;
+      }
+      int start = pos;
+      while (pos < to && !isWhitespace(buf.get(pos))) {
+        pos++;
+      }
+      if (count < MAX_TOKENS) {
+        tokenStart[count] = start;
+        tokenEnd[count] = pos;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= Math.min(tokenCount, MAX_TOKENS)) {
+      throw new IllegalArgumentException("Token index out of range=[" + index + "].");
+    }
+  }
+
+  private static CommandAction matchAction(ByteBuffer buf, int start, int end) {
+    for (CommandAction action : ACTIONS) {
+      if (equalBytes(buf, start, end, COMMAND_BYTES[action.ordinal()])) {
+        return action;
+      }
+    }
+    return null;
+  }
+
+  private static boolean equalBytes(ByteBuffer buf, int start, int end, byte[] bytes) {
+    if (end - start != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (buf.get(start + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * spreads the bits of the FNV-1a hash over the whole long
+   */
+  private static long mix(long hash) {
+    hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+    hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+  }
+}
@@ -0,0 +1,42 @@
+package util;
+
+import domain.Account;
+
+/**
+ * @author viswa
+ *
+ * listener for the effects of transactions done by TransactionUtil.
+ * Listeners are called while the locks of both accounts are held, so the calls for a pair of accounts
+ * arrive in the same order the changes were applied. Implementations must be short and must not block.
+ */
+public interface TransactionListener {
+
+  /*
+   * listener which ignores all events
+   */
+  TransactionListener NONE = new TransactionListener() {
+  };
+
+  /**
+   * called after a transfer was applied
+   * @param netted amount taken off what the payee owed to the payer
+   * @param moved amount moved from payer balance to payee balance
+   * @param deficit amount added to what the payer owes to the payee
+   */
+  default void onTransfer(Account payer, Account payee, long netted, long moved, long deficit) {
+  }
+
+  /**
+   * called after a debt was settled from the debtor balance
+   * @param amount amount moved from debtor balance to creditor balance and taken off the debt
+   */
+  default void onSettlement(Account debtor, Account creditor, long amount) {
+  }
+
+  /**
+   * called after a debt was changed by the netting of the debt graph, without any balance being moved
+   * @param change amount added to what the debtor owes to the creditor, negative if the debt was reduced
+   */
+  default void onNetting(Account debtor, Account creditor, long change) {
+  }
+}
@@ -1,17 +1,21 @@
 package util;
 
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import domain.Account;
+import domain.DebtLedger;
 
 /**
  * @author viswa
  *
  *  utility class to handle Transaction between accounts
+ *  diagnostics are logged at debug level only, the record of every change is the TransactionListener
+ *  transferAmount, transferBatch and adjustDebitsAndCredits lock the accounts they change themselves; the other
+ *  methods take no locks, so their caller must hold the locks of the accounts they change or be the only thread
+ *  changing them, like the execution engines and the journal replay
  */
 public final class TransactionUtil {
 
@@ -23,57 +27,252 @@ public final class TransactionUtil {
    * @throws IllegalArgumentException if transfer amount is negative value
    * 
    * Transfer amount after checking the credits and debits between the accounts.
-   * Uses Account objects OwesTo and OwesFrom attributes to check and do credit and debit transfers
-   * 
-   * @param payer
-   * @param payee
-   * @param amount
+   * Uses the DebtLedger of the accounts to check and do credit and debit transfers
+   * Both accounts are locked in a deterministic order for the duration of the transfer
    */
   public static void transferAmount(Account payer, Account payee, long amount) {
+    transferAmount(payer, payee, amount, TransactionListener.NONE);
+  }
+  
+  /**
+   * method to transfer amount between payer and payee accounts and report the effect to the listener
+   * @throws IllegalArgumentException if payer or payee is null or both are the same account
+   * @throws IllegalArgumentException if transfer amount is negative value
+   * 
+   * @param listener called with the applied changes while both accounts are still locked
+   */
+  public static void transferAmount(Account payer, Account payee, long amount, TransactionListener listener) {
   if (payer == null || payee == null) {
     throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
   }
+  if (payer.equals(payee)) {
+    throw new IllegalArgumentException("Payer and Payee cannot be the same account.");
+  }
   if (amount < 0) {
     throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
   }
+  AccountLocks.lockPair(payer, payee);
+  try {
+    transfer(payer, payee, amount, listener);
+  } finally {
+    AccountLocks.unlockPair(payer, payee);
+  }
+  }
+  
+  /**
+   * method to transfer amount between payer and payee accounts without taking their locks
+   * @throws IllegalArgumentException if payer or payee is null or both are the same account
+   * @throws IllegalArgumentException if transfer amount is negative value
+   * 
+   * @param listener called with the applied changes
+   */
+  public static void transferExclusive(Account payer, Account payee, long amount, TransactionListener listener) {
+    if (payer == null || payee == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    if (payer.equals(payee)) {
+      throw new IllegalArgumentException("Payer and Payee cannot be the same account.");
+    }
+    if (amount < 0) {
+      throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
+    }
+    transfer(payer, payee, amount, listener);
+  }
+  
+  /**
+   * method to transfer amounts from one payer to many payees with the outcome of calling transferAmount
+   * for every entry in the given order, in one pass under the locks of all accounts
+   * @throws IllegalArgumentException if payer or a payee is null, a payee is the payer or an amount is negative,
+   * nothing is transferred then
+   * 
+   * @param payees payee of every entry
+   * @param amounts amount of every entry
+   * @param listener called with the summed changes of every payee while all accounts are still locked
+   */
+  public static void transferBatch(Account payer, Account[] payees, long[] amounts, TransactionListener listener) {
+  checkBatch(payer, payees, amounts);
+  int count = payees.length;
+  Account[] accounts = new Account[count + 1];
+  int[] slots = new int[count];
+  int payeeCount = sortPayees(payees, accounts, slots);
+  accounts[payeeCount] = payer;
+  int[] stripes = AccountLocks.stripesOf(accounts, payeeCount + 1);
+  AccountLocks.lockStripes(stripes);
+  try {
+    batch(payer, accounts, payeeCount, slots, amounts, listener);
+  } finally {
+    AccountLocks.unlockStripes(stripes);
+  }
+  }
+  
+  /**
+   * method to transfer amounts from one payer to many payees like transferBatch without taking their locks
+   * @throws IllegalArgumentException if payer or a payee is null, a payee is the payer or an amount is negative,
+   * nothing is transferred then
+   * 
+   * @param payees payee of every entry
+   * @param amounts amount of every entry
+   * @param listener called with the summed changes of every payee
+   */
+  public static void transferBatchExclusive(Account payer, Account[] payees, long[] amounts,
+      TransactionListener listener) {
+    checkBatch(payer, payees, amounts);
+    Account[] accounts = new Account[payees.length];
+    int[] slots = new int[payees.length];
+    int payeeCount = sortPayees(payees, accounts, slots);
+    batch(payer, accounts, payeeCount, slots, amounts, listener);
+  }
+  
+  /**
+   * @throws IllegalArgumentException if an entry of the batch cannot be transferred
+   */
+  private static void checkBatch(Account payer, Account[] payees, long[] amounts) {
+    if (payer == null || payees == null || amounts == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    if (payees.length != amounts.length) {
+      throw new IllegalArgumentException("Every payee of the batch needs one amount.");
+    }
+    for (int i = 0; i < payees.length; i++) {
+      if (payees[i] == null) {
+        throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+      }
+      if (payer.equals(payees[i])) {
+        throw new IllegalArgumentException("Payer and Payee cannot be the same account.");
+      }
+      if (amounts[i] < 0) {
+        throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
+      }
+      ledgerOf(payer, payees[i]);
+    }
+  }
+  
+  /**
+   * collects the distinct payees of the entries sorted by account id
+   * @param payees payee of every entry
+   * @param accounts receives the distinct payees
+   * @param slots receives the index into accounts of every entry
+   * @return number of distinct payees
+   */
+  private static int sortPayees(Account[] payees, Account[] accounts, int[] slots) {
+    long[] order = new long[payees.length];
+    for (int i = 0; i < payees.length; i++) {
+      order[i] = ((long) payees[i].getId() << 32) | i;
+    }
+    Arrays.sort(order);
+    int payeeCount = 0;
+    for (long entry : order) {
+      int i = (int) entry;
+      if (payeeCount == 0 || accounts[payeeCount - 1].getId() != payees[i].getId()) {
+        accounts[payeeCount++] = payees[i];
+      }
+      slots[i] = payeeCount - 1;
+    }
+    return payeeCount;
+  }
+  
+  /**
+   * applies a batch of transfers: entries to the same payee are summed, payees left with a deficit are applied
+   * last in the order their first deficit arose, so the debts are created in the same order as by single transfers
+   * @param payees distinct payees sorted by id
+   * @param slots index into payees of every entry
+   * @param amounts amount of every entry
+   */
+  private static void batch(Account payer, Account[] payees, int payeeCount, int[] slots, long[] amounts,
+      TransactionListener listener) {
+  DebtLedger ledger = payer.getLedger();
+  long[] owed = new long[payeeCount];
+  long[] netted = new long[payeeCount];
+  long[] moved = new long[payeeCount];
+  long[] deficits = new long[payeeCount];
+  int[] deficitOrder = new int[payeeCount];
+  int deficitCount = 0;
+  for (int slot = 0; slot < payeeCount; slot++) {
+    owed[slot] = ledger.get(payees[slot].getId(), payer.getId());
+  }
+  long payerBalance = payer.getBalance();
+  for (int i = 0; i < slots.length; i++) {
+    int slot = slots[i];
+    long amount = amounts[i];
+    long net = Math.min(amount, owed[slot]);
+    owed[slot] -= net;
+    netted[slot] += net;
+    amount -= net;
+    if (amount <= 0) {
+      continue;
+    }
+    if (amount <= payerBalance) {
+      moved[slot] += amount;
+      payerBalance -= amount;
+    } else {
+      if (deficits[slot] == 0) {
+        deficitOrder[deficitCount++] = slot;
+      }
+      deficits[slot] += amount - payerBalance;
+      moved[slot] += payerBalance;
+      payerBalance = 0;
+    }
+  }
+  for (int slot = 0; slot < payeeCount; slot++) {
+    if (deficits[slot] == 0 && (netted[slot] > 0 || moved[slot] > 0)) {
+      applyTransfer(payer, payees[slot], netted[slot], moved[slot], 0);
+      listener.onTransfer(payer, payees[slot], netted[slot], moved[slot], 0);
+    }
+  }
+  for (int i = 0; i < deficitCount; i++) {
+    int slot = deficitOrder[i];
+    applyTransfer(payer, payees[slot], netted[slot], moved[slot], deficits[slot]);
+    listener.onTransfer(payer, payees[slot], netted[slot], moved[slot], deficits[slot]);
+  }
+  if (LOGGER.isDebugEnabled()) {
+    LOGGER.debug("Transferred batch of entries=[{}] to payees=[{}] from payer=[{}].", slots.length, payeeCount,
+        payer.getName());
+  }
+  }
+  
+  /**
+   * transfers amount between payer and payee
+   */
+  private static void transfer(Account payer, Account payee, long amount, TransactionListener listener) {
   String payerName = payer.getName();
   String payeeName = payee.getName();
-  LOGGER.info("Transferring amount=[{}] to payee=[{}] from payer=[{}].", amount, payeeName, payerName);
+  DebtLedger ledger = ledgerOf(payer, payee);
+  if (LOGGER.isDebugEnabled()) {
+    LOGGER.debug("Transferring amount=[{}] to payee=[{}] from payer=[{}].", amount, payeeName, payerName);
+  }
   long payerBalance = payer.getBalance();
   long payeeBalance = payee.getBalance();
-  LOGGER.info("Adjusting Debits/Credits between payee=[{}] and payer=[{}].", payeeName, payerName);
-  if (payee.doesOwesTo(payerName)) {
-    LOGGER.info("Payee=[{}] owes to Payer=[{}]. Recalculating debits and credits.", payeeName, payerName);
-    long payeeAlreadyOwes = payee.getOwesTo().get(payerName);
-    if (payeeAlreadyOwes <= amount) {
-      LOGGER.info("Payer=[{}] pays Payee=[{}] from credits.", payerName, payeeName);
-      payee.getOwesTo().remove(payerName);
-      payer.getOwesFrom().remove(payeeName);
-    } else {
-      LOGGER.info("Adjusting Payee=[{}] and Payer=[{}] credits.", payeeName, payerName);
-      payee.addOwesTo(payerName, -amount);
-      payer.addOwesFrom(payeeName, -amount);
+  long netted = ledger.reduce(payee.getId(), payer.getId(), amount);
+  if (netted > 0) {
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Payee=[{}] owed to Payer=[{}]. Paid amount=[{}] from credits.", payeeName, payerName, netted);
     }
-    amount = amount - payeeAlreadyOwes;
+    amount = amount - netted;
   }
   if( amount <= 0) {
-    LOGGER.info("Transaction processed between payee=[{}] and payer=[{}].", payerName, payeeName);
+    LOGGER.debug("Transaction processed between payee=[{}] and payer=[{}].", payerName, payeeName);
+    if (netted > 0) {
+      listener.onTransfer(payer, payee, netted, 0, 0);
+    }
     return;
   }
+  long moved = amount;
+  long deficit = 0;
   if (amount <= payerBalance) {
-    LOGGER.info("Having sufficient amount to pay the user=[{}].", payeeName);
+    LOGGER.debug("Having sufficient amount to pay the user=[{}].", payeeName);
     payerBalance -= amount;
     payeeBalance += amount;
   } else {
-    long deficit = amount - payerBalance;
+    deficit = amount - payerBalance;
+    moved = payerBalance;
     payeeBalance += payerBalance;
     payerBalance = 0;
-    payer.addOwesTo(payeeName, deficit);
-    payee.addOwesFrom(payerName, deficit);
+    ledger.add(payer.getId(), payee.getId(), deficit);
   }
   payer.setBalance(payerBalance);
   payee.setBalance(payeeBalance);
-  LOGGER.info("Transaction Completed.");
+  listener.onTransfer(payer, payee, netted, moved, deficit);
+  LOGGER.debug("Transaction Completed.");
   }
   
   /**
@@ -81,38 +280,221 @@ public final class TransactionUtil {
    * @throws IllegalArgumentException if payer or payee is null
    * @throws IllegalArgumentException if transfer amount is negative value
    * 
-   * Uses Account object's OwesTo and OwesFrom attributes to check and do credit and debit adjustments
+   * Uses the DebtLedger of the accounts to check and do credit and debit adjustments
+   * Both accounts are locked in a deterministic order for the duration of the adjustment,
+   * nothing is adjusted if payer no longer owes to payee
+   * 
+   * @return adjusted amount value
+   */
+  public static long adjustDebitsAndCredits(Account payer, Account payee, long amount) {
+    return adjustDebitsAndCredits(payer, payee, amount, TransactionListener.NONE);
+  }
+  
+  /**
+   * method to adjust credit and debit values between payer and payee accounts and report the settled amount
+   * @throws IllegalArgumentException if payer or payee is null
+   * @throws IllegalArgumentException if transfer amount is negative value
    * 
-   * @param payer
-   * @param payee
-   * @param amount
-   * @param iterator
+   * @param listener called with the settled amount while both accounts are still locked
    * @return adjusted amount value
    */
-  public static long adjustDebitsAndCredits(Account payer, Account payee, long amount, Iterator<Entry<String, Long>> iterator) {
+  public static long adjustDebitsAndCredits(Account payer, Account payee, long amount, TransactionListener listener) {
     if (payer == null || payee == null) {
       throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
     }
     if (amount < 0) {
       throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
     }
-    String payerName = payer.getName();
-    String payeeName = payee.getName();
-    LOGGER.info("Adjusting Debits/Credits between payee=[{}] and payer=[{}].", payeeName, payerName);
-    long payerAlreadyOwes = payer.getOwesTo().get(payeeName);
-    if (payerAlreadyOwes <= amount) {
-      LOGGER.info("Payer=[{}] pays Payee=[{}] from credits.", payerName, payeeName);
-      amount = amount - payerAlreadyOwes;
-      iterator.remove();
-      payee.getOwesFrom().remove(payerName);
-      payee.setBalance(payee.getBalance() + payerAlreadyOwes);
-    } else {
-      LOGGER.info("Adjusting Payee=[{}] and Payer=[{}] credits.", payeeName, payerName);
-      payer.addOwesTo(payeeName, -amount);
-      payee.addOwesFrom(payerName, -amount);
-      payee.setBalance(payee.getBalance() + amount);
-      amount = amount - payerAlreadyOwes;
+    AccountLocks.lockPair(payer, payee);
+    try {
+      long remaining = adjust(payer, payee, amount);
+      if (remaining < amount) {
+        listener.onSettlement(payer, payee, amount - remaining);
+      }
+      return remaining;
+    } finally {
+      AccountLocks.unlockPair(payer, payee);
+    }
+  }
+  
+  /**
+   * method to adjust credit and debit values between payer and payee accounts without taking their locks
+   * @throws IllegalArgumentException if payer or payee is null
+   * @throws IllegalArgumentException if transfer amount is negative value
+   * 
+   * @param listener called with the settled amount
+   * @return adjusted amount value
+   */
+  public static long adjustExclusive(Account payer, Account payee, long amount, TransactionListener listener) {
+    if (payer == null || payee == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    if (amount < 0) {
+      throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
+    }
+    long remaining = adjust(payer, payee, amount);
+    if (remaining < amount) {
+      listener.onSettlement(payer, payee, amount - remaining);
+    }
+    return remaining;
+  }
+  
+  /**
+   * adjusts credit and debit values
+   * @return adjusted amount value
+   */
+  private static long adjust(Account payer, Account payee, long amount) {
+    LOGGER.debug("Adjusting Debits/Credits between payee=[{}] and payer=[{}].", payee.getName(), payer.getName());
+    long settled = ledgerOf(payer, payee).reduce(payer.getId(), payee.getId(), amount);
+    if (settled == 0) {
+      return amount;
+    }
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Payer=[{}] paid amount=[{}] to Payee=[{}] from credits.", payer.getName(), settled, payee.getName());
+    }
+    payee.setBalance(payee.getBalance() + settled);
+    return amount - settled;
+  }
+
+  /**
+   * first step of a transfer split between the owners of the payer and the payee, like the shards of ShardedEngine:
+   * takes the amount off what the payee owes to the payer, only the debt of the payee is changed
+   * @throws IllegalArgumentException if payer or payee is null or both are the same account
+   * @throws IllegalArgumentException if transfer amount is negative value
+   *
+   * @param listener called with the netted amount, if any
+   * @return amount still to be paid by debitExclusive
+   */
+  public static long netExclusive(Account payer, Account payee, long amount, TransactionListener listener) {
+    if (payer == null || payee == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    if (payer.equals(payee)) {
+      throw new IllegalArgumentException("Payer and Payee cannot be the same account.");
+    }
+    if (amount < 0) {
+      throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
+    }
+    long netted = ledgerOf(payer, payee).reduce(payee.getId(), payer.getId(), amount);
+    if (netted > 0) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Payee=[{}] owed to Payer=[{}]. Paid amount=[{}] from credits.", payee.getName(), payer.getName(), netted);
+      }
+      listener.onTransfer(payer, payee, netted, 0, 0);
+    }
+    return amount - netted;
+  }
+
+  /**
+   * second step of a split transfer: takes the remaining amount from the payer balance and adds what it does not
+   * cover to the debt of the payer, the caller credits the returned amount to the payee afterwards
+   * @throws IllegalArgumentException if payer or payee is null or both are the same account
+   * @throws IllegalArgumentException if transfer amount is negative value
+   *
+   * @param amount remaining amount returned by netExclusive
+   * @param listener called with the moved amount and the deficit, which replay including the credit
+   * @return amount to be credited to the payee
+   */
+  public static long debitExclusive(Account payer, Account payee, long amount, TransactionListener listener) {
+    if (payer == null || payee == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    if (payer.equals(payee)) {
+      throw new IllegalArgumentException("Payer and Payee cannot be the same account.");
+    }
+    if (amount < 0) {
+      throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
+    }
+    if (amount == 0) {
+      return 0L;
+    }
+    long payerBalance = payer.getBalance();
+    long moved = Math.min(amount, Math.max(payerBalance, 0L));
+    long deficit = amount - moved;
+    payer.setBalance(payerBalance - moved);
+    if (deficit > 0) {
+      ledgerOf(payer, payee).add(payer.getId(), payee.getId(), deficit);
+    }
+    listener.onTransfer(payer, payee, 0, moved, deficit);
+    return moved;
+  }
+
+  /**
+   * settles up to the amount of what the debtor owes to the creditor from the debtor balance, without crediting
+   * the creditor balance; the caller credits the returned amount afterwards, like the second step of a split transfer
+   * @throws IllegalArgumentException if debtor or creditor is null
+   * @throws IllegalArgumentException if amount is negative value
+   *
+   * @param amount at most the debtor balance
+   * @param listener called with the settled amount, which replays including the credit
+   * @return settled amount to be credited to the creditor
+   */
+  public static long settleExclusive(Account debtor, Account creditor, long amount, TransactionListener listener) {
+    if (debtor == null || creditor == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    if (amount < 0) {
+      throw new IllegalArgumentException("Payment Amount cannot be less than 0.");
+    }
+    long settled = ledgerOf(debtor, creditor).reduce(debtor.getId(), creditor.getId(), amount);
+    if (settled > 0) {
+      debtor.setBalance(debtor.getBalance() - settled);
+      listener.onSettlement(debtor, creditor, settled);
+    }
+    return settled;
+  }
+
+  /**
+   * method to apply a transfer recorded earlier, used to rebuild account state from the journal
+   * @param netted amount taken off what the payee owed to the payer
+   * @param moved amount moved from payer balance to payee balance
+   * @param deficit amount added to what the payer owes to the payee
+   */
+  public static void applyTransfer(Account payer, Account payee, long netted, long moved, long deficit) {
+    if (payer == null || payee == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    DebtLedger ledger = ledgerOf(payer, payee);
+    ledger.reduce(payee.getId(), payer.getId(), netted);
+    payer.setBalance(payer.getBalance() - moved);
+    payee.setBalance(payee.getBalance() + moved);
+    if (deficit > 0) {
+      ledger.add(payer.getId(), payee.getId(), deficit);
+    }
+  }
+  
+  /**
+   * method to apply a settlement recorded earlier, used to rebuild account state from the journal
+   */
+  public static void applySettlement(Account debtor, Account creditor, long amount) {
+    if (debtor == null || creditor == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    ledgerOf(debtor, creditor).reduce(debtor.getId(), creditor.getId(), amount);
+    debtor.setBalance(debtor.getBalance() - amount);
+    creditor.setBalance(creditor.getBalance() + amount);
+  }
+  
+  /**
+   * method to apply a debt change of the netting of the debt graph, used both by the netting job and to rebuild
+   * account state from the journal; balances are not changed
+   * @param change amount added to what the debtor owes to the creditor, negative to reduce the debt
+   */
+  public static void applyNetting(Account debtor, Account creditor, long change) {
+    if (debtor == null || creditor == null) {
+      throw new IllegalArgumentException("Payer or Payee not available in the Transaction.");
+    }
+    ledgerOf(debtor, creditor).add(debtor.getId(), creditor.getId(), change);
+  }
+  
+  /**
+   * @throws IllegalArgumentException if the accounts keep their debts in different ledgers
+   * @return the ledger shared by both accounts
+   */
+  private static DebtLedger ledgerOf(Account first, Account second) {
+    if (first.getLedger() != second.getLedger()) {
+      throw new IllegalArgumentException("Accounts do not belong to the same ledger.");
     }
-    return Math.max(amount, 0);
+    return first.getLedger();
   }
-}
\ No newline at end of file
+}
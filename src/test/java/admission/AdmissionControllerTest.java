@@ -0,0 +1,91 @@
+package admission;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import enums.AdmissionResult;
+
+public class AdmissionControllerTest {
+
+  @Test
+  public void testTokenBucketAllowsBurstThenRate() {
+    AtomicLong clock = new AtomicLong(5_000_000_000L);
+    TokenBucket bucket = new TokenBucket(10, 3, clock::get);
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+    clock.addAndGet(99_000_000L);
+    assertFalse(bucket.tryAcquire());
+    clock.addAndGet(1_000_000L);
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+    // an idle session gets its whole burst back, not more
+    clock.addAndGet(10_000_000_000L);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(bucket.tryAcquire());
+    }
+    assertFalse(bucket.tryAcquire());
+  }
+
+  @Test
+  public void testRateLimitedBeforeTakingPermit() {
+    AdmissionController admission = new AdmissionController(new AdmissionConfig().setMaxConcurrent(1)
+        .setRatePerSecond(1));
+    TokenBucket bucket = admission.newTokenBucket();
+    assertEquals(AdmissionResult.ADMITTED, admission.acquire(bucket));
+    admission.release();
+    assertEquals(AdmissionResult.RATE_LIMITED, admission.acquire(bucket));
+    assertEquals(0, admission.getExecuting());
+    assertNull(new AdmissionController(new AdmissionConfig()).newTokenBucket());
+  }
+
+  @Test
+  public void testQueueDepthAndTimeoutBoundWaiting() throws Exception {
+    AdmissionController admission = new AdmissionController(new AdmissionConfig().setMaxConcurrent(1).setMaxQueued(1)
+        .setQueueTimeoutMillis(10_000L));
+    assertEquals(AdmissionResult.ADMITTED, admission.acquire(null));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CountDownLatch waiting = new CountDownLatch(1);
+      Future<AdmissionResult> queued = executor.submit(() -> {
+        waiting.countDown();
+        return admission.acquire(null);
+      });
+      waiting.await();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (admission.getQueued() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      assertEquals(1, admission.getQueued());
+      // the queue is full, the next command is rejected without waiting
+      long startNanos = System.nanoTime();
+      assertEquals(AdmissionResult.OVERLOADED, admission.acquire(null));
+      assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(1));
+      admission.release();
+      assertEquals(AdmissionResult.ADMITTED, queued.get(5, TimeUnit.SECONDS));
+      assertEquals(1, admission.getExecuting());
+      assertEquals(0, admission.getQueued());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    AdmissionController shortQueue = new AdmissionController(new AdmissionConfig().setMaxConcurrent(1)
+        .setQueueTimeoutMillis(20L));
+    assertEquals(AdmissionResult.ADMITTED, shortQueue.acquire(null));
+    assertEquals(AdmissionResult.OVERLOADED, shortQueue.acquire(null));
+    shortQueue.release();
+    assertEquals(AdmissionResult.ADMITTED, shortQueue.acquire(null));
+  }
+}
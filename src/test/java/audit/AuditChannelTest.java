@@ -0,0 +1,79 @@
+package audit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.AccountDirectory;
+
+public class AuditChannelTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void testRecordsAreWrittenAsLines() throws IOException {
+    AccountDirectory accounts = new AccountDirectory();
+    int alice = accounts.intern("Alice");
+    int bob = accounts.intern("Bob");
+    Path file = directory.resolve("audit.log");
+    try (AuditChannel channel = AuditChannel.open(new AuditConfig().setFile(file), accounts)) {
+      channel.recordAccount(alice, 0L);
+      channel.recordTopup(alice, 100L);
+      channel.recordTransfer(alice, bob, 0L, 100L, 20L);
+      channel.recordSettlement(alice, bob, 20L);
+      channel.recordReset();
+    }
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    assertEquals(5, lines.size());
+    assertTrue(lines.get(0).endsWith(",ACCOUNT,Alice,0"));
+    assertTrue(lines.get(1).endsWith(",TOPUP,Alice,100"));
+    assertTrue(lines.get(2).endsWith(",TRANSFER,Alice,Bob,0,100,20"));
+    assertTrue(lines.get(3).endsWith(",SETTLEMENT,Alice,Bob,20"));
+    assertTrue(lines.get(4).endsWith(",RESET"));
+  }
+
+  @Test
+  public void testConcurrentProducersWithSmallRing() throws Exception {
+    AccountDirectory accounts = new AccountDirectory();
+    int threads = 4;
+    int records = 5000;
+    for (int i = 0; i < threads; i++) {
+      accounts.intern("user" + i);
+    }
+    Path file = directory.resolve("audit.log");
+    try (AuditChannel channel = AuditChannel.open(new AuditConfig().setFile(file).setRingSize(8), accounts)) {
+      List<Thread> producers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final int id = i;
+        Thread producer = new Thread(() -> {
+          for (int j = 0; j < records; j++) {
+            channel.recordTopup(id, j);
+          }
+        });
+        producers.add(producer);
+        producer.start();
+      }
+      for (Thread producer : producers) {
+        producer.join();
+      }
+    }
+    long[] next = new long[threads];
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    assertEquals(threads * records, lines.size());
+    for (String line : lines) {
+      String[] fields = line.split(",");
+      int id = Integer.parseInt(fields[2].substring("user".length()));
+      assertEquals(next[id]++, Long.parseLong(fields[3]));
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class AccountDirectoryTest {
+
+  @Test
+  public void testIdsAreDenseAndStable() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    for (int i = 0; i < 100; i++) {
+      Account account = new Account("user" + i, ledger);
+      assertEquals(i, account.getId());
+      directory.put(account);
+    }
+    assertEquals(100, directory.size());
+    assertEquals(42, directory.idOf("user42"));
+    assertEquals("user42", directory.nameOf(42));
+    assertEquals(-1, directory.idOf("unknown"));
+    directory.clear();
+    assertEquals(0, directory.size());
+    assertNull(directory.get(42));
+    assertEquals(42, new Account("user42", ledger).getId());
+  }
+
+  @Test
+  public void testPutIfAbsentAndIteration() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    Account alice = new Account("Alice", ledger);
+    directory.intern("NoAccount");
+    Account bob = new Account("Bob", ledger);
+    assertNull(directory.putIfAbsent(alice));
+    assertSame(alice, directory.putIfAbsent(new Account("Alice", ledger)));
+    directory.put(bob);
+    List<Account> accounts = new ArrayList<>();
+    directory.forEach(accounts::add);
+    assertEquals(2, accounts.size());
+    assertSame(alice, accounts.get(0));
+    assertSame(bob, accounts.get(1));
+    assertSame(bob, directory.get("Bob"));
+  }
+}
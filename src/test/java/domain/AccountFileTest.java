@@ -0,0 +1,166 @@
+package domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AccountFileTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void testAccountsSurviveReopenAndGrowth() throws IOException {
+    Path path = directory.resolve("accounts.dat");
+    int accounts = 3000;
+    try (AccountFile file = new AccountFile(path, 16)) {
+      DebtLedger ledger = new DebtLedger(new AccountDirectory(file));
+      AccountStore store = AccountStore.of(ledger);
+      for (int i = 0; i < accounts; i++) {
+        store.put(new Account("user" + i, ledger).setBalance(i));
+      }
+      assertEquals(accounts - 16, store.getEvictionCount());
+      assertEquals(16, file.getLoadedCount());
+      assertEquals(accounts, ledger.getDirectory().size());
+      long misses = store.getMissCount();
+      long hits = store.getHitCount();
+      assertEquals(42L, store.get("user42").getBalance());
+      assertEquals(misses + 1, store.getMissCount());
+      assertEquals(42L, store.get("user42").getBalance());
+      assertEquals(misses + 1, store.getMissCount());
+      assertEquals(hits + 3, store.getHitCount());
+      store.get("user7").setBalance(-7L);
+      store.flush();
+      assertEquals(accounts, file.getRecordCount());
+      assertTrue(file.getSlotCount() >= accounts * 2L);
+      assertFalse(Files.exists(directory.resolve("accounts.dat.index.resize")));
+    }
+    for (int open = 0; open < 2; open++) {
+      try (AccountFile file = new AccountFile(path, 16)) {
+        assertEquals(accounts, file.getRecordCount());
+        assertEquals(accounts, file.getAccountCount());
+        DebtLedger ledger = new DebtLedger(new AccountDirectory(file));
+        AccountStore store = AccountStore.of(ledger);
+        for (int i = 0; i < accounts; i += 97) {
+          Account account = store.get("user" + i);
+          assertNotNull(account, "user" + i);
+          assertEquals(i, account.getId());
+          assertEquals(i == 7 ? -7L : i, account.getBalance());
+        }
+        assertEquals(-7L, store.get("user7").getBalance());
+      }
+      Files.delete(directory.resolve("accounts.dat.index"));
+    }
+  }
+
+  @Test
+  public void testEvictedAccountsKeepTheirIdsAndDebts() throws IOException {
+    try (AccountFile file = new AccountFile(directory.resolve("accounts.dat"), 4)) {
+      DebtLedger ledger = new DebtLedger(new AccountDirectory(file));
+      AccountStore store = AccountStore.of(ledger);
+      AccountDirectory accounts = ledger.getDirectory();
+      Account debtor = new Account("debtor", ledger).setBalance(5L);
+      store.put(debtor);
+      store.put(new Account("creditor", ledger));
+      debtor.addOwesTo("creditor", 3L);
+      for (int i = 0; i < 100; i++) {
+        store.put(new Account("user" + i, ledger).setBalance(i));
+      }
+      assertEquals(4, file.getLoadedCount());
+      assertEquals(102, accounts.size());
+      assertEquals(debtor.getId(), accounts.idOf("debtor"));
+      assertEquals("debtor", accounts.nameOf(debtor.getId()));
+      assertEquals(5L, debtor.getBalance());
+      debtor.setBalance(6L);
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i, store.get("user" + i).getBalance());
+      }
+      Account reloaded = store.get(debtor.getId());
+      assertEquals(debtor, reloaded);
+      assertEquals(6L, reloaded.getBalance());
+      assertEquals(3L, reloaded.getOwesTo().get("creditor"));
+      assertEquals(3L, store.get("creditor").getOwesFrom().get("debtor"));
+      assertTrue(file.getLoadedCount() <= 4);
+    }
+  }
+
+  @Test
+  public void testUnknownNamesAreFiltered() throws IOException {
+    try (AccountFile file = new AccountFile(directory.resolve("accounts.dat"), 4)) {
+      DebtLedger ledger = new DebtLedger(new AccountDirectory(file));
+      AccountStore store = AccountStore.of(ledger);
+      for (int i = 0; i < 100; i++) {
+        store.put(new Account("known" + i, ledger).setBalance(i));
+      }
+      store.flush();
+      long filteredBefore = store.getFilteredCount();
+      int found = 0;
+      for (int i = 0; i < 1000; i++) {
+        if (store.get("unknown" + i) != null) {
+          found++;
+        }
+      }
+      assertEquals(0, found);
+      assertTrue(store.getFilteredCount() - filteredBefore > 900, "filtered=" + store.getFilteredCount());
+      assertEquals(-1, ledger.getDirectory().idOf("unknown1"));
+      int id = ledger.getDirectory().idOf("known1");
+      file.clear();
+      assertEquals(100L, file.getRecordCount());
+      assertEquals(0, file.getAccountCount());
+      assertEquals(0L, file.get(id));
+      assertEquals(id, ledger.getDirectory().idOf("known1"));
+      assertNull(new FileAccountStore(file, new DebtLedger(new AccountDirectory(file))).get("known1"));
+    }
+  }
+
+  @Test
+  public void testRejectsForeignFileAndLongNames() throws IOException {
+    Path foreign = directory.resolve("foreign.dat");
+    Files.write(foreign, new byte[AccountFile.HEADER_SIZE]);
+    assertThrows(IOException.class, () -> new AccountFile(foreign));
+    try (AccountFile file = new AccountFile(directory.resolve("accounts.dat"), 1)) {
+      DebtLedger ledger = new DebtLedger(new AccountDirectory(file));
+      AccountStore.of(ledger);
+      StringBuilder name = new StringBuilder();
+      for (int i = 0; i <= AccountFile.MAX_NAME_BYTES; i++) {
+        name.append('x');
+      }
+      assertThrows(IllegalArgumentException.class, () -> new Account(name.toString(), ledger).setBalance(1L));
+      new Account("other", ledger).setBalance(2L);
+      new Account("another", ledger).setBalance(3L);
+      assertEquals(2L, new Account("other", ledger).getBalance());
+    }
+  }
+
+  @Test
+  public void testStoredAccountsAreScannedWithoutLoading() throws IOException {
+    try (AccountFile file = new AccountFile(directory.resolve("accounts.dat"), 4)) {
+      DebtLedger ledger = new DebtLedger(new AccountDirectory(file));
+      AccountStore store = AccountStore.of(ledger);
+      for (int i = 0; i < 2000; i++) {
+        store.putStored("cold" + i, i);
+      }
+      store.put(new Account("hot", ledger).setBalance(-1L));
+      assertEquals(1, file.getLoadedCount());
+      assertEquals(2001, file.getAccountCount());
+      Map<String, Long> stored = new HashMap<>();
+      store.forEachStored((id, name, balance) -> stored.put(name, balance));
+      assertEquals(2001, stored.size());
+      assertEquals(1999L, stored.get("cold1999"));
+      assertEquals(-1L, stored.get("hot"));
+      assertEquals(5L, store.get("cold5").getBalance());
+    }
+  }
+}
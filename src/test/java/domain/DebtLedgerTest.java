@@ -0,0 +1,214 @@
+package domain;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class DebtLedgerTest {
+
+  @Test
+  public void testDebtIsStoredOnce() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    Account alice = new Account("Alice", ledger);
+    Account bob = new Account("Bob", ledger);
+    alice.addOwesTo("Bob", 30L);
+    bob.addOwesFrom("Alice", 20L);
+    assertEquals(1, ledger.size());
+    assertEquals(50L, alice.getOwesTo().get("Bob"));
+    assertEquals(50L, bob.getOwesFrom().get("Alice"));
+    assertTrue(bob.doesOwesFrom("Alice"));
+    assertTrue(!bob.doesOwesTo("Alice"));
+    assertEquals(50L, ledger.reduce(alice.getId(), bob.getId(), 80L));
+    assertEquals(0, ledger.size());
+    assertTrue(alice.getOwesTo().isEmpty());
+    assertTrue(bob.getOwesFrom().isEmpty());
+  }
+
+  @Test
+  public void testCreditorsInCreationOrder() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    int debtor = directory.intern("Debtor");
+    int first = directory.intern("First");
+    int second = directory.intern("Second");
+    int third = directory.intern("Third");
+    ledger.add(debtor, first, 1L);
+    ledger.add(debtor, second, 2L);
+    ledger.add(debtor, third, 3L);
+    ledger.reduce(debtor, second, 2L);
+    ledger.add(debtor, second, 4L);
+    assertArrayEquals(new int[] {first, third, second}, ledger.creditorsOf(debtor));
+  }
+
+  @Test
+  public void testDebtsKeepOrderAcrossPartitions() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory, 4);
+    int creditor = directory.intern("Creditor");
+    int[] debtors = new int[8];
+    for (int i = 0; i < debtors.length; i++) {
+      debtors[i] = directory.intern("Debtor" + i);
+    }
+    // debtors of all four partitions owe to one creditor, newest first in id order
+    for (int i = debtors.length - 1; i >= 0; i--) {
+      ledger.add(debtors[i], creditor, i + 1L);
+    }
+    ledger.add(creditor, debtors[0], 9L);
+    assertEquals(0L, ledger.reduce(debtors[1], debtors[2], 5L));
+    assertArrayEquals(new String[] {"Debtor7", "Debtor6", "Debtor5", "Debtor4", "Debtor3", "Debtor2", "Debtor1",
+        "Debtor0"}, ledger.owesFrom(creditor).keySet().toArray(new String[0]));
+    ledger.drainChanged();
+    ledger.add(debtors[3], creditor, 1L);
+    ledger.add(debtors[0], creditor, 1L);
+
+    ledger.repartition(3, id -> id % 3);
+    assertEquals(3, ledger.getPartitionCount());
+    assertEquals(9, ledger.size());
+    assertEquals(47L, ledger.totalAmount());
+    assertArrayEquals(new String[] {"Debtor7", "Debtor6", "Debtor5", "Debtor4", "Debtor3", "Debtor2", "Debtor1",
+        "Debtor0"}, ledger.owesFrom(creditor).keySet().toArray(new String[0]));
+    assertArrayEquals(new int[] {debtors[3], creditor, debtors[0]}, ledger.drainChanged());
+    assertEquals(5L, ledger.reduce(debtors[3], creditor, 10L));
+    ledger.add(debtors[3], creditor, 2L);
+    ledger.repartition(DebtLedger.DEFAULT_PARTITIONS);
+    assertEquals("Debtor3", ledger.owesFrom(creditor).keySet().toArray(new String[0])[7]);
+    assertEquals(9L, ledger.get(creditor, debtors[0]));
+  }
+
+  @Test
+  public void testSettledDebtsLeaveNoLists() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory, 1);
+    int[] ids = new int[50];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = directory.intern("user" + i);
+    }
+    ledger.add(ids[1], ids[0], 1L);
+    for (int i = 2; i < ids.length; i++) {
+      ledger.add(ids[i], ids[0], i);
+      ledger.add(ids[i], ids[i - 1], 5L);
+    }
+    assertEquals(1L, ledger.reduce(ids[1], ids[0], 2L));
+    for (int i = 3; i < ids.length; i += 2) {
+      assertEquals(i, ledger.reduce(ids[i], ids[0], i + 1L));
+      assertEquals(0L, ledger.add(ids[i], ids[i - 1], -5L));
+    }
+    for (int i = 1; i < ids.length; i++) {
+      assertEquals(i % 2 == 0 ? 2 : 0, ledger.owesTo(ids[i]).size(), "user" + i);
+    }
+    assertEquals(24, ledger.owesFrom(ids[0]).size());
+    for (int i = ids.length - 1; i > 0; i -= 2) {
+      ledger.add(ids[i], ids[0], 1L);
+    }
+    String[] owedTo = ledger.owesFrom(ids[0]).keySet().toArray(new String[0]);
+    assertEquals(49, owedTo.length);
+    assertEquals("user2", owedTo[0]);
+    assertEquals("user49", owedTo[24]);
+    assertEquals("user1", owedTo[48]);
+    assertEquals(73, ledger.size());
+  }
+
+  @Test
+  public void testSmallestCreditorsFirst() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    int debtor = directory.intern("Debtor");
+    int[] creditors = new int[6];
+    long[] amounts = {50L, 10L, 30L, 10L, 70L, 20L};
+    for (int i = 0; i < creditors.length; i++) {
+      creditors[i] = directory.intern("Creditor" + i);
+      ledger.add(debtor, creditors[i], amounts[i]);
+    }
+    assertArrayEquals(new int[] {creditors[1], creditors[3], creditors[5]}, ledger.smallestCreditorsOf(debtor, 3));
+    assertArrayEquals(new int[] {creditors[1], creditors[3], creditors[5], creditors[2], creditors[0], creditors[4]},
+        ledger.smallestCreditorsOf(debtor, 100));
+    assertArrayEquals(new int[] {creditors[0], creditors[1]}, ledger.creditorsOf(debtor, 2));
+    assertEquals(0, ledger.smallestCreditorsOf(debtor, 0).length);
+    assertEquals(0, ledger.smallestCreditorsOf(creditors[0], 3).length);
+  }
+
+  @Test
+  public void testChangedAccountsAreDrained() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    int alice = directory.intern("Alice");
+    int bob = directory.intern("Bob");
+    int carol = directory.intern("Carol");
+    ledger.add(alice, bob, 10L);
+    ledger.add(bob, carol, 5L);
+    ledger.add(alice, bob, 5L);
+    assertArrayEquals(new int[] {alice, bob, carol}, ledger.drainChanged());
+    ledger.reduce(alice, bob, 5L);
+    ledger.add(bob, carol, -1L);
+    assertArrayEquals(new int[0], ledger.drainChanged());
+    ledger.add(carol, alice, 1L);
+    assertArrayEquals(new int[] {carol, alice}, ledger.drainChanged());
+
+    Map<Integer, Long> owedByAlice = new HashMap<>();
+    ledger.forEachOwedBy(alice, (debtor, creditor, amount) -> owedByAlice.put(creditor, amount));
+    assertEquals(10L, owedByAlice.get(bob));
+    Map<Integer, Long> owedToAlice = new HashMap<>();
+    ledger.forEachOwedTo(alice, (debtor, creditor, amount) -> owedToAlice.put(debtor, amount));
+    assertEquals(1L, owedToAlice.get(carol));
+  }
+
+  @Test
+  public void testOwingToItselfIsRejected() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    int id = directory.intern("Alice");
+    Assertions.assertThrows(IllegalArgumentException.class, () -> ledger.add(id, id, 10L));
+  }
+
+  @Test
+  public void testMatchesMapModel() {
+    AccountDirectory directory = new AccountDirectory();
+    DebtLedger ledger = new DebtLedger(directory);
+    int accounts = 200;
+    for (int i = 0; i < accounts; i++) {
+      directory.intern("user" + i);
+    }
+    Map<Long, Long> model = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      int debtor = random.nextInt(accounts);
+      int creditor = random.nextInt(accounts);
+      if (debtor == creditor) {
+        continue;
+      }
+      long key = ((long) debtor << 32) | creditor;
+      long amount = random.nextInt(100) + 1;
+      if (random.nextBoolean()) {
+        ledger.add(debtor, creditor, amount);
+        model.merge(key, amount, Long::sum);
+      } else {
+        long owed = model.getOrDefault(key, 0L);
+        assertEquals(Math.min(owed, amount), ledger.reduce(debtor, creditor, amount));
+        if (owed <= amount) {
+          model.remove(key);
+        } else {
+          model.put(key, owed - amount);
+        }
+      }
+    }
+    assertEquals(model.size(), ledger.size());
+    assertEquals(model.values().stream().mapToLong(Long::longValue).sum(), ledger.totalAmount());
+    int edges = 0;
+    for (int debtor = 0; debtor < accounts; debtor++) {
+      for (int creditor : ledger.creditorsOf(debtor)) {
+        assertEquals(model.get(((long) debtor << 32) | creditor), ledger.get(debtor, creditor));
+        edges++;
+      }
+      assertEquals(ledger.owesTo(debtor).size(), ledger.creditorsOf(debtor).length);
+    }
+    assertEquals(model.size(), edges);
+  }
+}
@@ -0,0 +1,59 @@
+package domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedBalanceStoreTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void testBalancesAcrossChunks() throws IOException {
+    Path file = directory.resolve("balances.dat");
+    try (MappedBalanceStore store = new MappedBalanceStore(file, 4)) {
+      for (int id = 0; id < 100; id++) {
+        store.set(id, id * 10L);
+      }
+      assertEquals(0L, store.get(1000));
+      for (int id = 0; id < 100; id++) {
+        assertEquals(id * 10L, store.get(id));
+      }
+      assertEquals(7 * 16 * 8L, Files.size(file));
+      store.clear();
+      assertEquals(0L, store.get(99));
+    }
+  }
+
+  @Test
+  public void testBalancesSurviveReopen() throws IOException {
+    Path file = directory.resolve("balances.dat");
+    try (MappedBalanceStore store = new MappedBalanceStore(file, 4)) {
+      store.set(3, 30L);
+      store.set(40, -40L);
+    }
+    try (MappedBalanceStore store = new MappedBalanceStore(file, 4)) {
+      assertEquals(30L, store.get(3));
+      assertEquals(-40L, store.get(40));
+      assertEquals(0L, store.get(41));
+      assertEquals(3 * 16 * 8L, Files.size(file));
+    }
+  }
+
+  @Test
+  public void testAccountsShareBalanceById() throws IOException {
+    try (MappedBalanceStore store = new MappedBalanceStore(directory.resolve("balances.dat"), 4)) {
+      AccountDirectory accounts = new AccountDirectory(store);
+      DebtLedger ledger = new DebtLedger(accounts);
+      Account alice = new Account("Alice", ledger).setBalance(25L);
+      assertEquals(25L, new Account("Alice", ledger).getBalance());
+      assertEquals(25L, store.get(alice.getId()));
+    }
+  }
+}
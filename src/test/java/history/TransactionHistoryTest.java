@@ -0,0 +1,115 @@
+package history;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.AccountDirectory;
+import enums.HistoryEntryType;
+
+public class TransactionHistoryTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void testBlocksCoverEveryEntryNumber() {
+    for (int block = 0; block < 100; block++) {
+      long first = TransactionHistory.firstEntryOf(block);
+      assertEquals(block, TransactionHistory.blockOf(first));
+      assertEquals(block, TransactionHistory.blockOf(first + TransactionHistory.capacityOf(block) - 1));
+      assertEquals(first + TransactionHistory.capacityOf(block), TransactionHistory.firstEntryOf(block + 1));
+    }
+  }
+
+  @Test
+  public void testPagesAndTimeLookup() throws IOException {
+    AccountDirectory accounts = new AccountDirectory();
+    int alice = accounts.intern("Alice");
+    int bob = accounts.intern("Bob");
+    HistoryConfig config = new HistoryConfig().setDirectory(directory);
+    long startTime = System.currentTimeMillis();
+    try (TransactionHistory history = TransactionHistory.open(config, accounts)) {
+      for (int i = 1; i <= 1000; i++) {
+        history.recordTopup(alice, i);
+      }
+      history.recordTransfer(alice, bob, 10L, 20L, 30L);
+      history.recordSettlement(bob, alice, 5L);
+      assertEquals(1002, history.getEntryCount(alice));
+      assertEquals(2, history.getEntryCount(bob));
+
+      List<HistoryEntry> last = history.lastEntries(alice, 3);
+      assertEquals(3, last.size());
+      assertEquals(999L, last.get(0).getNumber());
+      assertEquals(1000L, last.get(0).getAmount());
+      assertEquals(HistoryEntryType.TRANSFER_OUT, last.get(1).getType());
+      assertEquals("Bob", last.get(1).getCounterparty());
+      assertEquals(60L, last.get(1).getAmount());
+      assertEquals(20L, last.get(1).getMoved());
+      assertEquals(HistoryEntryType.SETTLEMENT_IN, last.get(2).getType());
+
+      List<HistoryEntry> page = history.entries(alice, 250, 10);
+      assertEquals(10, page.size());
+      for (int i = 0; i < page.size(); i++) {
+        assertEquals(250L + i, page.get(i).getNumber());
+        assertEquals(251L + i, page.get(i).getAmount());
+        assertNull(page.get(i).getCounterparty());
+      }
+      assertEquals(2, history.entries(alice, 1000, 10).size());
+      assertTrue(history.entries(alice, 2000, 10).isEmpty());
+      HistoryEntry received = history.lastEntries(bob, 2).get(0);
+      assertEquals("0 " + received.getTime() + " TRANSFER_IN Alice 60", received.toString());
+
+      assertEquals(0L, history.entryAt(alice, startTime));
+      assertEquals(1002L, history.entryAt(alice, Long.MAX_VALUE));
+      assertThrows(IllegalArgumentException.class, () -> history.lastEntries(alice, TransactionHistory.MAX_PAGE_SIZE + 1));
+    }
+  }
+
+  @Test
+  public void testHistoryIsRebuiltOnOpen() throws IOException {
+    AccountDirectory accounts = new AccountDirectory();
+    int alice = accounts.intern("Alice");
+    int bob = accounts.intern("Bob");
+    HistoryConfig config = new HistoryConfig().setDirectory(directory).setSegmentBytes(TransactionHistory.MAX_BLOCK_BYTES);
+    try (TransactionHistory history = TransactionHistory.open(config, accounts)) {
+      for (int i = 0; i < 2000; i++) {
+        history.recordTransfer(i % 2 == 0 ? alice : bob, i % 2 == 0 ? bob : alice, 0L, i, 0L);
+      }
+    }
+
+    AccountDirectory reordered = new AccountDirectory();
+    int newBob = reordered.intern("Bob");
+    int newAlice = reordered.intern("Alice");
+    int carol = reordered.intern("Carol");
+    try (TransactionHistory history = TransactionHistory.open(config, reordered)) {
+      assertEquals(2000, history.getEntryCount(newAlice));
+      assertEquals(2000, history.getEntryCount(newBob));
+      assertEquals(0, history.getEntryCount(carol));
+      HistoryEntry last = history.lastEntries(newAlice, 1).get(0);
+      assertEquals(1999L, last.getNumber());
+      assertEquals(HistoryEntryType.TRANSFER_IN, last.getType());
+      assertEquals("Bob", last.getCounterparty());
+      assertEquals(1999L, last.getAmount());
+      history.recordTopup(newAlice, 7L);
+      history.recordTopup(carol, 3L);
+      assertEquals(7L, history.lastEntries(newAlice, 1).get(0).getAmount());
+      assertEquals(2000L, history.lastEntries(newAlice, 1).get(0).getNumber());
+      assertEquals(1, history.getEntryCount(carol));
+
+      history.reset();
+      assertEquals(0, history.getEntryCount(newAlice));
+      assertTrue(history.lastEntries(newAlice, 10).isEmpty());
+      history.recordTopup(newBob, 1L);
+      assertEquals(1, history.getEntryCount(newBob));
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TransactionJournalTest {
+
+  @TempDir
+  Path directory;
+
+  /**
+   * collects replayed records as readable lines
+   */
+  private static class RecordingHandler implements JournalRecordHandler {
+    private final List<String> records = new ArrayList<>();
+
+    @Override
+    public void onAccount(long sequence, String name, long balance) {
+      records.add(sequence + " account " + name + " " + balance);
+    }
+
+    @Override
+    public void onTopup(long sequence, String name, long amount) {
+      records.add(sequence + " topup " + name + " " + amount);
+    }
+
+    @Override
+    public void onTransfer(long sequence, String payer, String payee, long netted, long moved, long deficit) {
+      records.add(sequence + " transfer " + payer + " " + payee + " " + netted + " " + moved + " " + deficit);
+    }
+
+    @Override
+    public void onSettlement(long sequence, String debtor, String creditor, long amount) {
+      records.add(sequence + " settlement " + debtor + " " + creditor + " " + amount);
+    }
+
+    @Override
+    public void onReset(long sequence) {
+      records.add(sequence + " reset");
+    }
+
+    @Override
+    public void onNetting(long sequence, String debtor, String creditor, long change) {
+      records.add(sequence + " netting " + debtor + " " + creditor + " " + change);
+    }
+  }
+
+  @Test
+  public void testWriteAndReplayRecords() throws IOException {
+    JournalConfig config = new JournalConfig().setDirectory(directory);
+    try (TransactionJournal journal = TransactionJournal.open(config, 0L)) {
+      journal.appendAccount("Alice", 0);
+      journal.appendTopup("Alice", 100);
+      journal.appendTransfer("Alice", "Bob", 10, 20, 30);
+      journal.appendSettlement("Bob", "Alice", 5);
+      journal.appendReset();
+      journal.appendNetting("Alice", "Bob", -15);
+      journal.commit();
+      assertEquals(6L, journal.getDurableSequence());
+    }
+    RecordingHandler handler = new RecordingHandler();
+    JournalReader.ReplayResult result = JournalReader.replayDirectory(directory, 0L, handler);
+    assertEquals(6L, result.getLastSequence());
+    assertEquals(6L, result.getRecordCount());
+    assertEquals("3 transfer Alice Bob 10 20 30", handler.records.get(2));
+    assertEquals("5 reset", handler.records.get(4));
+    assertEquals("6 netting Alice Bob -15", handler.records.get(5));
+  }
+
+  @Test
+  public void testTornRecordIsDropped() throws IOException {
+    JournalConfig config = new JournalConfig().setDirectory(directory);
+    try (TransactionJournal journal = TransactionJournal.open(config, 0L)) {
+      journal.appendTopup("Alice", 100);
+      journal.appendTopup("Alice", 200);
+    }
+    try (FileChannel channel = FileChannel.open(JournalFiles.segmentPath(directory, 1L), StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 3);
+    }
+    JournalReader.ReplayResult result = JournalReader.replayDirectory(directory, 0L, new RecordingHandler());
+    assertEquals(1L, result.getLastSequence());
+    try (TransactionJournal journal = TransactionJournal.open(config, result.getLastSequence())) {
+      assertEquals(2L, journal.appendTopup("Alice", 300));
+    }
+    RecordingHandler handler = new RecordingHandler();
+    JournalReader.replayDirectory(directory, 0L, handler);
+    assertEquals(2, handler.records.size());
+    assertEquals("2 topup Alice 300", handler.records.get(1));
+  }
+
+  @Test
+  public void testRollAndReplayTail() throws IOException {
+    JournalConfig config = new JournalConfig().setDirectory(directory);
+    try (TransactionJournal journal = TransactionJournal.open(config, 0L)) {
+      journal.appendTopup("Alice", 100);
+      journal.appendTopup("Alice", 200);
+      assertEquals(2L, journal.roll());
+      journal.appendTopup("Alice", 300);
+    }
+    assertEquals(2, JournalFiles.listSegments(directory).size());
+    JournalFiles.deleteBefore(directory, 2L);
+    assertEquals(1, JournalFiles.listSegments(directory).size());
+    RecordingHandler handler = new RecordingHandler();
+    JournalReader.ReplayResult result = JournalReader.replayDirectory(directory, 2L, handler);
+    assertEquals(3L, result.getLastSequence());
+    assertEquals(1, handler.records.size());
+    assertEquals("3 topup Alice 300", handler.records.get(0));
+  }
+}
@@ -0,0 +1,92 @@
+package metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import enums.CommandAction;
+
+public class MetricsTest {
+
+  @Test
+  public void testHistogramPercentilesWithinBucketPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 100_000; value++) {
+      histogram.record(value * 1000L);
+    }
+    assertEquals(100_000, histogram.getCount());
+    assertEquals(100_000_000L, histogram.getMax());
+    assertWithinPrecision(50_000_000L, histogram.getValueAtPercentile(50d));
+    assertWithinPrecision(99_000_000L, histogram.getValueAtPercentile(99d));
+    assertEquals(100_000_000L, histogram.getValueAtPercentile(100d));
+    for (int index = 0; index < LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE); index++) {
+      assertEquals(index + 1, LatencyHistogram.indexOf(LatencyHistogram.highestValueOf(index) + 1));
+    }
+  }
+
+  @Test
+  public void testSummaryAndPrometheusText() {
+    Metrics metrics = new Metrics(() -> 3L, () -> 70L);
+    metrics.recordCommand(CommandAction.PAY);
+    metrics.recordCommand(CommandAction.PAY);
+    metrics.recordCommand(CommandAction.STATS);
+    metrics.getTransfer().record(2_000L);
+    metrics.recordSettlementRound();
+    metrics.recordSettlementIteration();
+    metrics.recordSettlementIteration();
+    assertEquals(2, metrics.getCommandCount(CommandAction.PAY));
+    String summary = metrics.summary();
+    assertTrue(summary.startsWith("accounts=3 debt=70 commands=[login=0 topup=0 pay=2 paybatch=0 stats=1 history=0 statement=0 exit=0] rejected=[overloaded=0 rateLimited=0]"));
+    assertTrue(summary.contains(" transfer=[count=1 meanUs=2 "));
+    assertTrue(summary.endsWith(" settlementRounds=1 settlementIterations=2"));
+    String text = metrics.toPrometheus();
+    assertTrue(text.contains("bank_commands_total{action=\"pay\"} 2\n"));
+    assertTrue(text.contains("# TYPE bank_transfer_latency_seconds summary\n"));
+    assertTrue(text.contains("bank_transfer_latency_seconds_count 1\n"));
+    assertTrue(text.contains("bank_settlement_iterations_total 2\n"));
+    assertTrue(text.contains("bank_accounts 3\n"));
+    assertTrue(text.contains("bank_debt_outstanding 70\n"));
+  }
+
+  @Test
+  public void testMetricsServedOverHttp() throws Exception {
+    Metrics metrics = new Metrics(() -> 5L, () -> 0L);
+    metrics.recordCommand(CommandAction.LOGIN);
+    try (MetricsServer server = MetricsServer.start(metrics, new MetricsConfig().setPort(0))) {
+      URL url = new URL("http://127.0.0.1:" + server.getPort() + MetricsServer.PATH);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      try {
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/plain"));
+        String body = read(connection.getInputStream());
+        assertTrue(body.contains("bank_commands_total{action=\"login\"} 1\n"));
+        assertTrue(body.contains("bank_accounts 5\n"));
+      } finally {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private static void assertWithinPrecision(long expected, long actual) {
+    assertTrue(Math.abs(actual - expected) <= expected / 64, "expected=" + expected + " actual=" + actual);
+  }
+
+  private static String read(InputStream in) throws Exception {
+    try (InputStream body = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = body.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
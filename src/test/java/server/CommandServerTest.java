@@ -0,0 +1,170 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import admission.AdmissionConfig;
+import enums.AdmissionResult;
+import service.AccountService;
+
+public class CommandServerTest {
+
+  private static final AccountService ACCOUNT_SERVICE = AccountService.getInstance();
+
+  @Test
+  public void testCommandsOverSocket() throws Exception {
+    try (CommandServer server = CommandServer.start(ACCOUNT_SERVICE, new ServerConfig().setPort(0));
+        Client payer = new Client(server.getPort());
+        Client payee = new Client(server.getPort())) {
+      assertEquals("ERROR User not logged in. Please login first", payer.send("topup 100"));
+      assertEquals("OK netPayer balance=0 owesTo=[] owesFrom=[]", payer.send("login netPayer"));
+      assertEquals("OK netPayer balance=100 owesTo=[] owesFrom=[]", payer.send("topup 100"));
+      assertEquals("ERROR Not a valid payee.", payer.send("pay netPayee 30"));
+      assertEquals("OK netPayee balance=0 owesTo=[] owesFrom=[]", payee.send("login netPayee"));
+      assertEquals("OK netPayer balance=0 owesTo=[netPayee=50] owesFrom=[]", payer.send("pay netPayee 150"));
+      assertEquals("OK netPayee balance=100 owesTo=[] owesFrom=[netPayer=50]", payee.send("login netPayee"));
+      assertEquals("ERROR Cannot transfer to own account.", payer.send("pay netPayer 10"));
+      assertEquals("OK netPayer balance=0 owesTo=[netPayee=65] owesFrom=[]",
+          payer.send("paybatch netPayee 10 netPayee 5"));
+      assertEquals("ERROR Not a valid payee=[netNobody].", payer.send("paybatch netPayee 1 netNobody 1"));
+      assertEquals("ERROR Every payee of a batch needs one amount, at most 31 payees.",
+          payer.send("paybatch netPayee 1 netPayee"));
+      assertEquals("ERROR Input is not a valid Number=[ten].", payer.send("topup ten"));
+      assertEquals("ERROR Amount cannot be less than 0.", payer.send("topup -10"));
+      assertEquals("OK netPayer balance=0 owesTo=[netPayee=25] owesFrom=[]", payer.send("topup 40 retry-1"));
+      assertEquals("OK netPayer balance=0 owesTo=[netPayee=25] owesFrom=[]", payer.send("topup 40 retry-1"));
+      assertEquals("ERROR Not a correct command=[withdraw].", payer.send("withdraw 10"));
+      assertTrue(payer.send("stats").startsWith("OK accounts="));
+      assertEquals("ERROR Transaction history is not enabled.", payer.send("history 10"));
+      assertEquals("BYE", payer.send("exit"));
+      assertNull(payer.in.readLine());
+    }
+  }
+
+  @Test
+  public void testConnectionsBeyondLimitAreRejected() throws Exception {
+    ServerConfig config = new ServerConfig().setPort(0).setMaxConnections(2);
+    try (CommandServer server = CommandServer.start(ACCOUNT_SERVICE, config);
+        Client first = new Client(server.getPort());
+        Client second = new Client(server.getPort())) {
+      assertTrue(first.send("login netLimit").startsWith("OK"));
+      assertTrue(second.send("login netLimit").startsWith("OK"));
+      try (Client third = new Client(server.getPort())) {
+        assertEquals(CommandServer.BUSY_RESPONSE.trim(), third.in.readLine());
+        assertNull(third.in.readLine());
+      }
+      assertEquals(1, server.getRejectedCount());
+      assertEquals("BYE", first.send("exit"));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (server.getOpenConnections() > 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      try (Client fourth = new Client(server.getPort())) {
+        assertTrue(fourth.send("login netLimit").startsWith("OK"));
+      }
+    }
+  }
+
+  @Test
+  public void testCommandsBeyondRateAreRejected() throws Exception {
+    ServerConfig config = new ServerConfig().setPort(0)
+        .setAdmission(new AdmissionConfig().setRatePerSecond(1).setBurst(2));
+    try (CommandServer server = CommandServer.start(ACCOUNT_SERVICE, config);
+        Client client = new Client(server.getPort());
+        Client other = new Client(server.getPort())) {
+      long rejectedBefore = ACCOUNT_SERVICE.getMetrics().getRejectionCount(AdmissionResult.RATE_LIMITED);
+      assertTrue(client.send("login netRated").startsWith("OK"));
+      assertTrue(client.send("topup 1").startsWith("OK"));
+      assertEquals(ConnectionHandler.REJECTED + AdmissionResult.RATE_LIMITED.getReason(), client.send("topup 1"));
+      assertTrue(client.send("stats").startsWith("OK"));
+      // every connection has its own rate limit
+      assertTrue(other.send("login netRated").startsWith("OK netRated balance=1 "));
+      assertEquals(rejectedBefore + 1, ACCOUNT_SERVICE.getMetrics().getRejectionCount(AdmissionResult.RATE_LIMITED));
+    }
+  }
+
+  @Test
+  public void testLongLineClosesConnection() throws Exception {
+    ServerConfig config = new ServerConfig().setPort(0).setMaxLineLength(16);
+    try (CommandServer server = CommandServer.start(ACCOUNT_SERVICE, config);
+        Client client = new Client(server.getPort())) {
+      assertEquals("ERROR Command line longer than [16] bytes.", client.send("login someVeryLongUserName"));
+      assertNull(client.in.readLine());
+    }
+  }
+
+  @Test
+  public void testPipelinedCommandsAreAnsweredInOrder() throws Exception {
+    try (CommandServer server = CommandServer.start(ACCOUNT_SERVICE, new ServerConfig().setPort(0));
+        Client payee = new Client(server.getPort());
+        Client payer = new Client(server.getPort())) {
+      assertTrue(payee.send("login netPipePayee").startsWith("OK"));
+      StringBuilder commands = new StringBuilder("login netPipePayer\n\n");
+      for (int i = 0; i < 100; i++) {
+        commands.append("topup 10\npay netPipePayee 10\n");
+      }
+      commands.append("exit\n");
+      long writesBefore = server.getWriteCount();
+      payer.out.write(commands.toString().getBytes(StandardCharsets.UTF_8));
+      payer.out.flush();
+      assertEquals("OK netPipePayer balance=0 owesTo=[] owesFrom=[]", payer.in.readLine());
+      for (int i = 0; i < 100; i++) {
+        assertEquals("OK netPipePayer balance=10 owesTo=[] owesFrom=[]", payer.in.readLine());
+        assertEquals("OK netPipePayer balance=0 owesTo=[] owesFrom=[]", payer.in.readLine());
+      }
+      assertEquals("BYE", payer.in.readLine());
+      assertNull(payer.in.readLine());
+      assertTrue(server.getWriteCount() - writesBefore < 100);
+      assertTrue(payee.send("login netPipePayee").startsWith("OK netPipePayee balance=1000 "));
+    }
+  }
+
+  @Test
+  public void testIdleAndActiveConnectionsUnderLoad() throws Exception {
+    try (CommandServer server = CommandServer.start(ACCOUNT_SERVICE, new ServerConfig().setPort(0))) {
+      LoadGenerator.Report report = new LoadGenerator("localhost", server.getPort()).run(1000, 100, 200);
+      assertEquals(1000, report.getIdleConnections());
+      assertEquals(100 * 200, report.getCommands());
+      assertEquals(0, report.getErrors());
+      assertEquals(0, server.getRejectedCount());
+      LoadGenerator.Report pipelined = new LoadGenerator("localhost", server.getPort()).run(0, 10, 1000, 50);
+      assertEquals(10 * 1000, pipelined.getCommands());
+      assertEquals(0, pipelined.getErrors());
+    }
+  }
+
+  private static final class Client implements AutoCloseable {
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final BufferedReader in;
+
+    Client(int port) throws IOException {
+      socket = new Socket("localhost", port);
+      socket.setSoTimeout(10_000);
+      out = socket.getOutputStream();
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    String send(String command) throws IOException {
+      out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      return in.readLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}
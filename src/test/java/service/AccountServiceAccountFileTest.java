@@ -0,0 +1,143 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.AccountDirectory;
+import domain.AccountFile;
+import journal.JournalConfig;
+import journal.JournalSink;
+
+public class AccountServiceAccountFileTest {
+
+  private static final int USERS = 200;
+
+  @TempDir
+  Path directory;
+
+  private AccountService open(AccountFile file) throws IOException {
+    AccountService service = new AccountService(file);
+    service.openJournal(new JournalConfig().setDirectory(directory.resolve("journal")).setFlushIntervalMillis(1));
+    return service;
+  }
+
+  private static void close(AccountService service, AccountFile file) throws IOException {
+    service.closeJournal();
+    file.close();
+  }
+
+  @Test
+  public void testStoredAccountsSurviveRestartsWithJournal() throws IOException {
+    Path path = directory.resolve("accounts.dat");
+    AccountFile file = new AccountFile(path, 8);
+    AccountService service = new AccountService(file);
+    for (int i = 0; i < USERS; i++) {
+      service.addAccount("user" + i, i);
+    }
+    file.close();
+
+    file = new AccountFile(path, 8);
+    service = open(file);
+    assertEquals(7L, service.getAccount("user7").get().getBalance());
+    service.transferAmount(service.openSession("user3"), "user5", 10);
+    service.takeSnapshot();
+    close(service, file);
+
+    file = new AccountFile(path, 8);
+    service = open(file);
+    AccountDirectory accounts = service.getAccount("Alice").get().getLedger().getDirectory();
+    assertEquals(USERS + 2, accounts.size());
+    assertTrue(file.getLoadedCount() <= 8, "loaded=" + file.getLoadedCount());
+    service.flushAccountStore();
+    assertEquals(USERS + 2, file.getRecordCount());
+    assertEquals(7L, service.getAccount("user3").get().getOwesTo().get("user5"));
+    service.takeSnapshot();
+    close(service, file);
+
+    file = new AccountFile(path, 8);
+    service = open(file);
+    try {
+      for (int i = 0; i < USERS; i++) {
+        long expected = i == 3 ? 0L : i == 5 ? 8L : i;
+        assertEquals(expected, service.getAccount("user" + i).get().getBalance(), "user" + i);
+      }
+      assertEquals(7L, service.getAccount("user5").get().getOwesFrom().get("user3"));
+    } finally {
+      close(service, file);
+    }
+  }
+
+  @Test
+  public void testStatementAndReplicaHoldStoredAccounts() throws IOException {
+    Path path = directory.resolve("accounts.dat");
+    AccountFile file = new AccountFile(path, 8);
+    AccountService service = open(file);
+    for (int i = 0; i < USERS; i++) {
+      service.addAccount("user" + i, i);
+    }
+    service.takeSnapshot();
+    close(service, file);
+
+    file = new AccountFile(path, 8);
+    service = open(file);
+    try {
+      service.getAccount("user9").get().getBalance();
+      Path statements = directory.resolve("statements.csv");
+      assertEquals(USERS + 2, service.exportStatements(new StatementConfig().setFile(statements).setParallelism(2)));
+      long accountLines = Files.readAllLines(statements, StandardCharsets.UTF_8).stream()
+          .filter(line -> line.startsWith("ACCOUNT,")).distinct().count();
+      assertEquals(USERS + 2, accountLines);
+
+      JournalSink sink = (records, lastSequence) -> {
+      };
+      ByteBuffer content = service.openReplicationStream(sink);
+      service.closeReplicationStream(sink);
+      AccountService replica = new AccountService();
+      replica.startReplica();
+      replica.loadReplicaSnapshot(content);
+      assertEquals(42L, replica.getAccount("user42").get().getBalance());
+      assertEquals(USERS - 1L, replica.getAccount("user" + (USERS - 1)).get().getBalance());
+    } finally {
+      close(service, file);
+    }
+  }
+
+  @Test
+  public void testJournalWithoutSnapshotIsRefused() throws IOException {
+    AccountService journaled = new AccountService();
+    journaled.openJournal(new JournalConfig().setDirectory(directory.resolve("journal")).setFlushIntervalMillis(1));
+    journaled.addAccount("journaled", 5);
+    journaled.closeJournal();
+
+    try (AccountFile file = new AccountFile(directory.resolve("accounts.dat"), 8)) {
+      AccountService service = new AccountService(file);
+      service.addAccount("stored", 7);
+      JournalConfig config = new JournalConfig().setDirectory(directory.resolve("journal"));
+      assertThrows(IllegalStateException.class, () -> service.openJournal(config));
+      assertFalse(service.isJournalOpen());
+      assertEquals(7L, service.getAccount("stored").get().getBalance());
+      assertFalse(service.getAccount("journaled").isPresent());
+    }
+  }
+
+  @Test
+  public void testShardedJournalsAreRejected() throws IOException {
+    try (AccountFile file = new AccountFile(directory.resolve("accounts.dat"), 8)) {
+      AccountService service = new AccountService(file);
+      ShardConfig config = new ShardConfig().setShardCount(2)
+          .setJournal(new JournalConfig().setDirectory(directory.resolve("shards")));
+      assertThrows(IllegalStateException.class, () -> service.startShardedEngine(config));
+    }
+  }
+}
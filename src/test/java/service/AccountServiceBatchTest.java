@@ -0,0 +1,182 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.Account;
+import domain.Transfer;
+import journal.JournalConfig;
+
+public class AccountServiceBatchTest {
+
+  private AccountService batchService;
+  private AccountService sequentialService;
+
+  @TempDir
+  Path directory;
+
+  @BeforeEach
+  public void init() {
+    batchService = new AccountService();
+    sequentialService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() {
+    batchService.stopSequencer();
+    batchService.stopShardedEngine();
+  }
+
+  /**
+   * applies the same setup to both services
+   */
+  private void setUp(int accounts, long balance) {
+    for (AccountService service : Arrays.asList(batchService, sequentialService)) {
+      for (int i = 0; i < accounts; i++) {
+        service.addAccount("User" + i, balance);
+      }
+    }
+  }
+
+  private void transfer(String payer, String payee, long amount) {
+    for (AccountService service : Arrays.asList(batchService, sequentialService)) {
+      service.transferAmount(service.openSession(payer), payee, amount);
+    }
+  }
+
+  /**
+   * transfers the batch at once in one service and entry by entry in the other one
+   */
+  private void transferBoth(String payer, List<Transfer> transfers) {
+    batchService.transferBatch(batchService.openSession(payer), transfers);
+    AccountSession session = sequentialService.openSession(payer);
+    for (Transfer transfer : transfers) {
+      sequentialService.transferAmount(session, transfer.getPayee(), transfer.getAmount());
+    }
+  }
+
+  private void transferRandomBatches(int accounts, int rounds, long seed) {
+    Random random = new Random(seed);
+    for (int round = 0; round < rounds; round++) {
+      int payer = random.nextInt(accounts);
+      List<Transfer> transfers = new ArrayList<>();
+      int count = 1 + random.nextInt(12);
+      for (int i = 0; i < count; i++) {
+        int payee = random.nextInt(accounts);
+        if (payee != payer) {
+          transfers.add(new Transfer("User" + payee, random.nextInt(40)));
+        }
+      }
+      transferBoth("User" + payer, transfers);
+    }
+  }
+
+  /**
+   * checks balances and debts, including the order the debts were created in
+   */
+  private void checkSame(int accounts) {
+    for (int i = 0; i < accounts; i++) {
+      Account expected = sequentialService.getAccount("User" + i).get();
+      Account actual = batchService.getAccount("User" + i).get();
+      assertEquals(expected.getBalance(), actual.getBalance());
+      assertEquals(new ArrayList<>(expected.getOwesTo().entrySet()), new ArrayList<>(actual.getOwesTo().entrySet()));
+      assertEquals(expected.getOwesFrom(), actual.getOwesFrom());
+    }
+  }
+
+  @Test
+  public void testDeficitsKeepSequentialOrder() {
+    setUp(3, 0L);
+    batchService.topupBalance(batchService.openSession("User0"), 15);
+    sequentialService.topupBalance(sequentialService.openSession("User0"), 15);
+    transferBoth("User0", Arrays.asList(new Transfer("User1", 10), new Transfer("User2", 10),
+        new Transfer("User1", 10)));
+    checkSame(3);
+    Account payer = batchService.getAccount("User0").get();
+    assertEquals(0L, payer.getBalance());
+    assertEquals(Arrays.asList("User2", "User1"), new ArrayList<>(payer.getOwesTo().keySet()));
+    assertEquals(5L, payer.getOwesTo().get("User2"));
+    assertEquals(10L, payer.getOwesTo().get("User1"));
+    assertEquals(10L, batchService.getAccount("User1").get().getBalance());
+  }
+
+  @Test
+  public void testBatchNetsDebtsOfPayees() {
+    setUp(3, 0L);
+    transfer("User1", "User0", 25);
+    transfer("User2", "User0", 5);
+    transferBoth("User0", Arrays.asList(new Transfer("User1", 10), new Transfer("User2", 10),
+        new Transfer("User1", 10)));
+    checkSame(3);
+    assertEquals(5L, batchService.getAccount("User1").get().getOwesTo().get("User0"));
+    assertEquals(5L, batchService.getAccount("User0").get().getOwesTo().get("User2"));
+  }
+
+  @Test
+  public void testRandomBatchesMatchSequentialTransfers() {
+    int accounts = 32;
+    setUp(accounts, 50L);
+    transferRandomBatches(accounts, 200, 11L);
+    checkSame(accounts);
+  }
+
+  @Test
+  public void testInvalidBatchTransfersNothing() {
+    setUp(2, 100L);
+    AccountSession session = batchService.openSession("User0");
+    Assertions.assertThrows(IllegalArgumentException.class, () -> batchService.transferBatch(session,
+        Arrays.asList(new Transfer("User1", 10), new Transfer("Nobody", 10))));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> batchService.transferBatch(session,
+        Arrays.asList(new Transfer("User1", 10), new Transfer("User0", 10))));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> batchService.transferBatch(session,
+        Arrays.asList(new Transfer("User1", 10), null)));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new Transfer("User1", -1));
+    assertEquals(100L, batchService.getAccount("User0").get().getBalance());
+    assertEquals(100L, batchService.getAccount("User1").get().getBalance());
+  }
+
+  @Test
+  public void testBatchThroughSequencer() {
+    setUp(3, 0L);
+    batchService.startSequencer(new SequencerConfig());
+    batchService.topupBalance(batchService.openSession("User0"), 15);
+    sequentialService.topupBalance(sequentialService.openSession("User0"), 15);
+    transferBoth("User0", Arrays.asList(new Transfer("User1", 10), new Transfer("User2", 10),
+        new Transfer("User1", 10)));
+    batchService.stopSequencer();
+    checkSame(3);
+    assertTrue(batchService.getAccount("User0").get().doesOwesTo("User2"));
+  }
+
+  @Test
+  public void testBatchesThroughShardedEngineRecover() throws IOException {
+    int accounts = 16;
+    ShardConfig config = new ShardConfig().setShardCount(4)
+        .setJournal(new JournalConfig().setDirectory(directory).setFlushIntervalMillis(1));
+    batchService.startShardedEngine(config);
+    setUp(accounts, 50L);
+    transferRandomBatches(accounts, 200, 13L);
+    AccountSession session = batchService.openSession("User0");
+    Assertions.assertThrows(IllegalArgumentException.class, () -> batchService.transferBatch(session,
+        Arrays.asList(new Transfer("User1", 10), new Transfer("User0", 10))));
+    batchService.stopShardedEngine();
+    checkSame(accounts);
+
+    batchService = new AccountService();
+    batchService.startShardedEngine(config);
+    checkSame(accounts);
+  }
+}
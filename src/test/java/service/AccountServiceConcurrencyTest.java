@@ -0,0 +1,84 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import domain.Account;
+
+public class AccountServiceConcurrencyTest {
+
+  private static final int USERS = 16;
+  private static final int THREADS = 8;
+  private static final int OPERATIONS = 2000;
+  private static final long TOPUP = 10L;
+
+  private AccountService ACCOUNT_SERVICE;
+
+  @BeforeEach
+  public void init() {
+    ACCOUNT_SERVICE = AccountService.getInstance();
+    for (int i = 0; i < USERS; i++) {
+      ACCOUNT_SERVICE.addAccount(userName(i), 0);
+    }
+  }
+
+  private static String userName(int index) {
+    return "User" + index;
+  }
+
+  @Test
+  public void testConcurrentSessionsKeepAccountsConsistent() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<Long>> results = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final long seed = t;
+      results.add(executor.submit(() -> {
+        Random random = new Random(seed);
+        SessionContext session = new SessionContext();
+        long toppedUp = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+          int payer = random.nextInt(USERS);
+          ACCOUNT_SERVICE.loginUser(session, userName(payer));
+          if (random.nextBoolean()) {
+            ACCOUNT_SERVICE.topupBalance(session, TOPUP);
+            toppedUp += TOPUP;
+          } else {
+            int payee = (payer + 1 + random.nextInt(USERS - 1)) % USERS;
+            ACCOUNT_SERVICE.transferAmount(session, userName(payee), random.nextInt(30));
+          }
+        }
+        return toppedUp;
+      }));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+    long totalTopup = 0;
+    for (Future<Long> result : results) {
+      totalTopup += result.get();
+    }
+    long totalBalance = 0;
+    for (int i = 0; i < USERS; i++) {
+      Account account = ACCOUNT_SERVICE.getAccount(userName(i)).get();
+      assertTrue(account.getBalance() >= 0);
+      totalBalance += account.getBalance();
+      for (Map.Entry<String, Long> owes : account.getOwesTo().entrySet()) {
+        Account creditor = ACCOUNT_SERVICE.getAccount(owes.getKey()).get();
+        assertEquals(owes.getValue(), creditor.getOwesFrom().get(account.getName()));
+        assertTrue(owes.getValue() > 0);
+      }
+    }
+    assertEquals(totalTopup, totalBalance);
+  }
+}
@@ -0,0 +1,185 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import domain.Account;
+import util.CommandBufferParser;
+
+public class AccountServiceDedupeTest {
+
+  @Test
+  public void testDuplicatesAreNotAppliedAgain() {
+    AccountService service = new AccountService();
+    service.addAccount("dedupePayer", 100L);
+    service.addAccount("dedupePayee", 0L);
+    AccountSession session = service.openSession("dedupePayer");
+    int payeeId = service.getAccountId("dedupePayee");
+    long key = CommandBufferParser.keyOf("pay-1");
+
+    assertTrue(service.transferAmount(session, payeeId, 30L, key).isApplied());
+    RequestOutcome duplicate = service.transferAmount(session, payeeId, 30L, key);
+    assertFalse(duplicate.isApplied());
+    assertTrue(duplicate.isDuplicate());
+    assertTrue(service.transferAmount(session, payeeId, 30L, CommandBufferParser.keyOf("pay-2")).isApplied());
+    assertTrue(service.topupBalance(session, 5L, CommandBufferParser.keyOf("topup-1")).isApplied());
+    assertFalse(service.topupBalance(session, 5L, CommandBufferParser.keyOf("topup-1")).isApplied());
+    assertEquals(45L, balanceOf(service, "dedupePayer"));
+    assertEquals(60L, balanceOf(service, "dedupePayee"));
+    assertEquals(2L, service.getDuplicateCount());
+
+    // the duplicate is answered with the outcome of the first request, not with the current balance
+    assertEquals(RequestOutcome.Status.APPLIED, duplicate.getStatus());
+    assertEquals(70L, duplicate.getBalance());
+    assertEquals(70L, service.transferAmount(session, payeeId, 30L, key).getBalance());
+
+    // the same key of another user is a different request
+    assertTrue(service.topupBalance(service.openSession("dedupePayee"), 5L, key).isApplied());
+    assertEquals(65L, balanceOf(service, "dedupePayee"));
+  }
+
+  @Test
+  public void testFailedRequestCanBeRetried() {
+    AccountService service = new AccountService();
+    service.addAccount("dedupeRetry", 0L);
+    AccountSession session = service.openSession("dedupeRetry");
+    long key = CommandBufferParser.keyOf("retry-1");
+
+    assertThrows(IllegalArgumentException.class, () -> service.topupBalance(session, -1L, key));
+    assertTrue(service.topupBalance(session, 10L, key).isApplied());
+    assertEquals(10L, balanceOf(service, "dedupeRetry"));
+    assertEquals(RequestOutcome.Status.NOT_LOGGED_IN, service.topupBalance(null, 10L, key).getStatus());
+  }
+
+  @Test
+  public void testTransferToUnknownPayeeCanBeRetried() {
+    AccountService service = new AccountService();
+    service.addAccount("dedupeEarly", 50L);
+    AccountSession session = service.openSession("dedupeEarly");
+    long key = CommandBufferParser.keyOf("early-1");
+
+    assertEquals(RequestOutcome.Status.NO_PAYEE,
+        service.transferAmount(session, service.getAccountId("dedupeLate"), 20L, key).getStatus());
+    service.addAccount("dedupeLate", 0L);
+    assertEquals(RequestOutcome.Status.SAME_ACCOUNT,
+        service.transferAmount(session, session.getAccount().getId(), 20L, key).getStatus());
+    RequestOutcome retried = service.transferAmount(session, service.getAccountId("dedupeLate"), 20L, key);
+    assertTrue(retried.isApplied());
+    assertEquals(30L, retried.getBalance());
+    assertEquals(20L, balanceOf(service, "dedupeLate"));
+    assertEquals(0L, service.getDuplicateCount());
+  }
+
+  @Test
+  public void testTransferToUnknownPayeeCanBeRetriedThroughSequencer() {
+    AccountService service = new AccountService();
+    service.addAccount("dedupeEarly", 50L);
+    service.startSequencer(new SequencerConfig());
+    try {
+      AccountSession session = service.openSession("dedupeEarly");
+      long key = CommandBufferParser.keyOf("early-1");
+
+      assertEquals(RequestOutcome.Status.NO_PAYEE,
+          service.transferAmount(session, service.getAccountId("dedupeLate"), 20L, key).getStatus());
+      service.addAccount("dedupeLate", 0L);
+      int payeeId = service.getAccountId("dedupeLate");
+      assertTrue(service.transferAmount(session, payeeId, 20L, key).isApplied());
+      assertTrue(service.transferAmount(session, payeeId, 20L, key).isDuplicate());
+      assertEquals(20L, balanceOf(service, "dedupeLate"));
+    } finally {
+      service.stopSequencer();
+    }
+  }
+
+  @Test
+  public void testConcurrentRetriesAreAppliedOnce() throws Exception {
+    AccountService service = new AccountService();
+    service.addAccount("dedupeRace", 0L);
+    AccountSession session = service.openSession("dedupeRace");
+    int threads = 8;
+    int requests = 1000;
+    AtomicInteger applied = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      executor.execute(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int i = 0; i < requests; i++) {
+          if (service.topupBalance(session, 1L, CommandBufferParser.keyOf("race-" + i)).isApplied()) {
+            applied.incrementAndGet();
+          }
+        }
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(requests, applied.get());
+    assertEquals(requests, balanceOf(service, "dedupeRace"));
+    assertEquals((long) requests * (threads - 1), service.getDuplicateCount());
+  }
+
+  @Test
+  public void testKeysExpireAfterWindow() {
+    AtomicLong clock = new AtomicLong(1_000_000L);
+    DedupeCache cache = new DedupeCache(new DedupeConfig().setWindowMillis(1600L).setCapacity(64), clock::get);
+    long key = DedupeCache.keyOf(1, 42L);
+
+    assertNull(cache.claim(key));
+    assertSame(DedupeCache.IN_PROGRESS, cache.claim(key));
+    cache.complete(key, new RequestOutcome(RequestOutcome.Status.APPLIED, 7L, false));
+    clock.addAndGet(1500L);
+    assertEquals(7L, cache.claim(key).getBalance());
+    assertTrue(cache.contains(key));
+    clock.addAndGet(100L);
+    assertFalse(cache.contains(key));
+    assertNull(cache.claim(key));
+    cache.release(key);
+    assertFalse(cache.contains(key));
+    assertEquals(1L, cache.getDuplicateCount());
+  }
+
+  @Test
+  public void testTableStaysBounded() {
+    AtomicLong clock = new AtomicLong();
+    DedupeCache cache = new DedupeCache(new DedupeConfig().setWindowMillis(16_000L).setCapacity(100), clock::get);
+    assertEquals(128, cache.capacity());
+    for (int i = 0; i < 10_000; i++) {
+      clock.incrementAndGet();
+      assertNull(cache.claim(DedupeCache.keyOf(1, i)));
+    }
+    // the latest keys are kept, the oldest ones are replaced
+    int kept = 0;
+    for (int i = 9_900; i < 10_000; i++) {
+      if (cache.contains(DedupeCache.keyOf(1, i))) {
+        kept++;
+      }
+    }
+    assertTrue(kept > 50, "kept=" + kept);
+    assertFalse(cache.contains(DedupeCache.keyOf(1, 0)));
+    cache.clear();
+    assertFalse(cache.contains(DedupeCache.keyOf(1, 9_999)));
+  }
+
+  private static long balanceOf(AccountService service, String name) {
+    return service.getAccount(name).map(Account::getBalance).orElse(-1L);
+  }
+}
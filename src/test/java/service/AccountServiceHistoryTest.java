@@ -0,0 +1,67 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import enums.HistoryEntryType;
+import history.HistoryConfig;
+import history.HistoryEntry;
+
+public class AccountServiceHistoryTest {
+
+  @TempDir
+  Path directory;
+
+  private AccountService accountService;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() throws IOException {
+    accountService.closeHistory();
+  }
+
+  @Test
+  public void testTransfersAndSettlementsAreRecorded() throws IOException {
+    accountService.openHistory(new HistoryConfig().setDirectory(directory));
+    AccountSession alice = accountService.openSession("Alice");
+    AccountSession bob = accountService.openSession("Bob");
+    accountService.topupBalance(alice, 100);
+    accountService.transferAmount(alice, "Bob", 150);
+    accountService.topupBalance(alice, 80);
+
+    List<HistoryEntry> entries = accountService.getHistory(alice, -1, 10);
+    assertEquals(4, entries.size());
+    assertEquals(HistoryEntryType.TOPUP, entries.get(0).getType());
+    assertEquals(HistoryEntryType.TRANSFER_OUT, entries.get(1).getType());
+    assertEquals(150L, entries.get(1).getAmount());
+    assertEquals(100L, entries.get(1).getMoved());
+    assertEquals(HistoryEntryType.TOPUP, entries.get(2).getType());
+    assertEquals(HistoryEntryType.SETTLEMENT_OUT, entries.get(3).getType());
+    assertEquals(50L, entries.get(3).getAmount());
+    assertEquals(2, accountService.getHistorySize(bob));
+    assertEquals(HistoryEntryType.SETTLEMENT_IN, accountService.getHistory(bob, 1, 10).get(0).getType());
+    assertThrows(IllegalArgumentException.class, () -> accountService.getHistory(alice, -1, 0));
+
+    accountService.clearAccounts();
+    assertEquals(0, accountService.getHistorySize(accountService.openSession("Alice")));
+  }
+
+  @Test
+  public void testHistoryNotEnabled() {
+    AccountSession alice = accountService.openSession("Alice");
+    assertThrows(IllegalStateException.class, () -> accountService.getHistory(alice, -1, 10));
+  }
+}
@@ -0,0 +1,131 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.Account;
+import domain.MappedBalanceStore;
+import journal.JournalConfig;
+import journal.JournalFiles;
+
+public class AccountServiceJournalTest {
+
+  @TempDir
+  Path directory;
+
+  private AccountService accountService;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() throws IOException {
+    accountService.closeJournal();
+  }
+
+  @Test
+  public void testRecoverFromJournal() throws IOException {
+    accountService.openJournal(new JournalConfig().setDirectory(directory).setFlushIntervalMillis(1));
+    accountService.addAccount("Carol", 0);
+    accountService.addAccount("Dave", 0);
+    AccountSession carol = accountService.openSession("Carol");
+    accountService.transferAmount(carol, "Dave", 70);
+    AccountSession dave = accountService.openSession("Dave");
+    accountService.transferAmount(dave, "Carol", 20);
+    accountService.topupBalance(carol, 100);
+    accountService.closeJournal();
+
+    AccountService recovered = new AccountService();
+    recovered.openJournal(new JournalConfig().setDirectory(directory));
+    try {
+      Account recoveredCarol = recovered.getAccount("Carol").get();
+      Account recoveredDave = recovered.getAccount("Dave").get();
+      assertEquals(50L, recoveredCarol.getBalance());
+      assertEquals(50L, recoveredDave.getBalance());
+      assertTrue(recoveredCarol.getOwesTo().isEmpty());
+      assertTrue(recoveredDave.getOwesFrom().isEmpty());
+    } finally {
+      recovered.closeJournal();
+    }
+  }
+
+  @Test
+  public void testResetIsJournaled() throws IOException {
+    accountService.openJournal(new JournalConfig().setDirectory(directory).setSyncCommit(false));
+    accountService.addAccount("Carol", 10);
+    accountService.clearAccounts();
+    accountService.addAccount("Dave", 20);
+    accountService.closeJournal();
+
+    AccountService recovered = new AccountService();
+    recovered.openJournal(new JournalConfig().setDirectory(directory));
+    try {
+      assertTrue(recovered.getAccount("Carol").isEmpty());
+      assertTrue(recovered.getAccount("Alice").isEmpty());
+      assertEquals(20L, recovered.getAccount("Dave").get().getBalance());
+    } finally {
+      recovered.closeJournal();
+    }
+  }
+
+  @Test
+  public void testRecoverFromSnapshotAndJournalTail() throws IOException {
+    JournalConfig config = new JournalConfig().setDirectory(directory).setSnapshotIntervalSeconds(0);
+    accountService.openJournal(config);
+    accountService.addAccount("Carol", 0);
+    AccountSession carol = accountService.openSession("Carol");
+    accountService.transferAmount(carol, "Alice", 30);
+    accountService.takeSnapshot();
+    accountService.topupBalance(carol, 20);
+    accountService.takeSnapshot();
+    accountService.topupBalance(carol, 50);
+    accountService.closeJournal();
+    assertEquals(2, JournalFiles.listSnapshots(directory).size());
+
+    AccountService recovered = new AccountService();
+    recovered.openJournal(config);
+    try {
+      Account recoveredCarol = recovered.getAccount("Carol").get();
+      assertEquals(40L, recoveredCarol.getBalance());
+      assertTrue(recoveredCarol.getOwesTo().isEmpty());
+      assertEquals(30L, recovered.getAccount("Alice").get().getBalance());
+      assertTrue(recovered.getAccount("Alice").get().getOwesFrom().isEmpty());
+    } finally {
+      recovered.closeJournal();
+    }
+  }
+
+  @Test
+  public void testRecoverIntoMappedBalanceStore() throws IOException {
+    JournalConfig config = new JournalConfig().setDirectory(directory).setSnapshotIntervalSeconds(0);
+    accountService.openJournal(config);
+    AccountSession carol = accountService.openSession("Carol");
+    accountService.topupBalance(carol, 70);
+    accountService.transferAmount(carol, "Alice", 100);
+    accountService.closeJournal();
+
+    try (MappedBalanceStore balances = new MappedBalanceStore(directory.resolve("balances.dat"))) {
+      AccountService recovered = new AccountService(balances);
+      recovered.openJournal(config);
+      try {
+        Account recoveredCarol = recovered.getAccount("Carol").get();
+        assertEquals(0L, recoveredCarol.getBalance());
+        assertEquals(30L, recoveredCarol.getOwesTo().get("Alice"));
+        assertEquals(70L, recovered.getAccount("Alice").get().getBalance());
+        assertEquals(70L, balances.get(recovered.getAccountId("Alice")));
+      } finally {
+        recovered.closeJournal();
+      }
+    }
+  }
+}
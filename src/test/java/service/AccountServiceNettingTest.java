@@ -0,0 +1,183 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.Account;
+import journal.JournalConfig;
+
+public class AccountServiceNettingTest {
+
+  @TempDir
+  Path directory;
+
+  private AccountService accountService;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() throws IOException {
+    accountService.stopNetting();
+    accountService.stopSequencer();
+    accountService.closeJournal();
+  }
+
+  private void owe(String debtor, String creditor, long amount) {
+    accountService.transferAmount(accountService.openSession(debtor), creditor, amount);
+  }
+
+  /**
+   * @return what the account is owed less what it owes
+   */
+  private static long netOf(Account account) {
+    long net = 0L;
+    for (long amount : account.getOwesFrom().values()) {
+      net += amount;
+    }
+    for (long amount : account.getOwesTo().values()) {
+      net -= amount;
+    }
+    return net;
+  }
+
+  /**
+   * lets random pairs of the given number of accounts owe each other, in parts of about 8 accounts each
+   */
+  private void oweRandomly(int accounts, int transfers, long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < accounts; i++) {
+      accountService.addAccount("User" + i, 0L);
+    }
+    for (int i = 0; i < transfers; i++) {
+      int part = random.nextInt(accounts / 8) * 8;
+      int payer = part + random.nextInt(8);
+      int payee = part + random.nextInt(8);
+      if (payer != payee) {
+        owe("User" + payer, "User" + payee, 1 + random.nextInt(100));
+      }
+    }
+  }
+
+  /**
+   * nets the random debts and checks that every account keeps its net amount and ends up only owing or only owed
+   */
+  private void checkNetting(int accounts, boolean changedOnly) {
+    long[] nets = new long[accounts];
+    for (int i = 0; i < accounts; i++) {
+      nets[i] = netOf(accountService.getAccount("User" + i).get());
+    }
+    assertTrue(accountService.netDebts(changedOnly) > 0);
+    for (int i = 0; i < accounts; i++) {
+      Account account = accountService.getAccount("User" + i).get();
+      assertEquals(nets[i], netOf(account));
+      assertEquals(0L, account.getBalance());
+      assertFalse(!account.getOwesTo().isEmpty() && !account.getOwesFrom().isEmpty());
+    }
+  }
+
+  @Test
+  public void testCycleIsCancelled() {
+    accountService.addAccount("Alice", 0L);
+    accountService.addAccount("Bob", 0L);
+    accountService.addAccount("Carol", 0L);
+    owe("Alice", "Bob", 30);
+    owe("Bob", "Carol", 20);
+    owe("Carol", "Alice", 25);
+    assertEquals(60L + 5L, accountService.netDebts(false));
+    Account alice = accountService.getAccount("Alice").get();
+    assertEquals(5L, alice.getOwesTo().get("Bob"));
+    assertEquals(1, alice.getOwesTo().size());
+    assertTrue(alice.getOwesFrom().isEmpty());
+    assertTrue(accountService.getAccount("Bob").get().getOwesTo().isEmpty());
+    assertEquals(5L, accountService.getAccount("Carol").get().getOwesTo().get("Bob"));
+  }
+
+  @Test
+  public void testChainIsCompressed() {
+    accountService.addAccount("Alice", 0L);
+    accountService.addAccount("Bob", 0L);
+    accountService.addAccount("Carol", 0L);
+    owe("Alice", "Bob", 10);
+    owe("Bob", "Carol", 6);
+    assertEquals(6L, accountService.netDebts(false));
+    Account alice = accountService.getAccount("Alice").get();
+    assertEquals(4L, alice.getOwesTo().get("Bob"));
+    assertEquals(6L, alice.getOwesTo().get("Carol"));
+    assertTrue(accountService.getAccount("Bob").get().getOwesTo().isEmpty());
+  }
+
+  @Test
+  public void testRandomDebtsKeepNetAmounts() {
+    oweRandomly(64, 2000, 42L);
+    checkNetting(64, false);
+    assertEquals(0L, accountService.netDebts(false));
+  }
+
+  @Test
+  public void testParallelNettingOfChangedDebts() {
+    accountService.startNetting(new NettingConfig().setIntervalMillis(0L).setParallelism(4));
+    int accounts = 8 * 2048;
+    oweRandomly(accounts, 3 * NettingJob.TASK_EDGES, 7L);
+    checkNetting(accounts, true);
+    assertEquals(0L, accountService.netDebts(true));
+
+    owe("User0", "User1", 5);
+    owe("User1", "User0", 3);
+    owe("User1", "User2", 4);
+    owe("User2", "User0", 4);
+    assertTrue(accountService.netDebts(true) > 0);
+    assertEquals(3L, accountService.currentNetting().getRuns());
+    assertEquals(0L, accountService.currentNetting().getStaleParts());
+  }
+
+  @Test
+  public void testNettingIsRecoveredFromJournal() throws IOException {
+    accountService.openJournal(new JournalConfig().setDirectory(directory).setFlushIntervalMillis(1));
+    accountService.addAccount("Alice", 0L);
+    accountService.addAccount("Bob", 0L);
+    accountService.addAccount("Carol", 0L);
+    owe("Alice", "Bob", 30);
+    owe("Bob", "Carol", 40);
+    owe("Carol", "Alice", 10);
+    accountService.netDebts(false);
+    accountService.closeJournal();
+
+    AccountService recovered = new AccountService();
+    recovered.openJournal(new JournalConfig().setDirectory(directory));
+    try {
+      for (String name : new String[] {"Alice", "Bob", "Carol"}) {
+        assertEquals(accountService.getAccount(name).get().getOwesTo(), recovered.getAccount(name).get().getOwesTo());
+      }
+      assertEquals(10L, recovered.getAccount("Bob").get().getOwesTo().get("Carol"));
+      assertEquals(20L, recovered.getAccount("Alice").get().getOwesTo().get("Carol"));
+    } finally {
+      recovered.closeJournal();
+    }
+  }
+
+  @Test
+  public void testNettingOnlyInLockingMode() {
+    accountService.startNetting(new NettingConfig().setIntervalMillis(0L));
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.startNetting(new NettingConfig()));
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.startSequencer(new SequencerConfig()));
+    accountService.stopNetting();
+    accountService.startSequencer(new SequencerConfig());
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.netDebts(false));
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.startNetting(new NettingConfig()));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new NettingConfig().setParallelism(0));
+  }
+}
@@ -0,0 +1,146 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.Account;
+import journal.JournalConfig;
+import replication.ReplicationConfig;
+import replication.ReplicationFollower;
+import replication.ReplicationLeader;
+
+public class AccountServiceReplicationTest {
+
+  private static final int USERS = 10;
+
+  @TempDir
+  Path directory;
+
+  private AccountService leaderService;
+  private AccountService followerService;
+  private ReplicationLeader leader;
+  private ReplicationFollower follower;
+
+  @BeforeEach
+  public void init() throws IOException {
+    leaderService = new AccountService();
+    followerService = new AccountService();
+    leaderService.openJournal(new JournalConfig().setDirectory(directory).setFlushIntervalMillis(1));
+  }
+
+  @AfterEach
+  public void cleanUp() throws IOException {
+    if (follower != null) {
+      follower.close();
+    }
+    if (leader != null) {
+      leader.close();
+    }
+    leaderService.closeJournal();
+  }
+
+  private void startReplication(boolean syncAck) throws IOException {
+    leader = ReplicationLeader.start(leaderService, new ReplicationConfig().setPort(0).setSyncAck(syncAck));
+    follower = ReplicationFollower.start(followerService,
+        new ReplicationConfig().setLeader("localhost:" + leader.getPort()).setReconnectMillis(50));
+  }
+
+  private void runTransactions(Random random, int count) {
+    for (int i = 0; i < count; i++) {
+      int payer = random.nextInt(USERS);
+      AccountSession session = leaderService.openSession("User" + payer);
+      if (random.nextInt(3) == 0) {
+        leaderService.topupBalance(session, 10);
+      } else {
+        leaderService.transferAmount(session, "User" + ((payer + 1 + random.nextInt(USERS - 1)) % USERS),
+            random.nextInt(30));
+      }
+    }
+  }
+
+  private void assertReplicated(String name) {
+    Account account = leaderService.getAccount(name).get();
+    Account replicated = followerService.getAccount(name).get();
+    assertEquals(account.getBalance(), replicated.getBalance());
+    assertEquals(account.getOwesTo(), replicated.getOwesTo());
+    assertEquals(account.getOwesFrom(), replicated.getOwesFrom());
+  }
+
+  @Test
+  public void testFollowerCatchesUpWithLeader() throws Exception {
+    leaderService.addAccount("Removed", 500);
+    leaderService.clearAccounts();
+    Random random = new Random(11);
+    for (int i = 0; i < USERS; i++) {
+      leaderService.addAccount("User" + i, 0);
+    }
+    runTransactions(random, 500);
+    startReplication(false);
+    assertTrue(follower.awaitSequence(leaderService.currentJournal().getAppendedSequence(), 10_000));
+    runTransactions(random, 1500);
+    leaderService.addAccount("User0", 77);
+    assertTrue(follower.awaitSequence(leaderService.currentJournal().getAppendedSequence(), 10_000));
+
+    assertTrue(followerService.isReplica());
+    assertEquals(1, leader.getFollowerCount());
+    assertFalse(followerService.getAccount("Removed").isPresent());
+    for (int i = 0; i < USERS; i++) {
+      assertReplicated("User" + i);
+    }
+    assertEquals(77L, followerService.getAccount("User0").get().getBalance());
+    AccountSession session = followerService.openSession("User1");
+    assertEquals(leaderService.getAccount("User1").get().getBalance(), session.getAccount().getBalance());
+    Assertions.assertThrows(IllegalStateException.class, () -> followerService.topupBalance(session, 1));
+    Assertions.assertThrows(IllegalStateException.class, () -> followerService.transferAmount(session, "User2", 1));
+    Assertions.assertThrows(IllegalStateException.class, () -> followerService.addAccount("Carol", 1));
+    Assertions.assertThrows(IllegalStateException.class, () -> followerService.openSession("Carol"));
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> followerService.openJournal(new JournalConfig().setDirectory(directory.resolve("follower"))));
+  }
+
+  @Test
+  public void testSyncAckWaitsForFollower() throws Exception {
+    leaderService.addAccount("Carol", 0);
+    leaderService.addAccount("Dave", 0);
+    startReplication(true);
+    assertTrue(follower.awaitSequence(leaderService.currentJournal().getAppendedSequence(), 10_000));
+    AccountSession carol = leaderService.openSession("Carol");
+    for (int i = 0; i < 50; i++) {
+      leaderService.topupBalance(carol, 10);
+      leaderService.transferAmount(carol, "Dave", 15);
+      assertTrue(follower.getAppliedSequence() >= leaderService.currentJournal().getAppendedSequence());
+      assertReplicated("Carol");
+      assertReplicated("Dave");
+    }
+    assertEquals(leaderService.currentJournal().getAppendedSequence(), leader.getAcknowledgedSequence());
+
+    follower.close();
+    follower = null;
+    leaderService.addAccount("Eve", 10);
+    assertEquals(10L, leaderService.getAccount("Eve").get().getBalance());
+    assertFalse(followerService.getAccount("Eve").isPresent());
+  }
+
+  @Test
+  public void testLeaderNeedsJournal() throws IOException {
+    leaderService.closeJournal();
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> ReplicationLeader.start(leaderService, new ReplicationConfig().setPort(0)));
+    leaderService.openJournal(new JournalConfig().setDirectory(directory));
+    followerService.openJournal(new JournalConfig().setDirectory(directory.resolve("follower")));
+    Assertions.assertThrows(IllegalStateException.class, () -> ReplicationFollower.start(followerService,
+        new ReplicationConfig().setLeader("localhost:1")));
+    followerService.closeJournal();
+  }
+}
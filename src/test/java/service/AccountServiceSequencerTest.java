@@ -0,0 +1,166 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.Account;
+import journal.JournalConfig;
+
+public class AccountServiceSequencerTest {
+
+  @TempDir
+  Path directory;
+
+  private AccountService accountService;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() throws IOException {
+    accountService.stopSequencer();
+    accountService.closeJournal();
+  }
+
+  @Test
+  public void testTransfersAndSettlements() {
+    accountService.startSequencer(new SequencerConfig().setRingSize(4));
+    assertTrue(accountService.isSequencerStarted());
+    AccountSession alice = accountService.openSession("Alice");
+    AccountSession carol = accountService.openSession("Carol");
+    accountService.topupBalance(alice, 100);
+    accountService.transferAmount(alice, "Carol", 150);
+    Account aliceAccount = alice.getAccount();
+    Account carolAccount = carol.getAccount();
+    assertEquals(0L, aliceAccount.getBalance());
+    assertEquals(100L, carolAccount.getBalance());
+    assertEquals(50L, aliceAccount.getOwesTo().get("Carol"));
+    accountService.transferAmount(carol, "Alice", 20);
+    assertEquals(30L, aliceAccount.getOwesTo().get("Carol"));
+    assertEquals(100L, carolAccount.getBalance());
+    accountService.topupBalance(alice, 40);
+    assertEquals(10L, aliceAccount.getBalance());
+    assertEquals(130L, carolAccount.getBalance());
+    assertTrue(aliceAccount.getOwesTo().isEmpty());
+    accountService.transferAmount(alice, "Nobody", 5);
+    accountService.transferAmount(alice, "Alice", 5);
+    assertEquals(10L, aliceAccount.getBalance());
+    Assertions.assertThrows(IllegalArgumentException.class, () -> accountService.topupBalance(alice, -1));
+  }
+
+  @Test
+  public void testConcurrentSessionsKeepAccountsConsistent() throws Exception {
+    int users = 16;
+    accountService.startSequencer(new SequencerConfig().setRingSize(64));
+    for (int i = 0; i < users; i++) {
+      accountService.addAccount("User" + i, 0);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Long>> results = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final long seed = t;
+      results.add(executor.submit(() -> {
+        Random random = new Random(seed);
+        long toppedUp = 0;
+        for (int i = 0; i < 2000; i++) {
+          int payer = random.nextInt(users);
+          AccountSession session = accountService.openSession("User" + payer);
+          if (random.nextBoolean()) {
+            accountService.topupBalance(session, 10);
+            toppedUp += 10;
+          } else {
+            int payee = (payer + 1 + random.nextInt(users - 1)) % users;
+            accountService.transferAmount(session, "User" + payee, random.nextInt(30));
+          }
+        }
+        return toppedUp;
+      }));
+    }
+    long toppedUp = 0;
+    for (Future<Long> result : results) {
+      toppedUp += result.get();
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    accountService.stopSequencer();
+    assertFalse(accountService.isSequencerStarted());
+
+    long balances = 0;
+    for (int i = 0; i < users; i++) {
+      Account account = accountService.getAccount("User" + i).get();
+      assertTrue(account.getBalance() >= 0);
+      balances += account.getBalance();
+      for (Map.Entry<String, Long> debt : account.getOwesTo().entrySet()) {
+        assertEquals(debt.getValue(), accountService.getAccount(debt.getKey()).get().getOwesFrom().get(account.getName()));
+        if (account.getBalance() > 0) {
+          assertFalse(accountService.getAccount(debt.getKey()).get().doesOwesTo(account.getName()));
+        }
+      }
+    }
+    assertEquals(toppedUp, balances);
+  }
+
+  @Test
+  public void testRecoverFromSequencerJournalAndSnapshot() throws IOException {
+    accountService.openJournal(new JournalConfig().setDirectory(directory).setFlushIntervalMillis(1)
+        .setSnapshotIntervalSeconds(0));
+    accountService.startSequencer(new SequencerConfig());
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> accountService.openJournal(new JournalConfig().setDirectory(directory)));
+    accountService.addAccount("Carol", 0);
+    accountService.addAccount("Dave", 0);
+    AccountSession carol = accountService.openSession("Carol");
+    accountService.transferAmount(carol, "Dave", 70);
+    accountService.takeSnapshot();
+    AccountSession dave = accountService.openSession("Dave");
+    accountService.transferAmount(dave, "Carol", 20);
+    accountService.topupBalance(carol, 100);
+    accountService.openSession("Erin");
+    accountService.stopSequencer();
+    accountService.closeJournal();
+
+    AccountService recovered = new AccountService();
+    recovered.openJournal(new JournalConfig().setDirectory(directory));
+    try {
+      Account recoveredCarol = recovered.getAccount("Carol").get();
+      Account recoveredDave = recovered.getAccount("Dave").get();
+      assertEquals(50L, recoveredCarol.getBalance());
+      assertEquals(50L, recoveredDave.getBalance());
+      assertTrue(recoveredCarol.getOwesTo().isEmpty());
+      assertTrue(recovered.getAccount("Erin").isPresent());
+    } finally {
+      recovered.closeJournal();
+    }
+  }
+
+  @Test
+  public void testClearAccountsThroughSequencer() {
+    accountService.startSequencer(new SequencerConfig());
+    accountService.addAccount("Carol", 10);
+    accountService.clearAccounts();
+    assertTrue(accountService.getAccount("Carol").isEmpty());
+    assertTrue(accountService.getAccount("Alice").isEmpty());
+    AccountSession carol = accountService.openSession("Carol");
+    assertEquals(0L, carol.getAccount().getBalance());
+  }
+}
@@ -0,0 +1,98 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import domain.Account;
+import enums.SettlementOrder;
+
+public class AccountServiceSettlementTest {
+
+  private AccountService accountService;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() {
+    accountService.stopSettlement();
+    accountService.stopSequencer();
+  }
+
+  /**
+   * lets the debtor owe the given amounts to Creditor0, Creditor1, ... in this order
+   */
+  private AccountSession owe(long... amounts) {
+    AccountSession debtor = accountService.openSession("Debtor");
+    for (int i = 0; i < amounts.length; i++) {
+      accountService.openSession("Creditor" + i);
+      accountService.transferAmount(debtor, "Creditor" + i, amounts[i]);
+    }
+    return debtor;
+  }
+
+  @Test
+  public void testSmallestDebtsSettledFirst() {
+    accountService.startSettlement(new SettlementConfig().setOrder(SettlementOrder.SMALLEST_FIRST).setMaxPerCommand(0));
+    AccountSession debtor = owe(30, 10, 20, 10);
+    accountService.topupBalance(debtor, 25);
+    Map<String, Long> owesTo = debtor.getAccount().getOwesTo();
+    assertEquals(30L, owesTo.get("Creditor0"));
+    assertFalse(owesTo.containsKey("Creditor1"));
+    assertEquals(15L, owesTo.get("Creditor2"));
+    assertFalse(owesTo.containsKey("Creditor3"));
+    assertEquals(0L, debtor.getAccount().getBalance());
+    assertEquals(5L, accountService.getAccount("Creditor2").get().getBalance());
+  }
+
+  @Test
+  public void testRemainderSettledInBackground() {
+    accountService.startSettlement(new SettlementConfig().setMaxPerCommand(2));
+    assertTrue(accountService.isSettlementStarted());
+    AccountSession debtor = owe(10, 10, 10, 10, 10, 10, 10);
+    accountService.topupBalance(debtor, 100);
+    Account debtorAccount = debtor.getAccount();
+    assertFalse(debtorAccount.doesOwesTo("Creditor0"));
+    assertFalse(debtorAccount.doesOwesTo("Creditor1"));
+    assertTrue(accountService.currentSettlement().getDeferredCount() >= 1L);
+
+    accountService.stopSettlement();
+    assertFalse(accountService.isSettlementStarted());
+    assertTrue(debtorAccount.getOwesTo().isEmpty());
+    assertEquals(30L, debtorAccount.getBalance());
+    for (int i = 0; i < 7; i++) {
+      assertEquals(10L, accountService.getAccount("Creditor" + i).get().getBalance());
+    }
+  }
+
+  @Test
+  public void testBoundedRoundWithoutBackgroundWork() {
+    accountService.startSettlement(new SettlementConfig().setMaxPerCommand(2));
+    AccountSession debtor = owe(10, 10, 10);
+    accountService.topupBalance(debtor, 15);
+    assertEquals(0L, accountService.currentSettlement().getDeferredCount());
+    assertEquals(5L, debtor.getAccount().getOwesTo().get("Creditor1"));
+    assertEquals(10L, debtor.getAccount().getOwesTo().get("Creditor2"));
+  }
+
+  @Test
+  public void testSettlementOnlyInLockingMode() {
+    accountService.startSettlement(new SettlementConfig());
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.startSettlement(new SettlementConfig()));
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.startSequencer(new SequencerConfig()));
+    accountService.stopSettlement();
+    accountService.startSequencer(new SequencerConfig());
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.startSettlement(new SettlementConfig()));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new SettlementConfig().setMaxPerCommand(-1));
+  }
+}
@@ -0,0 +1,223 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import domain.Account;
+import domain.DebtLedger;
+import journal.JournalConfig;
+
+public class AccountServiceShardedTest {
+
+  @TempDir
+  Path directory;
+
+  private AccountService accountService;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() throws IOException {
+    accountService.stopShardedEngine();
+    accountService.closeJournal();
+  }
+
+  /**
+   * @return name of the first account "prefix[n]" owned by the given shard
+   */
+  private String nameInShard(String prefix, int shard) {
+    ShardedEngine engine = accountService.currentShardedEngine();
+    for (int i = 0; ; i++) {
+      String name = prefix + i;
+      if (engine.shardOf(accountService.openSession(name).getAccount().getId()) == shard) {
+        return name;
+      }
+    }
+  }
+
+  @Test
+  public void testTransfersAndSettlementsAcrossShards() throws IOException {
+    accountService.startShardedEngine(new ShardConfig().setShardCount(2));
+    assertTrue(accountService.isShardedEngineStarted());
+    assertFalse(accountService.isSequencerStarted());
+    String payerName = nameInShard("Payer", 0);
+    String payeeName = nameInShard("Payee", 1);
+    String localName = nameInShard("Local", 0);
+    AccountSession payer = accountService.openSession(payerName);
+    AccountSession payee = accountService.openSession(payeeName);
+    AccountSession local = accountService.openSession(localName);
+    Account payerAccount = payer.getAccount();
+    Account payeeAccount = payee.getAccount();
+
+    accountService.topupBalance(payer, 100);
+    accountService.transferAmount(payer, payeeName, 150);
+    assertEquals(0L, payerAccount.getBalance());
+    assertEquals(100L, payeeAccount.getBalance());
+    assertEquals(50L, payerAccount.getOwesTo().get(payeeName));
+    assertEquals(50L, payeeAccount.getOwesFrom().get(payerName));
+    assertEquals(1L, accountService.currentShardedEngine().getCrossShardTransfers());
+
+    accountService.transferAmount(payee, payerName, 20);
+    assertEquals(30L, payerAccount.getOwesTo().get(payeeName));
+    assertEquals(100L, payeeAccount.getBalance());
+    accountService.topupBalance(payer, 40);
+    assertEquals(10L, payerAccount.getBalance());
+    assertEquals(130L, payeeAccount.getBalance());
+    assertTrue(payerAccount.getOwesTo().isEmpty());
+    assertTrue(payeeAccount.getOwesFrom().isEmpty());
+
+    accountService.transferAmount(payer, localName, 25);
+    assertEquals(0L, payerAccount.getBalance());
+    assertEquals(10L, local.getAccount().getBalance());
+    assertEquals(15L, payerAccount.getOwesTo().get(localName));
+    accountService.transferAmount(payer, "Nobody", 5);
+    accountService.transferAmount(payer, payerName, 5);
+    assertEquals(0L, payerAccount.getBalance());
+    Assertions.assertThrows(IllegalArgumentException.class, () -> accountService.topupBalance(payer, -1));
+    Assertions.assertThrows(IllegalStateException.class, () -> accountService.startSequencer(new SequencerConfig()));
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> accountService.openJournal(new JournalConfig().setDirectory(directory)));
+  }
+
+  @Test
+  public void testConcurrentSessionsKeepAccountsConsistent() throws Exception {
+    int users = 16;
+    accountService.startShardedEngine(new ShardConfig().setShardCount(4));
+    for (int i = 0; i < users; i++) {
+      accountService.addAccount("User" + i, 0);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Long>> results = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final long seed = t;
+      results.add(executor.submit(() -> {
+        Random random = new Random(seed);
+        long toppedUp = 0;
+        for (int i = 0; i < 2000; i++) {
+          int payer = random.nextInt(users);
+          AccountSession session = accountService.openSession("User" + payer);
+          if (random.nextBoolean()) {
+            accountService.topupBalance(session, 10);
+            toppedUp += 10;
+          } else {
+            int payee = (payer + 1 + random.nextInt(users - 1)) % users;
+            accountService.transferAmount(session, "User" + payee, random.nextInt(30));
+          }
+        }
+        return toppedUp;
+      }));
+    }
+    long toppedUp = 0;
+    for (Future<Long> result : results) {
+      toppedUp += result.get();
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertTrue(accountService.currentShardedEngine().getCrossShardTransfers() > 0);
+    DebtLedger ledger = accountService.getAccount("User0").get().getLedger();
+    assertEquals(4, ledger.getPartitionCount());
+    int debts = ledger.size();
+    accountService.stopShardedEngine();
+    assertFalse(accountService.isShardedEngineStarted());
+    assertEquals(DebtLedger.DEFAULT_PARTITIONS, ledger.getPartitionCount());
+    assertEquals(debts, ledger.size());
+
+    long balances = 0;
+    for (int i = 0; i < users; i++) {
+      Account account = accountService.getAccount("User" + i).get();
+      assertTrue(account.getBalance() >= 0);
+      balances += account.getBalance();
+      for (Map.Entry<String, Long> debt : account.getOwesTo().entrySet()) {
+        assertEquals(debt.getValue(), accountService.getAccount(debt.getKey()).get().getOwesFrom().get(account.getName()));
+        if (account.getBalance() > 0) {
+          assertFalse(accountService.getAccount(debt.getKey()).get().doesOwesTo(account.getName()));
+        }
+      }
+    }
+    assertEquals(toppedUp, balances);
+  }
+
+  @Test
+  public void testRecoverFromShardJournals() throws IOException {
+    ShardConfig config = new ShardConfig().setShardCount(4)
+        .setJournal(new JournalConfig().setDirectory(directory).setFlushIntervalMillis(1));
+    accountService.startShardedEngine(config);
+    accountService.addAccount("Removed", 500);
+    accountService.clearAccounts();
+    Random random = new Random(7);
+    for (int i = 0; i < 12; i++) {
+      accountService.addAccount("User" + i, 0);
+    }
+    for (int i = 0; i < 2000; i++) {
+      int payer = random.nextInt(12);
+      AccountSession session = accountService.openSession("User" + payer);
+      if (random.nextInt(3) == 0) {
+        accountService.topupBalance(session, 10);
+      } else {
+        accountService.transferAmount(session, "User" + ((payer + 1 + random.nextInt(11)) % 12), random.nextInt(30));
+      }
+    }
+    accountService.addAccount("User0", 77);
+    accountService.stopShardedEngine();
+
+    AccountService recovered = new AccountService();
+    recovered.startShardedEngine(config);
+    try {
+      assertFalse(recovered.getAccount("Removed").isPresent());
+      assertFalse(recovered.getAccount("Alice").isPresent());
+      for (int i = 0; i < 12; i++) {
+        Account account = accountService.getAccount("User" + i).get();
+        Account recoveredAccount = recovered.getAccount("User" + i).get();
+        assertEquals(account.getBalance(), recoveredAccount.getBalance());
+        assertEquals(account.getOwesTo(), recoveredAccount.getOwesTo());
+        assertEquals(account.getOwesFrom(), recoveredAccount.getOwesFrom());
+      }
+      assertEquals(77L, recovered.getAccount("User0").get().getBalance());
+    } finally {
+      recovered.stopShardedEngine();
+    }
+
+    AccountService resharded = new AccountService();
+    Assertions.assertThrows(IllegalStateException.class, () -> resharded.startShardedEngine(new ShardConfig()
+        .setShardCount(2).setJournal(new JournalConfig().setDirectory(directory))));
+    assertFalse(resharded.isShardedEngineStarted());
+  }
+
+  @Test
+  public void testClearAccountsThroughShards() throws IOException {
+    accountService.startShardedEngine(new ShardConfig().setShardCount(3));
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> accountService.startShardedEngine(new ShardConfig()));
+    accountService.addAccount("Carol", 10);
+    accountService.clearAccounts();
+    assertTrue(accountService.getAccount("Carol").isEmpty());
+    assertTrue(accountService.getAccount("Alice").isEmpty());
+    AccountSession carol = accountService.openSession("Carol");
+    assertEquals(0L, carol.getAccount().getBalance());
+    ShardedEngine engine = accountService.currentShardedEngine();
+    accountService.stopShardedEngine();
+    int carolId = carol.getAccount().getId();
+    Assertions.assertThrows(IllegalStateException.class, () -> engine.topup(carolId, 1));
+  }
+}
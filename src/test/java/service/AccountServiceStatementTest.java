@@ -0,0 +1,119 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import enums.StatementFormat;
+import history.HistoryConfig;
+
+public class AccountServiceStatementTest {
+
+  @TempDir
+  Path directory;
+
+  private AccountService accountService;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+  }
+
+  @AfterEach
+  public void cleanUp() throws IOException {
+    accountService.closeHistory();
+  }
+
+  @Test
+  public void testCsvStatementsWithTransactions() throws IOException {
+    accountService.openHistory(new HistoryConfig().setDirectory(directory.resolve("history")));
+    AccountSession alice = accountService.openSession("Alice");
+    accountService.openSession("Carol, Jr.");
+    accountService.topupBalance(alice, 30);
+    accountService.transferAmount(alice, "Carol, Jr.", 50);
+
+    Path file = directory.resolve("statements.csv");
+    StatementConfig config = new StatementConfig().setFile(file).setParallelism(2).setBufferBytes(4096);
+    assertEquals(3, accountService.exportStatements(config));
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    assertEquals(8, lines.size());
+    assertEquals("ACCOUNT,Alice,0", lines.get(0));
+    assertEquals("OWES_TO,Alice,\"Carol, Jr.\",20", lines.get(1));
+    assertTrue(lines.get(2).matches("TRANSACTION,Alice,0,\\d+,TOPUP,,30,30"));
+    assertTrue(lines.get(3).matches("TRANSACTION,Alice,1,\\d+,TRANSFER_OUT,\"Carol, Jr.\",50,30"));
+    assertEquals("ACCOUNT,Bob,0", lines.get(4));
+    assertEquals("ACCOUNT,\"Carol, Jr.\",30", lines.get(5));
+    assertEquals("OWES_FROM,\"Carol, Jr.\",Alice,20", lines.get(6));
+    assertTrue(lines.get(7).matches("TRANSACTION,\"Carol, Jr.\",0,\\d+,TRANSFER_IN,Alice,50,30"));
+    assertFalse(Files.exists(directory.resolve("statements.csv.part-0")));
+
+    config.setPeriod(0L, 1L);
+    accountService.exportStatements(config);
+    assertEquals(5, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+  }
+
+  @Test
+  public void testBinaryStatementsOfManyAccounts() throws IOException {
+    int count = 20_000;
+    for (int i = 0; i < count; i++) {
+      accountService.addAccount("User" + i, i);
+    }
+    AccountSession first = accountService.openSession("User0");
+    accountService.transferAmount(first, "User1", 7);
+
+    Path file = directory.resolve("statements.bin");
+    StatementConfig config = new StatementConfig().setFile(file).setFormat(StatementFormat.BINARY).setParallelism(4)
+        .setBufferBytes(4096);
+    assertEquals(count + 2, accountService.exportStatements(config));
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      assertEquals(StatementExporter.BINARY_MAGIC, in.readInt());
+      assertEquals(StatementExporter.BINARY_VERSION, in.readInt());
+      assertEquals("Alice", readName(in));
+      assertEquals(0L, in.readLong());
+      assertEquals(0, in.readInt());
+      assertEquals(0, in.readInt());
+      assertEquals(0L, in.readLong());
+      readName(in);
+      in.skipBytes(8 + 4 + 4 + 8);
+      assertEquals("User0", readName(in));
+      assertEquals(0L, in.readLong());
+      assertEquals(1, in.readInt());
+      assertEquals("User1", readName(in));
+      assertEquals(7L, in.readLong());
+      assertEquals(0, in.readInt());
+      assertEquals(0L, in.readLong());
+      assertEquals("User1", readName(in));
+      assertEquals(1L, in.readLong());
+      assertEquals(0, in.readInt());
+      assertEquals(1, in.readInt());
+      assertEquals("User0", readName(in));
+      assertEquals(7L, in.readLong());
+      assertEquals(0L, in.readLong());
+      int accounts = 4;
+      while (in.available() > 0) {
+        readName(in);
+        in.skipBytes(8 + 4 + 4 + 8);
+        accounts++;
+      }
+      assertEquals(count + 2, accounts);
+    }
+  }
+
+  private static String readName(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -135,9 +135,7 @@ public class AccountServiceTest {
     Account account = optAccount.get();
     Optional<Account> optAccountPayee = ACCOUNT_SERVICE.getAccount(payeeName);
     assertTrue(optAccountPayee.isPresent());
-    Account accountPayee = optAccount.get();
     account.addOwesTo(payeeName, credit);
-    accountPayee.addOwesFrom(name, credit); 
     ACCOUNT_SERVICE.loginUser(name);
     ACCOUNT_SERVICE.topupBalance(TEST_BALANCE);
     optAccount = ACCOUNT_SERVICE.getAccount(name);
@@ -165,9 +163,7 @@ public class AccountServiceTest {
     Account account = optAccount.get();
     Optional<Account> optAccountPayee = ACCOUNT_SERVICE.getAccount(payeeName);
     assertTrue(optAccountPayee.isPresent());
-    Account accountPayee = optAccount.get();
     account.addOwesTo(payeeName, credit);
-    accountPayee.addOwesFrom(name, credit); 
     ACCOUNT_SERVICE.loginUser(name);
     ACCOUNT_SERVICE.topupBalance(TEST_BALANCE);
     optAccount = ACCOUNT_SERVICE.getAccount(name);
@@ -197,9 +193,7 @@ public class AccountServiceTest {
     Account account = optAccount.get();
     Optional<Account> optAccountPayee = ACCOUNT_SERVICE.getAccount(payeeName);
     assertTrue(optAccountPayee.isPresent());
-    Account accountPayee = optAccountPayee.get();
     account.addOwesTo(payeeName, credit);
-    accountPayee.addOwesFrom(name, credit); 
     ACCOUNT_SERVICE.loginUser(name);
     ACCOUNT_SERVICE.topupBalance(TEST_BALANCE);
     optAccount = ACCOUNT_SERVICE.getAccount(name);
@@ -326,9 +320,7 @@ public class AccountServiceTest {
     Account account = optAccount.get();
     Optional<Account> optAccountPayee = ACCOUNT_SERVICE.getAccount(payeeName);
     assertTrue(optAccountPayee.isPresent());
-    Account accountPayee = optAccountPayee.get();
     account.addOwesFrom(payeeName, (transfer/2));
-    accountPayee.addOwesTo(name, (transfer/2));
     ACCOUNT_SERVICE.loginUser(name);
     ACCOUNT_SERVICE.transferAmount(payeeName, transfer);
     optAccount = ACCOUNT_SERVICE.getAccount(name);
@@ -360,9 +352,7 @@ public class AccountServiceTest {
     Account account = optAccount.get();
     Optional<Account> optAccountPayee = ACCOUNT_SERVICE.getAccount(payeeName);
     assertTrue(optAccountPayee.isPresent());
-    Account accountPayee = optAccountPayee.get();
     account.addOwesFrom(payeeName, transfer);
-    accountPayee.addOwesTo(name, transfer);
     ACCOUNT_SERVICE.loginUser(name);
     ACCOUNT_SERVICE.transferAmount(payeeName, transfer);
     optAccount = ACCOUNT_SERVICE.getAccount(name);
@@ -392,9 +382,7 @@ public class AccountServiceTest {
     Account account = optAccount.get();
     Optional<Account> optAccountPayee = ACCOUNT_SERVICE.getAccount(payeeName);
     assertTrue(optAccountPayee.isPresent());
-    Account accountPayee = optAccountPayee.get();
     account.addOwesFrom(payeeName, (2 * transfer));
-    accountPayee.addOwesTo(name, (2 * transfer));
     ACCOUNT_SERVICE.loginUser(name);
     ACCOUNT_SERVICE.transferAmount(payeeName, transfer);
     optAccount = ACCOUNT_SERVICE.getAccount(name);
@@ -426,9 +414,7 @@ public class AccountServiceTest {
     Account account = optAccount.get();
     Optional<Account> optAccountPayee = ACCOUNT_SERVICE.getAccount(payeeName);
     assertTrue(optAccountPayee.isPresent());
-    Account accountPayee = optAccountPayee.get();
     account.addOwesTo(payeeName, transfer);
-    accountPayee.addOwesFrom(name, transfer);
     ACCOUNT_SERVICE.loginUser(name);
     ACCOUNT_SERVICE.transferAmount(payeeName, transfer);
     optAccount = ACCOUNT_SERVICE.getAccount(name);
@@ -446,4 +432,28 @@ public class AccountServiceTest {
     assertTrue(account.doesOwesFrom(name));
     assertTrue(account.getOwesFrom().get(name) == (2 * transfer));
   }
-}
\ No newline at end of file
+  
+  @Test
+  @Order(24)
+  public void testSessionHandlesAreIndependent() {
+    String name = "Bob";
+    String payeeName = "Alice";
+    AccountSession bob = ACCOUNT_SERVICE.loginUser(name);
+    AccountSession alice = ACCOUNT_SERVICE.openSession(payeeName);
+    ACCOUNT_SERVICE.topupBalance(bob, TEST_BALANCE);
+    ACCOUNT_SERVICE.topupBalance(alice, TEST_BALANCE);
+    ACCOUNT_SERVICE.transferAmount(alice, name, TEST_BALANCE / 2);
+    assertTrue(name.equals(bob.getName()));
+    assertTrue((TEST_BALANCE + TEST_BALANCE / 2) == bob.getAccount().getBalance());
+    assertTrue((TEST_BALANCE / 2) == alice.getAccount().getBalance());
+  }
+  
+  @Test
+  @Order(25)
+  public void testSessionHandleWithoutLogin() {
+    ACCOUNT_SERVICE.addAccount(TEST_NAME, TEST_BALANCE);
+    AccountSession session = null;
+    ACCOUNT_SERVICE.topupBalance(session, TEST_BALANCE);
+    assertTrue(TEST_BALANCE == ACCOUNT_SERVICE.getAccount(TEST_NAME).get().getBalance());
+  }
+}
@@ -0,0 +1,100 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import domain.AccountBalance;
+
+public class BalanceQueryTest {
+
+  private AccountService accountService;
+  private BalanceQuery balanceQuery;
+
+  @BeforeEach
+  public void init() {
+    accountService = new AccountService();
+    balanceQuery = accountService.getBalanceQuery();
+  }
+
+  @Test
+  public void testQueryReadsBalanceAndDebts() {
+    AccountSession alice = accountService.openSession("Alice");
+    accountService.topupBalance(alice, 20);
+    accountService.transferAmount(alice, "Bob", 50);
+
+    AccountBalance aliceBalance = balanceQuery.query("Alice").get();
+    assertEquals("Alice", aliceBalance.getName());
+    assertEquals(0L, aliceBalance.getBalance());
+    assertEquals(30L, aliceBalance.getOwesTo().get("Bob"));
+    assertTrue(aliceBalance.getOwesFrom().isEmpty());
+    AccountBalance bobBalance = balanceQuery.query(accountService.getAccountId("Bob")).get();
+    assertEquals(20L, bobBalance.getBalance());
+    assertEquals(30L, bobBalance.getOwesFrom().get("Alice"));
+
+    accountService.topupBalance(alice, 40);
+    assertTrue(balanceQuery.query("Alice").get().getOwesTo().isEmpty());
+    assertEquals(10L, balanceQuery.query("Alice").get().getBalance());
+    assertTrue(balanceQuery.query("Bob").get().getOwesFrom().isEmpty());
+    assertFalse(balanceQuery.query("Nobody").isPresent());
+    assertFalse(balanceQuery.query(-1).isPresent());
+    Assertions.assertThrows(IllegalArgumentException.class, () -> balanceQuery.query(" "));
+    Assertions.assertThrows(UnsupportedOperationException.class, () -> bobBalance.getOwesFrom().put("Carol", 1L));
+  }
+
+  /**
+   * the payee gets 10 by every transfer, partly as balance and partly as debt of the payer which the topups of
+   * the payer settle later, so its balance plus what it is owed only ever grows in steps of 10; a reader seeing
+   * the balance before a settlement and the debt after it would see a sum between two steps
+   */
+  @Test
+  public void testConcurrentQueriesSeeCompletedChanges() throws Exception {
+    AccountSession payer = accountService.openSession("Payer");
+    accountService.openSession("Payee");
+    AtomicBoolean done = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    List<Future<Integer>> readers = new ArrayList<>();
+    for (int t = 0; t < 2; t++) {
+      readers.add(executor.submit(() -> {
+        long last = 0;
+        int queries = 0;
+        while (!done.get() || queries == 0) {
+          AccountBalance payee = balanceQuery.query("Payee").get();
+          long worth = payee.getBalance() + payee.getOwesFrom().getOrDefault("Payer", 0L);
+          assertEquals(0L, worth % 10, payee.toString());
+          assertTrue(worth >= last, payee.toString());
+          last = worth;
+          queries++;
+        }
+        return queries;
+      }));
+    }
+    Future<?> writer = executor.submit(() -> {
+      for (int i = 0; i < 20_000; i++) {
+        accountService.transferAmount(payer, "Payee", 10);
+        accountService.topupBalance(payer, 7);
+      }
+      done.set(true);
+    });
+    writer.get();
+    for (Future<Integer> reader : readers) {
+      assertTrue(reader.get() > 0);
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    AccountBalance payee = balanceQuery.query("Payee").get();
+    assertEquals(200_000L, payee.getBalance() + payee.getOwesFrom().getOrDefault("Payer", 0L));
+  }
+}
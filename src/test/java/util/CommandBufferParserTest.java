@@ -0,0 +1,109 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import enums.CommandAction;
+
+public class CommandBufferParserTest {
+
+  private static ByteBuffer buffer(String value) {
+    return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testParseCommands() {
+    CommandBufferParser parser = new CommandBufferParser();
+    parser.reset(buffer("login Alice\n\n  topup\t100\r\npay Bob 50"), true);
+    assertTrue(parser.next());
+    assertEquals(CommandAction.LOGIN, parser.getAction());
+    assertEquals("Alice", parser.getName(1));
+    assertTrue(parser.next());
+    assertEquals(CommandAction.TOPUP, parser.getAction());
+    assertTrue(parser.parseAmount(1));
+    assertEquals(100L, parser.getAmount());
+    assertTrue(parser.next());
+    assertEquals(CommandAction.PAY, parser.getAction());
+    assertEquals(3, parser.getTokenCount());
+    assertEquals("Bob", parser.getName(1));
+    assertTrue(parser.parseAmount(2));
+    assertEquals(50L, parser.getAmount());
+    assertFalse(parser.next());
+  }
+
+  @Test
+  public void testSmallNameCacheAndLineLength() {
+    CommandBufferParser parser = new CommandBufferParser(2);
+    parser.reset(buffer("pay Bob 1\r\npay Carol 2\npay Dave 3\npay Bob 4\n"), false);
+    assertTrue(parser.next());
+    assertEquals(10, parser.getLineLength());
+    String bob = parser.getName(1);
+    assertTrue(parser.next());
+    assertEquals(11, parser.getLineLength());
+    assertEquals("Carol", parser.getName(1));
+    assertTrue(parser.next());
+    assertEquals("Dave", parser.getName(1));
+    assertTrue(parser.next());
+    assertEquals(bob, parser.getName(1));
+    assertFalse(parser.next());
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new CommandBufferParser(3));
+  }
+
+  @Test
+  public void testIncompleteLineIsKept() {
+    CommandBufferParser parser = new CommandBufferParser();
+    ByteBuffer buffer = buffer("login Alice\npay Bo");
+    parser.reset(buffer, false);
+    assertTrue(parser.next());
+    assertFalse(parser.next());
+    assertEquals(12, buffer.position());
+  }
+
+  @Test
+  public void testUnknownCommandAndInvalidAmount() {
+    CommandBufferParser parser = new CommandBufferParser();
+    parser.reset(buffer("withdraw 10\ntopup 1x\ntopup -5\ntopup 9223372036854775808"), true);
+    assertTrue(parser.next());
+    assertNull(parser.getAction());
+    assertEquals("withdraw", parser.getToken(0));
+    assertTrue(parser.next());
+    assertFalse(parser.parseAmount(1));
+    assertTrue(parser.next());
+    assertTrue(parser.parseAmount(1));
+    assertEquals(-5L, parser.getAmount());
+    assertTrue(parser.next());
+    assertFalse(parser.parseAmount(1));
+  }
+
+  @Test
+  public void testRepeatedNamesAreCached() {
+    CommandBufferParser parser = new CommandBufferParser();
+    parser.reset(buffer("login Alice\nlogin Alice\n"), true);
+    assertTrue(parser.next());
+    String first = parser.getName(1);
+    assertTrue(parser.next());
+    assertSame(first, parser.getName(1));
+  }
+
+  @Test
+  public void testKeyIsHashOfToken() {
+    CommandBufferParser parser = new CommandBufferParser();
+    parser.reset(buffer("pay Bob 10 r\u00e9q-1\npay Bob 10 req-2\n"), true);
+    assertTrue(parser.next());
+    long first = parser.getKey(3);
+    assertEquals(CommandBufferParser.keyOf("r\u00e9q-1"), first);
+    assertTrue(parser.next());
+    assertEquals(CommandBufferParser.keyOf("req-2"), parser.getKey(3));
+    assertNotEquals(first, parser.getKey(3));
+  }
+}